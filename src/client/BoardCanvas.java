@@ -10,7 +10,8 @@ import common.Whiteboard;
 
 /**
  * A subclass of JPanel which blits the image of a whiteboard
- * onto the screen when it repaints.
+ * onto the screen when it repaints. The canvas has the size of the board
+ * that it shows, which is set with setBoardSize().
  *
  * Thread safety:
  *      Public interface is not thread safe. The drawingBuffer
@@ -25,12 +26,42 @@ public class BoardCanvas extends JPanel{
     
     /**
      * Construct a JPanel with the same width and height
-     * as a Whiteboard.
+     * as a Whiteboard of the default size.
      */
     public BoardCanvas(){
         super();
-        this.setPreferredSize(new Dimension(Whiteboard.WIDTH, Whiteboard.HEIGHT));
-        this.drawingBuffer = Whiteboard.makeBuffer();
+        setBoardSize(Whiteboard.WIDTH, Whiteboard.HEIGHT);
+    }
+
+    /**
+     * Resize the canvas and its drawing buffer to the size of a board,
+     * if it has another size. The new buffer is blank.
+     *
+     * Should only be called inside the Swing event loop.
+     * @param width: the number of columns of the board
+     * @param height: the number of rows of the board
+     */
+    public void setBoardSize(int width, int height){
+        if (drawingBuffer != null && drawingBuffer.getWidth() == width && drawingBuffer.getHeight() == height){
+            return;
+        }
+        this.drawingBuffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        this.setPreferredSize(new Dimension(width, height));
+        this.revalidate();
+    }
+
+    /**
+     * @return the number of columns of the board that the canvas shows
+     */
+    public int getBoardWidth(){
+        return drawingBuffer.getWidth();
+    }
+
+    /**
+     * @return the number of rows of the board that the canvas shows
+     */
+    public int getBoardHeight(){
+        return drawingBuffer.getHeight();
     }
     
     /**
@@ -1,6 +1,9 @@
 package client;
 
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
 
 import common.*;
 
@@ -29,11 +32,46 @@ public class ClientController {
      * @param s: socket between the client and the server
      */
     public ClientController(Socket s){
+        this(s, null, 0);
+    }
+
+    /**
+     * Construct a ClientController that communicates to a server through
+     * the given socket, and resumes the session on a new connection to
+     * host:port if the socket is lost.
+     * @param s: socket between the client and the server
+     * @param host: the host of the server, or null to not resume sessions
+     * @param port: the port of the server
+     */
+    public ClientController(Socket s, String host, int port){
+        this(s, host, port, Collections.<InetSocketAddress>emptyList());
+    }
+
+    /**
+     * Construct a ClientController that communicates to a server through
+     * the given socket, and resumes the session on a new connection to
+     * host:port, or to one of the failover addresses, if the socket is
+     * lost.
+     * @param s: socket between the client and the server
+     * @param host: the host of the server, or null to not resume sessions
+     * @param port: the port of the server
+     * @param failover: addresses of the servers that take over from the
+     *      server, eg. its followers
+     */
+    public ClientController(Socket s, String host, int port, List<InetSocketAddress> failover){
         // Construct the socketWrapper that runs the background thread
         socketWrapper = new SocketWrapper(s);
+        socketWrapper.setHeartbeat(SocketWrapper.DEFAULT_HEARTBEAT_INTERVAL,
+                SocketWrapper.DEFAULT_HEARTBEAT_TIMEOUT);
 
         // Construct a SocketHandler to interpret the socket protocol
         socketHandler = new ClientSocketHandler(socketWrapper);
+        if (host != null){
+            socketHandler.setReconnectAddress(host, port);
+            for (InetSocketAddress a: failover){
+                socketHandler.addFailoverAddress(a.getHostString(), a.getPort());
+            }
+        }
 
         // Construct the ClientGUI object
         gui = new ClientGUI();
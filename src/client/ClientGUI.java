@@ -1,14 +1,18 @@
 package client;
 
+import java.awt.BorderLayout;
 import java.awt.Dimension;
-import java.awt.FlowLayout;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
@@ -16,9 +20,12 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
 import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 
 import common.*;
@@ -34,6 +41,27 @@ import common.*;
  *
  * Receives messages from the server via the ServerMessageListener interface.
  *
+ * The user's draws are shown immediately, as predictions on top of the
+ * board that the server sent (see PredictedBoard), and corrected when the
+ * server acknowledges them.
+ *
+ * New boards have the size given on the connect screen, and the canvas
+ * takes the size of the board that it shows. The canvas scrolls when the
+ * window is smaller than the board, and the visible part of the board is
+ * sent to the server as the viewport, so that the server only sends the
+ * pixels and the updates of the tiles of that part. The tiles that were hidden are sent
+ * when they are scrolled into view.
+ *
+ * The UNDO and REDO buttons ask the server to undo or redo the user's last
+ * draw; they are not predicted, and the restored pixels come back as
+ * updates.
+ *
+ * One in TRACE_SAMPLE_INTERVAL line segments is sent with a trace, so that
+ * the server can break down its latency. When the server indicates that
+ * the updates of a trace have been sent (by this or another client), the
+ * time until the Swing thread has caught up with them is reported back,
+ * along with the total time since sending it if this client drew it.
+ *
  * Sends messages to the server by calling functions on a ClientMessageListener
  * object, which must be connected via the SetClientMessageListener() function
  * immediately after construction.
@@ -59,8 +87,15 @@ public class ClientGUI implements ServerMessageListener{
     // variables in this section should not be accessed without
     // locking the ClientGUI object
     private ArrayList<String> users = new ArrayList<String>();
-    private Whiteboard board;
+    private PredictedBoard board;
     private int boardID;
+    private long boardVersion;
+
+    // copy of the last board that was left, so that reconnecting
+    // to it only needs the changes since then
+    private Whiteboard cachedBoard;
+    private int cachedBoardID = -1;
+    private long cachedBoardVersion;
     // ---- end section --------
 
 
@@ -68,6 +103,8 @@ public class ClientGUI implements ServerMessageListener{
     // variables in this section may only be accessed from the
     // Java Swing thread
     private String username;
+    // true if the user watches boards without drawing
+    private boolean spectating;
     private JFrame loginWindow;
     private JFrame connectWindow;
     private JFrame canvasWindow;
@@ -75,6 +112,11 @@ public class ClientGUI implements ServerMessageListener{
     private ClientMessageListener cmListener;
 
     private BoardCanvas canvas;
+    private JScrollPane canvasScroll;
+    // the part of the canvas that was last sent as the viewport, or null
+    // if it has to be sent again
+    private Rectangle sentViewport;
+    private DrawingController drawingController;
     private JLabel usersLabel;
     private JLabel boardIDLabel;
 
@@ -82,6 +124,19 @@ public class ClientGUI implements ServerMessageListener{
 
     private int penSize=PEN_WIDTH;
     private Color color=BLACK;
+    // what dragging the mouse on the canvas does
+    private Tool tool=Tool.PEN;
+
+    private final Random traceIds = new Random();
+    private int segmentsUntilTrace = TRACE_SAMPLE_INTERVAL;
+    // System.nanoTime() at which the traces that have not been applied
+    // yet were sent, by trace id
+    private final Map<Long, Long> sentTraces = new LinkedHashMap<Long, Long>(){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest){
+            return size() > MAX_PENDING_TRACES;
+        }
+    };
     // ---- end section --------
 
 
@@ -95,8 +150,25 @@ public class ClientGUI implements ServerMessageListener{
     private static final int ERASER_WIDTH = 40;
     private static final int PEN_WIDTH = 5;
     private static final int REFRESH_DELAY = 20;
+    private static final int TRACE_SAMPLE_INTERVAL = 100;
+    private static final int MAX_PENDING_TRACES = 64;
+    // a stroke is sent when it is this old (in milliseconds), has this
+    // many points, or the mouse button is released
+    private static final long STROKE_BATCH_DELAY = 30;
+    private static final int MAX_STROKE_POINTS = 64;
+    // points of a stroke that are within this many pixels of the
+    // simplified stroke are not sent; 0 sends every point
+    private static final double STROKE_TOLERANCE =
+            Double.parseDouble(System.getProperty("whiteboard.strokeTolerance", "1"));
     // ---- end section --------
 
+    /**
+     * What dragging the mouse on the canvas does.
+     */
+    private enum Tool {
+        PEN, FILL, RECTANGLE, ELLIPSE
+    }
+
 
     /**
      * Initialize class members. Make the GUI elements, but 
@@ -138,6 +210,50 @@ public class ClientGUI implements ServerMessageListener{
         showConnectScreen();
     }
 
+    /**
+     * Nothing to do, since the ClientSocketHandler resumes the
+     * session by itself.
+     */
+    @Override
+    public void resumeToken(String token) {
+    }
+
+    /**
+     * Show the screen that matches the state of the session after it
+     * was resumed on a new connection.
+     */
+    @Override
+    public void resumeSessionSuccess(SocketState state) {
+        switch(state){
+            case NOT_CONNECTED:
+                // the board was left while the connection was down
+                synchronized(this){
+                    this.board = null;
+                    this.boardID = -1;
+                    this.users = new ArrayList<String>();
+                }
+                hideCanvasScreen();
+                showConnectScreen();
+                break;
+            case CONNECTED:
+                // the draws that were in flight may not be acknowledged
+                // on the new connection
+                synchronized(this){
+                    if (this.board != null){
+                        this.board.clearPredictions();
+                    }
+                }
+                // the session may be on a new server, which only sent
+                // the changes since the version of the board
+                showCanvasScreen(true);
+                requestRefresh();
+                break;
+            default:
+                // the server sends the board, or confirms the disconnect
+                break;
+        }
+    }
+
     /**
      * Display a dialog box when an error occurs.
      */
@@ -170,21 +286,112 @@ public class ClientGUI implements ServerMessageListener{
             Whiteboard data) {
         synchronized(this){
             this.users = new ArrayList<String>(users);
-            this.board = data;
+            this.board = new PredictedBoard(data);
             this.boardID = id;
         }
 
-        showCanvasScreen();
+        showCanvasScreen(false);
         requestRefresh();
     }
 
+    /**
+     * Nothing to do, since the ClientSocketHandler follows redirects by
+     * itself and reports the result as a connection success or error.
+     */
+    @Override
+    public void redirect(int id, String host, int port) {
+    }
+
+    /**
+     * Display the drawing screen with the cached copy of the whiteboard
+     * after successfully reconnecting to it. The tiles that the canvas
+     * shows are sent again once its viewport is sent.
+     */
+    @Override
+    public void resyncBoardSuccess(int id, List<String> users) {
+        synchronized(this){
+            assert id == cachedBoardID;
+            this.users = new ArrayList<String>(users);
+            this.board = new PredictedBoard(cachedBoard);
+            this.boardID = id;
+            this.cachedBoard = null;
+            this.cachedBoardID = -1;
+        }
+
+        showCanvasScreen(true);
+        requestRefresh();
+    }
+
+    /**
+     * Remember the version of the whiteboard.
+     */
+    @Override
+    public void updateVersion(long version) {
+        synchronized(this){
+            this.boardVersion = version;
+        }
+    }
+
+    /**
+     * Replace the prediction of the oldest draw that has not been
+     * acknowledged with the updates that the server sent for it.
+     */
+    @Override
+    public void acknowledgeDraw(long version) {
+        synchronized(this){
+            if (this.board != null){
+                this.board.acknowledgeDraw();
+            }
+        }
+        requestRefresh();
+    }
+
+    /**
+     * Report when the Swing thread has caught up with the updates of a
+     * traced line segment.
+     */
+    @Override
+    public void updateTrace(final Trace trace) {
+        // runs after the refreshes requested by the preceding updates
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                long applied = System.nanoTime();
+                Long sent = sentTraces.remove(trace.getID());
+                long total = sent == null ? -1 : applied - sent;
+                cmListener.traceApplied(trace.getID(), total, applied - trace.getNanos());
+            }
+        });
+    }
+
     /**
      * Update the whiteboard when the server sends and updatePixel message.
      */
     @Override
     public void updatePixel(Point point, Color color) {
         synchronized(this){
-            this.board.setPixel(point, color);
+            this.board.updatePixel(point, color);
+        }
+        requestRefresh();
+    }
+
+    /**
+     * Update the whiteboard when the server sends an updateSpans message.
+     */
+    @Override
+    public void updateSpans(List<Span> spans, Color color) {
+        synchronized(this){
+            this.board.updateSpans(spans, color);
+        }
+        requestRefresh();
+    }
+
+    /**
+     * Update the whiteboard when the server sends an updateShape message.
+     */
+    @Override
+    public void updateShape(Shape shape) {
+        synchronized(this){
+            this.board.updateShape(shape);
         }
         requestRefresh();
     }
@@ -207,6 +414,10 @@ public class ClientGUI implements ServerMessageListener{
     @Override
     public void disconnectFromBoardSuccess() {
         synchronized(this){
+            // keep a copy of the board in case the user reconnects
+            this.cachedBoard = board.getConfirmed();
+            this.cachedBoardID = boardID;
+            this.cachedBoardVersion = boardVersion;
             this.board = null;
             this.boardID = -1;
             this.users = new ArrayList<String>();
@@ -235,20 +446,31 @@ public class ClientGUI implements ServerMessageListener{
                 final JLabel usernameLabel = new JLabel("Username:");
                 final JTextField usernameBox = new JTextField(20);
                 final JButton loginButton = new JButton("Login");
+                final JButton watchButton = new JButton("Watch");
                 loginWindow.add(usernameLabel);
                 loginWindow.add(usernameBox);
                 loginWindow.add(loginButton);
+                loginWindow.add(watchButton);
 
                 loginButton.addActionListener(new ActionListener(){
                     public void actionPerformed(ActionEvent e){
                         username = usernameBox.getText();
                         if (!username.isEmpty()) {
+                            spectating = false;
                             cmListener.login(username);
                             hideLoginScreen();
                         }
                     }
                 });
 
+                watchButton.addActionListener(new ActionListener(){
+                    public void actionPerformed(ActionEvent e){
+                        spectating = true;
+                        cmListener.spectate();
+                        hideLoginScreen();
+                    }
+                });
+
                 loginWindow.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
                 loginWindow.pack();
                 loginWindow.setMinimumSize(loginWindow.getSize());
@@ -290,17 +512,23 @@ public class ClientGUI implements ServerMessageListener{
                 final JLabel boardIDLabel = new JLabel("Board ID:");
                 final JTextField boardIDBox = new JTextField(20);
                 final JButton connectToBoardButton = new JButton("Connect to board");
+                final JLabel boardSizeLabel = new JLabel("Size:");
+                final JTextField boardSizeBox = new JTextField(Whiteboard.WIDTH + "x" + Whiteboard.HEIGHT, 9);
                 final JButton newBoardButton = new JButton("New Board");
+                final JButton cloneBoardButton = new JButton("Copy board");
                 connectWindow.add(boardIDLabel);
                 connectWindow.add(boardIDBox);
                 connectWindow.add(connectToBoardButton);
+                connectWindow.add(boardSizeLabel);
+                connectWindow.add(boardSizeBox);
                 connectWindow.add(newBoardButton);
+                connectWindow.add(cloneBoardButton);
 
                 connectToBoardButton.addActionListener(new ActionListener(){
                     public void actionPerformed(ActionEvent e){
                         try{
                             int boardID = Integer.parseInt(boardIDBox.getText());
-                            cmListener.connectToBoard(boardID);
+                            connectToBoard(boardID);
                             hideConnectScreen();
                         } catch (Exception ex) {
                             JOptionPane.showMessageDialog(null, "invalid boardID");
@@ -310,8 +538,43 @@ public class ClientGUI implements ServerMessageListener{
 
                 newBoardButton.addActionListener(new ActionListener(){
                     public void actionPerformed(ActionEvent e){
-                        cmListener.newBoard();
-                        hideConnectScreen();
+                        if (spectating){
+                            JOptionPane.showMessageDialog(null, "Spectators can not create boards");
+                            return;
+                        }
+                        // the size is given as WIDTHxHEIGHT
+                        String[] size = boardSizeBox.getText().trim().split("x");
+                        try{
+                            if (size.length != 2){
+                                throw new NumberFormatException();
+                            }
+                            int width = Integer.parseInt(size[0].trim());
+                            int height = Integer.parseInt(size[1].trim());
+                            if (!Whiteboard.isValidSize(width, height)){
+                                throw new NumberFormatException();
+                            }
+                            cmListener.newBoard(width, height);
+                            hideConnectScreen();
+                        } catch (NumberFormatException ex) {
+                            JOptionPane.showMessageDialog(null, "invalid board size, at most "
+                                    + Whiteboard.MAX_WIDTH + "x" + Whiteboard.MAX_HEIGHT);
+                        }
+                    }
+                });
+
+                cloneBoardButton.addActionListener(new ActionListener(){
+                    public void actionPerformed(ActionEvent e){
+                        if (spectating){
+                            JOptionPane.showMessageDialog(null, "Spectators can not create boards");
+                            return;
+                        }
+                        try{
+                            int boardID = Integer.parseInt(boardIDBox.getText());
+                            cmListener.cloneBoard(boardID);
+                            hideConnectScreen();
+                        } catch (NumberFormatException ex) {
+                            JOptionPane.showMessageDialog(null, "invalid boardID");
+                        }
                     }
                 });
 
@@ -322,6 +585,25 @@ public class ClientGUI implements ServerMessageListener{
         });
     }
  
+    /**
+     * Connect to the board with the given id, only asking for the
+     * changes since the cached copy if there is one.
+     */
+    private void connectToBoard(int id){
+        long version = -1;
+        synchronized(ClientGUI.this){
+            if (cachedBoard != null && cachedBoardID == id){
+                version = cachedBoardVersion;
+            }
+        }
+
+        if (version >= 0){
+            cmListener.reconnectToBoard(id, version);
+        } else {
+            cmListener.connectToBoard(id);
+        }
+    }
+
     /**
      * displays connect screen
      */
@@ -358,7 +640,15 @@ public class ClientGUI implements ServerMessageListener{
                 usersLabel = new JLabel();
 
                 canvasWithUsers.setLayout(new BoxLayout(canvasWithUsers, BoxLayout.Y_AXIS));
-                canvasWithUsers.add(canvas);
+                // the canvas scrolls if the window is smaller than the
+                // board, and the server only sends what is visible
+                canvasScroll = new JScrollPane(canvas);
+                canvasScroll.getViewport().addChangeListener(new ChangeListener(){
+                    public void stateChanged(ChangeEvent e){
+                        sendViewport();
+                    }
+                });
+                canvasWithUsers.add(canvasScroll);
                 canvasWithUsers.add(usersLabel);
 
                 // Right-hand box contains the buttons, and the board id
@@ -370,6 +660,13 @@ public class ClientGUI implements ServerMessageListener{
                 JButton redButton = makeButton("RED", RED, PEN_WIDTH);
                 JButton blueButton = makeButton("BLUE", BLUE, PEN_WIDTH);
                 JButton greenButton = makeButton("GREEN", GREEN, PEN_WIDTH);
+                JButton penButton = makeToolButton("PEN", Tool.PEN);
+                JButton fillButton = makeToolButton("FILL", Tool.FILL);
+                JButton rectangleButton = makeToolButton("RECT", Tool.RECTANGLE);
+                JButton ellipseButton = makeToolButton("OVAL", Tool.ELLIPSE);
+                JButton clearButton = makeClearButton();
+                JButton undoButton = makeUndoButton("UNDO", true);
+                JButton redoButton = makeUndoButton("REDO", false);
                 JButton exitButton = makeExitButton();
 
                 drawAndErase.setLayout(new BoxLayout(drawAndErase, BoxLayout.Y_AXIS));
@@ -380,12 +677,19 @@ public class ClientGUI implements ServerMessageListener{
                 drawAndErase.add(blueButton);
                 drawAndErase.add(greenButton);
                 drawAndErase.add(eraseButton);
+                drawAndErase.add(penButton);
+                drawAndErase.add(fillButton);
+                drawAndErase.add(rectangleButton);
+                drawAndErase.add(ellipseButton);
+                drawAndErase.add(clearButton);
+                drawAndErase.add(undoButton);
+                drawAndErase.add(redoButton);
                 drawAndErase.add(exitButton);
 
                 // Add the two sub-panels to the JFrame
-                canvasWindow.setLayout(new FlowLayout());
-                canvasWindow.add(canvasWithUsers);
-                canvasWindow.add(drawAndErase);
+                canvasWindow.setLayout(new BorderLayout());
+                canvasWindow.add(canvasWithUsers, BorderLayout.CENTER);
+                canvasWindow.add(drawAndErase, BorderLayout.EAST);
 
                 addDrawingController();
 
@@ -398,12 +702,14 @@ public class ClientGUI implements ServerMessageListener{
                             shouldRefreshCanvas = false;
                             refreshCanvasElements();
                         }
+                        // send the stroke in progress if the mouse
+                        // stopped moving
+                        drawingController.flushStrokeIfDue();
                     }
                 }).start();
 
                 canvasWindow.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
                 canvasWindow.pack();
-                canvasWindow.setMinimumSize(canvasWindow.getSize());
             }
         });
     }
@@ -411,29 +717,68 @@ public class ClientGUI implements ServerMessageListener{
      * Add the mouse listener that supports the user's freehand drawing.
      */
     private void addDrawingController() {
-        DrawingController controller = new DrawingController();
-        canvas.addMouseListener(controller);
-        canvas.addMouseMotionListener(controller);
+        drawingController = new DrawingController();
+        canvas.addMouseListener(drawingController);
+        canvas.addMouseMotionListener(drawingController);
     }
 
 	/**
      * DrawingController handles the user's freehand drawing.
+     *
+     * The segments of a freehand stroke are drawn on the local board
+     * immediately, but batched into a single drawPolyline message per
+     * STROKE_BATCH_DELAY (or MAX_STROKE_POINTS, or until the mouse button
+     * is released), so that the server gets a few messages per second
+     * instead of one per mouse event.
      */
     private class DrawingController implements MouseListener, MouseMotionListener {
         // store the coordinates of the last mouse event, so we can
         // draw a line segment from that last point to the point of the next mouse event.
         private int lastX, lastY; 
 
+        // where the mouse button was pressed down, for shapes
+        private int startX, startY;
+        // the points of the stroke that have not been sent yet, or null
+        private List<Point> stroke;
+        // System.currentTimeMillis() at which the stroke was started
+        private long strokeStarted;
+        // true if the stroke should be traced when it is sent
+        private boolean traceStroke;
+
         /**
-         * When mouse button is pressed down, draw a single point.
+         * When mouse button is pressed down, draw a single point,
+         * or fill the area under it.
          */
         public void mousePressed(MouseEvent e) {
             lastX = e.getX();
             lastY = e.getY();
+            startX = lastX;
+            startY = lastY;
 
-            Point thisPoint = new Point(lastX, Whiteboard.HEIGHT-lastY);
+            Point thisPoint = new Point(lastX, canvas.getBoardHeight()-lastY);
 
-            drawLine(thisPoint, thisPoint);
+            if (tool == Tool.FILL){
+                fill(thisPoint);
+            } else if (tool == Tool.PEN){
+                drawPoint(thisPoint);
+            }
+        }
+
+        /**
+         * When mouse button is released, draw the shape between the
+         * points where it was pressed and released.
+         */
+        public void mouseReleased(MouseEvent e) {
+            Point start = new Point(startX, canvas.getBoardHeight()-startY);
+            Point end = new Point(e.getX(), canvas.getBoardHeight()-e.getY());
+
+            if (tool == Tool.PEN){
+                flushStroke();
+            } else if (tool == Tool.RECTANGLE){
+                drawShape(new Shape(Shape.Kind.RECTANGLE, start, end, color, penSize));
+            } else if (tool == Tool.ELLIPSE){
+                drawShape(new Shape(Shape.Kind.ELLIPSE, start, end, color, penSize));
+            }
         }
 
         /**
@@ -444,37 +789,156 @@ public class ClientGUI implements ServerMessageListener{
             int x = e.getX();
             int y = e.getY();
             
-            Point lastPoint = new Point(lastX, Whiteboard.HEIGHT-lastY);
-            Point thisPoint = new Point(x, Whiteboard.HEIGHT-y);
+            Point lastPoint = new Point(lastX, canvas.getBoardHeight()-lastY);
+            Point thisPoint = new Point(x, canvas.getBoardHeight()-y);
 
-            drawLine(lastPoint, thisPoint);
+            if (tool == Tool.PEN){
+                drawLine(lastPoint, thisPoint);
+            }
 
             lastX = x;
             lastY = y;
         }
 
         /**
-         * Draw a line on the local whiteboard, and send a drawLine
+         * @return true if the point is on the board that the canvas shows
+         */
+        private boolean onBoard(Point point){
+            return point.getX() >= 0 && point.getX() < canvas.getBoardWidth()
+                && point.getY() >= 0 && point.getY() < canvas.getBoardHeight();
+        }
+
+        /**
+         * Fill the area on the local whiteboard, and send a fill message
+         * to the server.
+         */
+        private void fill(Point seed){
+            if (spectating || !onBoard(seed)){
+                return;
+            }
+            synchronized(ClientGUI.this){
+                board.fill(seed, color);
+                cmListener.fill(seed, color);
+                board.drawSent();
+            }
+            requestRefresh();
+        }
+
+        /**
+         * Draw the shape on the local whiteboard, and send a drawShape
          * message to the server.
          */
+        private void drawShape(Shape shape){
+            if (spectating){
+                return;
+            }
+            synchronized(ClientGUI.this){
+                board.drawShape(shape);
+                cmListener.drawShape(shape);
+                board.drawSent();
+            }
+            requestRefresh();
+        }
+
+        /**
+         * Draw a single point on the local whiteboard, and start a stroke
+         * with it.
+         */
+        private void drawPoint(Point point){
+            flushStroke();
+            if (spectating || !onBoard(point)){
+                return;
+            }
+            synchronized(ClientGUI.this){
+                board.drawLine(point, point, color, penSize);
+            }
+            requestRefresh();
+
+            stroke = new ArrayList<Point>();
+            stroke.add(point);
+            strokeStarted = System.currentTimeMillis();
+        }
+
+        /**
+         * Draw a line on the local whiteboard, and add it to the stroke
+         * that is sent to the server.
+         */
         private void drawLine(Point lastPoint, Point thisPoint){
-            if (Whiteboard.checkPointInBounds(thisPoint) && Whiteboard.checkPointInBounds(lastPoint)){
+            if (spectating){
+                return;
+            }
+            if (onBoard(thisPoint) && onBoard(lastPoint)){
                 // draw immediately to the local board so that the
                 // user gets instant feedback
-                synchronized(this){
+                synchronized(ClientGUI.this){
                     board.drawLine(lastPoint, thisPoint, color, penSize);
                 }
                 requestRefresh();
 
-                // send to the server
-                cmListener.drawLine(lastPoint, thisPoint, color, penSize);
+                if (stroke == null){
+                    stroke = new ArrayList<Point>();
+                    stroke.add(lastPoint);
+                    strokeStarted = System.currentTimeMillis();
+                }
+                stroke.add(thisPoint);
+
+                // trace a sample of the segments
+                segmentsUntilTrace--;
+                if (segmentsUntilTrace == 0){
+                    segmentsUntilTrace = TRACE_SAMPLE_INTERVAL;
+                    traceStroke = true;
+                }
+
+                if (stroke.size() >= MAX_STROKE_POINTS){
+                    flushStroke();
+                } else {
+                    flushStrokeIfDue();
+                }
+            } else {
+                // the segment is skipped, so the stroke is interrupted
+                flushStroke();
+            }
+        }
+
+        /**
+         * Send the stroke in progress if it is older than
+         * STROKE_BATCH_DELAY.
+         */
+        public void flushStrokeIfDue(){
+            if (stroke != null && System.currentTimeMillis() - strokeStarted >= STROKE_BATCH_DELAY){
+                flushStroke();
+            }
+        }
+
+        /**
+         * Send the stroke in progress to the server as a single
+         * drawPolyline message, simplified to STROKE_TOLERANCE. The
+         * local board keeps every point.
+         */
+        private void flushStroke(){
+            if (stroke == null){
+                return;
+            }
+            List<Point> points = StrokeSimplifier.simplify(stroke, STROKE_TOLERANCE);
+            synchronized(ClientGUI.this){
+                if (traceStroke){
+                    traceStroke = false;
+                    Trace trace = new Trace(traceIds.nextLong() >>> 1, System.nanoTime());
+                    sentTraces.put(trace.getID(), trace.getNanos());
+                    cmListener.drawPolyline(points, color, penSize, trace);
+                } else {
+                    cmListener.drawPolyline(points, color, penSize);
+                }
+                if (board != null){
+                    board.drawSent();
+                }
             }
+            stroke = null;
         }
 
         // Ignore all these other mouse events.
         public void mouseMoved(MouseEvent e) { }
         public void mouseClicked(MouseEvent e) { }
-        public void mouseReleased(MouseEvent e) { }
         public void mouseEntered(MouseEvent e) { }
         public void mouseExited(MouseEvent e) { }
     }
@@ -498,6 +962,75 @@ public class ClientGUI implements ServerMessageListener{
         });
         return btn;
     }
+    /**
+     * creates button that selects what the mouse does on the canvas
+     * @param label
+     * @param t
+     * @return ToolButton
+     */
+    private JButton makeToolButton(String label, final Tool t){
+        JButton btn = new JButton(label);
+        btn.setName(label);
+        btn.setPreferredSize(new Dimension (100,50));
+        btn.addActionListener( new ActionListener(){
+            public void actionPerformed(ActionEvent e) {
+                tool=t;
+            }
+        });
+        return btn;
+    }
+    /**
+     * creates clear button to clear the whole board
+     * @return ClearButton
+     */
+    private JButton makeClearButton(){
+        JButton btn = new JButton("CLEAR");
+        btn.setName("CLEAR");
+        btn.setPreferredSize(new Dimension (100,50));
+        btn.addActionListener( new ActionListener(){
+            public void actionPerformed(ActionEvent e) {
+                if (spectating){
+                    return;
+                }
+                Shape clear = Shape.clearBoard();
+                synchronized(ClientGUI.this){
+                    board.drawShape(clear);
+                    cmListener.drawShape(clear);
+                    board.drawSent();
+                }
+                requestRefresh();
+            }
+        });
+        return btn;
+    }
+    /**
+     * creates a button that undoes or redoes the user's last draw; the
+     * server sends back the restored pixels
+     * @param label: the label of the button
+     * @param undo: true for undo, false for redo
+     * @return UndoButton
+     */
+    private JButton makeUndoButton(String label, final boolean undo){
+        JButton btn = new JButton(label);
+        btn.setName(label);
+        btn.setPreferredSize(new Dimension (100,50));
+        btn.addActionListener( new ActionListener(){
+            public void actionPerformed(ActionEvent e) {
+                if (spectating){
+                    return;
+                }
+                // send the stroke in progress first, so that it is undone
+                // like the user sees it
+                drawingController.flushStroke();
+                if (undo){
+                    cmListener.undo();
+                } else {
+                    cmListener.redo();
+                }
+            }
+        });
+        return btn;
+    }
     /**
      * creates exit button to exit the board
      * @return ExitButton
@@ -515,16 +1048,46 @@ public class ClientGUI implements ServerMessageListener{
         return btn;
     }
     /**
-     * displays canvas screen
+     * displays canvas screen, and sends the viewport of the canvas, since
+     * the server sends no pixels until it knows the viewport
+     * @param stale: true if the board was not sent in full, so that the
+     *      pixels that were hidden before may be out of date
      */
-    private void showCanvasScreen(){
+    private void showCanvasScreen(final boolean stale){
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
+                synchronized(ClientGUI.this){
+                    if (board != null){
+                        Whiteboard displayed = board.getDisplayed();
+                        canvas.setBoardSize(displayed.getWidth(), displayed.getHeight());
+                    }
+                }
                 canvasWindow.setVisible(true);
+                if (stale){
+                    // hiding the whole board first makes the server send
+                    // every pixel that is visible
+                    cmListener.setViewport(0, 0, 0, 0);
+                }
+                sentViewport = null;
+                sendViewport();
             }
         });
     }
 
+    /**
+     * Tell the server which part of the board the canvas shows, if it
+     * changed. Must be called from the Swing event loop.
+     */
+    private void sendViewport(){
+        Rectangle view = canvasScroll.getViewport().getViewRect();
+        if (view.equals(sentViewport)){
+            return;
+        }
+        sentViewport = view;
+        // rows of the canvas go down from the top of the board
+        cmListener.setViewport(view.x, canvas.getBoardHeight() - view.y - view.height, view.width, view.height);
+    }
+
     /**
      * hides canvas screen
      */
@@ -565,8 +1128,11 @@ public class ClientGUI implements ServerMessageListener{
             // show the current board id
             boardIDLabel.setText("Board ID: " + boardID);
 
-            // update the image shown in the canvas
-            board.copyPixelData(canvas.getDrawingBuffer());
+            // update the image shown in the canvas, which has the size
+            // of the board
+            Whiteboard displayed = board.getDisplayed();
+            canvas.setBoardSize(displayed.getWidth(), displayed.getHeight());
+            displayed.copyPixelData(canvas.getDrawingBuffer());
 
             // request repaint
             canvasWindow.repaint();
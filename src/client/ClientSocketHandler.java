@@ -1,5 +1,10 @@
 package client;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.util.*;
 import common.*;
 import static common.SocketState.*;
@@ -14,6 +19,34 @@ import static common.SocketState.*;
  * If a socket throws an error while writing to the stream, calls ServerMessageListener.serverClose()
  * Call clientClose() if error while reading from the stream.
  *
+ * If a reconnect address has been set and the server issued a resume
+ * token, a lost connection is not reported to the listener. Instead a
+ * new connection is opened and the session is resumed on it. Messages
+ * sent in the meantime are queued and sent once the session is resumed
+ * in the state that the client expects. The new connection uses the
+ * heartbeat settings of the lost one. If the client was waiting for a
+ * board when the connection was lost, and the server resumes the session
+ * on the board, the board data was lost with the connection, so the
+ * handler leaves the board and repeats the request.
+ *
+ * Failover addresses (eg. the followers of a replicated server) are tried
+ * in turn with the reconnect address. The first one that accepts the
+ * connection becomes the reconnect address. Since it does not know the
+ * session, the handler logs in again with the same username and, if the
+ * client was on a board, reconnects to the board with the version of the
+ * client's copy, so that the client may keep showing it. The listener
+ * gets resumeSessionSuccess() with the resulting state, followed by the
+ * users of the board, or by connectToBoardSuccess() with a blank board if
+ * the copy is too old. Either way, the new session starts with an empty
+ * viewport, so the listener has to declare its viewport again.
+ *
+ * If the server redirects a board connection to another server of the
+ * cluster, the handler logs in on that server with the same username (or
+ * as a spectator) and
+ * repeats the connection request there, without involving the listener.
+ * The new server becomes the reconnect address. If that fails, the old
+ * connection is kept and the listener gets error 200.
+ *
  * Usage:
  *      The methods of this class must be called in the following order:
  *          - ClientSocketHandler()
@@ -37,17 +70,68 @@ public class ClientSocketHandler implements ClientMessageListener{
     // ------ begin section -------
     // these variables might be accessed by multiple threads,
     // so they only may be accessed after locking the ServerSocketHandler object
-    private final SocketWrapper socketWrapper;
+    private SocketWrapper socketWrapper;
     private SocketState state;
     private boolean clientInterfaceOpen;
+    private String reconnectHost;
+    private int reconnectPort;
+    private String resumeToken;
+    private boolean reconnecting;
+    private String username;
+    private boolean spectator;
+    private String connectRequest;
+    private boolean failingOver;
+    // true while leaving a board to repeat a connect request after
+    // resuming the session, so that the disconnect is not reported
+    private boolean leavingToRejoin;
+    private final List<String> queuedLines = new ArrayList<String>();
+    private final List<InetSocketAddress> failoverAddresses = new ArrayList<InetSocketAddress>();
     // ------ end section -------
 
     // ------ begin section -------
     // these variables are only accessed from the SocketWrapper's thread,
     // so they don't have to have thread-safe public interfaces
     private ServerMessageListener listener;
+    private final MessageTokenizer tokenizer = new MessageTokenizer();
+    // board that the client is connected to, and its last version
+    private int boardID = -1;
+    private long boardVersion = -1;
+    // colors that the server has defined in palette messages; the server
+    // only sends indices that it has defined on the current connection,
+    // so entries left from a lost connection are never used
+    private final Color[] palette = new Color[256];
     // ------ end section -------
 
+    // Opcodes of the messages sent by the server, packed
+    // as described by MessageTokenizer.pack()
+    private static final int OP_LOGIN_SUCCESS = ('l' << 8) | 's';
+    private static final int OP_UPDATE_PIXEL = 'p';
+    private static final int OP_UPDATE_USERS = 'u';
+    private static final int OP_ERROR = 'e';
+    private static final int OP_DISCONNECT_SUCCESS = ('d' << 8) | 's';
+    private static final int OP_CONNECT_SUCCESS = ('c' << 8) | 's';
+    private static final int OP_RESYNC_SUCCESS = ('r' << 8) | 's';
+    private static final int OP_UPDATE_VERSION = 'v';
+    private static final int OP_RESUME_TOKEN = ('t' << 8) | 'k';
+    private static final int OP_RESUME_SUCCESS = ('r' << 16) | ('s' << 8) | 'm';
+    private static final int OP_UPDATE_TRACE = ('t' << 8) | 'r';
+    private static final int OP_REDIRECT = ('r' << 8) | 'd';
+    private static final int OP_UPDATE_SPANS = ('s' << 8) | 'n';
+    private static final int OP_UPDATE_SHAPE = ('s' << 8) | 'h';
+    private static final int OP_PALETTE = ('p' << 8) | 't';
+    private static final int OP_UPDATE_PIXEL_INDEXED = ('p' << 8) | 'i';
+    private static final int OP_UPDATE_SPANS_INDEXED = ('s' << 8) | 'i';
+    private static final int OP_ACKNOWLEDGE_DRAW = ('a' << 8) | 'k';
+
+    // How long (in milliseconds) to keep trying to resume a lost session
+    private static final long RESUME_TIMEOUT = 20*1000;
+    // Delay (in milliseconds) between attempts to reconnect
+    private static final long RECONNECT_DELAY = 500;
+    // Maximum number of messages that are queued while reconnecting
+    private static final int MAX_QUEUED_LINES = 4096;
+    // How long (in milliseconds) to wait for the login on a redirect
+    private static final int REDIRECT_TIMEOUT = 5*1000;
+
     /**
      * Creates a handler that delegates to the given SocketWrapper.
      *
@@ -56,27 +140,75 @@ public class ClientSocketHandler implements ClientMessageListener{
      * @param s: the socketWrapper to be used.
      */
     public ClientSocketHandler(SocketWrapper s){
-        this.socketWrapper = s;
         this.clientInterfaceOpen = true;
         this.state = NOT_LOGGED_IN;
+        _setSocketWrapper(s);
+    }
+
+    /**
+     * Make the given SocketWrapper the current connection, and attach a
+     * listener to its events. Events of previous connections are ignored.
+     *
+     * @param s: the socketWrapper to be used.
+     */
+    private synchronized void _setSocketWrapper(final SocketWrapper s){
+        this.socketWrapper = s;
 
         // Attach a listener to the socket wrapper events
-        this.socketWrapper.setSocketWrapperListener(new SocketWrapperListener(){
+        s.setSocketWrapperListener(new SocketWrapperBufferListener(){
+            public void onReadLine(char[] buffer, int offset, int length){
+                tokenizer.reset(buffer, offset, length);
+                _onReadLine();
+            }
             public void onReadLine(String line){
-                _onReadLine(line);
+                tokenizer.reset(line);
+                _onReadLine();
             }
             public void onReadError(Exception e){
                 // do nothing, since onReadFinish will get called
             }
             public void onReadFinish(){
-                _serverClose();
+                if (_isCurrent(s)){
+                    _connectionLost();
+                }
             }
             public void onWriteError(Exception e){
-                clientClose();
+                if (_isCurrent(s)){
+                    if (_canResume()){
+                        // closing the socket makes the read fail, which
+                        // resumes the session on a new connection
+                        s.close();
+                    } else {
+                        clientClose();
+                    }
+                }
             }
         });
     }
 
+    /**
+     * Resume the session on a new connection to the given address when
+     * the connection is lost.
+     *
+     * @param host: the host of the server
+     * @param port: the port of the server
+     */
+    public synchronized void setReconnectAddress(String host, int port){
+        this.reconnectHost = host;
+        this.reconnectPort = port;
+    }
+
+    /**
+     * Try the given address when the session can not be resumed at the
+     * reconnect address.
+     *
+     * @param host: the host of a server that takes over
+     * @param port: the port of that server
+     */
+    public synchronized void addFailoverAddress(String host, int port){
+        failoverAddresses.add(InetSocketAddress.createUnresolved(host, port));
+    }
+
     /**
      * Use the given listener object handle incoming messages from the server.
      * Listener should not already be set.
@@ -98,7 +230,23 @@ public class ClientSocketHandler implements ClientMessageListener{
             assert state == NOT_LOGGED_IN || disableStateAssertions;
 
             state = LOGIN_PENDING;
-            socketWrapper.writeLine("l " + username);
+            this.username = username;
+            _send("l " + username);
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public synchronized void spectate() {
+        if (clientInterfaceOpen){
+            assert listener != null;
+            assert state == NOT_LOGGED_IN || disableStateAssertions;
+
+            state = LOGIN_PENDING;
+            this.spectator = true;
+            _send("sp");
         }
     }
 
@@ -112,7 +260,23 @@ public class ClientSocketHandler implements ClientMessageListener{
             assert state == NOT_CONNECTED || disableStateAssertions;
 
             state = CONNECT_PENDING;
-            socketWrapper.writeLine("c " + id);
+            connectRequest = "c " + id;
+            _send(connectRequest);
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public synchronized void reconnectToBoard(int id, long version) {
+        if (clientInterfaceOpen){
+            assert listener != null;
+            assert state == NOT_CONNECTED || disableStateAssertions;
+
+            state = CONNECT_PENDING;
+            connectRequest = "c " + id + " " + version;
+            _send(connectRequest);
         }
     }
 
@@ -126,7 +290,38 @@ public class ClientSocketHandler implements ClientMessageListener{
             assert state == NOT_CONNECTED || disableStateAssertions;
 
             state = CONNECT_PENDING;
-            socketWrapper.writeLine("n");
+            connectRequest = "n";
+            _send(connectRequest);
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public synchronized void newBoard(int width, int height) {
+        if (clientInterfaceOpen){
+            assert listener != null;
+            assert state == NOT_CONNECTED || disableStateAssertions;
+
+            state = CONNECT_PENDING;
+            connectRequest = "n " + width + " " + height;
+            _send(connectRequest);
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public synchronized void cloneBoard(int id) {
+        if (clientInterfaceOpen){
+            assert listener != null;
+            assert state == NOT_CONNECTED || disableStateAssertions;
+
+            state = CONNECT_PENDING;
+            connectRequest = "cl " + id;
+            _send(connectRequest);
         }
     }
 
@@ -140,7 +335,7 @@ public class ClientSocketHandler implements ClientMessageListener{
             assert state == CONNECTED || disableStateAssertions;
 
             state = DISCONNECT_PENDING;
-            socketWrapper.writeLine("d");
+            _send("d");
         }
     }
 
@@ -149,6 +344,14 @@ public class ClientSocketHandler implements ClientMessageListener{
      */
     @Override
     public synchronized void drawLine(Point p1, Point p2, Color color, int width) {
+        drawLine(p1, p2, color, width, null);
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public synchronized void drawLine(Point p1, Point p2, Color color, int width, Trace trace) {
         if (clientInterfaceOpen){
             assert listener != null;
             assert state == CONNECTED || disableStateAssertions;
@@ -164,7 +367,143 @@ public class ClientSocketHandler implements ClientMessageListener{
             b.append(color.getGreen()).append(" ");
             b.append(color.getBlue()).append(" ");
             b.append(width);
-            socketWrapper.writeLine(b.toString());
+            if (trace != null){
+                b.append(" ").append(trace.getID());
+            }
+            _send(b.toString());
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public synchronized void drawPolyline(List<Point> points, Color color, int width) {
+        drawPolyline(points, color, width, null);
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public synchronized void drawPolyline(List<Point> points, Color color, int width, Trace trace) {
+        if (clientInterfaceOpen){
+            assert listener != null;
+            assert state == CONNECTED || disableStateAssertions;
+            assert !points.isEmpty();
+
+            // state will remain CONNECTED
+            StringBuilder b = new StringBuilder();
+            b.append("pl ");
+            b.append(color.getRed()).append(" ");
+            b.append(color.getGreen()).append(" ");
+            b.append(color.getBlue()).append(" ");
+            b.append(width).append(" ");
+            b.append(points.size());
+            for (Point p: points){
+                b.append(" ").append(p.getX());
+                b.append(" ").append(p.getY());
+            }
+            if (trace != null){
+                b.append(" ").append(trace.getID());
+            }
+            _send(b.toString());
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public synchronized void fill(Point seed, Color color) {
+        if (clientInterfaceOpen){
+            assert listener != null;
+            assert state == CONNECTED || disableStateAssertions;
+
+            // state will remain CONNECTED
+            StringBuilder b = new StringBuilder();
+            b.append("fl ");
+            b.append(seed.getX()).append(" ");
+            b.append(seed.getY()).append(" ");
+            b.append(color.getRed()).append(" ");
+            b.append(color.getGreen()).append(" ");
+            b.append(color.getBlue());
+            _send(b.toString());
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public synchronized void undo() {
+        if (clientInterfaceOpen){
+            assert listener != null;
+            assert state == CONNECTED || disableStateAssertions;
+
+            // state will remain CONNECTED
+            _send("un");
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public synchronized void redo() {
+        if (clientInterfaceOpen){
+            assert listener != null;
+            assert state == CONNECTED || disableStateAssertions;
+
+            // state will remain CONNECTED
+            _send("re");
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public synchronized void drawShape(Shape shape) {
+        if (clientInterfaceOpen){
+            assert listener != null;
+            assert state == CONNECTED || disableStateAssertions;
+
+            // state will remain CONNECTED
+            StringBuilder b = new StringBuilder();
+            b.append("sh ");
+            b.append(shape.getKind().getCode()).append(" ");
+            b.append(shape.getP1().getX()).append(" ");
+            b.append(shape.getP1().getY()).append(" ");
+            b.append(shape.getP2().getX()).append(" ");
+            b.append(shape.getP2().getY()).append(" ");
+            b.append(shape.getColor().getRed()).append(" ");
+            b.append(shape.getColor().getGreen()).append(" ");
+            b.append(shape.getColor().getBlue()).append(" ");
+            b.append(shape.getWidth());
+            _send(b.toString());
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public synchronized void traceApplied(long traceId, long totalNanos, long applyNanos) {
+        if (clientInterfaceOpen){
+            assert listener != null;
+            _send("ta " + traceId + " " + totalNanos + " " + applyNanos);
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public synchronized void setViewport(int x, int y, int width, int height) {
+        if (clientInterfaceOpen){
+            assert listener != null;
+            _send("vp " + x + " " + y + " " + width + " " + height);
         }
     }
 
@@ -177,47 +516,215 @@ public class ClientSocketHandler implements ClientMessageListener{
             assert listener != null;
 
             this.clientInterfaceOpen = false;
+            if (!reconnecting){
+                // tell the server that the session is over, so that
+                // it does not wait for the session to be resumed
+                socketWrapper.writeLine("q");
+            }
             socketWrapper.close();
         }
     }
 
     /**
-     * Given the input string message, parse the message and execute
-     * it upon the ServerMessageListener.
+     * @see ClientMessageListener
+     */
+    @Override
+    public synchronized void resumeSession(String token) {
+        if (clientInterfaceOpen){
+            assert listener != null;
+            assert state == NOT_LOGGED_IN || disableStateAssertions;
+
+            state = LOGIN_PENDING;
+            _send("rsm " + token);
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public void connectionLost() {
+        clientClose();
+    }
+
+    /**
+     * Parse the message that the tokenizer has been reset to, and
+     * execute it upon the ServerMessageListener.
      */
-    private void _onReadLine(String line){
-        String[] tokens = line.split(" ");
+    private void _onReadLine(){
         try{
             // NOTE: the state assertions are not thread-safe
             // but they get disabled in production anyway.
-            switch(tokens[0]){
-                case "ls":
-                    // update-pixel
+            int opcode = tokenizer.opcode();
+            if (_isBoardUpdate(opcode) && _isLeavingToRejoin()){
+                // an update of the board that is being left to repeat
+                // the connect request
+                return;
+            }
+            switch(opcode){
+                case OP_LOGIN_SUCCESS:
+                    // login-success
+                    assert !tokenizer.hasMore();
+                    if (_isFailingOver()){
+                        _rejoin();
+                        break;
+                    }
                     assert state == LOGIN_PENDING || disableStateAssertions;
-                    assert tokens.length == 1;
                     _changeState(NOT_CONNECTED);
                     listener.loginSuccess();
                     break;
-                case "p":
+                case OP_UPDATE_PIXEL:
                     // update-pixel
                     assert state == CONNECTED || state == DISCONNECT_PENDING || disableStateAssertions;
-                    assert tokens.length == 6;
-                    Point p = new Point(Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]));
-                    Color c = new Color(Integer.parseInt(tokens[3]), Integer.parseInt(tokens[4]), Integer.parseInt(tokens[5]));
+                    Point p = new Point(tokenizer.nextInt(), tokenizer.nextInt());
+                    Color c = Color.valueOf(tokenizer.nextInt(), tokenizer.nextInt(), tokenizer.nextInt());
+                    assert !tokenizer.hasMore();
                     listener.updatePixel(p, c);
                     break;
-                case "u":
+                case OP_UPDATE_PIXEL_INDEXED:
+                    // update-pixel, with the index of the color in the palette
+                    assert state == CONNECTED || state == DISCONNECT_PENDING || disableStateAssertions;
+                    Point indexedPoint = new Point(tokenizer.nextInt(), tokenizer.nextInt());
+                    Color indexedColor = _paletteColor(tokenizer.nextInt());
+                    assert !tokenizer.hasMore();
+                    listener.updatePixel(indexedPoint, indexedColor);
+                    break;
+                case OP_PALETTE:
+                    // palette: the first index, then the colors from it on
+                    int paletteIndex = tokenizer.nextInt();
+                    while (tokenizer.hasMore()){
+                        tokenizer.skipSpaces();
+                        palette[paletteIndex++] = Color.valueOf(
+                                tokenizer.nextHexByte(), tokenizer.nextHexByte(), tokenizer.nextHexByte());
+                    }
+                    break;
+                case OP_UPDATE_SPANS:
+                    // update-spans: the color, then (y, x1, x2) per span
+                    assert state == CONNECTED || state == DISCONNECT_PENDING || disableStateAssertions;
+                    Color spanColor = Color.valueOf(tokenizer.nextInt(), tokenizer.nextInt(), tokenizer.nextInt());
+                    List<Span> spans = new ArrayList<Span>();
+                    while (tokenizer.hasMore()){
+                        spans.add(new Span(tokenizer.nextInt(), tokenizer.nextInt(), tokenizer.nextInt()));
+                    }
+                    listener.updateSpans(spans, spanColor);
+                    break;
+                case OP_UPDATE_SPANS_INDEXED:
+                    // update-spans, with the index of the color in the palette
+                    assert state == CONNECTED || state == DISCONNECT_PENDING || disableStateAssertions;
+                    Color indexedSpanColor = _paletteColor(tokenizer.nextInt());
+                    List<Span> indexedSpans = new ArrayList<Span>();
+                    while (tokenizer.hasMore()){
+                        indexedSpans.add(new Span(tokenizer.nextInt(), tokenizer.nextInt(), tokenizer.nextInt()));
+                    }
+                    listener.updateSpans(indexedSpans, indexedSpanColor);
+                    break;
+                case OP_UPDATE_SHAPE:
+                    // update-shape
+                    assert state == CONNECTED || state == DISCONNECT_PENDING || disableStateAssertions;
+                    Shape.Kind kind = Shape.Kind.fromCode(tokenizer.nextString());
+                    Point corner1 = new Point(tokenizer.nextInt(), tokenizer.nextInt());
+                    Point corner2 = new Point(tokenizer.nextInt(), tokenizer.nextInt());
+                    Color shapeColor = Color.valueOf(tokenizer.nextInt(), tokenizer.nextInt(), tokenizer.nextInt());
+                    Shape shape = new Shape(kind, corner1, corner2, shapeColor, tokenizer.nextInt());
+                    assert !tokenizer.hasMore();
+                    listener.updateShape(shape);
+                    break;
+                case OP_RESUME_TOKEN:
+                    // resume-token
+                    String token = tokenizer.nextString();
+                    assert !tokenizer.hasMore();
+                    _setResumeToken(token);
+                    listener.resumeToken(token);
+                    break;
+                case OP_RESUME_SUCCESS:
+                    // resume-session-success
+                    SocketState resumedState = SocketState.valueOf(tokenizer.nextString());
+                    assert !tokenizer.hasMore();
+                    listener.resumeSessionSuccess(_resumed(resumedState));
+                    break;
+                case OP_UPDATE_VERSION:
+                    // update-version
+                    assert state == CONNECTED || state == DISCONNECT_PENDING || disableStateAssertions;
+                    long version = tokenizer.nextLong();
+                    assert !tokenizer.hasMore();
+                    boardVersion = version;
+                    listener.updateVersion(version);
+                    break;
+                case OP_ACKNOWLEDGE_DRAW:
+                    // acknowledge-draw
+                    assert state == CONNECTED || state == DISCONNECT_PENDING || disableStateAssertions;
+                    long drawVersion = tokenizer.nextLong();
+                    assert !tokenizer.hasMore();
+                    listener.acknowledgeDraw(drawVersion);
+                    break;
+                case OP_UPDATE_TRACE:
+                    // update-trace
+                    assert state == CONNECTED || state == DISCONNECT_PENDING || disableStateAssertions;
+                    Trace trace = new Trace(tokenizer.nextLong(), System.nanoTime());
+                    assert !tokenizer.hasMore();
+                    listener.updateTrace(trace);
+                    break;
+                case OP_REDIRECT:
+                    // redirect
+                    assert state == CONNECT_PENDING || disableStateAssertions;
+                    int redirectID = tokenizer.nextInt();
+                    String host = tokenizer.nextString();
+                    int port = tokenizer.nextInt();
+                    assert !tokenizer.hasMore();
+                    if (!_redirect(host, port)){
+                        _changeState(NOT_CONNECTED);
+                        listener.error(200);
+                    }
+                    break;
+                case OP_RESYNC_SUCCESS:
+                    // resync-board-success
+                    assert state == CONNECT_PENDING || _isFailingOver() || disableStateAssertions;
+                    int resyncID = tokenizer.nextInt();
+                    List<String> resyncUsers = tokenizer.nextList(',');
+                    assert !tokenizer.hasMore();
+                    boardID = resyncID;
+                    if (_isFailingOver()){
+                        // the changes since the client's version follow
+                        listener.resumeSessionSuccess(_failedOver(CONNECTED));
+                        listener.updateUsers(resyncUsers);
+                        break;
+                    }
+                    _changeState(CONNECTED);
+                    listener.resyncBoardSuccess(resyncID, resyncUsers);
+                    break;
+                case OP_UPDATE_USERS:
                     // update-users
                     assert state == CONNECTED || state == DISCONNECT_PENDING || disableStateAssertions;
-                    assert tokens.length == 2;
-                    listener.updateUsers(Arrays.asList(tokens[1].split(",")));
+                    List<String> users = tokenizer.nextList(',');
+                    assert !tokenizer.hasMore();
+                    listener.updateUsers(users);
                     break;
-                case "e":
+                case OP_ERROR:
                     // error
-                    assert state == LOGIN_PENDING || state == CONNECT_PENDING || disableStateAssertions;
-                    assert tokens.length == 2;
-                    int code = Integer.parseInt(tokens[1]);
+                    assert state == LOGIN_PENDING || state == CONNECT_PENDING || _isReconnecting() || disableStateAssertions;
+                    int code = tokenizer.nextInt();
+                    assert !tokenizer.hasMore();
+                    if (code == 300 && _isReconnecting()){
+                        // the session expired while reconnecting,
+                        // or the server took over from another one
+                        if (!_relogin()){
+                            _serverClose();
+                        }
+                        return;
+                    }
+                    if (_isFailingOver()){
+                        if (code == 200){
+                            // the board was not replicated
+                            listener.resumeSessionSuccess(_failedOver(NOT_CONNECTED));
+                        } else {
+                            _serverClose();
+                        }
+                        return;
+                    }
                     switch(code){
+                        case 300:
+                            _changeState(NOT_LOGGED_IN);
+                            break;
                         case 100:
                             _changeState(NOT_LOGGED_IN);
                             break;
@@ -229,25 +736,38 @@ public class ClientSocketHandler implements ClientMessageListener{
                     }
                     listener.error(code);
                     break;
-                case "ds":
+                case OP_DISCONNECT_SUCCESS:
                     // disconnect-from-board-success
+                    if (_leftToRejoin()){
+                        // the repeated connect request follows
+                        break;
+                    }
                     assert state == DISCONNECT_PENDING || disableStateAssertions;
-                    assert tokens.length == 1;
+                    assert !tokenizer.hasMore();
+                    boardID = -1;
                     _changeState(NOT_CONNECTED);
                     listener.disconnectFromBoardSuccess();
                     break;
-                case "cs":
-                    // connect-to-board-success
-                    assert state == CONNECT_PENDING || disableStateAssertions;
-                    assert tokens.length == 4;
-                    int id = Integer.parseInt(tokens[1]);
-                    List<String> usernames = Arrays.asList(tokens[2].split(","));
-                    Whiteboard board = _parseWhiteboard(tokens[3]);
-                    _changeState(CONNECTED);
-                    listener.connectToBoardSuccess(id, usernames, board);
+                case OP_CONNECT_SUCCESS:
+                    // connect-to-board-success, with the size of the
+                    // board; its pixels follow as span updates once the
+                    // viewport is declared
+                    assert state == CONNECT_PENDING || _isFailingOver() || disableStateAssertions;
+                    int connectedID = tokenizer.nextInt();
+                    int width = tokenizer.nextInt();
+                    int height = tokenizer.nextInt();
+                    List<String> connectedUsers = tokenizer.nextList(',');
+                    assert !tokenizer.hasMore();
+                    boardID = connectedID;
+                    if (_isFailingOver()){
+                        listener.resumeSessionSuccess(_failedOver(CONNECTED));
+                    } else {
+                        _changeState(CONNECTED);
+                    }
+                    listener.connectToBoardSuccess(connectedID, connectedUsers, new Whiteboard(width, height));
                     break;
                 default:
-                    throw new RuntimeException("Unrecognized message: " + line);
+                    throw new RuntimeException("Unrecognized opcode: " + opcode);
             }
         } catch (Exception e){
             // Print the error, because there is a bug
@@ -257,7 +777,6 @@ public class ClientSocketHandler implements ClientMessageListener{
         }
     }
 
-
     /**
      * Change the state of the ClientSocketHandler in a thread-safe manner.
      */
@@ -266,61 +785,361 @@ public class ClientSocketHandler implements ClientMessageListener{
     }
 
     /**
-     * Send the "close" message to the ServerMessageListener.
+     * Write the line to the socket, or queue it if reconnecting.
+     */
+    private synchronized void _send(String line){
+        if (!reconnecting){
+            socketWrapper.writeLine(line);
+        } else if (queuedLines.size() < MAX_QUEUED_LINES){
+            queuedLines.add(line);
+        }
+    }
+
+    /**
+     * @return true if s is the current connection
+     */
+    private synchronized boolean _isCurrent(SocketWrapper s){
+        return s == socketWrapper;
+    }
+
+    /**
+     * @return true if the session can be resumed on a new connection
+     */
+    private synchronized boolean _canResume(){
+        return clientInterfaceOpen && reconnectHost != null && resumeToken != null;
+    }
+
+    /**
+     * @return true if waiting for a lost session to be resumed
+     */
+    private synchronized boolean _isReconnecting(){
+        return reconnecting;
+    }
+
+    /**
+     * @return true if logging in again after failing over to a server
+     *      that does not know the session
+     */
+    private synchronized boolean _isFailingOver(){
+        return failingOver;
+    }
+
+    /**
+     * Log in again on the current connection, if it is to a failover
+     * address.
+     *
+     * @return false if the session can not be recovered
+     */
+    private synchronized boolean _relogin(){
+        if (!failingOver){
+            return false;
+        } else if (spectator){
+            socketWrapper.writeLine("sp");
+        } else if (username != null){
+            socketWrapper.writeLine("l " + username);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * After logging in again on a failover server, go back to the board
+     * that the client was on, with the version of its copy.
      *
-     * This gets executed whenever there is an error reading a
-     * message from the socket, or whenever the message is malformed.
      * Should only be executed from the SocketWrapperListener thread.
      */
-    private void _serverClose(){
-        assert listener != null;
-        listener.serverClose();
+    private void _rejoin(){
+        synchronized(this){
+            if (state == CONNECTED && boardID >= 0){
+                socketWrapper.writeLine("c " + boardID + (boardVersion >= 0 ? " " + boardVersion : ""));
+                return;
+            }
+        }
+        listener.resumeSessionSuccess(_failedOver(NOT_CONNECTED));
     }
 
     /**
-     * Deserialize the whiteboard from the ASCII protocol.
+     * The session was recovered on a failover server in the given state.
+     * The queued messages are dropped since they no longer apply.
      *
-     * Numbers are given in hex format (2 chars per number).
-     * Each pixel is 3 numbers concatenated together, eg: ff3324.
-     * Pixels are printed left-to-right, bottom-to-top.
-     */
-    private Whiteboard _parseWhiteboard(String data){
-        Whiteboard board = new Whiteboard();
-
-        for (int y=0; y<Whiteboard.HEIGHT; y++){
-            for (int x=0; x<Whiteboard.WIDTH; x++){
-                int baseIndex = (y*Whiteboard.WIDTH + x)*3*2;
-                int red = hexToByte(data.charAt(baseIndex), data.charAt(baseIndex+1));
-                int green = hexToByte(data.charAt(baseIndex+2), data.charAt(baseIndex+3));
-                int blue = hexToByte(data.charAt(baseIndex+4), data.charAt(baseIndex+5));
-                board.setPixel(new Point(x,y), new Color(red, green, blue));
+     * @return the state that the client is in now
+     */
+    private synchronized SocketState _failedOver(SocketState recoveredState){
+        reconnecting = false;
+        failingOver = false;
+        queuedLines.clear();
+        state = recoveredState;
+        return recoveredState;
+    }
+
+    /**
+     * @return the address to connect to for the given attempt to resume
+     *      the session, trying the reconnect address and the failover
+     *      addresses in turn
+     */
+    private synchronized InetSocketAddress _resumeAddress(int attempt){
+        int index = attempt % (failoverAddresses.size() + 1);
+        if (index == 0){
+            return InetSocketAddress.createUnresolved(reconnectHost, reconnectPort);
+        }
+        return failoverAddresses.get(index - 1);
+    }
+
+    /**
+     * Make the failover address the reconnect address, and the reconnect
+     * address a failover address, since the server at the failover
+     * address has taken over.
+     */
+    private synchronized void _failoverTo(InetSocketAddress address){
+        int index = failoverAddresses.indexOf(address);
+        failoverAddresses.set(index, InetSocketAddress.createUnresolved(reconnectHost, reconnectPort));
+        reconnectHost = address.getHostString();
+        reconnectPort = address.getPort();
+        failingOver = true;
+    }
+
+    /**
+     * Remember the token used to resume the session.
+     */
+    private synchronized void _setResumeToken(String token){
+        resumeToken = token;
+    }
+
+    /**
+     * The session was resumed in the given state. Send the queued
+     * messages if the server is in the state the client expects,
+     * otherwise drop them since they no longer apply.
+     *
+     * @return the state that the client is in now
+     */
+    private synchronized SocketState _resumed(SocketState resumedState){
+        assert reconnecting || disableStateAssertions;
+        reconnecting = false;
+        failingOver = false;
+        if (resumedState == state){
+            for (String line: queuedLines){
+                socketWrapper.writeLine(line);
             }
+        } else if (resumedState == CONNECTED && state == CONNECT_PENDING){
+            // the board data was lost with the connection, so leave the
+            // board and ask for it again
+            resumedState = CONNECT_PENDING;
+            leavingToRejoin = true;
+            socketWrapper.writeLine("d");
+            socketWrapper.writeLine(connectRequest);
+        } else if (resumedState == CONNECTED && state == DISCONNECT_PENDING){
+            // the disconnect request was lost with the connection, so
+            // leave the board again
+            resumedState = DISCONNECT_PENDING;
+            socketWrapper.writeLine("d");
         }
+        queuedLines.clear();
+        state = resumedState;
+        return resumedState;
+    }
 
-        return board;
+    /**
+     * @return true while leaving a board to repeat a connect request
+     *      after resuming the session
+     */
+    private synchronized boolean _isLeavingToRejoin(){
+        return leavingToRejoin;
     }
 
     /**
-     * Convert a two-byte hex string (msb, lsb) into
-     * an integer.
+     * @return true if the opcode is of a message that updates the board
+     *      that the client is on
+     */
+    private static boolean _isBoardUpdate(int opcode){
+        switch(opcode){
+            case OP_UPDATE_PIXEL:
+            case OP_UPDATE_PIXEL_INDEXED:
+            case OP_UPDATE_SPANS:
+            case OP_UPDATE_SPANS_INDEXED:
+            case OP_UPDATE_SHAPE:
+            case OP_UPDATE_USERS:
+            case OP_UPDATE_VERSION:
+            case OP_UPDATE_TRACE:
+            case OP_ACKNOWLEDGE_DRAW:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if the board was left to repeat a connect request
+     *      after resuming the session, which is then no longer pending
+     */
+    private synchronized boolean _leftToRejoin(){
+        boolean left = leavingToRejoin;
+        leavingToRejoin = false;
+        return left;
+    }
+
+    /**
+     * Resume the session on a new connection if possible, otherwise send
+     * the "close" message to the ServerMessageListener.
+     *
+     * Should only be executed from the SocketWrapperListener thread of the
+     * connection that was lost, which does not read any more messages.
      */
-    private int hexToByte(char msb, char lsb){
-        return (hexToNibble(msb) << 4) + hexToNibble(lsb);
+    private void _connectionLost(){
+        boolean resume;
+        synchronized(this){
+            resume = _canResume();
+            reconnecting = resume;
+            failingOver = false;
+            if (!resume){
+                queuedLines.clear();
+            }
+        }
+        if (!resume){
+            _serverClose();
+            return;
+        }
+
+        long deadline = System.currentTimeMillis() + RESUME_TIMEOUT;
+        int attempt = 0;
+        while (System.currentTimeMillis() < deadline && _canResume()){
+            InetSocketAddress address = _resumeAddress(attempt++);
+            try {
+                Socket s = new Socket(address.getHostString(), address.getPort());
+                synchronized(this){
+                    if (failoverAddresses.contains(address)){
+                        _failoverTo(address);
+                    }
+                    SocketWrapper w = new SocketWrapper(s);
+                    if (socketWrapper.getHeartbeatInterval() > 0){
+                        w.setHeartbeat(socketWrapper.getHeartbeatInterval(),
+                                socketWrapper.getHeartbeatTimeout());
+                    }
+                    _setSocketWrapper(w);
+                    w.start();
+                    w.writeLine("rsm " + resumeToken);
+                }
+                return;
+            } catch (IOException e){
+                try {
+                    Thread.sleep(RECONNECT_DELAY);
+                } catch (InterruptedException ie){
+                    break;
+                }
+            }
+        }
+
+        // could not reconnect
+        _serverClose();
     }
 
     /**
-     * Convert a one-byte hex character into an integer.
+     * Log in on the given server and repeat the pending connection
+     * request there. The old connection is closed if this succeeds.
+     *
+     * Should only be executed from the SocketWrapperListener thread of the
+     * current connection, which does not read messages in the meantime.
+     *
+     * @return true if the new server became the current connection
      */
-    private int hexToNibble(char hexChar){
-        if (hexChar >= '0' && hexChar <= '9'){
-            return hexChar - '0';
+    private boolean _redirect(String host, int port){
+        String login;
+        synchronized(this){
+            login = spectator ? "sp" : "l " + username;
         }
-        if (hexChar >= 'a' && hexChar <= 'f'){
-            return hexChar - 'a' + 10;
+        Socket s = null;
+        try {
+            s = new Socket(host, port);
+            s.setSoTimeout(REDIRECT_TIMEOUT);
+            OutputStream out = s.getOutputStream();
+            out.write((login + "\n").getBytes("US-ASCII"));
+            out.flush();
+            // read the reply without buffering, so that the following
+            // messages are left for the SocketWrapper
+            String reply = _readLineUnbuffered(s.getInputStream());
+            while ("hb".equals(reply)){
+                reply = _readLineUnbuffered(s.getInputStream());
+            }
+            if (!"ls".equals(reply)){
+                s.close();
+                return false;
+            }
+            s.setSoTimeout(0);
+        } catch (IOException e){
+            if (s != null){
+                try {
+                    s.close();
+                } catch (IOException ce){
+                    // already failed
+                }
+            }
+            return false;
         }
-        if (hexChar >= 'A' && hexChar <= 'F'){
-            return hexChar - 'A' + 10;
+
+        synchronized(this){
+            SocketWrapper old = socketWrapper;
+            SocketWrapper w = new SocketWrapper(s);
+            if (old.getHeartbeatInterval() > 0){
+                w.setHeartbeat(old.getHeartbeatInterval(), old.getHeartbeatTimeout());
+            }
+            _setSocketWrapper(w);
+            if (reconnectHost != null){
+                reconnectHost = host;
+                reconnectPort = port;
+            }
+            // the new server issues its own token
+            resumeToken = null;
+            w.start();
+            w.writeLine(connectRequest);
+
+            // leave the old server
+            old.writeLine("q");
+            old.close();
+        }
+        return true;
+    }
+
+    /**
+     * @return the next line of the stream without the line terminator,
+     *      reading one byte at a time
+     * @throws IOException if the stream ends before the line does
+     */
+    private static String _readLineUnbuffered(InputStream in) throws IOException{
+        StringBuilder line = new StringBuilder();
+        while (true){
+            int b = in.read();
+            if (b < 0){
+                throw new IOException("Connection closed");
+            } else if (b == '\n'){
+                break;
+            } else if (b != '\r'){
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * Send the "close" message to the ServerMessageListener.
+     *
+     * This gets executed whenever there is an error reading a
+     * message from the socket, or whenever the message is malformed.
+     * Should only be executed from the SocketWrapperListener thread.
+     */
+    private void _serverClose(){
+        assert listener != null;
+        listener.serverClose();
+    }
+
+    /**
+     * @return the color at the index of the palette, which the server
+     *      must have defined
+     */
+    private Color _paletteColor(int index){
+        Color c = palette[index];
+        if (c == null){
+            throw new RuntimeException("Undefined palette index: " + index);
         }
-        throw new RuntimeException("Invalid Hex Character: " + hexChar);
+        return c;
     }
 }
@@ -0,0 +1,301 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import common.*;
+
+/**
+ * The client's copy of a board, as two whiteboards: the confirmed board,
+ * which only gets the updates of the server, in the order of the board,
+ * and the displayed board, which is the confirmed board with the draws of
+ * this client that the server has not acknowledged yet (the predictions)
+ * drawn on top of it.
+ *
+ * Draws are predicted so that the user sees them immediately. The server
+ * acknowledges every draw message after sending its updates, so when an
+ * update arrives, the server ordered it before all pending predictions,
+ * and the predictions that overlap it are drawn again on top of it. When
+ * a draw is acknowledged, its prediction is dropped, and the tiles that
+ * it covered are copied from the confirmed board, which then has the
+ * draw as the server applied it. This corrects only the tiles where the
+ * prediction may have been wrong (eg. because the server drew a
+ * simplified stroke, or another client's stroke was ordered in between)
+ * without downloading the board again. Once nothing is pending, every
+ * tile that still differs from the confirmed board is copied from it.
+ *
+ * Several predictions may be sent in the same draw message (the segments
+ * of a stroke); drawSent() marks the end of the predictions of a message.
+ *
+ * Rep invariant:
+ *      - the predictions are in the order that they were drawn, and their
+ *        messages do not decrease
+ *      - acknowledged <= sent, and every prediction has a message that is
+ *        at least acknowledged
+ *      - displayed is confirmed with the predictions drawn on top of it
+ *
+ * Thread safety:
+ *      Not thread safe. ClientGUI only accesses it with its lock held.
+ */
+public class PredictedBoard {
+
+    /**
+     * The rectangle of tiles that a prediction or an update covers.
+     */
+    private static class Tiles {
+        private int minX = Integer.MAX_VALUE;
+        private int minY = Integer.MAX_VALUE;
+        private int maxX = -1;
+        private int maxY = -1;
+
+        /**
+         * Extend the rectangle to the tiles of the span.
+         */
+        void add(Span span){
+            minX = Math.min(minX, span.getX1() / Whiteboard.TILE_SIZE);
+            maxX = Math.max(maxX, span.getX2() / Whiteboard.TILE_SIZE);
+            minY = Math.min(minY, span.getY() / Whiteboard.TILE_SIZE);
+            maxY = Math.max(maxY, span.getY() / Whiteboard.TILE_SIZE);
+        }
+
+        /**
+         * Extend the rectangle to the other rectangle.
+         */
+        void add(Tiles other){
+            minX = Math.min(minX, other.minX);
+            maxX = Math.max(maxX, other.maxX);
+            minY = Math.min(minY, other.minY);
+            maxY = Math.max(maxY, other.maxY);
+        }
+
+        /**
+         * @return true if the rectangles have a tile in common
+         */
+        boolean intersects(Tiles other){
+            return minX <= other.maxX && other.minX <= maxX &&
+                minY <= other.maxY && other.minY <= maxY;
+        }
+    }
+
+    /**
+     * A draw of this client that the server has not acknowledged.
+     */
+    private static abstract class Prediction {
+        // the number of the draw message that it is sent in
+        final long message;
+        // the tiles that it covered when it was drawn
+        final Tiles tiles = new Tiles();
+
+        Prediction(long message){
+            this.message = message;
+        }
+
+        /**
+         * Draw it on the board, and add the tiles that it covers.
+         */
+        void draw(Whiteboard board){
+            for (Span span: rasterize(board)){
+                tiles.add(span);
+            }
+        }
+
+        /**
+         * Draw it on the board.
+         * @return the spans of the pixels that it covered
+         */
+        abstract List<Span> rasterize(Whiteboard board);
+    }
+
+    private final Whiteboard confirmed;
+    private final Whiteboard displayed;
+    private final List<Prediction> pending = new ArrayList<Prediction>();
+    // the number of draw messages that have been sent, and acknowledged
+    private long sent;
+    private long acknowledged;
+
+    /**
+     * Construct with the board as the server sent it, and no predictions.
+     * @param confirmed: the board as the server sent it, which is owned
+     *      by this object from now on
+     */
+    public PredictedBoard(Whiteboard confirmed){
+        this.confirmed = confirmed;
+        this.displayed = new Whiteboard(confirmed);
+    }
+
+    /**
+     * @return the board with the predictions, which is what the user sees
+     */
+    public Whiteboard getDisplayed(){
+        return displayed;
+    }
+
+    /**
+     * @return the board as the server sent it
+     */
+    public Whiteboard getConfirmed(){
+        return confirmed;
+    }
+
+    /**
+     * @return the number of predictions that have not been acknowledged
+     */
+    public int getPendingCount(){
+        return pending.size();
+    }
+
+    /**
+     * Predict a line segment that the user drew.
+     * @see Whiteboard#drawLine(Point, Point, Color, int)
+     */
+    public void drawLine(final Point p1, final Point p2, final Color color, final int width){
+        _predict(new Prediction(sent){
+            List<Span> rasterize(Whiteboard board){
+                return board.drawPolylineSpans(Arrays.asList(p1, p2), color, width);
+            }
+        });
+    }
+
+    /**
+     * Predict a fill that the user made.
+     * @see Whiteboard#fill(Point, Color)
+     */
+    public void fill(final Point seed, final Color color){
+        _predict(new Prediction(sent){
+            List<Span> rasterize(Whiteboard board){
+                return board.fill(seed, color);
+            }
+        });
+    }
+
+    /**
+     * Predict a shape that the user drew.
+     * @see Whiteboard#drawShape(Shape)
+     */
+    public void drawShape(final Shape shape){
+        _predict(new Prediction(sent){
+            List<Span> rasterize(Whiteboard board){
+                return board.drawShape(shape);
+            }
+        });
+    }
+
+    /**
+     * Indicate that the predictions since the last call have been sent to
+     * the server in one draw message, which it will acknowledge.
+     */
+    public void drawSent(){
+        sent++;
+    }
+
+    /**
+     * Apply an update of a pixel from the server.
+     * @see ServerMessageListener#updatePixel(Point, Color)
+     */
+    public void updatePixel(Point point, Color color){
+        updateSpans(Collections.singletonList(new Span(point.getY(), point.getX(), point.getX())), color);
+    }
+
+    /**
+     * Apply an update of spans from the server.
+     * @see ServerMessageListener#updateSpans(List, Color)
+     */
+    public void updateSpans(List<Span> spans, Color color){
+        Tiles tiles = new Tiles();
+        for (Span span: spans){
+            confirmed.fillSpan(span, color);
+            displayed.fillSpan(span, color);
+            tiles.add(span);
+        }
+        _redrawFrom(tiles);
+    }
+
+    /**
+     * Apply an update of a shape from the server.
+     * @see ServerMessageListener#updateShape(Shape)
+     */
+    public void updateShape(Shape shape){
+        Tiles tiles = new Tiles();
+        for (Span span: confirmed.drawShape(shape)){
+            tiles.add(span);
+        }
+        displayed.drawShape(shape);
+        _redrawFrom(tiles);
+    }
+
+    /**
+     * Drop the prediction of the oldest draw message that has not been
+     * acknowledged, and correct the tiles that it covered.
+     * @see ServerMessageListener#acknowledgeDraw(long)
+     */
+    public void acknowledgeDraw(){
+        if (acknowledged == sent){
+            // the predictions were dropped by clearPredictions()
+            return;
+        }
+        acknowledged++;
+
+        Tiles tiles = new Tiles();
+        while (!pending.isEmpty() && pending.get(0).message < acknowledged){
+            tiles.add(pending.remove(0).tiles);
+        }
+        if (pending.isEmpty()){
+            _restoreDifferingTiles();
+            return;
+        }
+        for (int tileY = tiles.minY; tileY <= tiles.maxY; tileY ++){
+            for (int tileX = tiles.minX; tileX <= tiles.maxX; tileX ++){
+                if (displayed.getTileHash(tileX, tileY) != confirmed.getTileHash(tileX, tileY)){
+                    displayed.copyTile(confirmed, tileX, tileY);
+                }
+            }
+        }
+        _redrawFrom(tiles);
+    }
+
+    /**
+     * Drop all predictions, and show the confirmed board. The draws that
+     * were sent but not acknowledged yet are not expected to be
+     * acknowledged, eg. because the session moved to another connection.
+     */
+    public void clearPredictions(){
+        pending.clear();
+        acknowledged = sent;
+        _restoreDifferingTiles();
+    }
+
+    /**
+     * Draw a new prediction on the displayed board, and remember it.
+     */
+    private void _predict(Prediction p){
+        p.draw(displayed);
+        pending.add(p);
+    }
+
+    /**
+     * Draw the predictions again on the displayed board, from the first
+     * one that covers one of the tiles on, so that they are on top of the
+     * updates of these tiles.
+     */
+    private void _redrawFrom(Tiles tiles){
+        boolean redraw = false;
+        for (Prediction p: pending){
+            redraw = redraw || p.tiles.intersects(tiles);
+            if (redraw){
+                p.draw(displayed);
+            }
+        }
+    }
+
+    /**
+     * Copy the tiles that differ from the confirmed board, which must be
+     * all tiles that differ once nothing is pending.
+     */
+    private void _restoreDifferingTiles(){
+        for (Point tile: displayed.diffTiles(confirmed)){
+            displayed.copyTile(confirmed, tile.getX(), tile.getY());
+        }
+    }
+}
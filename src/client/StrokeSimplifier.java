@@ -0,0 +1,104 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import common.Point;
+
+/**
+ * Reduces the points of a freehand stroke before it is sent to the
+ * server, using the Ramer-Douglas-Peucker algorithm: the points that are
+ * within the tolerance of the line between the points that are kept are
+ * dropped, so that nearly collinear runs of mouse events become a single
+ * segment.
+ *
+ * The first and last points are always kept, so that consecutive strokes
+ * still join up.
+ *
+ * Thread safety:
+ *      Is thread-safe, since it has no state.
+ */
+public class StrokeSimplifier {
+
+    /**
+     * Not instantiable.
+     */
+    private StrokeSimplifier(){
+    }
+
+    /**
+     * Return the points of the stroke that are needed to draw it within
+     * the tolerance.
+     * @param points: the points of the stroke
+     * @param tolerance: the maximum distance (in pixels) of a dropped
+     *      point from the simplified stroke; 0 or less keeps every point
+     * @return the kept points, in order; the same list if none are dropped
+     */
+    public static List<Point> simplify(List<Point> points, double tolerance){
+        int n = points.size();
+        if (tolerance <= 0 || n < 3){
+            return points;
+        }
+
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n-1] = true;
+
+        // ranges (first, last) of points to simplify, on an explicit stack
+        // so that long strokes do not recurse deeply
+        int[] stack = new int[2*n];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n-1;
+        while (top > 0){
+            int last = stack[--top];
+            int first = stack[--top];
+
+            // find the point furthest from the segment first-last
+            double maxDistance = -1;
+            int furthest = -1;
+            for (int i=first+1; i<last; i++){
+                double d = _distance(points.get(i), points.get(first), points.get(last));
+                if (d > maxDistance){
+                    maxDistance = d;
+                    furthest = i;
+                }
+            }
+
+            if (furthest >= 0 && maxDistance > tolerance){
+                keep[furthest] = true;
+                stack[top++] = first;
+                stack[top++] = furthest;
+                stack[top++] = furthest;
+                stack[top++] = last;
+            }
+        }
+
+        List<Point> kept = new ArrayList<Point>();
+        for (int i=0; i<n; i++){
+            if (keep[i]){
+                kept.add(points.get(i));
+            }
+        }
+        return kept.size() == n ? points : kept;
+    }
+
+    /**
+     * Return the distance of p from the segment between a and b.
+     */
+    private static double _distance(Point p, Point a, Point b){
+        double dx = b.getX() - a.getX();
+        double dy = b.getY() - a.getY();
+        double px = p.getX() - a.getX();
+        double py = p.getY() - a.getY();
+        double lengthSquared = dx*dx + dy*dy;
+        if (lengthSquared == 0){
+            return Math.sqrt(px*px + py*py);
+        }
+        // project onto the segment, clamped to its ends
+        double t = Math.max(0, Math.min(1, (px*dx + py*dy) / lengthSquared));
+        double ex = px - t*dx;
+        double ey = py - t*dy;
+        return Math.sqrt(ex*ex + ey*ey);
+    }
+}
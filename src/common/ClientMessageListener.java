@@ -1,5 +1,7 @@
 package common;
 
+import java.util.List;
+
 /**
  * Callback functions to be executed for events originating in the client.
  *
@@ -14,6 +16,22 @@ public interface ClientMessageListener {
      */
     public void login(String username);
 
+    /**
+     * Request to log in as a spectator, who can watch boards but not
+     * draw on them or create them. Spectators do not reserve a username
+     * and are not listed in the users of a board.
+     * Can only be called when in the NOT_LOGGED_IN state
+     */
+    public void spectate();
+
+    /**
+     * Request to resume the session identified by the token on this
+     * connection, after the connection of that session was lost.
+     * Can only be called when in the NOT_LOGGED_IN state
+     * @param token: the token received by resumeToken()
+     */
+    public void resumeSession(String token);
+
     /**
      * Request to connect to the board with the id given.
      * Can only be called when in the NOT_CONNECTED state
@@ -22,11 +40,41 @@ public interface ClientMessageListener {
     public void connectToBoard(int id);
 
     /**
-     * request to create and connect to a new board.
+     * Request to reconnect to the board with the id given, of which the
+     * client still has a copy at the given version. If the server still
+     * knows the changes since that version, it only sends those.
+     * Can only be called when in the NOT_CONNECTED state
+     * @param id: the id of the board to connect to
+     * @param version: the version of the client's copy of the board
+     */
+    public void reconnectToBoard(int id, long version);
+
+    /**
+     * request to create and connect to a new board of the default size
+     * (Whiteboard.WIDTH by Whiteboard.HEIGHT).
      * Can only be called when in the NOT_CONNECTED state
      */
     public void newBoard();
 
+    /**
+     * request to create and connect to a new board of the given size.
+     * The server answers with error 200 if it can not create a board of
+     * that size (see Whiteboard.isValidSize()).
+     * Can only be called when in the NOT_CONNECTED state
+     * @param width: the number of columns of the board
+     * @param height: the number of rows of the board
+     */
+    public void newBoard(int width, int height);
+
+    /**
+     * Request to create a new board with the pixels of the board with the
+     * id given, and connect to it. The new board shares the tiles of the
+     * other board until either of them is drawn on.
+     * Can only be called when in the NOT_CONNECTED state
+     * @param id: the id of the board to copy
+     */
+    public void cloneBoard(int id);
+
     /**
      * Request to disconnect from the board currently connected to.
      * Can only be called when in the CONNECTED state 
@@ -42,10 +90,118 @@ public interface ClientMessageListener {
      */
     public void drawLine(Point p1, Point p2, Color color, int width);
 
+    /**
+     * Request to draw a line, like drawLine(p1, p2, color, width), and
+     * trace its latency. The server sends updateTrace() with the trace
+     * id to every client on the board after the resulting updates.
+     * Can only be called when in then CONNECTED state
+     * @param p1: one end of the line segment to be drawn
+     * @param p2: the other end of the line segment to be drawn
+     * @param color: the color of the line that should be drawn
+     * @param trace: the trace id, and the time at which the request was
+     *      sent (on the client) or received (on the server)
+     */
+    public void drawLine(Point p1, Point p2, Color color, int width, Trace trace);
+
+    /**
+     * Request to draw the line segments between consecutive points with
+     * color color, as a single operation. The brush is stamped only once
+     * where the segments meet.
+     * Can only be called when in then CONNECTED state
+     * @param points: the points of the polyline, at least one
+     * @param color: the color of the line that should be drawn
+     * @param width: the width of the line that should be drawn
+     */
+    public void drawPolyline(List<Point> points, Color color, int width);
+
+    /**
+     * Request to draw a polyline, like drawPolyline(points, color, width),
+     * and trace its latency like a traced drawLine().
+     * Can only be called when in then CONNECTED state
+     * @param points: the points of the polyline, at least one
+     * @param color: the color of the line that should be drawn
+     * @param width: the width of the line that should be drawn
+     * @param trace: the trace id, and the time at which the request was
+     *      sent (on the client) or received (on the server)
+     */
+    public void drawPolyline(List<Point> points, Color color, int width, Trace trace);
+
+    /**
+     * Request to flood fill the area of same-colored pixels that contains
+     * the seed with color color. The changed pixels are sent back with
+     * updateSpans() instead of updatePixel().
+     * Can only be called when in then CONNECTED state
+     * @param seed: a point of the area to fill
+     * @param color: the color to fill the area with
+     */
+    public void fill(Point seed, Color color);
+
+    /**
+     * Request to draw a shape (a rectangle or ellipse, or a cleared
+     * region) as a single operation. The server sends the shape back with
+     * updateShape(), and the clients rasterize it themselves.
+     * Can only be called when in then CONNECTED state
+     * @param shape: the shape to draw
+     */
+    public void drawShape(Shape shape);
+
+    /**
+     * Request to undo the last draw, fill or shape of this user on the
+     * board (or the last redo) that has not been undone. The pixels that
+     * it covered get back the colors they had before it, and are sent
+     * back with updateSpans(). Does nothing if there is nothing to undo.
+     * Can only be called when in then CONNECTED state
+     */
+    public void undo();
+
+    /**
+     * Request to redo the last undo of this user on the board, restoring
+     * the pixels that it changed. Draws made since the undo clear what
+     * can be redone. Does nothing if there is nothing to redo.
+     * Can only be called when in then CONNECTED state
+     */
+    public void redo();
+
+    /**
+     * Declare the part of the board that the client shows. From now on,
+     * the server only sends the updates of the pixels in the rectangle,
+     * and sends the pixels of the rectangle that were not in the previous
+     * one with updateSpans(). The server rounds the rectangle out to the
+     * tiles of the board (see Whiteboard.TILE_SIZE) and sends the pixels
+     * of the tiles that become visible, tile by tile. The viewport is
+     * empty after each connection to a board, so the client has to
+     * declare it to get any pixels of the board.
+     * Can be called from any state, but is ignored when not CONNECTED.
+     * @param x: the left edge of the rectangle
+     * @param y: the bottom edge of the rectangle
+     * @param width: the width of the rectangle, or 0 if nothing is shown
+     * @param height: the height of the rectangle, or 0 if nothing is shown
+     */
+    public void setViewport(int x, int y, int width, int height);
+
+    /**
+     * Report that the updates of a traced stroke have been applied.
+     * Can be called from any state, but is ignored when not CONNECTED.
+     * @param traceId: the id of the trace received by updateTrace()
+     * @param totalNanos: time from sending the traced request until its
+     *      updates were applied, or -1 if this client did not send it
+     * @param applyNanos: time from receiving updateTrace() until the
+     *      updates were applied
+     */
+    public void traceApplied(long traceId, long totalNanos, long applyNanos);
+
     /**
      * The client should be closed down (such as sending "close"
      * messages to any connected objects).
      * Can be called from any state.
      */
     public void clientClose();
+
+    /**
+     * The connection to the client was lost without the client closing
+     * down. The session may be kept so that it can be resumed; otherwise
+     * this behaves like clientClose().
+     * Can be called from any state.
+     */
+    public void connectionLost();
 }
@@ -8,6 +8,12 @@ package common;
  *      It is completely immutable and threadsafe.
  */
 public class Color {
+    // Size of the cache used by valueOf(), must be a power of two
+    private static final int CACHE_SIZE = 1024;
+    // Direct-mapped cache of recently used colors. Races on this array
+    // are benign, since Colors are immutable.
+    private static final Color[] cache = new Color[CACHE_SIZE];
+
     private final int red;
     private final int green;
     private final int blue;
@@ -38,6 +44,26 @@ public class Color {
         this.blue = b;
     }
 
+    /**
+     * Return a color with the given RGB values, reusing a previously
+     * constructed instance when possible instead of allocating a new one.
+     *
+     * @param r integer from 0 to 255
+     * @param g integer from 0 to 255
+     * @param b integer from 0 to 255
+     * @return a color equal to new Color(r, g, b)
+     */
+    public static Color valueOf(int r, int g, int b){
+        int rgb = (r << 16) + (g << 8) + b;
+        int index = (rgb ^ (rgb >>> 10) ^ (rgb >>> 20)) & (CACHE_SIZE - 1);
+        Color c = cache[index];
+        if (c == null || c.red != r || c.green != g || c.blue != b){
+            c = new Color(r, g, b);
+            cache[index] = c;
+        }
+        return c;
+    }
+
     /**
      * @return the amount of red in this color
      */
@@ -0,0 +1,262 @@
+package common;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A Java Flight Recorder event, emitted only when the program runs on a
+ * JVM that has the jdk.jfr API (Java 11 or later) and a recording that
+ * enables it is active. On other JVMs every method does nothing.
+ *
+ * The project is compiled for Java 7, so the event types are created at
+ * runtime with jdk.jfr.EventFactory through reflection, instead of being
+ * declared as subclasses of jdk.jfr.Event. They appear in recordings
+ * under the "Whiteboard" category with the given name.
+ *
+ * Usage:
+ *      Define the event types once, as constants:
+ *          static final FlightEvent.Type DRAW = FlightEvent.define(
+ *                  "whiteboard.Draw", "Draw",
+ *                  new String[]{"board", "pixels"},
+ *                  new Class<?>[]{int.class, int.class});
+ *      and emit events where the operation happens:
+ *          FlightEvent e = DRAW.begin();
+ *          ... the operation ...
+ *          e.set(0, id);
+ *          e.set(1, pixels);
+ *          e.commit();
+ *      The duration of the event is the time between begin() and commit().
+ *
+ * Thread safety:
+ *      Types are thread safe. An event may only be used by the thread
+ *      that began it.
+ */
+public class FlightEvent {
+    // the reflective handles of the jdk.jfr API, or null if it is missing
+    private static final Method newEvent;
+    private static final Method isEnabled;
+    private static final Method begin;
+    private static final Method set;
+    private static final Method commit;
+    private static final Method create;
+    private static final Constructor<?> newAnnotation;
+    private static final Constructor<?> newField;
+    private static final Class<? extends Annotation> nameAnnotation;
+    private static final Class<? extends Annotation> labelAnnotation;
+    private static final Class<? extends Annotation> categoryAnnotation;
+    private static final Class<? extends Annotation> stackTraceAnnotation;
+
+    static {
+        Method[] methods = new Method[6];
+        Constructor<?>[] constructors = new Constructor<?>[2];
+        List<Class<? extends Annotation>> annotations = new ArrayList<Class<? extends Annotation>>();
+        try {
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> annotation = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> field = Class.forName("jdk.jfr.ValueDescriptor");
+            methods[0] = factory.getMethod("newEvent");
+            methods[1] = event.getMethod("isEnabled");
+            methods[2] = event.getMethod("begin");
+            methods[3] = event.getMethod("set", int.class, Object.class);
+            methods[4] = event.getMethod("commit");
+            methods[5] = factory.getMethod("create", List.class, List.class);
+            constructors[0] = annotation.getConstructor(Class.class, Object.class);
+            constructors[1] = field.getConstructor(Class.class, String.class);
+            annotations.add(Class.forName("jdk.jfr.Name").asSubclass(Annotation.class));
+            annotations.add(Class.forName("jdk.jfr.Label").asSubclass(Annotation.class));
+            annotations.add(Class.forName("jdk.jfr.Category").asSubclass(Annotation.class));
+            annotations.add(Class.forName("jdk.jfr.StackTrace").asSubclass(Annotation.class));
+        } catch (Exception e){
+            // no flight recorder on this JVM
+            methods = new Method[methods.length];
+            constructors = new Constructor<?>[constructors.length];
+            annotations = Collections.<Class<? extends Annotation>>nCopies(4, null);
+        }
+        newEvent = methods[0];
+        isEnabled = methods[1];
+        begin = methods[2];
+        set = methods[3];
+        commit = methods[4];
+        create = methods[5];
+        newAnnotation = constructors[0];
+        newField = constructors[1];
+        nameAnnotation = annotations.get(0);
+        labelAnnotation = annotations.get(1);
+        categoryAnnotation = annotations.get(2);
+        stackTraceAnnotation = annotations.get(3);
+    }
+
+    // The event that is returned when events are disabled
+    private static final FlightEvent DISABLED = new FlightEvent(null);
+
+    /**
+     * An event type with named fields.
+     */
+    public static class Type {
+        // the jdk.jfr.EventFactory, or null if the type could not be created
+        private final Object factory;
+        // an event of this type that is only used to check whether
+        // the type is enabled in any active recording
+        private final Object probe;
+
+        private Type(Object factory, Object probe){
+            this.factory = factory;
+            this.probe = probe;
+        }
+
+        /**
+         * @return true if events of this type are being recorded
+         */
+        public boolean isEnabled(){
+            if (probe == null){
+                return false;
+            }
+            try {
+                return (Boolean) isEnabled.invoke(probe);
+            } catch (Exception e){
+                return false;
+            }
+        }
+
+        /**
+         * Start timing a new event of this type.
+         * @return the event, which does nothing if the type is not enabled
+         */
+        public FlightEvent begin(){
+            if (!isEnabled()){
+                return DISABLED;
+            }
+            try {
+                Object event = newEvent.invoke(factory);
+                begin.invoke(event);
+                return new FlightEvent(event);
+            } catch (Exception e){
+                return DISABLED;
+            }
+        }
+    }
+
+    /**
+     * Define a new event type. Field values must be of one of the given
+     * types, which may be primitive types or String.
+     *
+     * @param name unique name of the type, such as "whiteboard.DrawLine"
+     * @param label human readable name of the type
+     * @param fieldNames names of the fields, in the order of their indices
+     * @param fieldTypes types of the fields
+     * @return the type, which never emits events if the flight recorder
+     *      is not available
+     */
+    public static Type define(String name, String label, String[] fieldNames, Class<?>[] fieldTypes){
+        assert fieldNames.length == fieldTypes.length;
+        if (create == null){
+            return new Type(null, null);
+        }
+        try {
+            List<Object> annotations = Arrays.asList(
+                    newAnnotation.newInstance(nameAnnotation, name),
+                    newAnnotation.newInstance(labelAnnotation, label),
+                    newAnnotation.newInstance(categoryAnnotation, new String[]{"Whiteboard"}),
+                    // the stack trace would only show the reflective call
+                    newAnnotation.newInstance(stackTraceAnnotation, false));
+            List<Object> fields = new ArrayList<Object>();
+            for (int i=0; i<fieldNames.length; i++){
+                fields.add(newField.newInstance(fieldTypes[i], fieldNames[i]));
+            }
+            Object factory = create.invoke(null, annotations, fields);
+            return new Type(factory, newEvent.invoke(factory));
+        } catch (Exception e){
+            // the program works without the events
+            e.printStackTrace();
+            return new Type(null, null);
+        }
+    }
+
+    // the jdk.jfr.Event, or null if disabled
+    private final Object event;
+
+    private FlightEvent(Object event){
+        this.event = event;
+    }
+
+    /**
+     * @return true if this event will be recorded when committed
+     */
+    public boolean isEnabled(){
+        return event != null;
+    }
+
+    /**
+     * Set the value of a field.
+     * @param index the index of the field in the definition of the type
+     * @param value the value
+     */
+    public void set(int index, int value){
+        if (event != null){
+            _set(index, value);
+        }
+    }
+
+    /**
+     * Set the value of a field.
+     * @param index the index of the field in the definition of the type
+     * @param value the value
+     */
+    public void set(int index, long value){
+        if (event != null){
+            _set(index, value);
+        }
+    }
+
+    /**
+     * Set the value of a field.
+     * @param index the index of the field in the definition of the type
+     * @param value the value
+     */
+    public void set(int index, boolean value){
+        if (event != null){
+            _set(index, value);
+        }
+    }
+
+    /**
+     * Set the value of a field.
+     * @param index the index of the field in the definition of the type
+     * @param value the value
+     */
+    public void set(int index, String value){
+        if (event != null){
+            _set(index, value);
+        }
+    }
+
+    /**
+     * End the event and write it to the active recordings.
+     */
+    public void commit(){
+        if (event != null){
+            try {
+                commit.invoke(event);
+            } catch (Exception e){
+                // dropping an event is harmless
+            }
+        }
+    }
+
+    /**
+     * Set the value of a field of the underlying event.
+     */
+    private void _set(int index, Object value){
+        try {
+            set.invoke(event, index, value);
+        } catch (Exception e){
+            // dropping a field is harmless
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a single protocol message into space-separated tokens without
+ * allocating intermediate strings.
+ *
+ * The tokenizer works directly on a character buffer (such as the reusable
+ * line buffer of a SocketWrapper). The opcode is packed into an integer so
+ * that it can be dispatched with a switch statement, and integers are
+ * parsed in place.
+ *
+ * Usage:
+ *      - reset() with the message
+ *      - opcode()
+ *      - nextInt() / nextHexByte() / nextString() / nextList() for each
+ *        argument of the message
+ *
+ * Thread safety:
+ *      Not thread safe. The buffer passed to reset() must not be modified
+ *          while the message is being parsed.
+ */
+public class MessageTokenizer {
+    private char[] buffer;
+    private int position;
+    private int end;
+
+    /**
+     * Pack an opcode of up to three characters into an integer.
+     *
+     * Message handlers declare their opcodes with the equivalent constant
+     * expression, eg: ('d' << 8) | 'r' for "dr", so that they may be
+     * used as case labels.
+     *
+     * @param opcode the opcode string, eg: "dr"
+     * @return the packed opcode
+     */
+    public static int pack(String opcode){
+        assert opcode.length() <= 3;
+        int result = 0;
+        for (int i=0; i<opcode.length(); i++){
+            result = (result << 8) | opcode.charAt(i);
+        }
+        return result;
+    }
+
+    /**
+     * Start tokenizing the characters buffer[offset, offset+length).
+     *
+     * @param buffer the characters of the message
+     * @param offset index of the first character
+     * @param length number of characters in the message
+     */
+    public void reset(char[] buffer, int offset, int length){
+        this.buffer = buffer;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Start tokenizing the given message.
+     *
+     * @param line a single message without a trailing newline
+     */
+    public void reset(String line){
+        reset(line.toCharArray(), 0, line.length());
+    }
+
+    /**
+     * Read the next token as an opcode of up to three characters.
+     *
+     * @return the opcode packed the same way as pack()
+     */
+    public int opcode(){
+        skipSpaces();
+        int result = 0;
+        int length = 0;
+        while (position < end && buffer[position] != ' '){
+            if (++length > 3){
+                throw new RuntimeException("Opcode too long");
+            }
+            result = (result << 8) | buffer[position++];
+        }
+        return result;
+    }
+
+    /**
+     * Read the next token as a decimal integer.
+     *
+     * @return the integer value of the token
+     * @throws NumberFormatException if the token is not an integer, or
+     *      does not fit in an int
+     */
+    public int nextInt(){
+        long value = nextLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE){
+            throw new NumberFormatException("Integer out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Read the next token as a decimal long.
+     *
+     * @return the long value of the token
+     * @throws NumberFormatException if the token is not an integer, or
+     *      does not fit in a long
+     */
+    public long nextLong(){
+        skipSpaces();
+        boolean negative = false;
+        if (position < end && buffer[position] == '-'){
+            negative = true;
+            position++;
+        }
+        int start = position;
+        long result = 0;
+        while (position < end && buffer[position] != ' '){
+            char c = buffer[position++];
+            if (c < '0' || c > '9'){
+                throw new NumberFormatException("Invalid digit: " + c);
+            }
+            if (result > (Long.MAX_VALUE - (c - '0')) / 10){
+                throw new NumberFormatException("Integer out of range");
+            }
+            result = result*10 + (c - '0');
+        }
+        if (position == start){
+            throw new NumberFormatException("Missing integer");
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Read two hex characters from the current position as a number
+     * from 0-255. Hex values are not separated by spaces.
+     *
+     * @return the integer value of the two hex characters
+     */
+    public int nextHexByte(){
+        if (position + 2 > end){
+            throw new RuntimeException("Unexpected end of message");
+        }
+        int msb = hexToNibble(buffer[position++]);
+        int lsb = hexToNibble(buffer[position++]);
+        return (msb << 4) + lsb;
+    }
+
+    /**
+     * Read the next token as a string.
+     *
+     * @return the token
+     */
+    public String nextString(){
+        skipSpaces();
+        int start = position;
+        while (position < end && buffer[position] != ' '){
+            position++;
+        }
+        return new String(buffer, start, position - start);
+    }
+
+    /**
+     * Read the next token as a list of strings separated by the
+     * given character.
+     *
+     * @param separator the character between list elements
+     * @return the list elements
+     */
+    public List<String> nextList(char separator){
+        skipSpaces();
+        List<String> result = new ArrayList<String>();
+        int start = position;
+        while (true){
+            if (position == end || buffer[position] == ' ' || buffer[position] == separator){
+                result.add(new String(buffer, start, position - start));
+                if (position == end || buffer[position] == ' '){
+                    return result;
+                }
+                start = ++position;
+            } else {
+                position++;
+            }
+        }
+    }
+
+    /**
+     * Advance to the beginning of the next token.
+     */
+    public void skipSpaces(){
+        while (position < end && buffer[position] == ' '){
+            position++;
+        }
+    }
+
+    /**
+     * @return the number of characters left in the message, including
+     *      the spaces before the next token
+     */
+    public int remaining(){
+        return end - position;
+    }
+
+    /**
+     * @return true if there are more tokens in the message
+     */
+    public boolean hasMore(){
+        skipSpaces();
+        return position < end;
+    }
+
+    /**
+     * Convert a one-byte hex character into an integer.
+     */
+    private static int hexToNibble(char hexChar){
+        if (hexChar >= '0' && hexChar <= '9'){
+            return hexChar - '0';
+        }
+        if (hexChar >= 'a' && hexChar <= 'f'){
+            return hexChar - 'a' + 10;
+        }
+        if (hexChar >= 'A' && hexChar <= 'F'){
+            return hexChar - 'A' + 10;
+        }
+        throw new RuntimeException("Invalid Hex Character: " + hexChar);
+    }
+}
@@ -16,23 +16,98 @@ public interface ServerMessageListener {
      */
     public void loginSuccess();
 
+    /**
+     * Give the client a token with which it can resume its session
+     * after the connection is lost.
+     * Can be called in any state except NOT_LOGGED_IN and LOGIN_PENDING.
+     * @param token: the resume token
+     */
+    public void resumeToken(String token);
+
+    /**
+     * Indicate that the session was resumed on this connection.
+     * Can only be called when in the LOGIN_PENDING state, after
+     * a resumeSession request.
+     * @param state: the state that the session is in. If it is
+     *      CONNECT_PENDING, a connectToBoardSuccess message follows.
+     */
+    public void resumeSessionSuccess(SocketState state);
+
     /**
      * Indicate that an error occurred.
      * error(100) can only be called when in the LOGIN_PENDING state
      * error(200) can only be called when in the CONNECT_PENDING state
+     * error(300) (session can not be resumed) can only be called when
+     *      in the LOGIN_PENDING state
      */
     public void error(int code);
 
     /**
      * Indicate that the board connection successfully completed.
      * Return some data about the board connected to.
+     * Only the size of the board is sent over the socket, so the client
+     * gets a blank board of that size, and the pixels of the tiles of its
+     * viewport follow as updateSpans messages (see
+     * ClientMessageListener.setViewport()).
      * Can only be called when in the CONNECT_PENDING state
      * @param id: the id of the board connected to
      * @param users: list of users currently connected to the board
-     * @param data: the board itself (that contains all imaging data)
+     * @param data: the board itself, of the size that the board was
+     *      created with
      */
     public void connectToBoardSuccess(int id, List<String> users, Whiteboard data);
 
+    /**
+     * Indicate that the requested board is owned by another server of
+     * the cluster, to which the client should connect instead.
+     * Can only be called when in the CONNECT_PENDING state, and
+     * changes the state to NOT_CONNECTED.
+     * @param id: the id of the requested board
+     * @param host: the host of the server that owns the board
+     * @param port: the port of the server that owns the board
+     */
+    public void redirect(int id, String host, int port);
+
+    /**
+     * Indicate that the board connection requested by reconnectToBoard
+     * successfully completed, and that the client's copy of the board is
+     * recent enough to keep showing. An updateVersion message follows,
+     * and the pixels of the tiles of the viewport that the client then
+     * declares follow as updateSpans messages.
+     * Can only be called when in the CONNECT_PENDING state
+     * @param id: the id of the board connected to
+     * @param users: list of users currently connected to the board
+     */
+    public void resyncBoardSuccess(int id, List<String> users);
+
+    /**
+     * Indicate the version of the board that the client has after
+     * applying all previous messages.
+     * Can only be called in the CONNECTED or DISCONNECT_PENDING states.
+     * @param version: the version of the board
+     */
+    public void updateVersion(long version);
+
+    /**
+     * Indicate that all updates of a traced stroke have been sent, so that
+     * the client can report when it has applied them with traceApplied().
+     * Can only be called in the CONNECTED or DISCONNECT_PENDING states.
+     * @param trace: the trace id, and the time at which the message was
+     *      received (on the client) or sent (on the server)
+     */
+    public void updateTrace(Trace trace);
+
+    /**
+     * Indicate that the server has applied the oldest draw of this client
+     * (drawLine, drawPolyline, fill or drawShape) that has not been
+     * acknowledged yet, in the order of the board. The updates of the draw
+     * have been sent before this message, so that the client can replace
+     * its own prediction of the draw with them.
+     * Can only be called in the CONNECTED or DISCONNECT_PENDING states.
+     * @param version: the version of the board that includes the draw
+     */
+    public void acknowledgeDraw(long version);
+
     /**
      * Send a message from the server saying that the pixel at Point point
      * should have Color color.
@@ -42,6 +117,24 @@ public interface ServerMessageListener {
      */
     public void updatePixel(Point point, Color color);
 
+    /**
+     * Send a message from the server saying that all pixels of the spans
+     * should have Color color, which is much more compact than an
+     * updatePixel message per pixel for large areas.
+     * Can only be called in the CONNECTED or DISCONNECT_PENDING states.
+     * @param spans: the runs of pixels that have their color changed
+     * @param color: the new color of the pixels
+     */
+    public void updateSpans(List<Span> spans, Color color);
+
+    /**
+     * Send a message from the server saying that the shape was drawn on
+     * the board, which the client rasterizes with Whiteboard.drawShape().
+     * Can only be called in the CONNECTED or DISCONNECT_PENDING states.
+     * @param shape: the shape that was drawn
+     */
+    public void updateShape(Shape shape);
+
     /**
      * Indicate that the list of users connected to the board has changed.
      * Can only be called in the CONNECTED or DISCONNECT_PENDING states
@@ -0,0 +1,271 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable, thread safe description of a shape that is drawn as a single
+ * operation: a rectangle or an ellipse inscribed in the rectangle between
+ * two corners, either filled or outlined, or a region that is cleared to
+ * white.
+ *
+ * Shapes are rasterized into spans by getSpans(), which the server and
+ * the clients both use, so that a shape can be sent as one message and
+ * every client gets the same pixels as the server.
+ *
+ * Rep invariant:
+ *      - p1 is the lower left corner and p2 the upper right corner:
+ *        p1.x <= p2.x and p1.y <= p2.y
+ *      - width >= 0
+ *
+ * Thread safety:
+ *      It is completely immutable and threadsafe.
+ */
+public class Shape {
+    /**
+     * The kinds of shapes, with the codes used in messages.
+     */
+    public enum Kind {
+        RECTANGLE("r"),
+        ELLIPSE("e"),
+        // a filled rectangle of white pixels, whatever the color
+        CLEAR("c");
+
+        private final String code;
+
+        private Kind(String code){
+            this.code = code;
+        }
+
+        /**
+         * @return the code of the kind in messages
+         */
+        public String getCode(){
+            return code;
+        }
+
+        /**
+         * @param code: a code returned by getCode()
+         * @return the kind with that code
+         * @throws IllegalArgumentException if there is no such kind
+         */
+        public static Kind fromCode(String code){
+            for (Kind k: values()){
+                if (k.code.equals(code)){
+                    return k;
+                }
+            }
+            throw new IllegalArgumentException("Unknown shape: " + code);
+        }
+    }
+
+    private final Kind kind;
+    private final Point p1;
+    private final Point p2;
+    private final Color color;
+    private final int width;
+
+    /**
+     * Construct with the given arguments. The corners may be given in
+     * any order, and may be outside of the board; the shape is clipped
+     * when it is rasterized.
+     *
+     * @param kind: the kind of shape
+     * @param corner1: one corner of the bounding rectangle
+     * @param corner2: the opposite corner of the bounding rectangle
+     * @param color: the color of the shape, ignored for CLEAR
+     * @param width: the width of the outline, or 0 for a filled shape;
+     *      ignored for CLEAR
+     */
+    public Shape(Kind kind, Point corner1, Point corner2, Color color, int width){
+        assert width >= 0;
+        this.kind = kind;
+        this.p1 = new Point(Math.min(corner1.getX(), corner2.getX()), Math.min(corner1.getY(), corner2.getY()));
+        this.p2 = new Point(Math.max(corner1.getX(), corner2.getX()), Math.max(corner1.getY(), corner2.getY()));
+        this.color = kind == Kind.CLEAR ? new Color() : color;
+        this.width = kind == Kind.CLEAR ? 0 : width;
+    }
+
+    /**
+     * @return a shape that clears the whole of a board of any size
+     */
+    public static Shape clearBoard(){
+        return new Shape(Kind.CLEAR, new Point(0, 0),
+                new Point(Whiteboard.MAX_WIDTH - 1, Whiteboard.MAX_HEIGHT - 1), null, 0);
+    }
+
+    /**
+     * @return the kind of shape
+     */
+    public Kind getKind(){
+        return kind;
+    }
+
+    /**
+     * @return the lower left corner of the bounding rectangle
+     */
+    public Point getP1(){
+        return p1;
+    }
+
+    /**
+     * @return the upper right corner of the bounding rectangle
+     */
+    public Point getP2(){
+        return p2;
+    }
+
+    /**
+     * @return the color of the shape, white for CLEAR
+     */
+    public Color getColor(){
+        return color;
+    }
+
+    /**
+     * @return the width of the outline, or 0 if the shape is filled
+     */
+    public int getWidth(){
+        return width;
+    }
+
+    /**
+     * @return true if the whole inside of the shape is colored
+     */
+    public boolean isFilled(){
+        return width == 0;
+    }
+
+    /**
+     * Rasterize the shape into the runs of pixels it covers, clipped to
+     * a board of the given size.
+     *
+     * @param boardWidth: the number of columns of the board
+     * @param boardHeight: the number of rows of the board
+     * @return the spans of the shape, which do not overlap
+     */
+    public List<Span> getSpans(int boardWidth, int boardHeight){
+        List<Span> spans = new ArrayList<Span>();
+        int yMin = Math.max(p1.getY(), 0);
+        int yMax = Math.min(p2.getY(), boardHeight - 1);
+        for (int y=yMin; y<=yMax; y++){
+            if (kind == Kind.ELLIPSE){
+                _addEllipseRow(spans, y, boardWidth);
+            } else {
+                _addRectangleRow(spans, y, boardWidth);
+            }
+        }
+        return spans;
+    }
+
+    /**
+     * Add the spans of a row of the rectangle.
+     */
+    private void _addRectangleRow(List<Span> spans, int y, int boardWidth){
+        int x1 = p1.getX();
+        int x2 = p2.getX();
+        if (isFilled() || y < p1.getY() + width || y > p2.getY() - width || x2 - x1 + 1 <= 2*width){
+            _addClipped(spans, y, x1, x2, boardWidth);
+        } else {
+            // the left and right sides of the outline
+            _addClipped(spans, y, x1, x1 + width - 1, boardWidth);
+            _addClipped(spans, y, x2 - width + 1, x2, boardWidth);
+        }
+    }
+
+    /**
+     * Add the spans of a row of the ellipse.
+     */
+    private void _addEllipseRow(List<Span> spans, int y, int boardWidth){
+        double cx = (p1.getX() + p2.getX()) / 2.0;
+        double cy = (p1.getY() + p2.getY()) / 2.0;
+        double rx = (p2.getX() - p1.getX()) / 2.0;
+        double ry = (p2.getY() - p1.getY()) / 2.0;
+
+        double outer = _halfWidth(y - cy, rx, ry);
+        if (outer < 0){
+            return;
+        }
+        int ox1 = (int) Math.round(cx - outer);
+        int ox2 = (int) Math.round(cx + outer);
+
+        double inner = isFilled() ? -1 : _halfWidth(y - cy, rx - width, ry - width);
+        if (inner < 0){
+            _addClipped(spans, y, ox1, ox2, boardWidth);
+            return;
+        }
+        int ix1 = (int) Math.round(cx - inner);
+        int ix2 = (int) Math.round(cx + inner);
+        if (ix1 - 1 < ox1 || ox2 < ix2 + 1 || ix2 < ix1){
+            _addClipped(spans, y, ox1, ox2, boardWidth);
+            return;
+        }
+        // the left and right sides of the outline, around the inside
+        _addClipped(spans, y, ox1, ix1 - 1, boardWidth);
+        _addClipped(spans, y, ix2 + 1, ox2, boardWidth);
+    }
+
+    /**
+     * Return the half width of an ellipse at the given distance from its
+     * center.
+     * @param dy: the distance from the center row
+     * @param rx: the horizontal radius
+     * @param ry: the vertical radius
+     * @return the half width of the row, or -1 if the ellipse does not
+     *      reach the row
+     */
+    private static double _halfWidth(double dy, double rx, double ry){
+        if (rx < 0 || ry < 0 || Math.abs(dy) > ry){
+            return -1;
+        }
+        if (ry == 0){
+            return rx;
+        }
+        double t = dy / ry;
+        return rx * Math.sqrt(1 - t*t);
+    }
+
+    /**
+     * Add the span from x1 to x2 of the row, clipped to the board, if it
+     * is not empty.
+     */
+    private static void _addClipped(List<Span> spans, int y, int x1, int x2, int boardWidth){
+        x1 = Math.max(x1, 0);
+        x2 = Math.min(x2, boardWidth - 1);
+        if (x1 <= x2){
+            spans.add(new Span(y, x1, x2));
+        }
+    }
+
+    /**
+     * Equality
+     *
+     * @return true if all the fields are equal
+     */
+    public boolean equals(Object obj){
+        if (obj == null)
+            return false;
+        if (obj.getClass() != this.getClass())
+            return false;
+        Shape that = (Shape) obj;
+        return this.kind == that.kind &&
+            this.p1.equals(that.p1) &&
+            this.p2.equals(that.p2) &&
+            this.color.equals(that.color) &&
+            this.width == that.width;
+    }
+
+    /**
+     * Hash code
+     *
+     * @return integer hash code
+     */
+    public int hashCode(){
+        return kind.hashCode() + p1.hashCode()*31 + p2.hashCode()*17 + color.hashCode()*7 + width;
+    }
+
+
+    public String toString(){
+        return "Shape(" + kind + "," + p1 + "," + p2 + "," + color + "," + width + ")";
+    }
+}
@@ -2,6 +2,9 @@ package common;
 
 import java.io.*;
 import java.net.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Contains generic functionality to implement a thread that reads
@@ -9,13 +12,45 @@ import java.net.*;
  *
  * Calling the "start" function will initiate a single background thread
  * that will call certain functions on the SocketWrapperListener as
- * messages arrive on the wire.
+ * messages arrive on the wire. Lines are read into a reusable buffer; if
+ * the listener is a SocketWrapperBufferListener, it receives that buffer
+ * directly instead of a new String for every line. Lines longer than
+ * maxLineLength are rejected, so the buffer never grows beyond that size.
+ * Large payloads are therefore sent as a sequence of bounded lines.
  *
  * The onReadLine, onReadError, and onReadFinish functions are guarenteed
  *      to be executed from the single background thread.
  *
  * The onWriteError is guarenteed to be executed from the same thread
- *      that called the "writeLine" function
+ *      that called the "writeLine" or "flush" function, except when
+ *      lines queued by "bufferLine" are flushed automatically, in which
+ *      case it is executed from the writer thread of this socket.
+ *
+ * Outgoing lines are written to a single persistent buffered writer.
+ *      "writeLine" flushes immediately. "bufferLine" only queues the
+ *      line, so that a burst of messages can be sent with a single
+ *      flush. Queued lines are flushed when "flush" is called, when
+ *      more than flushThreshold characters are pending, or flushDelay
+ *      milliseconds after the first queued line, whichever comes first.
+ *      Delayed flushes run on a writer thread of this socket alone, so
+ *      a peer that stops reading only blocks the writes to itself.
+ *
+ * Heartbeats are disabled by default. If setHeartbeat() is called before
+ *      start(), the HEARTBEAT line is sent whenever nothing has been written
+ *      for heartbeatInterval milliseconds, and the socket is closed if
+ *      nothing has been read for heartbeatTimeout milliseconds. Closing the
+ *      socket makes the read fail, so a dead peer is reported through the
+ *      usual onReadError and onReadFinish calls. Received HEARTBEAT lines
+ *      are never passed to the listener. Both peers should enable
+ *      heartbeats with an interval well below the timeout of the other.
+ *      The checks of all sockets run on one shared reaper thread, which
+ *      never takes the lock of a socket and never writes; heartbeats are
+ *      written by the writer thread of their own socket, so a peer that
+ *      stops reading only delays the heartbeats to itself.
+ *
+ * Every batch of characters that is read, and every flush, is emitted as
+ *      a flight recorder event (see FlightEvent) with the peer address and
+ *      the number of characters.
  *
  * Client must set the listener with setSocketWrapperListener() before
  *      calling any other functions.
@@ -24,6 +59,8 @@ import java.net.*;
  *      The methods of this class must be called in the following order:
  *          - SocketWrapper()
  *          - setSocketWrapperListener()
+ *          - setHeartbeat() (optional)
+ *          - setMetrics() (optional)
  *          - start()
  *          - any other function
  *
@@ -34,11 +71,87 @@ import java.net.*;
  */
 public class SocketWrapper{
 
+    // Default number of pending characters that forces a flush
+    public static final int DEFAULT_FLUSH_THRESHOLD = 32*1024;
+    // Default time (in milliseconds) that a queued line may wait before
+    // it is flushed automatically
+    public static final long DEFAULT_FLUSH_DELAY = 2;
+
+    // Size of the persistent output buffer (in characters)
+    private static final int WRITE_BUFFER_SIZE = 64*1024;
+    // Size of the reusable input buffer (in characters)
+    private static final int READ_BUFFER_SIZE = 8*1024;
+    // Default maximum length of a line that may be read (in characters)
+    public static final int DEFAULT_MAX_LINE_LENGTH = 64*1024;
+
+    // Line that is sent to keep an idle connection alive
+    public static final String HEARTBEAT = "hb";
+    // Default time (in milliseconds) without writes after which a
+    // heartbeat is sent
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 10*1000;
+    // Default time (in milliseconds) without reads after which the
+    // connection is considered dead
+    public static final long DEFAULT_HEARTBEAT_TIMEOUT = 35*1000;
+
+    // Single daemon thread shared by all SocketWrappers that checks the
+    // heartbeats. It never takes the lock of a SocketWrapper and never
+    // writes, so that a write that blocks on a dead connection can not
+    // stall it; it only hands heartbeats to the writer of each socket.
+    private static final ScheduledExecutorService reaper =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r){
+                Thread t = new Thread(r, "SocketWrapper-reaper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    // Flight recorder events for the batches of characters that are
+    // read and handled, and for flushes
+    private static final FlightEvent.Type READ_EVENT = FlightEvent.define(
+            "whiteboard.SocketRead", "Socket Read",
+            new String[]{"peer", "chars", "lines"},
+            new Class<?>[]{String.class, int.class, int.class});
+    private static final FlightEvent.Type WRITE_EVENT = FlightEvent.define(
+            "whiteboard.SocketWrite", "Socket Write",
+            new String[]{"peer", "chars"},
+            new Class<?>[]{String.class, int.class});
+
     private final Socket socket;
     private SocketWrapperListener listener;
+    private SocketWrapperMetrics metrics;
     private boolean running;
     private boolean debug;
 
+    private Writer out;
+    // Daemon thread of this socket that flushes queued lines after
+    // flushDelay has elapsed. Its thread is only started by the first
+    // delayed flush, and it is shut down when the socket is closed or
+    // the reading side finishes.
+    private final ScheduledExecutorService writer =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r){
+                Thread t = new Thread(r, "SocketWrapper-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    private int pendingChars;
+    private boolean flushScheduled;
+    private int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+    private long flushDelay = DEFAULT_FLUSH_DELAY;
+    private volatile int maxLineLength = DEFAULT_MAX_LINE_LENGTH;
+
+    private long heartbeatInterval;
+    private long heartbeatTimeout;
+    private volatile ScheduledFuture<?> heartbeatTask;
+    // true while a heartbeat waits for the writer thread, so that a writer
+    // that is blocked on a dead connection does not pile up heartbeats
+    private final AtomicBoolean heartbeatQueued = new AtomicBoolean();
+    // System.nanoTime() of the last read and the last flush
+    private volatile long lastReadTime;
+    private volatile long lastWriteTime;
+
     /**
      * Construct with the given, open socket.
      *
@@ -63,6 +176,76 @@ public class SocketWrapper{
         this.listener = listener;
     }
 
+    /**
+     * Report the traffic of this socket to the given object.
+     * Must be called before start().
+     *
+     * @param metrics the object that receives the measurements
+     */
+    public synchronized void setMetrics(SocketWrapperMetrics metrics){
+        assert !running;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Configure when lines queued by bufferLine() are flushed.
+     *
+     * @param threshold number of pending characters that forces a flush
+     * @param delay maximum time in milliseconds that a queued line waits
+     *      before being flushed
+     */
+    public synchronized void setFlushPolicy(int threshold, long delay){
+        assert threshold > 0;
+        assert delay >= 0;
+        this.flushThreshold = threshold;
+        this.flushDelay = delay;
+    }
+
+    /**
+     * Set the maximum length of a line that may be read. If a longer
+     * line arrives, reading stops with an IOException (which is passed
+     * to onReadError), so that a peer can not exhaust the memory with
+     * a single endless line.
+     *
+     * @param length maximum number of characters in a line
+     */
+    public void setMaxLineLength(int length){
+        assert length > 0;
+        this.maxLineLength = length;
+    }
+
+    /**
+     * Enable heartbeats. Must be called before start().
+     *
+     * @param interval time in milliseconds without writes after which
+     *      a heartbeat is sent
+     * @param timeout time in milliseconds without reads after which the
+     *      socket is closed
+     */
+    public synchronized void setHeartbeat(long interval, long timeout){
+        assert !running;
+        assert interval > 0;
+        assert timeout > 0;
+        this.heartbeatInterval = interval;
+        this.heartbeatTimeout = timeout;
+    }
+
+    /**
+     * @return the heartbeat interval in milliseconds, or 0 if heartbeats
+     *      are disabled
+     */
+    public synchronized long getHeartbeatInterval(){
+        return heartbeatInterval;
+    }
+
+    /**
+     * @return the heartbeat timeout in milliseconds, or 0 if heartbeats
+     *      are disabled
+     */
+    public synchronized long getHeartbeatTimeout(){
+        return heartbeatTimeout;
+    }
+
     /**
      * Start the background listener thread.
      *
@@ -77,30 +260,168 @@ public class SocketWrapper{
             new Thread(new Runnable(){
                 public void run(){
                     try {
-                        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-                        for (String line = in.readLine(); line != null; line = in.readLine()) {
-                            if (debug){
-                                System.out.println("receiving: " + line.substring(0, Math.min(line.length(), 100)));
-                            }
-                            listener.onReadLine(line.trim());
-                        }
+                        _readLines(new InputStreamReader(socket.getInputStream()));
                     } catch (Exception e){
                         listener.onReadError(e);
                     } finally {
+                        _stopHeartbeat();
+                        writer.shutdown();
                         listener.onReadFinish();
+                        if (metrics != null){
+                            metrics.onFinish();
+                        }
                     }
                 }
             }).start();
 
+            if (heartbeatInterval > 0){
+                _startHeartbeat();
+            }
             running = true;
         }
     }
 
+    /**
+     * Schedule the periodic heartbeat check on the reaper thread.
+     */
+    private synchronized void _startHeartbeat(){
+        final long interval = TimeUnit.MILLISECONDS.toNanos(heartbeatInterval);
+        final long timeout = TimeUnit.MILLISECONDS.toNanos(heartbeatTimeout);
+        lastReadTime = lastWriteTime = System.nanoTime();
+
+        // check several times per interval, so that neither the heartbeat
+        // nor the timeout is late by more than a fraction of the interval
+        long period = Math.max(1, Math.min(heartbeatInterval, heartbeatTimeout) / 4);
+        heartbeatTask = reaper.scheduleAtFixedRate(new Runnable(){
+            public void run(){
+                long now = System.nanoTime();
+                if (now - lastReadTime > timeout){
+                    if (debug){
+                        System.out.println("heartbeat timeout: closing socket");
+                    }
+                    _stopHeartbeat();
+                    // closed without the lock, which may be held by a
+                    // writer that is blocked on the dead connection
+                    try {
+                        socket.close();
+                    } catch (IOException e){
+                    }
+                } else if (now - lastWriteTime > interval && heartbeatQueued.compareAndSet(false, true)){
+                    // sent from the writer thread of this socket,
+                    // because the write needs the lock and may block
+                    lastWriteTime = now;
+                    try {
+                        writer.execute(new Runnable(){
+                            public void run(){
+                                heartbeatQueued.set(false);
+                                writeLine(HEARTBEAT);
+                            }
+                        });
+                    } catch (RejectedExecutionException e){
+                        // the socket is being closed
+                    }
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancel the heartbeat check, if any. Does not take the lock.
+     */
+    private void _stopHeartbeat(){
+        ScheduledFuture<?> task = heartbeatTask;
+        if (task != null){
+            task.cancel(false);
+        }
+    }
+
+
+    /**
+     * Read lines from the reader into a reusable buffer until the end of
+     * the stream, and pass each line to the listener with surrounding
+     * whitespace removed.
+     *
+     * Should only be executed from the background thread.
+     */
+    private void _readLines(Reader in) throws IOException{
+        SocketWrapperBufferListener bufferListener = null;
+        if (listener instanceof SocketWrapperBufferListener){
+            bufferListener = (SocketWrapperBufferListener) listener;
+        }
+
+        char[] readBuffer = new char[READ_BUFFER_SIZE];
+        char[] line = new char[READ_BUFFER_SIZE];
+        int lineLength = 0;
+
+        for (int n = in.read(readBuffer); n != -1; n = in.read(readBuffer)){
+            lastReadTime = System.nanoTime();
+            FlightEvent event = READ_EVENT.begin();
+            int lines = 0;
+            int start = 0;
+            for (int i=0; i<=n; i++){
+                if (i < n && readBuffer[i] != '\n'){
+                    continue;
+                }
+
+                // append readBuffer[start, i) to the line
+                int count = i - start;
+                if (lineLength + count > maxLineLength){
+                    throw new IOException("Line exceeds " + maxLineLength + " characters");
+                }
+                if (lineLength + count > line.length){
+                    line = Arrays.copyOf(line, Math.min(maxLineLength, Math.max(line.length*2, lineLength + count)));
+                }
+                System.arraycopy(readBuffer, start, line, lineLength, count);
+                lineLength += count;
+                start = i + 1;
+
+                if (i == n){
+                    // the rest of the line has not arrived yet
+                    break;
+                }
+
+                // trim whitespace (including '\r') from both ends
+                int offset = 0;
+                int length = lineLength;
+                while (length > 0 && line[offset] <= ' '){
+                    offset++;
+                    length--;
+                }
+                while (length > 0 && line[offset + length - 1] <= ' '){
+                    length--;
+                }
+
+                if (length == 2 && line[offset] == HEARTBEAT.charAt(0) && line[offset+1] == HEARTBEAT.charAt(1)){
+                    // HEARTBEAT: only refreshes lastReadTime
+                    lineLength = 0;
+                    continue;
+                }
+                lines++;
+
+                if (debug){
+                    System.out.println("receiving: " + new String(line, offset, Math.min(length, 100)));
+                }
+                if (bufferListener != null){
+                    bufferListener.onReadLine(line, offset, length);
+                } else {
+                    listener.onReadLine(new String(line, offset, length));
+                }
+                lineLength = 0;
+            }
+
+            if (event.isEnabled()){
+                event.set(0, String.valueOf(socket.getRemoteSocketAddress()));
+                event.set(1, n);
+                event.set(2, lines);
+                event.commit();
+            }
+        }
+    }
 
     /**
-     * Write a string to the socket. A newline character is
-     * automatically appended to the string.
+     * Write a string to the socket and flush it, along with any
+     * previously queued lines. A newline character is automatically
+     * appended to the string.
      *
      * Listener must not be null. In case of failure, the
      *      "onWriteError" function of the listener is executed.
@@ -110,23 +431,171 @@ public class SocketWrapper{
     public synchronized void writeLine(String line){
         assert listener != null;
 
+        if (_bufferLine(line)){
+            flush();
+        }
+    }
+
+    /**
+     * Queue a string to be written to the socket without flushing it.
+     * A newline character is automatically appended to the string.
+     *
+     * The line is sent on the next call to flush() or writeLine(), or
+     * automatically according to the flush policy.
+     *
+     * Listener must not be null. In case of failure, the
+     *      "onWriteError" function of the listener is executed.
+     *
+     * @param line a single-line string to write to the socket
+     */
+    public synchronized void bufferLine(String line){
+        assert listener != null;
+
+        if (_bufferLine(line)){
+            _scheduleFlush();
+        }
+    }
+
+    /**
+     * Queue the characters buffer[offset, offset+length) as a line to be
+     * written to the socket, without flushing it. Behaves exactly like
+     * bufferLine(String), but does not require a String to be built.
+     *
+     * @param buffer characters of a single line
+     * @param offset index of the first character of the line
+     * @param length number of characters in the line
+     */
+    public synchronized void bufferLine(char[] buffer, int offset, int length){
+        assert listener != null;
+
+        try {
+            if (debug){
+                System.out.println("sending: " + new String(buffer, offset, Math.min(length, 100)));
+            }
+            _ensureWriter();
+            out.write(buffer, offset, length);
+            out.write('\n');
+            pendingChars += length + 1;
+        } catch (IOException e){
+            listener.onWriteError(e);
+            return;
+        }
+        _scheduleFlush();
+    }
+
+    /**
+     * Send all queued lines to the socket.
+     *
+     * Listener must not be null. In case of failure, the
+     *      "onWriteError" function of the listener is executed.
+     */
+    public synchronized void flush(){
+        assert listener != null;
+
+        IOException e = _flush();
+        if (e != null){
+            listener.onWriteError(e);
+        }
+    }
+
+    /**
+     * Append the line to the output buffer.
+     *
+     * @return false if the write failed (onWriteError has been executed)
+     */
+    private synchronized boolean _bufferLine(String line){
         try {
             if (debug){
                 System.out.println("sending: " + line.substring(0, Math.min(line.length(), 100)));
             }
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            out.println(line);
+            _ensureWriter();
+            out.write(line);
+            out.write('\n');
+            pendingChars += line.length() + 1;
+            return true;
         } catch (IOException e){
             listener.onWriteError(e);
+            return false;
+        }
+    }
+
+    /**
+     * Flush now if more than flushThreshold characters are pending,
+     * otherwise make sure that a delayed flush is scheduled.
+     */
+    private synchronized void _scheduleFlush(){
+        if (pendingChars >= flushThreshold){
+            flush();
+        } else if (!flushScheduled){
+            flushScheduled = true;
+            try {
+                writer.schedule(new Runnable(){
+                    public void run(){
+                        IOException e = _flush();
+                        if (e != null){
+                            // called without holding the lock, because the
+                            // listener may need to lock other objects
+                            listener.onWriteError(e);
+                        }
+                    }
+                }, flushDelay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e){
+                // the writer has been shut down, so flush on this thread
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Create the persistent writer if it does not exist yet.
+     */
+    private synchronized void _ensureWriter() throws IOException{
+        if (out == null){
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()), WRITE_BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Flush the output buffer.
+     *
+     * @return the exception raised while flushing, or null on success
+     */
+    private synchronized IOException _flush(){
+        flushScheduled = false;
+        if (out == null || pendingChars == 0){
+            return null;
+        }
+        int chars = pendingChars;
+        pendingChars = 0;
+        long start = System.nanoTime();
+        FlightEvent event = WRITE_EVENT.begin();
+        try {
+            out.flush();
+            lastWriteTime = System.nanoTime();
+            if (event.isEnabled()){
+                event.set(0, String.valueOf(socket.getRemoteSocketAddress()));
+                event.set(1, chars);
+                event.commit();
+            }
+            if (metrics != null){
+                metrics.onFlush(chars, lastWriteTime - start);
+            }
+            return null;
+        } catch (IOException e){
+            return e;
         }
     }
 
 
     /**
-     * Closes the underlying socket if still open. This
-     * will trigger future reads/writes to fail.
+     * Flushes any queued lines and closes the underlying socket
+     * if still open. This will trigger future reads/writes to fail.
      */
     public synchronized void close(){
+        _stopHeartbeat();
+        writer.shutdown();
+        // best effort: the socket is being closed anyway
+        _flush();
         try{
             socket.close();
         } catch (IOException e){
@@ -0,0 +1,29 @@
+package common;
+
+/**
+ * A SocketWrapperListener that receives lines directly from the
+ * SocketWrapper's reusable read buffer, so that no String has to be
+ * allocated for every line that arrives.
+ *
+ * If the listener of a SocketWrapper implements this interface, the
+ * SocketWrapper calls onReadLine(char[], int, int) instead of
+ * onReadLine(String).
+ *
+ * Thread safety:
+ *      Public interface may or may not be thread safe.
+ */
+public interface SocketWrapperBufferListener extends SocketWrapperListener{
+
+    /**
+     * This function gets executed for every line that
+     * gets read by the socket.
+     *
+     * The buffer is reused for the next line, so its contents are only
+     * valid until this function returns.
+     *
+     * @param buffer characters of a single line without a trailing newline
+     * @param offset index of the first character of the line
+     * @param length number of characters in the line
+     */
+    public void onReadLine(char[] buffer, int offset, int length);
+}
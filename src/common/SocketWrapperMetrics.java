@@ -0,0 +1,28 @@
+package common;
+
+/**
+ * Receives measurements of the traffic of a SocketWrapper.
+ *
+ * onFlush is executed from the thread that flushes the output, while
+ * holding the lock of the SocketWrapper, so it must be fast and must not
+ * call the SocketWrapper. onFinish is executed once from the background
+ * thread, after the listener's onReadFinish.
+ *
+ * Thread safety:
+ *      Must be thread safe.
+ */
+public interface SocketWrapperMetrics {
+
+    /**
+     * This function gets executed every time queued lines are sent.
+     *
+     * @param chars the number of characters that were sent
+     * @param nanos the time that sending them took, in nanoseconds
+     */
+    public void onFlush(int chars, long nanos);
+
+    /**
+     * This function gets executed when the SocketWrapper stops reading.
+     */
+    public void onFinish();
+}
@@ -0,0 +1,89 @@
+package common;
+
+/**
+ * Immutable, thread safe horizontal run of pixels, from (x1,y) to (x2,y)
+ * inclusive.
+ *
+ * Rep invariant:
+ *      x1 <= x2
+ *
+ * Thread safety:
+ *      It is completely immutable and threadsafe.
+ */
+public class Span {
+    private final int y;
+    private final int x1;
+    private final int x2;
+
+    /**
+     * Construct with the given arguments.
+     *
+     * @param y: y coordinate of the run
+     * @param x1: x coordinate of the first pixel
+     * @param x2: x coordinate of the last pixel, not less than x1
+     */
+    public Span(int y, int x1, int x2){
+        assert x1 <= x2;
+        this.y = y;
+        this.x1 = x1;
+        this.x2 = x2;
+    }
+
+    /**
+     * @return y coordinate of the run
+     */
+    public int getY(){
+        return y;
+    }
+
+    /**
+     * @return x coordinate of the first pixel
+     */
+    public int getX1(){
+        return x1;
+    }
+
+    /**
+     * @return x coordinate of the last pixel
+     */
+    public int getX2(){
+        return x2;
+    }
+
+    /**
+     * @return number of pixels in the run
+     */
+    public int getLength(){
+        return x2 - x1 + 1;
+    }
+
+    /**
+     * Equality
+     *
+     * @return true if the coordinates are equal
+     */
+    public boolean equals(Object obj){
+        if (obj == null)
+            return false;
+        if (obj.getClass() != this.getClass())
+            return false;
+        Span that = (Span) obj;
+        return this.y == that.y &&
+            this.x1 == that.x1 &&
+            this.x2 == that.x2;
+    }
+
+    /**
+     * Hash code
+     *
+     * @return integer hash code
+     */
+    public int hashCode(){
+        return this.y*123 + this.x1*6789 + this.x2*101;
+    }
+
+
+    public String toString(){
+        return "Span(" + y + "," + x1 + "-" + x2 + ")";
+    }
+}
@@ -0,0 +1,166 @@
+package common;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A store of the pixel arrays of the tiles of all whiteboards in the
+ * process, keyed by their content, so that tiles with the same pixels
+ * (most of all blank ones) are stored once however many boards have
+ * them. Whiteboard.dedupTiles() replaces the arrays of the tiles of a
+ * board with the stored arrays that have the same content, and marks
+ * them as shared, so that they are copied when the board writes to them.
+ *
+ * Arrays are found by a hash of their content, and compared in full, so
+ * two arrays are only stored once if they are equal. The store only
+ * holds weak references to the arrays, so an array is freed once no board
+ * uses it, and its entry is dropped by the next call.
+ *
+ * Rep invariant:
+ *      - every reference in tiles is in the list of the hash of the
+ *        content of its array, and no two arrays that are still
+ *        referenced are equal
+ *      - the arrays in the store are never written to
+ *      - tileCount and bytes are the number and total size of the arrays
+ *        whose references have not been dropped yet
+ *
+ * Thread safety:
+ *      All methods are static and synchronized on the class.
+ */
+public class TileStore {
+
+    /**
+     * A weak reference to a stored array, with the hash that it is
+     * stored under.
+     */
+    private static class TileRef extends WeakReference<Object> {
+        final int hash;
+        final int bytes;
+
+        TileRef(Object tile, int hash, int bytes){
+            super(tile, cleared);
+            this.hash = hash;
+            this.bytes = bytes;
+        }
+    }
+
+    // the references to the stored arrays, by the hash of their content
+    private static final Map<Integer, List<TileRef>> tiles = new HashMap<Integer, List<TileRef>>();
+    // the references whose arrays have been freed
+    private static final ReferenceQueue<Object> cleared = new ReferenceQueue<Object>();
+    private static long tileCount;
+    private static long bytes;
+    // the number of arrays that were replaced by an equal stored array
+    private static long deduplicated;
+
+    private TileStore(){
+    }
+
+    /**
+     * Return the stored array with the same pixels as the tile, storing
+     * the tile if there is none. The caller must not write to the
+     * returned array from now on, nor to the tile if it was stored.
+     * @param tile: the palette indices of the pixels of a tile
+     * @return an array equal to the tile
+     */
+    public static synchronized byte[] intern(byte[] tile){
+        return (byte[]) _intern(tile, Arrays.hashCode(tile), tile.length);
+    }
+
+    /**
+     * Return the stored array with the same pixels as the tile, storing
+     * the tile if there is none. The caller must not write to the
+     * returned array from now on, nor to the tile if it was stored.
+     * @param tile: the RGB values of the pixels of a tile
+     * @return an array equal to the tile
+     */
+    public static synchronized int[] intern(int[] tile){
+        return (int[]) _intern(tile, Arrays.hashCode(tile), tile.length * 4);
+    }
+
+    /**
+     * @return the number of arrays in the store
+     */
+    public static synchronized long getTileCount(){
+        _purge();
+        return tileCount;
+    }
+
+    /**
+     * @return the total size in bytes of the pixels of the arrays in the
+     *      store
+     */
+    public static synchronized long getBytes(){
+        _purge();
+        return bytes;
+    }
+
+    /**
+     * @return the number of times that intern() returned a stored array
+     *      instead of the array that it was given, each of which saved
+     *      the memory of one tile for as long as the board keeps it
+     */
+    public static synchronized long getDeduplicatedCount(){
+        return deduplicated;
+    }
+
+    /**
+     * Find the stored array equal to the tile, or store the tile.
+     */
+    private static Object _intern(Object tile, int hash, int size){
+        _purge();
+        List<TileRef> refs = tiles.get(hash);
+        if (refs == null){
+            refs = new ArrayList<TileRef>(1);
+            tiles.put(hash, refs);
+        }
+        for (TileRef ref: refs){
+            Object stored = ref.get();
+            if (stored != null && _equal(stored, tile)){
+                if (stored != tile){
+                    deduplicated++;
+                }
+                return stored;
+            }
+        }
+        refs.add(new TileRef(tile, hash, size));
+        tileCount++;
+        bytes += size;
+        return tile;
+    }
+
+    /**
+     * @return true if the arrays are of the same type and have the same
+     *      content
+     */
+    private static boolean _equal(Object a, Object b){
+        if (a instanceof byte[] && b instanceof byte[]){
+            return Arrays.equals((byte[]) a, (byte[]) b);
+        }
+        if (a instanceof int[] && b instanceof int[]){
+            return Arrays.equals((int[]) a, (int[]) b);
+        }
+        return false;
+    }
+
+    /**
+     * Drop the references to the arrays that have been freed.
+     */
+    private static void _purge(){
+        TileRef ref;
+        while ((ref = (TileRef) cleared.poll()) != null){
+            List<TileRef> refs = tiles.get(ref.hash);
+            refs.remove(ref);
+            if (refs.isEmpty()){
+                tiles.remove(ref.hash);
+            }
+            tileCount--;
+            bytes -= ref.bytes;
+        }
+    }
+}
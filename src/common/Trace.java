@@ -0,0 +1,47 @@
+package common;
+
+/**
+ * Immutable, thread safe identifier of a sampled stroke, together with the
+ * time at which the message that carries it was sent or received on the
+ * local machine.
+ *
+ * Timestamps are System.nanoTime() values, so they may only be compared
+ * with other timestamps taken in the same process.
+ *
+ * Thread safety:
+ *      It is completely immutable and threadsafe.
+ */
+public class Trace {
+    private final long id;
+    private final long nanos;
+
+    /**
+     * Construct with the given arguments.
+     *
+     * @param id identifier of the traced stroke, chosen by the client
+     *      that drew it
+     * @param nanos System.nanoTime() when the message was sent or received
+     */
+    public Trace(long id, long nanos){
+        this.id = id;
+        this.nanos = nanos;
+    }
+
+    /**
+     * Get the identifier of the traced stroke.
+     *
+     * @return the identifier
+     */
+    public long getID(){
+        return id;
+    }
+
+    /**
+     * Get the time at which the message was sent or received.
+     *
+     * @return a System.nanoTime() value
+     */
+    public long getNanos(){
+        return nanos;
+    }
+}
@@ -2,43 +2,526 @@ package common;
 
 import java.awt.image.BufferedImage;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 
 /**
  * A two-dimensional bitmap of pixels representing an image.
  *
  * The lower left-hand corner is at the (0,0) index by convention
- * (standard cartesian coordinates).
+ * (standard cartesian coordinates). Boards are WIDTH by HEIGHT pixels
+ * unless they are created with another size, up to MAX_WIDTH by
+ * MAX_HEIGHT; the size of a board never changes.
+ *
+ * Boards only use a few colors, so the pixels are stored as one byte
+ * each, indexing into a palette of up to MAX_PALETTE_SIZE colors that
+ * grows as new colors are drawn. When the palette is full, the colors
+ * that are no longer on the board are dropped from it, and if it is still
+ * full, the board falls back to storing the RGB value of every pixel.
+ *
+ * The board is divided into tiles of TILE_SIZE pixels square, and the
+ * pixels of each tile are stored in an array of their own. Copies of a
+ * board share the arrays of its tiles, and a board copies the array of a
+ * shared tile only when it writes to it (copy on write), so that copying
+ * a board costs little until the copies diverge. New boards share the
+ * array of a white tile, and dedupTiles() replaces the arrays of the
+ * tiles that the board does not share with the arrays of equal tiles of
+ * any board in the TileStore, so that boards that are mostly blank, or
+ * have the same background, store each distinct tile once.
+ *
+ * Tiles that have not been written to for a while can be compressed
+ * (compressTiles()) into a run-length encoding, which is a few bytes for
+ * the large areas of one color that boards mostly have. A compressed
+ * tile is decompressed transparently the next time that it is read or
+ * written to, into the array of an equal tile in the TileStore, so that
+ * copies and deduplicated tiles share their arrays again once they are
+ * decompressed.
+ *
+ * The board keeps a hash tree of its pixels: a hash per tile, per row of tiles and for the
+ * whole board. The hash of a pixel depends on its position and its RGB
+ * value, and the hash of a tile, a row or the board is the sum of the
+ * hashes of its pixels, so every write updates the hashes of its tile,
+ * row and board in constant time, and boards with the same pixels have
+ * the same hashes whatever their palettes are. diffTiles() compares two
+ * boards by their hashes, and equals() and hashCode() use the hash of
+ * the board.
+ *
+ * Rep invariant:
+ *      - exactly one of indices and rgbs is not null
+ *      - a tile is compressed iff its entry of compressed is not null,
+ *        in which case its array in indices or rgbs is null, it is not
+ *        marked as shared, and its entry of compressed is the encoding of
+ *        its pixels (see _encode()), which is never written to
+ *      - compressedTiles and compressedBytes are the number of
+ *        compressed tiles and the total length of their encodings
+ *      - the array of a tile is only shared with other boards (or
+ *        the TileStore) if the tile is marked as shared, and the arrays
+ *        of shared tiles are never written to
+ *      - while the board is indexed, the first paletteSize entries of the
+ *        palette are distinct, paletteIndices maps each of them to its
+ *        index, and every pixel is an index below paletteSize
+ *      - paletteRGB holds the RGB values of the first paletteSize entries
+ *        of the palette
+ *      - tileHashes, rowHashes and hash are the sums of _pixelHash() of
+ *        the pixels of each tile, each row of tiles and the board
  *
  * Thread safety:
  *      Not thread safe. Multi-threaded access to this object must be
- *          protected by a lock.
+ *          protected by a lock, also for reads, which may decompress a
+ *          tile. Copying a board marks the tiles of both
+ *          boards as shared, so it needs the lock of the board that is
+ *          copied; the copies may then be used by different threads, since
+ *          the shared arrays are never written to.
  */
 public class Whiteboard {
+    // Size of the boards that are created without a size
     public static final int WIDTH = 800;
     public static final int HEIGHT = 600;
 
-    private final Color[][] board = new Color[WIDTH][HEIGHT];
+    // Largest size of a board, so that packed coordinates (y*width + x)
+    // of any board are below MAX_WIDTH*MAX_HEIGHT and fit in an int
+    public static final int MAX_WIDTH = 4096;
+    public static final int MAX_HEIGHT = 4096;
+
+    // Widest brush that lines may be drawn with, so that the runs of a
+    // line stay small enough to compute while the board is locked
+    public static final int MAX_BRUSH_WIDTH = 256;
+
+    // Maximum number of colors of an indexed board
+    public static final int MAX_PALETTE_SIZE = 256;
+
+    // Side length of the tiles of the hash tree, and the number of tiles
+    // across and up a board of the default size; the last row and column
+    // of tiles are cut off
+    public static final int TILE_SIZE = 32;
+    public static final int TILES_X = (WIDTH + TILE_SIZE - 1) / TILE_SIZE;
+    public static final int TILES_Y = (HEIGHT + TILE_SIZE - 1) / TILE_SIZE;
+
+    // hash tree of a blank board of the default size
+    private static final long[] WHITE_TILE_HASHES = new long[TILES_X*TILES_Y];
+    private static final long[] WHITE_ROW_HASHES = new long[TILES_Y];
+    private static final long WHITE_HASH = _blankHashes(WIDTH, HEIGHT, WHITE_TILE_HASHES, WHITE_ROW_HASHES);
+    // pixels of a blank tile, which is the first color of the palette;
+    // it stays in the TileStore, since it is always referenced
+    private static final byte[] WHITE_TILE = TileStore.intern(new byte[TILE_SIZE*TILE_SIZE]);
+
+    // size of the board, and its number of tiles across and up
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    // pixels of each tile, packed as (y % TILE_SIZE)*TILE_SIZE + x % TILE_SIZE
+    // (see _offset()), as indices into the palette while the board is
+    // indexed, or as RGB values once it has overflowed
+    private byte[][] indices;
+    private int[][] rgbs;
+    // whether the array of each tile may be shared with other boards
+    private final boolean[] shared;
+    // run-length encoded pixels of the compressed tiles
+    private byte[][] compressed;
+    private int compressedTiles;
+    private long compressedBytes;
+    // number of calls of compressTiles() since each tile was written to
+    private final int[] tileAges;
+    private final Color[] palette = new Color[MAX_PALETTE_SIZE];
+    private final Map<Color, Integer> paletteIndices = new HashMap<Color, Integer>();
+    private final int[] paletteRGB = new int[MAX_PALETTE_SIZE];
+    private int paletteSize;
+    // hash tree of the pixels, see _pixelHash()
+    private final long[] tileHashes;
+    private final long[] rowHashes;
+    private long hash;
+    // stack of packed (y*width + x) seeds of fill(), kept between calls
+    // so that filling does not allocate once it has grown large enough
+    private int[] fillStack = new int[256];
 
     /**
-     * Construct a blank (white) board
+     * Construct a blank (white) board of the default size, WIDTH by HEIGHT
      */
     public Whiteboard(){
+        this(WIDTH, HEIGHT);
+    }
+
+    /**
+     * Construct a blank (white) board of the given size
+     * @param width: the number of columns, from 1 to MAX_WIDTH
+     * @param height: the number of rows, from 1 to MAX_HEIGHT
+     * @throws IllegalArgumentException if the size is out of range
+     */
+    public Whiteboard(int width, int height){
+        if (!isValidSize(width, height)){
+            throw new IllegalArgumentException("Invalid board size: " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        indices = new byte[tilesX*tilesY][];
+        shared = new boolean[tilesX*tilesY];
+        compressed = new byte[tilesX*tilesY][];
+        tileAges = new int[tilesX*tilesY];
+        if (width == WIDTH && height == HEIGHT){
+            tileHashes = WHITE_TILE_HASHES.clone();
+            rowHashes = WHITE_ROW_HASHES.clone();
+            hash = WHITE_HASH;
+        } else {
+            tileHashes = new long[tilesX*tilesY];
+            rowHashes = new long[tilesY];
+            hash = _blankHashes(width, height, tileHashes, rowHashes);
+        }
+        Arrays.fill(indices, WHITE_TILE);
+        Arrays.fill(shared, true);
         initializeBoard();
     }
 
+    /**
+     * Construct a copy of the board, with the same size, pixels and
+     * palette. The copy shares the tiles of the other board until either
+     * of them writes to a tile.
+     * @param other: the board to copy
+     */
+    public Whiteboard(Whiteboard other){
+        width = other.width;
+        height = other.height;
+        tilesX = other.tilesX;
+        tilesY = other.tilesY;
+        shared = new boolean[tilesX*tilesY];
+        tileAges = new int[tilesX*tilesY];
+        tileHashes = other.tileHashes.clone();
+        rowHashes = other.rowHashes.clone();
+        hash = other.hash;
+        if (other.indices != null){
+            indices = other.indices.clone();
+        } else {
+            indices = null;
+            rgbs = other.rgbs.clone();
+        }
+        // the encodings of compressed tiles are never written to either
+        compressed = other.compressed.clone();
+        compressedTiles = other.compressedTiles;
+        compressedBytes = other.compressedBytes;
+        for (int tile=0; tile<compressed.length; tile++){
+            shared[tile] = compressed[tile] == null;
+            other.shared[tile] = shared[tile];
+        }
+        System.arraycopy(other.palette, 0, palette, 0, MAX_PALETTE_SIZE);
+        System.arraycopy(other.paletteRGB, 0, paletteRGB, 0, MAX_PALETTE_SIZE);
+        paletteIndices.putAll(other.paletteIndices);
+        paletteSize = other.paletteSize;
+    }
+
+    /**
+     * @return true if a board may have the given size
+     */
+    public static boolean isValidSize(int width, int height){
+        return width >= 1 && width <= MAX_WIDTH && height >= 1 && height <= MAX_HEIGHT;
+    }
+
+    /**
+     * @return true if lines may be drawn with a brush of the given width
+     */
+    public static boolean isValidBrushWidth(int width){
+        return width >= 0 && width <= MAX_BRUSH_WIDTH;
+    }
+
+    /**
+     * Compute the hash tree of a blank board of the given size.
+     * @param tileHashes: set to the hashes of the tiles
+     * @param rowHashes: set to the hashes of the rows of tiles
+     * @return the hash of the board
+     */
+    private static long _blankHashes(int width, int height, long[] tileHashes, long[] rowHashes){
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        long sum = 0;
+        for (int i = 0; i < width*height; i ++){
+            long h = _pixelHash(i, 0xffffff);
+            int tile = (i / width / TILE_SIZE)*tilesX + (i % width) / TILE_SIZE;
+            tileHashes[tile] += h;
+            rowHashes[tile / tilesX] += h;
+            sum += h;
+        }
+        return sum;
+    }
+
+    /**
+     * @return the number of columns of the board
+     */
+    public int getWidth(){
+        return width;
+    }
+
+    /**
+     * @return the number of rows of the board
+     */
+    public int getHeight(){
+        return height;
+    }
+
+    /**
+     * @return the number of columns of tiles of the board
+     */
+    public int getTilesX(){
+        return tilesX;
+    }
+
+    /**
+     * @return the number of rows of tiles of the board
+     */
+    public int getTilesY(){
+        return tilesY;
+    }
+
     /**
      * Set all colors in the board to white
      */
     private void initializeBoard(){
-        for (int i = 0; i < WIDTH; i ++){
-            for (int j = 0; j < HEIGHT; j ++){
-                board[i][j] = new Color(); //the default color is white
+        //the default color is white, which is the first color of the palette
+        _addToPalette(new Color());
+    }
+
+    /**
+     * Return the stored value of a pixel, which is a palette index while
+     * the board is indexed and an RGB value otherwise.
+     * @param i: the packed coordinates (y*width + x) of the pixel
+     */
+    private int _key(int i){
+        int tile = _tile(i);
+        if (compressed[tile] != null){
+            _decompress(tile);
+        }
+        return indices != null ? indices[tile][_offset(i)] & 0xff : rgbs[tile][_offset(i)];
+    }
+
+    /**
+     * Set the stored value of a pixel, as returned by _keyOf(), and
+     * update the hash tree.
+     * @param i: the packed coordinates (y*width + x) of the pixel
+     */
+    private void _setKey(int i, int key){
+        int oldKey = _key(i);
+        if (oldKey == key){
+            return;
+        }
+        int tile = _tile(i);
+        _unshare(tile);
+        tileAges[tile] = 0;
+        if (indices != null){
+            indices[tile][_offset(i)] = (byte) key;
+        } else {
+            rgbs[tile][_offset(i)] = key;
+        }
+        _addToHashes(tile, _pixelHash(i, _rgbOfKey(key)) - _pixelHash(i, _rgbOfKey(oldKey)));
+    }
+
+    /**
+     * Set the stored value of the pixels from x1 to x2 of a row, which
+     * must be within one tile, and update the hash tree.
+     * @param row: the packed coordinates (y*width) of the start of the row
+     */
+    private void _fillKeys(int row, int x1, int x2, int key){
+        long delta = 0;
+        boolean changed = false;
+        int newRGB = _rgbOfKey(key);
+        for (int i = row + x1; i <= row + x2; i ++){
+            int oldKey = _key(i);
+            if (oldKey != key){
+                delta += _pixelHash(i, newRGB) - _pixelHash(i, _rgbOfKey(oldKey));
+                changed = true;
+            }
+        }
+        if (!changed){
+            // a shared tile stays shared
+            return;
+        }
+        int tile = _tile(row + x1);
+        int offset = _offset(row + x1);
+        _unshare(tile);
+        tileAges[tile] = 0;
+        if (indices != null){
+            Arrays.fill(indices[tile], offset, offset + x2 - x1 + 1, (byte) key);
+        } else {
+            Arrays.fill(rgbs[tile], offset, offset + x2 - x1 + 1, key);
+        }
+        _addToHashes(tile, delta);
+    }
+
+    /**
+     * Copy the array of a tile before it is written to, if it may be
+     * shared with other boards.
+     */
+    private void _unshare(int tile){
+        if (!shared[tile]){
+            return;
+        }
+        if (indices != null){
+            indices[tile] = indices[tile].clone();
+        } else {
+            rgbs[tile] = rgbs[tile].clone();
+        }
+        shared[tile] = false;
+    }
+
+    /**
+     * Add the change of the hash of a pixel to the hashes of its tile,
+     * its row of tiles and the board.
+     */
+    private void _addToHashes(int tile, long delta){
+        tileHashes[tile] += delta;
+        rowHashes[tile / tilesX] += delta;
+        hash += delta;
+    }
+
+    /**
+     * @return the index of the tile of the packed coordinates of a pixel
+     */
+    private int _tile(int i){
+        return (i / width / TILE_SIZE)*tilesX + (i % width) / TILE_SIZE;
+    }
+
+    /**
+     * @return the index in the array of its tile of the packed coordinates
+     *      of a pixel
+     */
+    private int _offset(int i){
+        return (i / width % TILE_SIZE)*TILE_SIZE + i % width % TILE_SIZE;
+    }
+
+    /**
+     * Return the hash of a pixel with the given color, which is a mix of
+     * its position and the RGB value of the color, so that the sums of
+     * these hashes are unlikely to be equal for different pixels.
+     * @param i: the packed coordinates (y*width + x) of the pixel
+     * @param rgb: the packed RGB value of the color of the pixel
+     */
+    private static long _pixelHash(int i, int rgb){
+        long h = (((long) i << 24) | rgb) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * @return the RGB value of a stored value of a pixel
+     */
+    private int _rgbOfKey(int key){
+        return indices != null ? paletteRGB[key] : key;
+    }
+
+    /**
+     * Return the value that pixels of the color are stored as, adding it
+     * to the palette if needed. This may make the board fall back to RGB
+     * values, so it must be called before reading keys that are compared
+     * with the result.
+     */
+    private int _keyOf(Color color){
+        if (indices != null){
+            Integer index = paletteIndices.get(color);
+            if (index != null){
+                return index;
+            }
+            if (paletteSize == MAX_PALETTE_SIZE){
+                _compactPalette();
+            }
+            if (paletteSize < MAX_PALETTE_SIZE){
+                return _addToPalette(color);
+            }
+            _useRGB();
+        }
+        return _rgb(color);
+    }
+
+    /**
+     * Add a color to the end of the palette, which must not be full.
+     * @return the index of the color
+     */
+    private int _addToPalette(Color color){
+        assert paletteSize < MAX_PALETTE_SIZE;
+        palette[paletteSize] = color;
+        paletteRGB[paletteSize] = _rgb(color);
+        paletteIndices.put(color, paletteSize);
+        return paletteSize++;
+    }
+
+    /**
+     * Drop the colors that no pixel has from the palette, renumbering the
+     * pixels.
+     */
+    private void _compactPalette(){
+        boolean[] used = new boolean[MAX_PALETTE_SIZE];
+        for (int i=0; i<width*height; i++){
+            used[_key(i)] = true;
+        }
+        byte[] renumbered = new byte[MAX_PALETTE_SIZE];
+        Color[] old = Arrays.copyOf(palette, paletteSize);
+        Arrays.fill(palette, null);
+        paletteIndices.clear();
+        paletteSize = 0;
+        for (int i=0; i<old.length; i++){
+            if (used[i]){
+                renumbered[i] = (byte) _addToPalette(old[i]);
             }
         }
+        for (int tile=0; tile<indices.length; tile++){
+            // shared tiles whose indices stay the same stay shared
+            byte[] pixels = indices[tile];
+            boolean changes = false;
+            for (byte index: pixels){
+                changes = changes || renumbered[index & 0xff] != index;
+            }
+            if (changes){
+                _unshare(tile);
+                pixels = indices[tile];
+                for (int i=0; i<pixels.length; i++){
+                    pixels[i] = renumbered[pixels[i] & 0xff];
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop indexing the board, and store the RGB value of every pixel.
+     */
+    private void _useRGB(){
+        for (int tile=0; tile<compressed.length; tile++){
+            if (compressed[tile] != null){
+                _decompress(tile);
+            }
+        }
+        rgbs = new int[indices.length][];
+        for (int tile=0; tile<indices.length; tile++){
+            byte[] pixels = indices[tile];
+            rgbs[tile] = new int[pixels.length];
+            for (int i=0; i<pixels.length; i++){
+                rgbs[tile][i] = paletteRGB[pixels[i] & 0xff];
+            }
+        }
+        Arrays.fill(shared, false);
+        indices = null;
+        Arrays.fill(palette, null);
+        paletteIndices.clear();
+        paletteSize = 0;
+    }
+
+    /**
+     * @return the color packed into an RGB value
+     */
+    private static int _rgb(Color c){
+        return ((c.getRed()&0x0ff)<<16)|((c.getGreen()&0x0ff)<<8)|(c.getBlue()&0x0ff);
+    }
+
+    /**
+     * @return the color of a stored value of a pixel
+     */
+    private Color _color(int key){
+        if (indices != null){
+            return palette[key];
+        }
+        return Color.valueOf((key >> 16) & 0xff, (key >> 8) & 0xff, key & 0xff);
     }
 
     /**
@@ -56,23 +539,171 @@ public class Whiteboard {
      * @return an array of all the points in the modified line segment.
      */
     public List<Point> drawLine(Point point1, Point point2, Color color, int width){
-        assert checkPointInBounds(point1);
-        assert checkPointInBounds(point2);
+        return drawPolyline(Arrays.asList(point1, point2), color, width);
+    }
+
+    /**
+     * Draw the line segments between consecutive points with the specified
+     * color, like drawLine() for each segment, but stamping the brush only
+     * once at every position, including the joints where segments meet.
+     *
+     * A single point draws just that point.
+     *
+     * @param points: the points of the polyline, at least one
+     * @param color: the color to make the line
+     * @param width: side length of the square that represents the area of the brush centered at a given
+     * point.
+     * @return the points that were changed, without duplicates
+     */
+    public List<Point> drawPolyline(List<Point> points, Color color, int width){
+        double sideLength = brushSideLength(width);
+
+        // a pixel is only reported by the first stamp that changes it
+        ArrayList<Point> changedPoints = new ArrayList<Point>();
+        for (Point center: polylineCenters(points, sideLength)){
+            changedPoints.addAll(Arrays.asList(drawSquare(center, sideLength, color)));
+        }
+        return changedPoints;
+    }
+
+    /**
+     * Draw the same pixels as drawPolyline(), but rasterize the brush
+     * row by row, and return the runs of pixels that the brush covers
+     * instead of every changed pixel. The pixels of a run all get the
+     * color, so that a thick line is a few runs per row, each of which
+     * can be sent as a single span.
+     *
+     * The runs may include pixels that already had the color.
+     *
+     * @param points: the points of the polyline, at least one
+     * @param color: the color to make the line
+     * @param width: side length of the square that represents the area of the brush centered at a given
+     * point.
+     * @return the runs of pixels covered by the brush, which do not overlap,
+     *      sorted by row and then by x coordinate
+     */
+    public List<Span> drawPolylineSpans(List<Point> points, Color color, int width){
+        List<Span> spans = polylineSpans(points, width);
+        for (Span span: spans){
+            fillSpan(span, color);
+        }
+        return spans;
+    }
 
-        double sideLength = width/2.0;
+    /**
+     * Return the runs of pixels that drawPolylineSpans() would cover,
+     * without drawing them.
+     *
+     * @param points: the points of the polyline, at least one
+     * @param width: side length of the square that represents the area of the brush centered at a given
+     * point, which must be a valid brush width (see isValidBrushWidth())
+     * @return the runs of pixels covered by the brush, which do not overlap,
+     *      sorted by row and then by x coordinate
+     */
+    public List<Span> polylineSpans(List<Point> points, int width){
+        assert isValidBrushWidth(width);
+        double sideLength = brushSideLength(width);
+        // offsets of the first and last row and column of a stamp
+        int low = (int)-sideLength;
+        int high = sideLength == 0 ? 0 : (int)Math.ceil(sideLength) - 1;
+
+        // runs of every stamp, packed as (y*this.width + x1) << 32 | x2 so that
+        // sorting them orders them by row and then by start
+        Set<Point> centers = polylineCenters(points, sideLength);
+        // a stamp has no more rows on the board than the board has
+        long[] runs = new long[centers.size()*Math.min(high - low + 1, height)];
+        int count = 0;
+        for (Point center: centers){
+            int x1 = Math.max(center.getX() + low, 0);
+            int x2 = Math.min(center.getX() + high, this.width - 1);
+            if (x1 > x2){
+                continue;
+            }
+            for (int y = center.getY() + low; y <= center.getY() + high; y ++){
+                if (y >= 0 && y < height){
+                    runs[count++] = ((long)(y*this.width + x1) << 32) | x2;
+                }
+            }
+        }
+        Arrays.sort(runs, 0, count);
+
+        // merge the runs that overlap or touch
+        List<Span> spans = new ArrayList<Span>();
+        int y = -1;
+        int start = 0;
+        int end = -2;
+        for (int i = 0; i < count; i ++){
+            int packed = (int)(runs[i] >>> 32);
+            int runY = packed / this.width;
+            int runX1 = packed % this.width;
+            int runX2 = (int)runs[i];
+            if (runY == y && runX1 <= end + 1){
+                end = Math.max(end, runX2);
+                continue;
+            }
+            if (y >= 0){
+                spans.add(new Span(y, start, end));
+            }
+            y = runY;
+            start = runX1;
+            end = runX2;
+        }
+        if (y >= 0){
+            spans.add(new Span(y, start, end));
+        }
+        return spans;
+    }
+
+    /**
+     * Return half the side length of the brush of the given width, or 0
+     * for a brush that is a single pixel.
+     */
+    private static double brushSideLength(int width){
         if (width == 1){
-            sideLength = 0;
+            return 0;
         }
-        
+        return width/2.0;
+    }
+
+    /**
+     * Return the positions of the brush along the polyline, in order and
+     * without duplicates.
+     */
+    private Set<Point> polylineCenters(List<Point> points, double sideLength){
+        assert !points.isEmpty();
+
+        Set<Point> centers = new LinkedHashSet<Point>();
+        if (points.size() == 1){
+            assert checkPointInBounds(points.get(0));
+            centers.add(points.get(0));
+        }
+        for (int i = 1; i < points.size(); i ++){
+            addLineCenters(points.get(i-1), points.get(i), sideLength, centers);
+        }
+        return centers;
+    }
+
+    /**
+     * Add the positions of the brush for the line segment between and
+     * including point1 and point2.
+     */
+    private void addLineCenters(Point point1, Point point2, double sideLength, Set<Point> centers){
+        assert checkPointInBounds(point1);
+        assert checkPointInBounds(point2);
+
         if (point1.equals(point2)){
             //same point
-            return Arrays.asList(drawSquare(point1, sideLength, color));
+            centers.add(point1);
+            return;
         }
 
         if (point1.getX() == point2.getX()){
             //vertical line
-
-            return  Arrays.asList(drawVerticalLine(point1, point2, color, sideLength));
+            int x = point1.getX();
+            for (int i = Math.min(point1.getY(), point2.getY()); i <= Math.max(point1.getY(), point2.getY()) ; i ++){
+                centers.add(new Point(x, i));
+            }
+            return;
         }
 
         //general case (diagonal or horizontal line)
@@ -85,8 +716,7 @@ public class Whiteboard {
         boolean leftIsBelow = leftPoint.getY() <= rightPoint.getY();
 
         double slope = (double)(rightPoint.getY() - leftPoint.getY())/(rightPoint.getX() - leftPoint.getX());
-        ArrayList<Point> changePoints = new ArrayList<Point>();
-        
+
         int counter = 0;
 
         for (int i = leftPoint.getX(); i <= rightPoint.getX() ; i ++){
@@ -95,8 +725,7 @@ public class Whiteboard {
             if (leftIsBelow){
                 while (y <= (int)(slope*(counter+1)) + leftPoint.getY() && 
                         y <= rightPoint.getY() + Math.ceil(sideLength)){
-                    Point[] squarePoints = drawSquare(new Point(i, y), sideLength, color);
-                    changePoints.addAll(Arrays.asList(squarePoints));
+                    centers.add(new Point(i, y));
                     y++;
                 }
             }
@@ -104,50 +733,12 @@ public class Whiteboard {
             else{
                 while (y >= (int)(slope*(counter+1)) + leftPoint.getY() && 
                         y >= rightPoint.getY() - Math.ceil(sideLength)){
-                    Point[] squarePoints = drawSquare(new Point(i, y), sideLength, color);
-                    changePoints.addAll(Arrays.asList(squarePoints));
+                    centers.add(new Point(i, y));
                     y--;
                 }
             }
             counter ++;
         }
-        
-        return Arrays.asList(removeDuplicates(changePoints));
-    }
-    
-    private Point[] drawVerticalLine(Point point1, Point point2, Color color, double sideLength){
-        ArrayList<Point> changedPoints = new ArrayList<Point>();
-
-        int x = point1.getX();
-        for (int i = Math.min(point1.getY(), point2.getY()); i <= Math.max(point1.getY(), point2.getY()) ; i ++){
-            Point[] newPoints = drawSquare(new Point(x, i), sideLength, color);
-            changedPoints.addAll(Arrays.asList(newPoints));
-        }
-        
-        HashSet<Point> hs = new HashSet<Point>();
-        hs.addAll(changedPoints);
-        ArrayList<Point> noDuplicates = new ArrayList<Point>();
-        noDuplicates.addAll(hs);
-
-        Point[] coloredPoints = new Point[noDuplicates.size()];
-        for (int i = 0; i < noDuplicates.size(); i ++){
-            coloredPoints[i] = noDuplicates.get(i);
-        }
-        
-        return coloredPoints;
-    }
-
-    private Point[] removeDuplicates(ArrayList<Point> changePoints){
-        HashSet<Point> hs = new HashSet<Point>();
-        hs.addAll(changePoints);
-        ArrayList<Point> noDuplicates = new ArrayList<Point>();
-        noDuplicates.addAll(hs);
-
-        Point[] coloredPoints = new Point[noDuplicates.size()];
-        for (int i = 0; i < noDuplicates.size(); i ++){
-            coloredPoints[i] = noDuplicates.get(i);
-        }
-        return coloredPoints;
     }
     
     /**
@@ -164,8 +755,9 @@ public class Whiteboard {
         int x = center.getX();
         int y = center.getY();
 
+        int key = _keyOf(color);
         if (sideLength == 0 && checkPointInBounds(center)){
-            board[x][y] = color;
+            _setKey(y*width + x, key);
             Point[] singlePoint = {center};
             return singlePoint;
         }
@@ -173,9 +765,9 @@ public class Whiteboard {
         for(int i = (int)-sideLength; i < Math.ceil(sideLength); i ++){
             for(int j = (int)-sideLength; j < Math.ceil(sideLength); j ++){
                 if (checkPointInBounds(new Point(x+i, y + j))){
-                    Color oldColor = board[x+i][y+j];
-                    board[x+i][y+j] = color;
-                    if (!color.equals(oldColor)){
+                    int pixel = (y+j)*width + x+i;
+                    if (_key(pixel) != key){
+                        _setKey(pixel, key);
                         changedPoints.add(new Point(x+i, y+j));
                     }
                 }
@@ -189,15 +781,125 @@ public class Whiteboard {
         return coloredPoints;
     }
 
+    /**
+     * Flood fill the area of same-colored pixels that contains the seed
+     * with the specified color, using a scanline fill: every popped seed
+     * is extended to the left and right as far as the area reaches, and
+     * the pixels above and below the run are scanned for new seeds.
+     *
+     * Pixels are adjacent horizontally and vertically. The seeds are kept
+     * on a reused stack, so that filling allocates no more than the
+     * returned spans.
+     *
+     * @param seed: a point of the area to fill
+     * @param color: the color to fill the area with
+     * @return the runs of pixels that were changed, which do not overlap;
+     *      empty if the area already has the color
+     */
+    public List<Span> fill(Point seed, Color color){
+        assert checkPointInBounds(seed);
+
+        List<Span> spans = new ArrayList<Span>();
+        int key = _keyOf(color);
+        int target = _key(seed.getY()*width + seed.getX());
+        if (target == key){
+            return spans;
+        }
+
+        int top = 0;
+        fillStack[top++] = seed.getY()*width + seed.getX();
+        while (top > 0){
+            int packed = fillStack[--top];
+            int y = packed / width;
+            int x = packed % width;
+            int row = y*width;
+            if (_key(packed) != target){
+                // filled since it was pushed
+                continue;
+            }
+
+            int x1 = x;
+            while (x1 > 0 && _key(row + x1-1) == target){
+                x1--;
+            }
+            int x2 = x;
+            while (x2 < width-1 && _key(row + x2+1) == target){
+                x2++;
+            }
+            _fillRow(row, x1, x2, key);
+            spans.add(new Span(y, x1, x2));
+
+            // push one seed per run of the area in the adjacent rows
+            for (int ny=y-1; ny<=y+1; ny+=2){
+                if (ny < 0 || ny >= height){
+                    continue;
+                }
+                boolean inRun = false;
+                for (int i=x1; i<=x2; i++){
+                    boolean inArea = _key(ny*width + i) == target;
+                    if (inArea && !inRun){
+                        if (top == fillStack.length){
+                            fillStack = Arrays.copyOf(fillStack, top*2);
+                        }
+                        fillStack[top++] = ny*width + i;
+                    }
+                    inRun = inArea;
+                }
+            }
+        }
+        return spans;
+    }
+
+    /**
+     * Draw the shape, by filling the spans that it is rasterized into.
+     * @param shape: the shape to draw
+     * @return the runs of pixels of the shape, which do not overlap
+     */
+    public List<Span> drawShape(Shape shape){
+        List<Span> spans = shape.getSpans(width, height);
+        Color color = shape.getColor();
+        for (Span span: spans){
+            fillSpan(span, color);
+        }
+        return spans;
+    }
+
+    /**
+     * Set all pixels of the span to the color. The span must be within
+     * the board's dimensions.
+     * @param span: the run of pixels to color in
+     * @param color: the color the pixels should now have
+     */
+    public void fillSpan(Span span, Color color){
+        int y = span.getY();
+        assert y >= 0 && y < height && span.getX1() >= 0 && span.getX2() < width;
+
+        int key = _keyOf(color);
+        _fillRow(y*width, span.getX1(), span.getX2(), key);
+    }
+
+    /**
+     * Set the stored value of the pixels from x1 to x2 of a row, one
+     * tile at a time.
+     * @param row: the packed coordinates (y*width) of the start of the row
+     */
+    private void _fillRow(int row, int x1, int x2, int key){
+        for (int start = x1; start <= x2; ){
+            int end = Math.min(x2, (start / TILE_SIZE + 1)*TILE_SIZE - 1);
+            _fillKeys(row, start, end, key);
+            start = end + 1;
+        }
+    }
+
     /**
      * Return whether the point falls within the boundary of
-     * a whiteboard.
+     * the whiteboard.
      *
      * @param point the point in question
-     * @return true if the point is inside a Whiteboard boundary
+     * @return true if the point is inside the Whiteboard boundary
      */
-    public static boolean checkPointInBounds(Point point){
-        return point.getX() < WIDTH && point.getX() >= 0 && point.getY() < HEIGHT && point.getY() >= 0;
+    public boolean checkPointInBounds(Point point){
+        return point.getX() < width && point.getX() >= 0 && point.getY() < height && point.getY() >= 0;
     }
 
     /**
@@ -212,7 +914,21 @@ public class Whiteboard {
 
         assert checkPointInBounds(point);
 
-        board[x][y] = color;
+        setPixel(x, y, color);
+    }
+
+    /**
+     * Sets the color at (x, y) to color. The coordinates must be
+     * within the board's dimensions.
+     * @param x: the x coordinate of the point to color in
+     * @param y: the y coordinate of the point to color in
+     * @param color: the color the point should now have
+     */
+    public void setPixel(int x, int y, Color color){
+        assert x >= 0 && x < width && y >= 0 && y < height;
+
+        int key = _keyOf(color);
+        _setKey(y*width + x, key);
     }
 
     /**
@@ -227,7 +943,61 @@ public class Whiteboard {
 
         assert checkPointInBounds(point);
 
-        return board[x][y];
+        return getPixel(x, y);
+    }
+
+    /**
+     * Return the color at (x, y). The coordinates must be within the
+     * board's dimensions
+     * @param x: the x coordinate of the point we want to know the color of
+     * @param y: the y coordinate of the point we want to know the color of
+     * @return the color at (x, y)
+     */
+    public Color getPixel(int x, int y){
+        assert x >= 0 && x < width && y >= 0 && y < height;
+
+        return _color(_key(y*width + x));
+    }
+
+    /**
+     * @return true if the pixels are stored as indices into the palette,
+     *      false if the palette has overflowed
+     */
+    public boolean isIndexed(){
+        return indices != null;
+    }
+
+    /**
+     * @return the number of colors in the palette, 0 if the board is not
+     *      indexed
+     */
+    public int getPaletteSize(){
+        return paletteSize;
+    }
+
+    /**
+     * Return a color of the palette. The board must be indexed.
+     * @param index: the index of the color, below getPaletteSize()
+     * @return the color at that index of the palette
+     */
+    public Color getPaletteColor(int index){
+        assert index >= 0 && index < paletteSize;
+
+        return palette[index];
+    }
+
+    /**
+     * Return the palette index of the color at (x, y). The board must be
+     * indexed, and the coordinates must be within the board's dimensions.
+     * @param x: the x coordinate of the point
+     * @param y: the y coordinate of the point
+     * @return the index of the color at (x, y) in the palette
+     */
+    public int getPaletteIndex(int x, int y){
+        assert indices != null;
+        assert x >= 0 && x < width && y >= 0 && y < height;
+
+        return _key(y*width + x);
     }
 
     /**
@@ -236,9 +1006,9 @@ public class Whiteboard {
      * @return a BufferedImage with the same width and height as the
      * whiteboard, using the predefined type "TYPE_INT_RGB"
      */
-    public static BufferedImage makeBuffer(){
+    public BufferedImage makeBuffer(){
         final int TYPE_INT_RGB = 1; //looked up value in documentation
-        BufferedImage bi = new BufferedImage(WIDTH, HEIGHT, TYPE_INT_RGB);
+        BufferedImage bi = new BufferedImage(width, height, TYPE_INT_RGB);
         return bi;
     }
 
@@ -250,18 +1020,292 @@ public class Whiteboard {
      * the whiteboard
      */
     public void copyPixelData(BufferedImage buffer){
-        for (int i = 0; i < WIDTH; i ++){
-            for (int j = 0; j < HEIGHT; j ++){
-                Color c = board[i][j];
-                int rgb = ((c.getRed()&0x0ff)<<16)|((c.getGreen()&0x0ff)<<8)|(c.getBlue()&0x0ff);
-                buffer.setRGB(i, HEIGHT - j - 1, rgb); //weird indexing because buffer starts from upper left
+        for (int i = 0; i < width; i ++){
+            for (int j = 0; j < height; j ++){
+                int rgb = _rgbOfKey(_key(j*width + i));
+                buffer.setRGB(i, height - j - 1, rgb); //weird indexing because buffer starts from upper left
                 //and we start in bottom left...
             }
         }
     }
 
+    /**
+     * @return the hash of all the pixels of the board, which is the root
+     *      of its hash tree
+     */
+    public long getHash(){
+        return hash;
+    }
+
+    /**
+     * @param tileY: the row of tiles, from 0 to getTilesY() - 1
+     * @return the hash of the pixels of the row of tiles
+     */
+    public long getRowHash(int tileY){
+        assert tileY >= 0 && tileY < tilesY;
+
+        return rowHashes[tileY];
+    }
+
+    /**
+     * @param tileX: the column of the tile, from 0 to getTilesX() - 1
+     * @param tileY: the row of the tile, from 0 to getTilesY() - 1
+     * @return the hash of the pixels of the tile
+     */
+    public long getTileHash(int tileX, int tileY){
+        assert tileX >= 0 && tileX < tilesX && tileY >= 0 && tileY < tilesY;
+
+        return tileHashes[tileY*tilesX + tileX];
+    }
+
+    /**
+     * Replace the arrays of the tiles that this board does not share with
+     * the arrays of equal tiles in the TileStore, storing the ones that
+     * are not there yet. All tiles are shared afterwards, and are copied
+     * again when they are written to, so this is best called when the
+     * board is not expected to change for a while.
+     * @return the number of tiles whose arrays were replaced by a stored
+     *      array, which frees their memory
+     */
+    public int dedupTiles(){
+        int count = 0;
+        for (int tile=0; tile<shared.length; tile++){
+            if (shared[tile] || compressed[tile] != null){
+                continue;
+            }
+            if (indices != null){
+                byte[] stored = TileStore.intern(indices[tile]);
+                if (stored != indices[tile]){
+                    indices[tile] = stored;
+                    count++;
+                }
+            } else {
+                int[] stored = TileStore.intern(rgbs[tile]);
+                if (stored != rgbs[tile]){
+                    rgbs[tile] = stored;
+                    count++;
+                }
+            }
+            shared[tile] = true;
+        }
+        return count;
+    }
+
+    /**
+     * Compress the tiles that have not been written to in the last minAge
+     * calls of this method, and count one more call for the others. Tiles
+     * that are blank and shared, and tiles whose encoding would not be
+     * smaller than their pixels, are not compressed. A tile that is shared
+     * with other boards only frees its memory once all of them compressed
+     * it, and they share it again once they decompress it.
+     * @param minAge: the number of calls without writes after which a tile
+     *      is compressed, or 0 to compress all tiles
+     * @return the number of tiles that were compressed
+     */
+    public int compressTiles(int minAge){
+        int count = 0;
+        for (int tile=0; tile<compressed.length; tile++){
+            if (compressed[tile] != null || (indices != null && indices[tile] == WHITE_TILE)){
+                continue;
+            }
+            if (tileAges[tile] < minAge){
+                tileAges[tile]++;
+                continue;
+            }
+            byte[] data = indices != null ? _encode(indices[tile]) : _encode(rgbs[tile]);
+            if (data == null){
+                continue;
+            }
+            compressed[tile] = data;
+            if (indices != null){
+                indices[tile] = null;
+            } else {
+                rgbs[tile] = null;
+            }
+            shared[tile] = false;
+            compressedTiles++;
+            compressedBytes += data.length;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of compressed tiles
+     */
+    public int getCompressedTileCount(){
+        return compressedTiles;
+    }
+
+    /**
+     * @return the number of bytes that the compressed tiles take less
+     *      than they would uncompressed
+     */
+    public long getCompressionSavings(){
+        int tileBytes = TILE_SIZE*TILE_SIZE*(indices != null ? 1 : 4);
+        return (long) compressedTiles*tileBytes - compressedBytes;
+    }
+
+    /**
+     * Encode palette indices as pairs of bytes: an index, and the length
+     * of its run minus 1.
+     * @return the encoding, or null if it is not shorter than the indices
+     */
+    private static byte[] _encode(byte[] pixels){
+        byte[] data = new byte[pixels.length];
+        int length = 0;
+        for (int i=0; i<pixels.length; ){
+            int run = 1;
+            while (i + run < pixels.length && pixels[i + run] == pixels[i] && run < 256){
+                run++;
+            }
+            if (length + 2 >= data.length){
+                return null;
+            }
+            data[length++] = pixels[i];
+            data[length++] = (byte) (run - 1);
+            i += run;
+        }
+        return Arrays.copyOf(data, length);
+    }
+
+    /**
+     * Encode RGB values as groups of 4 bytes: the red, green and blue
+     * components, and the length of their run minus 1.
+     * @return the encoding, or null if it is not shorter than the RGB
+     *      values
+     */
+    private static byte[] _encode(int[] pixels){
+        byte[] data = new byte[pixels.length*4];
+        int length = 0;
+        for (int i=0; i<pixels.length; ){
+            int run = 1;
+            while (i + run < pixels.length && pixels[i + run] == pixels[i] && run < 256){
+                run++;
+            }
+            if (length + 4 >= data.length){
+                return null;
+            }
+            data[length++] = (byte) (pixels[i] >> 16);
+            data[length++] = (byte) (pixels[i] >> 8);
+            data[length++] = (byte) pixels[i];
+            data[length++] = (byte) (run - 1);
+            i += run;
+        }
+        return Arrays.copyOf(data, length);
+    }
+
+    /**
+     * Decode the pixels of a compressed tile, and replace them with the
+     * array of an equal tile in the TileStore, which the tile shares.
+     */
+    private void _decompress(int tile){
+        byte[] data = compressed[tile];
+        int p = 0;
+        if (indices != null){
+            byte[] pixels = new byte[TILE_SIZE*TILE_SIZE];
+            for (int i=0; i<data.length; i+=2){
+                int run = (data[i + 1] & 0xff) + 1;
+                Arrays.fill(pixels, p, p + run, data[i]);
+                p += run;
+            }
+            indices[tile] = TileStore.intern(pixels);
+        } else {
+            int[] pixels = new int[TILE_SIZE*TILE_SIZE];
+            for (int i=0; i<data.length; i+=4){
+                int rgb = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8) | (data[i + 2] & 0xff);
+                int run = (data[i + 3] & 0xff) + 1;
+                Arrays.fill(pixels, p, p + run, rgb);
+                p += run;
+            }
+            rgbs[tile] = TileStore.intern(pixels);
+        }
+        shared[tile] = true;
+        compressed[tile] = null;
+        compressedTiles--;
+        compressedBytes -= data.length;
+        tileAges[tile] = 0;
+    }
+
+    /**
+     * @return the number of tiles that may share their pixels with other
+     *      boards (or with the TileStore), which copy them when they are
+     *      written to
+     */
+    public int getSharedTileCount(){
+        int count = 0;
+        for (boolean s: shared){
+            if (s){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Set the pixels of a tile to those of the same tile of the other
+     * board, which has the same size.
+     * @param other: the board to copy the pixels from
+     * @param tileX: the column of the tile, from 0 to getTilesX() - 1
+     * @param tileY: the row of the tile, from 0 to getTilesY() - 1
+     */
+    public void copyTile(Whiteboard other, int tileX, int tileY){
+        assert width == other.width && height == other.height;
+        assert tileX >= 0 && tileX < tilesX && tileY >= 0 && tileY < tilesY;
+
+        int x1 = tileX*TILE_SIZE;
+        int x2 = Math.min(x1 + TILE_SIZE, width) - 1;
+        int y2 = Math.min((tileY + 1)*TILE_SIZE, height) - 1;
+        int lastOtherKey = -1;
+        int lastKey = -1;
+        for (int y = tileY*TILE_SIZE; y <= y2; y ++){
+            int row = y*width;
+            for (int x = x1; x <= x2; x ++){
+                int otherKey = other._key(row + x);
+                if (otherKey != lastOtherKey){
+                    // _keyOf() may change the stored values of this board,
+                    // but not the color of the key of the other board
+                    lastKey = _keyOf(other._color(otherKey));
+                    lastOtherKey = otherKey;
+                }
+                _setKey(row + x, lastKey);
+            }
+        }
+    }
+
+    /**
+     * Return the tiles whose hashes differ from those of the other board,
+     * only looking at the tiles of the rows whose hashes differ. The
+     * tiles of the result certainly differ; the others have the same
+     * pixels unless their hashes collide.
+     *
+     * @param other: the board to compare with, which has the same size
+     * @return the coordinates (column, row) of the differing tiles,
+     *      sorted by row and then by column
+     */
+    public List<Point> diffTiles(Whiteboard other){
+        assert width == other.width && height == other.height;
+        List<Point> tiles = new ArrayList<Point>();
+        if (this.hash == other.hash){
+            return tiles;
+        }
+        for (int tileY = 0; tileY < tilesY; tileY ++){
+            if (this.rowHashes[tileY] == other.rowHashes[tileY]){
+                continue;
+            }
+            for (int tileX = 0; tileX < tilesX; tileX ++){
+                int tile = tileY*tilesX + tileX;
+                if (this.tileHashes[tile] != other.tileHashes[tile]){
+                    tiles.add(new Point(tileX, tileY));
+                }
+            }
+        }
+        return tiles;
+    }
+
     /**
      * Equality is determined by if all the colors at all the pixels are the same.
+     * Boards with different hashes are not compared pixel by pixel.
      *
      * @return true if colors are the same
      */
@@ -271,28 +1315,23 @@ public class Whiteboard {
         if (obj.getClass() != this.getClass())
             return false;
         Whiteboard that = (Whiteboard) obj;
-        for (int i = 0; i < WIDTH; i ++){
-            for (int j = 0; j < HEIGHT; j ++){
-                if (! this.board[i][j].equals(that.board[i][j])){
-                    return false;
-                }
+        if (this.width != that.width || this.height != that.height || this.hash != that.hash){
+            return false;
+        }
+        for (int i = 0; i < width*height; i ++){
+            if (this._rgbOfKey(this._key(i)) != that._rgbOfKey(that._key(i))){
+                return false;
             }
         }
         return true;
     }
 
     /**
-     * Hash code
+     * Hash code, in constant time
      *
      * @return integer hash code
      */
     public int hashCode(){
-        int sum = 0;
-        for (int i = 0; i < WIDTH; i ++){
-            for (int j = 0; j < HEIGHT; j ++){
-                sum += this.board[i][j].hashCode()*(i*j+i);
-            }
-        }
-        return sum;
+        return (int) (hash ^ (hash >>> 32));
     }
 }
@@ -1,17 +1,23 @@
 package launcher;
 
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
 import client.*;
 
 /**
  * Command-line launcher for the client.
  *
- * Usage: java ClientLauncher <host> <port>
+ * Usage: java ClientLauncher <host> <port> [<host:port>,<host:port>,...]
  *
  * If the command line arguments fail to parse,
  * the host "localhost" and port "7495" are used
  * by default.
+ *
+ * The optional third argument lists the servers that take over if the
+ * server is lost, such as its followers.
  */
 public class ClientLauncher {
     public static void main(String[] args){
@@ -26,6 +32,20 @@ public class ClientLauncher {
             port = 7495;
         }
 
+        List<InetSocketAddress> failover = new ArrayList<InetSocketAddress>();
+        if (args.length > 2){
+            for (String address: args[2].split(",")){
+                int colon = address.lastIndexOf(':');
+                try {
+                    failover.add(InetSocketAddress.createUnresolved(address.substring(0, colon),
+                            Integer.parseInt(address.substring(colon + 1))));
+                } catch (Exception e){
+                    System.out.println("Expected host:port, got " + address);
+                    return;
+                }
+            }
+        }
+
         // connect to the remote host
         Socket s = null;
         try {
@@ -36,7 +56,7 @@ public class ClientLauncher {
         }
 
         // Construct and run the ClientController
-        ClientController c = new ClientController(s);
+        ClientController c = new ClientController(s, host, port, failover);
         System.out.println("Connected to host " + host + ":" + port);
         c.run();
     }
@@ -1,16 +1,42 @@
 package launcher;
 
 import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
 
 import server.*;
 
 /**
  * Command-line launcher for the server.
  *
- * Usage: java ServerLauncher <port>
+ * Usage: java ServerLauncher <port> [<host:port>,<host:port>,... [<host>]]
  *
  * If the command line arguments fail to parse,
  * the port "7495" is used by default.
+ *
+ * The optional second argument lists the addresses of all servers of a
+ * cluster, including this one, which share the boards among them. Every
+ * server of the cluster must be given the same list. This server is the
+ * one with the given port and host, where the host defaults to
+ * "localhost". For example, a cluster of two servers on one machine is
+ * started with:
+ *      java ServerLauncher 7495 localhost:7495,localhost:7496
+ *      java ServerLauncher 7496 localhost:7495,localhost:7496
+ *
+ * Replication is configured with system properties:
+ *      -Dwhiteboard.replicationPort=<port>     replicate the boards to the
+ *                                              followers that connect to
+ *                                              this port
+ *      -Dwhiteboard.ackMode=ASYNC|SYNC         whether draws wait for the
+ *                                              followers (default ASYNC)
+ *      -Dwhiteboard.primary=<host:port>        follow the primary with
+ *                                              this replication address,
+ *                                              until it is lost
+ *
+ * A relay server, which serves the boards of an upstream server to
+ * spectators, is started with:
+ *      -Dwhiteboard.relay=<host:port>          the address of the upstream
+ *                                              server
  */
 public class ServerLauncher {
     public static void main(String[] args){
@@ -22,6 +48,26 @@ public class ServerLauncher {
             port = 7495;
         }
 
+        ClusterRing ring = null;
+        if (args.length > 1){
+            String host = args.length > 2 ? args[2] : "localhost";
+            List<ClusterRing.Node> nodes = new ArrayList<ClusterRing.Node>();
+            try {
+                for (String address: args[1].split(",")){
+                    nodes.add(ClusterRing.Node.parse(address));
+                }
+            } catch (IllegalArgumentException e){
+                System.out.println(e.getMessage());
+                return;
+            }
+            ClusterRing.Node self = new ClusterRing.Node(host, port);
+            if (!nodes.contains(self)){
+                System.out.println("The cluster does not contain " + self);
+                return;
+            }
+            ring = new ClusterRing(nodes, self);
+        }
+
         // connect to the remote host
         ServerSocket s = null;
         try {
@@ -32,7 +78,45 @@ public class ServerLauncher {
         }
 
         // construct and run the ServerController
-        ServerController c = new ServerController(s);
+        ServerController c = new ServerController(s, ring);
+
+        Integer replicationPort = Integer.getInteger("whiteboard.replicationPort");
+        if (replicationPort != null){
+            Replicator.AckMode mode;
+            try {
+                mode = Replicator.AckMode.valueOf(System.getProperty("whiteboard.ackMode", "ASYNC"));
+            } catch (IllegalArgumentException e){
+                System.out.println("Unknown ack mode " + System.getProperty("whiteboard.ackMode"));
+                return;
+            }
+            try {
+                c.setReplication(new ServerSocket(replicationPort), mode);
+            } catch (Exception e){
+                System.out.println("Could not reserve port " + replicationPort);
+                return;
+            }
+        }
+        String relay = System.getProperty("whiteboard.relay");
+        if (relay != null){
+            try {
+                ClusterRing.Node node = ClusterRing.Node.parse(relay);
+                c.setRelay(node.getHost(), node.getPort());
+            } catch (IllegalArgumentException e){
+                System.out.println(e.getMessage());
+                return;
+            }
+        }
+        String primary = System.getProperty("whiteboard.primary");
+        if (primary != null){
+            try {
+                ClusterRing.Node node = ClusterRing.Node.parse(primary);
+                c.setPrimary(node.getHost(), node.getPort());
+            } catch (IllegalArgumentException e){
+                System.out.println(e.getMessage());
+                return;
+            }
+        }
+
         System.out.println("Server running on port " + port);
         c.run();
     }
@@ -0,0 +1,164 @@
+package server;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses the boards of a WhiteboardMap in the background, so that
+ * boards that nobody uses take little memory (see
+ * Whiteboard.compressTiles()). The tiles are decompressed by the board
+ * itself when they are read or drawn on again.
+ *
+ * Every period, the compactor sweeps all boards. A board that has had no
+ * listeners and no new version for boardIdle milliseconds is compressed
+ * entirely; on other boards, only the tiles that have not been drawn on
+ * for tileIdle milliseconds are compressed. After each sweep, the bytes
+ * that the compressed tiles of all boards save are recorded in the
+ * ServerMetrics.
+ *
+ * Usage:
+ *      - BoardCompactor()
+ *      - start(), or sweep() to compact synchronously
+ *      - close()
+ *
+ * Rep invariant:
+ *      - lastVersions and idleSince have the same keys, which are ids of
+ *        boards of the map
+ *
+ * Thread safety:
+ *      Is thread-safe: sweep() is synchronized, and takes the lock of
+ *      each board while compressing it, so it runs concurrently with the
+ *      sessions. Sweeps run on a single background thread.
+ */
+public class BoardCompactor {
+    // Default time (in milliseconds) between sweeps
+    public static final long DEFAULT_PERIOD =
+            Long.getLong("whiteboard.compactPeriod", 10*1000);
+    // Default time (in milliseconds) without listeners or draws after
+    // which a whole board is compressed
+    public static final long DEFAULT_BOARD_IDLE =
+            Long.getLong("whiteboard.compactBoardIdle", 60*1000);
+    // Default time (in milliseconds) without draws after which a tile of
+    // a board that is in use is compressed, or 0 to never compress them
+    public static final long DEFAULT_TILE_IDLE =
+            Long.getLong("whiteboard.compactTileIdle", 5*60*1000);
+
+    private final WhiteboardMap boards;
+    private final ServerMetrics metrics;
+    private final long period;
+    private final long boardIdle;
+    private final long tileIdle;
+    // the version of each board at the last sweep, and since when (in
+    // milliseconds) it has been idle, or -1 if it is in use
+    private final Map<Integer, Long> lastVersions = new HashMap<Integer, Long>();
+    private final Map<Integer, Long> idleSince = new HashMap<Integer, Long>();
+    private ScheduledExecutorService sweeper;
+
+    /**
+     * Construct a compactor with the default settings.
+     * @param boards: the boards to compress
+     * @param metrics: the metrics to record the bytes saved in
+     */
+    public BoardCompactor(WhiteboardMap boards, ServerMetrics metrics){
+        this(boards, metrics, DEFAULT_PERIOD, DEFAULT_BOARD_IDLE, DEFAULT_TILE_IDLE);
+    }
+
+    /**
+     * Construct a compactor.
+     * @param boards: the boards to compress
+     * @param metrics: the metrics to record the bytes saved in
+     * @param period: time in milliseconds between sweeps
+     * @param boardIdle: time in milliseconds without listeners or draws
+     *      after which a whole board is compressed
+     * @param tileIdle: time in milliseconds without draws after which a
+     *      tile of a board that is in use is compressed, or 0 to only
+     *      compress idle boards
+     */
+    public BoardCompactor(WhiteboardMap boards, ServerMetrics metrics, long period, long boardIdle, long tileIdle){
+        assert period > 0;
+        this.boards = boards;
+        this.metrics = metrics;
+        this.period = period;
+        this.boardIdle = boardIdle;
+        this.tileIdle = tileIdle;
+    }
+
+    /**
+     * Sweep the boards every period, on a background thread.
+     */
+    public synchronized void start(){
+        assert sweeper == null;
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r){
+                Thread t = new Thread(r, "BoardCompactor-sweeper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable(){
+            public void run(){
+                try {
+                    sweep();
+                } catch (Exception e){
+                    // keep sweeping; there is a bug if this happens
+                    e.printStackTrace();
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop sweeping. The boards stay as they are.
+     */
+    public synchronized void close(){
+        if (sweeper != null){
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+    }
+
+    /**
+     * Compress the boards that have been idle for boardIdle, and the
+     * tiles of the other boards that have not been drawn on for tileIdle,
+     * and record the bytes that all compressed tiles save.
+     * @return the number of tiles that were compressed
+     */
+    public synchronized int sweep(){
+        long now = System.currentTimeMillis();
+        // the number of sweeps without draws after which a tile is
+        // compressed, since compressTiles() counts the sweeps
+        int tileAge = tileIdle > 0 ? (int) Math.max(1, tileIdle / period) : Integer.MAX_VALUE;
+        List<WhiteboardStruct> structs = boards.getBoards();
+        Map<Integer, Long> versions = new HashMap<Integer, Long>();
+        int count = 0;
+        long saved = 0;
+        for (WhiteboardStruct s: structs){
+            synchronized(s){
+                long version = s.getHistory().getVersion();
+                Long lastVersion = lastVersions.get(s.getID());
+                Long since = idleSince.get(s.getID());
+                if (!s.getListeners().isEmpty() || lastVersion == null || lastVersion != version){
+                    since = s.getListeners().isEmpty() ? now : -1;
+                } else if (since == -1){
+                    since = now;
+                }
+                versions.put(s.getID(), version);
+                idleSince.put(s.getID(), since);
+
+                boolean idle = since != -1 && now - since >= boardIdle;
+                count += s.getWhiteboard().compressTiles(idle ? 0 : tileAge);
+                saved += s.getWhiteboard().getCompressionSavings();
+            }
+        }
+        lastVersions.clear();
+        lastVersions.putAll(versions);
+        idleSince.keySet().retainAll(versions.keySet());
+        metrics.setCompressionSavings(saved);
+        return count;
+    }
+}
@@ -0,0 +1,195 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.List;
+
+import common.Point;
+import common.Span;
+import common.Whiteboard;
+
+/**
+ * Keeps the version number of a whiteboard, and a bounded history of
+ * which pixels were changed by each version.
+ *
+ * The version starts at 0 and is incremented by every operation that
+ * is recorded. The history can answer which pixels have changed since
+ * a given version, as long as that version is recent enough that its
+ * changes have not been dropped to respect the capacity.
+ *
+ * Pixels are stored packed as y*width + x, where width is the number of
+ * columns of the board.
+ *
+ * Rep invariant:
+ *      - the sum of the lengths of the entries is size
+ *      - size <= capacity
+ *      - version - baseVersion == number of entries
+ *
+ * Thread safety:
+ *      Not thread safe. Access must be protected by the lock of the
+ *          WhiteboardStruct that owns the history.
+ */
+public class BoardHistory {
+    // Default maximum number of pixel positions that are remembered
+    public static final int DEFAULT_CAPACITY = 256*1024;
+
+    private final int width;
+    private final int capacity;
+    private final ArrayDeque<int[]> entries = new ArrayDeque<int[]>();
+    private long version;
+    private long baseVersion;
+    private int size;
+
+    /**
+     * Construct an empty history at version 0 of a board of the default
+     * size, with the default capacity.
+     */
+    public BoardHistory(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Construct an empty history at version 0 of a board of the default
+     * size.
+     * @param capacity: maximum number of pixel positions to remember
+     */
+    public BoardHistory(int capacity){
+        this(Whiteboard.WIDTH, capacity);
+    }
+
+    /**
+     * Construct an empty history at version 0.
+     * @param width: the number of columns of the board
+     * @param capacity: maximum number of pixel positions to remember
+     */
+    public BoardHistory(int width, int capacity){
+        assert width > 0 && capacity > 0;
+        this.width = width;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the number of columns of the board, by which the positions
+     *      are packed
+     */
+    public int getWidth(){
+        return width;
+    }
+
+    /**
+     * @return the current version
+     */
+    public long getVersion(){
+        return version;
+    }
+
+    /**
+     * Forget all entries and continue from the given version, for a
+     * board whose contents were replaced by a snapshot at that version.
+     * @param newVersion: the version of the snapshot
+     */
+    public void reset(long newVersion){
+        entries.clear();
+        size = 0;
+        version = newVersion;
+        baseVersion = newVersion;
+    }
+
+    /**
+     * Record an operation that changed the given pixels, and increment
+     * the version. The oldest entries are dropped if the capacity would
+     * be exceeded.
+     * @param changedPoints: the pixels changed by the operation
+     * @return the new version
+     */
+    public long record(List<Point> changedPoints){
+        int[] entry = new int[changedPoints.size()];
+        for (int i=0; i<entry.length; i++){
+            Point p = changedPoints.get(i);
+            entry[i] = p.getY()*width + p.getX();
+        }
+        return record(entry);
+    }
+
+    /**
+     * Record an operation that changed the pixels of the given spans, and
+     * increment the version.
+     * @param changedSpans: the runs of pixels changed by the operation
+     * @return the new version
+     */
+    public long recordSpans(List<Span> changedSpans){
+        int length = 0;
+        for (Span span: changedSpans){
+            length += span.getLength();
+        }
+        int[] entry = new int[length];
+        int i = 0;
+        for (Span span: changedSpans){
+            int row = span.getY()*width;
+            for (int x=span.getX1(); x<=span.getX2(); x++){
+                entry[i++] = row + x;
+            }
+        }
+        return record(entry);
+    }
+
+    /**
+     * Record an operation that changed the given packed pixel positions,
+     * and increment the version. The array must not be modified afterwards.
+     * @param entry: the packed positions changed by the operation
+     * @return the new version
+     */
+    public long record(int[] entry){
+        version++;
+
+        if (entry.length > capacity){
+            // the operation alone exceeds the capacity, so no delta can
+            // span it: forget everything up to and including it
+            entries.clear();
+            size = 0;
+            baseVersion = version;
+            return version;
+        }
+
+        entries.addLast(entry);
+        size += entry.length;
+        while (size > capacity){
+            size -= entries.removeFirst().length;
+            baseVersion++;
+        }
+        return version;
+    }
+
+    /**
+     * Return the packed positions of all pixels changed after the given
+     * version, without duplicates.
+     * @param since: a version previously returned by getVersion() or record()
+     * @return the changed positions, or null if the history does not reach
+     *      back to that version
+     */
+    public int[] changesSince(long since){
+        if (since < baseVersion || since > version){
+            return null;
+        }
+
+        // skip the entries at or before the requested version
+        long skip = since - baseVersion;
+        BitSet changed = new BitSet();
+        for (int[] entry: entries){
+            if (skip > 0){
+                skip--;
+                continue;
+            }
+            for (int position: entry){
+                changed.set(position);
+            }
+        }
+
+        int[] result = new int[changed.cardinality()];
+        int i = 0;
+        for (int p = changed.nextSetBit(0); p >= 0; p = changed.nextSetBit(p+1)){
+            result[i++] = p;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,111 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the activity on a single whiteboard: the number and rate of
+ * draws, the number of pixel updates sent to its listeners, and the time
+ * that its WhiteboardStruct is locked.
+ *
+ * Every WhiteboardStruct owns one. The ServerMetrics that the board is
+ * added to aggregates them, and registers them as MBeans.
+ *
+ * Thread safety:
+ *      Is thread-safe: all state is kept in thread-safe objects.
+ */
+public class BoardMetrics implements BoardMetricsMBean {
+    private final int id;
+    private final RateMeter draws = new RateMeter();
+    private final AtomicLong pixelsFannedOut = new AtomicLong();
+    private final Histogram lockHold = new Histogram();
+
+    /**
+     * Construct metrics without any measurements.
+     * @param id: the id of the whiteboard
+     */
+    public BoardMetrics(int id){
+        this.id = id;
+    }
+
+    /**
+     * Count a draw operation.
+     * @param fannedOut: number of pixel updates that were sent for it
+     */
+    public void recordDraw(long fannedOut){
+        draws.mark(1);
+        pixelsFannedOut.addAndGet(fannedOut);
+    }
+
+    /**
+     * Record the time that the board was locked by an operation.
+     * @param nanos: the time in nanoseconds
+     */
+    public void recordLockHold(long nanos){
+        lockHold.record(nanos);
+    }
+
+    /**
+     * @see BoardMetricsMBean
+     */
+    @Override
+    public int getID(){
+        return id;
+    }
+
+    /**
+     * @see BoardMetricsMBean
+     */
+    @Override
+    public long getDraws(){
+        return draws.getTotal();
+    }
+
+    /**
+     * @see BoardMetricsMBean
+     */
+    @Override
+    public double getDrawsPerSecond(){
+        return draws.getRate();
+    }
+
+    /**
+     * @see BoardMetricsMBean
+     */
+    @Override
+    public long getPixelsFannedOut(){
+        return pixelsFannedOut.get();
+    }
+
+    /**
+     * @see BoardMetricsMBean
+     */
+    @Override
+    public double getLockHoldMeanMicros(){
+        return lockHold.getMean() / 1000;
+    }
+
+    /**
+     * @see BoardMetricsMBean
+     */
+    @Override
+    public long getLockHold99thMicros(){
+        return lockHold.getPercentile(0.99) / 1000;
+    }
+
+    /**
+     * @see BoardMetricsMBean
+     */
+    @Override
+    public long getLockHoldMaxMicros(){
+        return lockHold.getMax() / 1000;
+    }
+
+    /**
+     * @return a one-line summary for the list of hot boards
+     */
+    @Override
+    public String toString(){
+        return String.format("board %d: %.1f draws/s, %d draws, %d pixels fanned out, lock held 99%% < %d us",
+                id, getDrawsPerSecond(), getDraws(), getPixelsFannedOut(), getLockHold99thMicros());
+    }
+}
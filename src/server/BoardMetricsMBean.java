@@ -0,0 +1,47 @@
+package server;
+
+/**
+ * Management interface of the metrics of a single whiteboard.
+ *
+ * Durations are reported in microseconds.
+ *
+ * @see BoardMetrics
+ */
+public interface BoardMetricsMBean {
+    /**
+     * @return the id of the whiteboard
+     */
+    public int getID();
+
+    /**
+     * @return the number of draw operations on the board
+     */
+    public long getDraws();
+
+    /**
+     * @return the number of draw operations per second, averaged over
+     *      the last few seconds
+     */
+    public double getDrawsPerSecond();
+
+    /**
+     * @return the number of pixel updates sent to the board's listeners
+     */
+    public long getPixelsFannedOut();
+
+    /**
+     * @return the mean time that the board was locked by an operation
+     */
+    public double getLockHoldMeanMicros();
+
+    /**
+     * @return the 99th percentile of the time that the board was locked
+     *      by an operation
+     */
+    public long getLockHold99thMicros();
+
+    /**
+     * @return the longest time that the board was locked by an operation
+     */
+    public long getLockHoldMaxMicros();
+}
@@ -0,0 +1,178 @@
+package server;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Partitions the boards among the server processes of a cluster by
+ * consistent hashing of the board ID.
+ *
+ * Every node is placed on a ring of hash values at VIRTUAL_NODES points.
+ * A board is owned by the node at the first point at or after the hash of
+ * its ID. Adding or removing a node therefore only moves the boards of
+ * the points next to that node's points, and every process that is
+ * configured with the same list of nodes computes the same owners.
+ *
+ * Rep invariant:
+ *      - self is one of nodes
+ *      - ring contains VIRTUAL_NODES points for every node
+ *
+ * Thread safety:
+ *      It is immutable and threadsafe.
+ */
+public class ClusterRing {
+    // Number of points of every node on the ring
+    public static final int VIRTUAL_NODES = 128;
+
+    /**
+     * Immutable address of a server process in the cluster.
+     */
+    public static class Node {
+        private final String host;
+        private final int port;
+
+        /**
+         * Construct with the given address.
+         * @param host: the host that clients connect to
+         * @param port: the port that clients connect to
+         */
+        public Node(String host, int port){
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * Parse an address of the form host:port.
+         * @param address: the address
+         * @return the node
+         * @throws IllegalArgumentException if the address is malformed
+         */
+        public static Node parse(String address){
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0){
+                throw new IllegalArgumentException("Expected host:port, got " + address);
+            }
+            try {
+                return new Node(address.substring(0, colon),
+                        Integer.parseInt(address.substring(colon + 1)));
+            } catch (NumberFormatException e){
+                throw new IllegalArgumentException("Expected host:port, got " + address);
+            }
+        }
+
+        /**
+         * @return the host
+         */
+        public String getHost(){
+            return host;
+        }
+
+        /**
+         * @return the port
+         */
+        public int getPort(){
+            return port;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if (!(o instanceof Node)){
+                return false;
+            }
+            Node n = (Node) o;
+            return host.equals(n.host) && port == n.port;
+        }
+
+        @Override
+        public int hashCode(){
+            return host.hashCode()*31 + port;
+        }
+
+        @Override
+        public String toString(){
+            return host + ":" + port;
+        }
+    }
+
+    private final List<Node> nodes;
+    private final Node self;
+    private final TreeMap<Integer, Node> ring = new TreeMap<Integer, Node>();
+
+    /**
+     * Construct the ring of the given nodes.
+     * @param nodes: all nodes of the cluster, in any order
+     * @param self: the node of this process, which must be one of nodes
+     */
+    public ClusterRing(List<Node> nodes, Node self){
+        assert nodes.contains(self);
+        this.nodes = Collections.unmodifiableList(new ArrayList<Node>(nodes));
+        this.self = self;
+
+        for (Node n: nodes){
+            for (int i=0; i<VIRTUAL_NODES; i++){
+                // a collision only shifts a point, which keeps the
+                // owners consistent between processes
+                int point = _hash(n + "#" + i);
+                while (ring.containsKey(point)){
+                    point++;
+                }
+                ring.put(point, n);
+            }
+        }
+    }
+
+    /**
+     * @return all nodes of the cluster
+     */
+    public List<Node> getNodes(){
+        return nodes;
+    }
+
+    /**
+     * @return the node of this process
+     */
+    public Node getSelf(){
+        return self;
+    }
+
+    /**
+     * @param id: a board ID
+     * @return the node that owns the board
+     */
+    public Node owner(int id){
+        Map.Entry<Integer, Node> e = ring.ceilingEntry(_hash(Integer.toString(id)));
+        if (e == null){
+            // wrap around the ring
+            e = ring.firstEntry();
+        }
+        return e.getValue();
+    }
+
+    /**
+     * @param id: a board ID
+     * @return true if the board is owned by this process
+     */
+    public boolean isLocal(int id){
+        return owner(id).equals(self);
+    }
+
+    /**
+     * @return the first 4 bytes of the MD5 digest of the key, which
+     *      spreads similar keys (like consecutive IDs) over the ring
+     */
+    private static int _hash(String key){
+        try {
+            byte[] d = MessageDigest.getInstance("MD5").digest(key.getBytes(Charset.forName("UTF-8")));
+            return ((d[0] & 0xff) << 24) | ((d[1] & 0xff) << 16) | ((d[2] & 0xff) << 8) | (d[3] & 0xff);
+        } catch (NoSuchAlgorithmException e){
+            // every Java platform is required to support MD5
+            throw new AssertionError(e);
+        }
+    }
+}
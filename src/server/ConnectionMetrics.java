@@ -0,0 +1,78 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.SocketWrapperMetrics;
+
+/**
+ * Measures the output of a single client connection, so that slow clients
+ * can be found, and adds it to the totals of the ServerMetrics.
+ *
+ * Created by ServerMetrics.newConnection(), and removed from it when the
+ * SocketWrapper stops reading.
+ *
+ * Thread safety:
+ *      Is thread-safe: all state is kept in thread-safe objects.
+ *
+ * @see SocketWrapperMetrics
+ */
+public class ConnectionMetrics implements SocketWrapperMetrics {
+    private final ServerMetrics server;
+    private final String description;
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final Histogram flushes = new Histogram();
+
+    /**
+     * Construct metrics without any measurements.
+     * @param server: the metrics of the server that accepted the connection
+     * @param description: identifies the connection, e.g. its address
+     */
+    ConnectionMetrics(ServerMetrics server, String description){
+        this.server = server;
+        this.description = description;
+    }
+
+    /**
+     * @see SocketWrapperMetrics
+     */
+    @Override
+    public void onFlush(int chars, long nanos){
+        // the protocol is ASCII, so every character is a byte
+        bytesWritten.addAndGet(chars);
+        flushes.record(nanos);
+        server.recordFlush(chars, nanos);
+    }
+
+    /**
+     * @see SocketWrapperMetrics
+     */
+    @Override
+    public void onFinish(){
+        server.removeConnection(this);
+    }
+
+    /**
+     * @return the number of bytes sent to the client
+     */
+    public long getBytesWritten(){
+        return bytesWritten.get();
+    }
+
+    /**
+     * @return the 99th percentile of the time that a flush to this client
+     *      took, in nanoseconds
+     */
+    public long getFlush99thNanos(){
+        return flushes.getPercentile(0.99);
+    }
+
+    /**
+     * @return a one-line summary for the list of slow connections
+     */
+    @Override
+    public String toString(){
+        return String.format("%s: flush 99%% < %d us, max %d us, %d flushes, %d bytes",
+                description, flushes.getPercentile(0.99) / 1000, flushes.getMax() / 1000,
+                flushes.getCount(), getBytesWritten());
+    }
+}
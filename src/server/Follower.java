@@ -0,0 +1,433 @@
+package server;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import common.*;
+
+/**
+ * Applies the board operations streamed by the Replicator of a primary
+ * server to the boards of a follower server, so that the follower can
+ * take over when the primary is lost.
+ *
+ * Lines are drawn with Whiteboard.drawPolylineSpans(), and fills and shapes
+ * repeated with Whiteboard.fill() and Whiteboard.drawShape(), the spans restored by
+ * undos and redos are filled in, and all are recorded in the history of the board, so the boards of the follower have the same versions as
+ * those of the primary, and clients that fail over to the follower can
+ * reconnect to their board with only the changes since their version.
+ * A draw is only applied if it immediately follows the version of the
+ * follower's board; operations that are older than a snapshot of the
+ * board are ignored.
+ *
+ * The boards that the follower creates are added to its ServerMetrics, if
+ * it has one, so that they are reported like the boards of a primary once
+ * the follower serves clients.
+ *
+ * Usage:
+ *      - Follower()
+ *      - run(), which returns when the connection to the primary is lost
+ *
+ * Thread safety:
+ *      Is thread-safe. The operations are applied by the thread of the
+ *      SocketWrapper, under the locks of the boards.
+ */
+public class Follower {
+    // Opcodes of the messages sent by the primary, packed
+    // as described by MessageTokenizer.pack()
+    private static final int OP_NEW_BOARD = ('n' << 8) | 'b';
+    private static final int OP_DRAW_LINE = ('d' << 8) | 'l';
+    private static final int OP_FILL = ('f' << 8) | 'l';
+    private static final int OP_SHAPE = ('s' << 8) | 'h';
+    private static final int OP_RESTORE_SPANS = ('r' << 8) | 's';
+    private static final int OP_RESTORE_END = ('r' << 8) | 'e';
+    private static final int OP_SNAPSHOT = ('b' << 8) | 's';
+    private static final int OP_BOARD_ROW = ('b' << 8) | 'r';
+    private static final int OP_SYNC = ('s' << 8) | 'y';
+
+    private final WhiteboardMap boards;
+    private final ServerMetrics metrics;
+    private final SocketWrapper socketWrapper;
+    private boolean finished;
+    private long applied;
+
+    // ------ begin section -------
+    // these variables are only accessed from the SocketWrapper's thread
+    private final MessageTokenizer tokenizer = new MessageTokenizer();
+    // board that is being received row by row after a snapshot message
+    private WhiteboardStruct pendingBoard;
+    private long pendingVersion;
+    private int pendingRows;
+    // spans restored so far by the undo or redo that is being received
+    private final List<Span> pendingRestore = new ArrayList<Span>();
+    // ------ end section -------
+
+    /**
+     * Construct a follower that applies the operations received from the
+     * primary to the given boards.
+     * @param boards: the boards of the follower server
+     * @param primary: a socket connected to the replication port of the
+     *      primary server
+     */
+    public Follower(WhiteboardMap boards, Socket primary){
+        this(boards, primary, null);
+    }
+
+    /**
+     * Construct a follower that applies the operations received from the
+     * primary to the given boards, and adds the boards that it creates to
+     * the given metrics.
+     * @param boards: the boards of the follower server
+     * @param primary: a socket connected to the replication port of the
+     *      primary server
+     * @param metrics: the metrics of the follower server, or null
+     */
+    public Follower(WhiteboardMap boards, Socket primary, ServerMetrics metrics){
+        this.boards = boards;
+        this.metrics = metrics;
+        this.socketWrapper = new SocketWrapper(primary);
+        socketWrapper.setSocketWrapperListener(new SocketWrapperBufferListener(){
+            public void onReadLine(char[] buffer, int offset, int length){
+                tokenizer.reset(buffer, offset, length);
+                _onReadLine();
+            }
+            public void onReadLine(String line){
+                tokenizer.reset(line);
+                _onReadLine();
+            }
+            public void onReadError(Exception e){
+                // do nothing, since onReadFinish will get called
+            }
+            public void onReadFinish(){
+                _finish();
+            }
+            public void onWriteError(Exception e){
+                socketWrapper.close();
+            }
+        });
+    }
+
+    /**
+     * Apply the operations of the primary until the connection to it
+     * is lost.
+     *
+     * May only be called once.
+     */
+    public void run(){
+        socketWrapper.start();
+        synchronized(this){
+            while (!finished){
+                try {
+                    wait();
+                } catch (InterruptedException e){
+                    socketWrapper.close();
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Close the connection to the primary, which makes run() return.
+     */
+    public void close(){
+        socketWrapper.close();
+    }
+
+    /**
+     * @return the number of operations received from the primary
+     */
+    public synchronized long getApplied(){
+        return applied;
+    }
+
+    /**
+     * Return the board with the given id, creating it with the given size
+     * and adding it to the metrics if it does not exist.
+     */
+    private WhiteboardStruct _getOrCreateBoard(int id, int width, int height){
+        // only this thread creates boards on a follower
+        boolean exists = boards.getBoard(id) != null;
+        WhiteboardStruct s = boards.getOrCreateBoard(id, width, height);
+        if (!exists && metrics != null){
+            metrics.addBoard(s.getMetrics());
+        }
+        return s;
+    }
+
+    /**
+     * Parse the message that the tokenizer has been reset to, and
+     * apply it to the boards.
+     */
+    private void _onReadLine(){
+        try {
+            int opcode = tokenizer.opcode();
+            switch(opcode){
+                case OP_NEW_BOARD:
+                    int newID = tokenizer.nextInt();
+                    int newWidth = tokenizer.nextInt();
+                    int newHeight = tokenizer.nextInt();
+                    assert !tokenizer.hasMore();
+                    _getOrCreateBoard(newID, newWidth, newHeight);
+                    _applied();
+                    break;
+                case OP_DRAW_LINE:
+                    int id = tokenizer.nextInt();
+                    long version = tokenizer.nextLong();
+                    Color c = Color.valueOf(tokenizer.nextInt(), tokenizer.nextInt(), tokenizer.nextInt());
+                    int w = tokenizer.nextInt();
+                    if (!Whiteboard.isValidBrushWidth(w)){
+                        throw new RuntimeException("Invalid brush width: " + w);
+                    }
+                    List<Point> points = new ArrayList<Point>();
+                    while (tokenizer.hasMore()){
+                        points.add(new Point(tokenizer.nextInt(), tokenizer.nextInt()));
+                    }
+                    _drawPolyline(id, version, points, c, w);
+                    _applied();
+                    break;
+                case OP_FILL:
+                    int fillID = tokenizer.nextInt();
+                    long fillVersion = tokenizer.nextLong();
+                    Point seed = new Point(tokenizer.nextInt(), tokenizer.nextInt());
+                    Color fillColor = Color.valueOf(tokenizer.nextInt(), tokenizer.nextInt(), tokenizer.nextInt());
+                    assert !tokenizer.hasMore();
+                    _fill(fillID, fillVersion, seed, fillColor);
+                    _applied();
+                    break;
+                case OP_SHAPE:
+                    int shapeID = tokenizer.nextInt();
+                    long shapeVersion = tokenizer.nextLong();
+                    Shape.Kind kind = Shape.Kind.fromCode(tokenizer.nextString());
+                    Point corner1 = new Point(tokenizer.nextInt(), tokenizer.nextInt());
+                    Point corner2 = new Point(tokenizer.nextInt(), tokenizer.nextInt());
+                    Color shapeColor = Color.valueOf(tokenizer.nextInt(), tokenizer.nextInt(), tokenizer.nextInt());
+                    Shape shape = new Shape(kind, corner1, corner2, shapeColor, tokenizer.nextInt());
+                    assert !tokenizer.hasMore();
+                    _drawShape(shapeID, shapeVersion, shape);
+                    _applied();
+                    break;
+                case OP_RESTORE_SPANS:
+                    int restoreID = tokenizer.nextInt();
+                    long restoreVersion = tokenizer.nextLong();
+                    Color restoreColor = Color.valueOf(tokenizer.nextInt(), tokenizer.nextInt(), tokenizer.nextInt());
+                    List<Span> spans = new ArrayList<Span>();
+                    while (tokenizer.hasMore()){
+                        spans.add(new Span(tokenizer.nextInt(), tokenizer.nextInt(), tokenizer.nextInt()));
+                    }
+                    _restoreSpans(restoreID, restoreVersion, spans, restoreColor);
+                    break;
+                case OP_RESTORE_END:
+                    int endID = tokenizer.nextInt();
+                    long endVersion = tokenizer.nextLong();
+                    assert !tokenizer.hasMore();
+                    _restoreEnd(endID, endVersion);
+                    _applied();
+                    break;
+                case OP_SNAPSHOT:
+                    int snapshotID = tokenizer.nextInt();
+                    pendingVersion = tokenizer.nextLong();
+                    int snapshotWidth = tokenizer.nextInt();
+                    int snapshotHeight = tokenizer.nextInt();
+                    assert !tokenizer.hasMore();
+                    pendingBoard = _getOrCreateBoard(snapshotID, snapshotWidth, snapshotHeight);
+                    pendingRows = 0;
+                    break;
+                case OP_BOARD_ROW:
+                    assert pendingBoard != null;
+                    _parseWhiteboardRow();
+                    assert !tokenizer.hasMore();
+                    if (pendingRows == pendingBoard.getWhiteboard().getHeight()){
+                        _snapshotReceived();
+                        pendingBoard = null;
+                        _applied();
+                    }
+                    break;
+                case OP_SYNC:
+                    assert !tokenizer.hasMore();
+                    socketWrapper.writeLine("ak " + getApplied());
+                    break;
+                default:
+                    throw new RuntimeException("Unrecognized opcode: " + opcode);
+            }
+        } catch (Exception e){
+            // Print the error, because there is a bug
+            // if the execution ends up here
+            e.printStackTrace();
+            socketWrapper.close();
+        }
+    }
+
+    /**
+     * Draw the line on the board if it follows the board's version.
+     */
+    private void _drawPolyline(int id, long version, List<Point> points, Color color, int width){
+        WhiteboardStruct struct = boards.getBoard(id);
+        if (struct == null){
+            // the snapshot of the board follows
+            return;
+        }
+        synchronized(struct){
+            BoardHistory history = struct.getHistory();
+            if (history.getVersion() != version - 1){
+                // the draw is part of a snapshot that follows
+                return;
+            }
+            Whiteboard board = struct.getWhiteboard();
+            List<Span> spans = board.drawPolylineSpans(points, color, width);
+            history.recordSpans(spans);
+
+            // notify the clients, once this server has been promoted
+            for (ServerMessageListener l: struct.getListeners()){
+                l.updateSpans(spans, color);
+                l.updateVersion(version);
+            }
+        }
+    }
+
+    /**
+     * Fill the area of the seed if the fill follows the board's version.
+     */
+    private void _fill(int id, long version, Point seed, Color color){
+        WhiteboardStruct struct = boards.getBoard(id);
+        if (struct == null){
+            // the snapshot of the board follows
+            return;
+        }
+        synchronized(struct){
+            BoardHistory history = struct.getHistory();
+            if (history.getVersion() != version - 1){
+                // the fill is part of a snapshot that follows
+                return;
+            }
+            List<Span> spans = struct.getWhiteboard().fill(seed, color);
+            history.recordSpans(spans);
+
+            // notify the clients, once this server has been promoted
+            for (ServerMessageListener l: struct.getListeners()){
+                l.updateSpans(spans, color);
+                l.updateVersion(version);
+            }
+        }
+    }
+
+    /**
+     * Draw the shape if it follows the board's version.
+     */
+    private void _drawShape(int id, long version, Shape shape){
+        WhiteboardStruct struct = boards.getBoard(id);
+        if (struct == null){
+            // the snapshot of the board follows
+            return;
+        }
+        synchronized(struct){
+            BoardHistory history = struct.getHistory();
+            if (history.getVersion() != version - 1){
+                // the shape is part of a snapshot that follows
+                return;
+            }
+            history.recordSpans(struct.getWhiteboard().drawShape(shape));
+
+            // notify the clients, once this server has been promoted
+            for (ServerMessageListener l: struct.getListeners()){
+                l.updateShape(shape);
+                l.updateVersion(version);
+            }
+        }
+    }
+
+    /**
+     * Fill in spans restored by an undo or redo if it follows the board's
+     * version.
+     */
+    private void _restoreSpans(int id, long version, List<Span> spans, Color color){
+        WhiteboardStruct struct = boards.getBoard(id);
+        if (struct == null){
+            // the snapshot of the board follows
+            return;
+        }
+        synchronized(struct){
+            if (struct.getHistory().getVersion() != version - 1){
+                // the restore is part of a snapshot that follows
+                return;
+            }
+            Whiteboard board = struct.getWhiteboard();
+            for (Span span: spans){
+                board.fillSpan(span, color);
+            }
+            pendingRestore.addAll(spans);
+
+            // notify the clients, once this server has been promoted
+            for (ServerMessageListener l: struct.getListeners()){
+                l.updateSpans(spans, color);
+            }
+        }
+    }
+
+    /**
+     * Record the spans restored by an undo or redo in the history of the
+     * board, if it follows the board's version.
+     */
+    private void _restoreEnd(int id, long version){
+        WhiteboardStruct struct = boards.getBoard(id);
+        if (struct != null){
+            synchronized(struct){
+                BoardHistory history = struct.getHistory();
+                if (history.getVersion() == version - 1){
+                    history.recordSpans(pendingRestore);
+                    for (ServerMessageListener l: struct.getListeners()){
+                        l.updateVersion(version);
+                    }
+                }
+            }
+        }
+        pendingRestore.clear();
+    }
+
+    /**
+     * Deserialize the next row of the pending board, reading directly
+     * from the tokenizer, in the format of the rows of a board sent to a
+     * client.
+     */
+    private void _parseWhiteboardRow(){
+        tokenizer.skipSpaces();
+        int y = pendingRows++;
+        synchronized(pendingBoard){
+            Whiteboard board = pendingBoard.getWhiteboard();
+            for (int x=0; x<board.getWidth(); x++){
+                int red = tokenizer.nextHexByte();
+                int green = tokenizer.nextHexByte();
+                int blue = tokenizer.nextHexByte();
+                board.setPixel(x, y, Color.valueOf(red, green, blue));
+            }
+        }
+    }
+
+    /**
+     * Set the version of the pending board, whose rows have all been
+     * received, and store its tiles once with the equal tiles of other
+     * boards, since every tile was written to.
+     */
+    private void _snapshotReceived(){
+        synchronized(pendingBoard){
+            pendingBoard.getHistory().reset(pendingVersion);
+            pendingBoard.getWhiteboard().dedupTiles();
+        }
+    }
+
+    /**
+     * Count an operation that was received.
+     */
+    private synchronized void _applied(){
+        applied++;
+    }
+
+    /**
+     * Wake up run().
+     */
+    private synchronized void _finish(){
+        finished = true;
+        notifyAll();
+    }
+}
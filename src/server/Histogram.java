@@ -0,0 +1,125 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the distribution of non-negative values, such as durations in
+ * nanoseconds, in a fixed amount of memory.
+ *
+ * Values below 8 are counted exactly. Larger values are counted in
+ * buckets that split every power of two into 8 equal parts, so a
+ * percentile is reported with an error of at most 12.5%. The count, sum
+ * and maximum are exact.
+ *
+ * Thread safety:
+ *      Is thread-safe: all state is kept in atomic variables, so values
+ *      can be recorded concurrently without locking.
+ */
+public class Histogram {
+    // Number of buckets per power of two
+    private static final int SUB_BUCKETS = 8;
+    // log2(SUB_BUCKETS)
+    private static final int SUB_BITS = 3;
+    // enough buckets for Long.MAX_VALUE
+    private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value.
+     * @param value: the value, negative values are recorded as 0
+     */
+    public void record(long value){
+        if (value < 0){
+            value = 0;
+        }
+        buckets.incrementAndGet(_bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)){
+            m = max.get();
+        }
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount(){
+        return count.get();
+    }
+
+    /**
+     * @return the mean of the recorded values, or 0 if there are none
+     */
+    public double getMean(){
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @return the largest recorded value, or 0 if there are none
+     */
+    public long getMax(){
+        return max.get();
+    }
+
+    /**
+     * Return an upper bound of the value below which the given fraction
+     * of the recorded values lie.
+     * @param fraction: between 0 and 1, for example 0.99
+     * @return the percentile, or 0 if there are no values
+     */
+    public long getPercentile(double fraction){
+        assert fraction >= 0 && fraction <= 1;
+
+        long n = count.get();
+        if (n == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int b=0; b<BUCKETS; b++){
+            seen += buckets.get(b);
+            if (seen >= rank){
+                return Math.min(max.get(), _upperBound(b));
+            }
+        }
+        // values were recorded while iterating
+        return max.get();
+    }
+
+    /**
+     * @return the index of the bucket that counts the value
+     */
+    private static int _bucket(long value){
+        if (value < SUB_BUCKETS){
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value that is counted by the bucket
+     */
+    private static long _upperBound(int bucket){
+        if (bucket < SUB_BUCKETS - 1){
+            return bucket;
+        }
+        if (bucket == BUCKETS - 1){
+            return Long.MAX_VALUE;
+        }
+        // one less than the smallest value of the next bucket
+        int next = bucket + 1;
+        int exponent = next / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = next % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub) << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,72 @@
+package server;
+
+/**
+ * Counts events, and reports their rate over the last few seconds.
+ *
+ * Events are counted in one slot per second. The rate is the number of
+ * events in the last WINDOW completed seconds, divided by WINDOW.
+ *
+ * Thread safety:
+ *      Is thread-safe: uses the monitor pattern, so all methods are
+ *      synchronized.
+ */
+public class RateMeter {
+    // Number of seconds that the rate is averaged over
+    public static final int WINDOW = 10;
+
+    // slots[s % slots.length] counts the events of second s; the extra
+    // slot is the current, incomplete second
+    private final long[] slots = new long[WINDOW + 1];
+    private final long origin = System.nanoTime();
+    private long currentSecond;
+    private long total;
+
+    /**
+     * Count the given number of events.
+     * @param n: number of events
+     */
+    public synchronized void mark(long n){
+        _advance();
+        slots[(int) (currentSecond % slots.length)] += n;
+        total += n;
+    }
+
+    /**
+     * @return the number of events per second over the last WINDOW seconds
+     */
+    public synchronized double getRate(){
+        _advance();
+        long sum = 0;
+        for (int i=0; i<slots.length; i++){
+            if (i != currentSecond % slots.length){
+                sum += slots[i];
+            }
+        }
+        return (double) sum / WINDOW;
+    }
+
+    /**
+     * @return the number of events since construction
+     */
+    public synchronized long getTotal(){
+        return total;
+    }
+
+    /**
+     * Clear the slots of the seconds that have passed since the last call.
+     */
+    private void _advance(){
+        long now = _now();
+        for (long s = Math.max(currentSecond + 1, now - slots.length + 1); s <= now; s++){
+            slots[(int) (s % slots.length)] = 0;
+        }
+        currentSecond = Math.max(currentSecond, now);
+    }
+
+    /**
+     * @return the number of whole seconds since construction
+     */
+    private long _now(){
+        return (System.nanoTime() - origin) / 1000000000L;
+    }
+}
@@ -0,0 +1,391 @@
+package server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import client.ClientSocketHandler;
+import common.*;
+
+/**
+ * Provides the boards of a read-only relay server, which serves the
+ * boards of an upstream server to spectators, so that the upstream server
+ * sends every update once per relay instead of once per spectator.
+ *
+ * The first time a board is requested, the relay connects to the upstream
+ * server as a spectator of that board (using the client protocol) and
+ * keeps a copy of it, with the same version numbers and a history of the
+ * changes. It declares the whole board as its viewport, so the upstream
+ * server streams every tile of the board into the copy. The sessions of the relay register with the copy like with any
+ * other board, so they get the snapshot or the changes since their version
+ * from the copy, and the updates received from upstream are fanned out to
+ * them.
+ *
+ * A lost connection to the upstream server is resumed if possible. If the
+ * upstream session is lost for good, the spectators of the board are
+ * disconnected, and the next request for the board subscribes again.
+ *
+ * Usage:
+ *      - Relay()
+ *      - WhiteboardMap.setRelay()
+ *
+ * Thread safety:
+ *      Is thread-safe: the subscriptions are protected by the monitor of
+ *      this object, and each copy of a board by the lock of its
+ *      WhiteboardStruct, like the boards of any server.
+ */
+public class Relay {
+    // Maximum time (in milliseconds) to wait for a board from upstream
+    public static final long SUBSCRIBE_TIMEOUT = 10*1000;
+
+    private final String host;
+    private final int port;
+    private final Map<Integer, Upstream> upstreams = new HashMap<Integer, Upstream>();
+
+    /**
+     * The subscription to a single board of the upstream server.
+     */
+    private class Upstream implements ServerMessageListener {
+        private final int id;
+        private ClientSocketHandler handler;
+
+        // ------ begin section -------
+        // these variables are protected by the monitor of the Upstream
+        private WhiteboardStruct struct;
+        // true when the copy has a version and its tiles, and may be served
+        private boolean ready;
+        // true when the board could not be received
+        private boolean failed;
+        // ------ end section -------
+
+        // ------ begin section -------
+        // these variables are only accessed from the thread of the
+        // upstream connection, under the lock of the struct
+        // runs of pixels changed since the last version
+        private final List<Span> pending = new ArrayList<Span>();
+        // false after a snapshot, until its version is known
+        private boolean versioned;
+        // true once the tiles of the board have been received
+        private boolean tiled;
+        // ------ end section -------
+
+        Upstream(int id){
+            this.id = id;
+        }
+
+        /**
+         * Connect to the upstream server, and spectate the board.
+         */
+        void start(){
+            try {
+                Socket s = new Socket(host, port);
+                SocketWrapper w = new SocketWrapper(s);
+                w.setHeartbeat(SocketWrapper.DEFAULT_HEARTBEAT_INTERVAL,
+                        SocketWrapper.DEFAULT_HEARTBEAT_TIMEOUT);
+                handler = new ClientSocketHandler(w);
+                handler.setReconnectAddress(host, port);
+                handler.setServerMessageListener(this);
+                w.start();
+                handler.spectate();
+            } catch (IOException e){
+                e.printStackTrace();
+                _fail();
+            }
+        }
+
+        /**
+         * Wait until the copy of the board is ready.
+         * @param deadline: System.currentTimeMillis() to give up at
+         * @return the copy, or null if it could not be received in time
+         */
+        synchronized WhiteboardStruct await(long deadline){
+            long now = System.currentTimeMillis();
+            while (!ready && !failed && now < deadline){
+                try {
+                    wait(deadline - now);
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                now = System.currentTimeMillis();
+            }
+            return ready && !failed ? struct : null;
+        }
+
+        /**
+         * Give up on the subscription, and disconnect the spectators.
+         */
+        private void _fail(){
+            // forget the subscription before waking up the waiters, so
+            // that they see that it is gone
+            _removeUpstream(id, this);
+            WhiteboardStruct s;
+            synchronized(this){
+                failed = true;
+                notifyAll();
+                s = struct;
+            }
+            if (handler != null){
+                handler.clientClose();
+            }
+            if (s != null){
+                List<ServerMessageListener> listeners;
+                synchronized(s){
+                    listeners = new ArrayList<ServerMessageListener>(s.getListeners());
+                }
+                for (ServerMessageListener l: listeners){
+                    l.serverClose();
+                }
+            }
+        }
+
+        /**
+         * Declare the whole board as the viewport of the upstream
+         * session, so that every tile of it is sent, and then all of its
+         * updates.
+         */
+        private void _requestAllTiles(){
+            handler.setViewport(0, 0, Whiteboard.MAX_WIDTH, Whiteboard.MAX_HEIGHT);
+        }
+
+        /**
+         * @return the copy of the board, or null before the snapshot
+         */
+        private synchronized WhiteboardStruct _getStruct(){
+            return struct;
+        }
+
+        @Override
+        public void loginSuccess() {
+            handler.connectToBoard(id);
+        }
+
+        @Override
+        public void resumeToken(String token) {
+            // used by the ClientSocketHandler
+        }
+
+        @Override
+        public void resumeSessionSuccess(SocketState state) {
+            if (state == SocketState.NOT_CONNECTED){
+                // the upstream session left the board
+                _fail();
+            } else if (state == SocketState.CONNECTED){
+                // the updates that were missed follow; the viewport is
+                // declared again in case the session is a new one
+                _requestAllTiles();
+            }
+        }
+
+        @Override
+        public void error(int code) {
+            _fail();
+        }
+
+        @Override
+        public void connectToBoardSuccess(int id, List<String> users, Whiteboard data) {
+            WhiteboardStruct s;
+            synchronized(this){
+                s = struct;
+                if (s == null){
+                    // the board only has the size of the upstream board,
+                    // and its pixels follow as spans
+                    data.dedupTiles();
+                    struct = new WhiteboardStruct(data, new ArrayList<String>(users),
+                            new ArrayList<ServerMessageListener>(), id);
+                }
+            }
+
+            if (s != null){
+                // a new snapshot after the upstream session was resumed:
+                // the tiles of the board follow as spans, which are
+                // sent on to the spectators
+                synchronized(s){
+                    updateUsers(users);
+                    versioned = false;
+                }
+            }
+            _requestAllTiles();
+        }
+
+        @Override
+        public void redirect(int id, String host, int port) {
+            // followed by the ClientSocketHandler
+        }
+
+        @Override
+        public void resyncBoardSuccess(int id, List<String> users) {
+            // the relay never reconnects with a version
+        }
+
+        @Override
+        public void updateVersion(long version) {
+            WhiteboardStruct s = _getStruct();
+            if (s == null){
+                return;
+            }
+            boolean complete;
+            synchronized(s){
+                BoardHistory history = s.getHistory();
+                if (versioned && version == history.getVersion() + 1){
+                    history.recordSpans(pending);
+                } else if (versioned && version == history.getVersion()){
+                    // the spans were the tiles of the board, which are
+                    // followed by the version that they are of
+                    tiled = true;
+                } else {
+                    history.reset(version);
+                }
+                pending.clear();
+                versioned = true;
+                complete = tiled;
+                for (ServerMessageListener l: s.getListeners()){
+                    l.updateVersion(version);
+                }
+            }
+            if (complete){
+                synchronized(this){
+                    ready = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void acknowledgeDraw(long version) {
+            // the relay does not draw
+        }
+
+        @Override
+        public void updateTrace(Trace trace) {
+            // traces are reported by the drawing client to the upstream
+            // server, and the spectators did not draw
+        }
+
+        @Override
+        public void updatePixel(Point point, Color color) {
+            WhiteboardStruct s = _getStruct();
+            if (s == null){
+                return;
+            }
+            synchronized(s){
+                s.getWhiteboard().setPixel(point, color);
+                pending.add(new Span(point.getY(), point.getX(), point.getX()));
+                for (ServerMessageListener l: s.getListeners()){
+                    l.updatePixel(point, color);
+                }
+            }
+        }
+
+        @Override
+        public void updateSpans(List<Span> spans, Color color) {
+            WhiteboardStruct s = _getStruct();
+            if (s == null){
+                return;
+            }
+            synchronized(s){
+                Whiteboard board = s.getWhiteboard();
+                for (Span span: spans){
+                    board.fillSpan(span, color);
+                }
+                pending.addAll(spans);
+                for (ServerMessageListener l: s.getListeners()){
+                    l.updateSpans(spans, color);
+                }
+            }
+        }
+
+        @Override
+        public void updateShape(Shape shape) {
+            WhiteboardStruct s = _getStruct();
+            if (s == null){
+                return;
+            }
+            synchronized(s){
+                pending.addAll(s.getWhiteboard().drawShape(shape));
+                for (ServerMessageListener l: s.getListeners()){
+                    l.updateShape(shape);
+                }
+            }
+        }
+
+        @Override
+        public void updateUsers(List<String> users) {
+            WhiteboardStruct s = _getStruct();
+            if (s == null){
+                return;
+            }
+            synchronized(s){
+                s.getUsers().clear();
+                s.getUsers().addAll(users);
+                for (ServerMessageListener l: s.getListeners()){
+                    l.updateUsers(s.getUsers());
+                }
+            }
+        }
+
+        @Override
+        public void disconnectFromBoardSuccess() {
+            // the relay never leaves a board
+        }
+
+        @Override
+        public void serverClose() {
+            _fail();
+        }
+    }
+
+    /**
+     * Construct a relay of the given upstream server.
+     * @param host: the host of the upstream server
+     * @param port: the port of the upstream server
+     */
+    public Relay(String host, int port){
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Return the copy of the board with the given id, subscribing to it
+     * if necessary. Blocks until the board has been received from the
+     * upstream server.
+     * @param id: the id of the board
+     * @return the copy of the board, or null if the upstream server does
+     *      not have the board or can not be reached
+     */
+    public WhiteboardStruct getBoard(int id){
+        Upstream u;
+        boolean subscribe = false;
+        synchronized(this){
+            u = upstreams.get(id);
+            if (u == null){
+                u = new Upstream(id);
+                upstreams.put(id, u);
+                subscribe = true;
+            }
+        }
+        if (subscribe){
+            u.start();
+        }
+        return u.await(System.currentTimeMillis() + SUBSCRIBE_TIMEOUT);
+    }
+
+    /**
+     * @return the number of boards that are subscribed upstream
+     */
+    public synchronized int getSubscriptionCount(){
+        return upstreams.size();
+    }
+
+    /**
+     * Forget a subscription that failed.
+     */
+    private synchronized void _removeUpstream(int id, Upstream u){
+        if (upstreams.get(id) == u){
+            upstreams.remove(id);
+        }
+    }
+}
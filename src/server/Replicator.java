@@ -0,0 +1,587 @@
+package server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import common.*;
+
+/**
+ * Streams the accepted board operations of a primary server to its
+ * follower servers (see Follower), so that a follower has an up to date
+ * copy of every board, including the version numbers, when the primary
+ * is lost.
+ *
+ * A new follower first gets a snapshot of every board, then the stream
+ * of operations. The operations are queued for every follower and sent
+ * by a sender thread per follower in batches, so that a slow follower
+ * does not block the sessions. Snapshots are queued as copies of the
+ * boards, which share their tiles until the boards are drawn on, and
+ * encoded by the sender thread, and so are the spans restored by an undo
+ * or redo, which may take several lines. Boards that are copies of other
+ * boards (see WhiteboardMap.cloneBoard()) are also sent as snapshots. If
+ * a follower falls more than MAX_QUEUED_MESSAGES behind, its connection
+ * is closed; it gets a new snapshot when it reconnects.
+ *
+ * Every batch ends with a sync message, which the follower acknowledges
+ * with the number of operations that it has applied. With AckMode.SYNC,
+ * awaitAcks() waits until all followers acknowledged the operations
+ * replicated so far (or SYNC_TIMEOUT elapsed), which bounds the
+ * operations that a crash can lose to the ones in progress.
+ *
+ * Protocol (primary to follower):
+ *      nb id width height                      new board of the size
+ *      dl id version r g b width x1 y1 ...     draw polyline
+ *      fl id version x y r g b                 flood fill
+ *      sh id version kind x1 y1 x2 y2 r g b w  shape
+ *      rs id version r g b y x1 x2 ...         spans of one color
+ *                                              restored by an undo or
+ *                                              redo, followed by
+ *      re id version                           the end of the restore
+ *      bs id version width height              board snapshot, followed
+ *                                              by height "br" rows
+ *      sy                                      end of a batch
+ * Protocol (follower to primary):
+ *      ak applied                              number of nb, dl, fl, sh,
+ *                                              re and bs
+ *                                              messages applied
+ *
+ * Usage:
+ *      - Replicator()
+ *      - WhiteboardMap.setReplicator()
+ *      - listen() or addFollower()
+ *      - newBoard(), copyBoard(), drawPolyline(), fill(), drawShape() and
+ *        restoreSpans() for every
+ *        operation, awaitAcks() after every operation on a board
+ *
+ * Thread safety:
+ *      Is thread-safe: the list of followers is a copy-on-write list, so
+ *      that replicating an operation does not take a global lock, and the
+ *      queue of each follower is protected by the monitor of the
+ *      follower's link.
+ */
+public class Replicator {
+    /**
+     * When awaitAcks() returns.
+     */
+    public enum AckMode {
+        // immediately; the followers catch up in the background
+        ASYNC,
+        // when all followers acknowledged the replicated operations
+        SYNC
+    }
+
+    // Maximum number of messages that are queued for a follower
+    public static final int MAX_QUEUED_MESSAGES = 256*1024;
+    // Maximum time (in milliseconds) that awaitAcks() waits
+    public static final long SYNC_TIMEOUT = 1000;
+    // Maximum number of spans per restore line, which keeps the lines
+    // well below SocketWrapper.DEFAULT_MAX_LINE_LENGTH
+    private static final int MAX_SPANS_PER_LINE = 1024;
+
+    private final WhiteboardMap boards;
+    private final AckMode mode;
+    private final List<Link> links = new CopyOnWriteArrayList<Link>();
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+
+    /**
+     * A copy of a board to be sent to a follower, which shares the tiles
+     * of the board until either is written to.
+     */
+    private static class Snapshot {
+        final int id;
+        final long version;
+        final Whiteboard board;
+
+        Snapshot(int id, long version, Whiteboard board){
+            this.id = id;
+            this.version = version;
+            this.board = board;
+        }
+    }
+
+    /**
+     * The spans restored on a board by an undo or redo, to be sent to a
+     * follower.
+     */
+    private static class Restore {
+        final int id;
+        final long version;
+        final Map<Color, List<Span>> spans;
+
+        Restore(int id, long version, Map<Color, List<Span>> spans){
+            this.id = id;
+            this.version = version;
+            this.spans = spans;
+        }
+    }
+
+    /**
+     * The connection to a single follower.
+     */
+    private class Link implements Runnable {
+        private final SocketWrapper socketWrapper;
+        private final MessageTokenizer tokenizer = new MessageTokenizer();
+        // lines (String), snapshots (Snapshot) and restores (Restore) to send
+        private final ArrayDeque<Object> queue = new ArrayDeque<Object>();
+        // number of operations queued and acknowledged
+        private long queued;
+        private long acked;
+        private boolean closed;
+
+        Link(Socket s){
+            socketWrapper = new SocketWrapper(s);
+            socketWrapper.setSocketWrapperListener(new SocketWrapperBufferListener(){
+                public void onReadLine(char[] buffer, int offset, int length){
+                    tokenizer.reset(buffer, offset, length);
+                    _onReadLine();
+                }
+                public void onReadLine(String line){
+                    tokenizer.reset(line);
+                    _onReadLine();
+                }
+                public void onReadError(Exception e){
+                    // do nothing, since onReadFinish will get called
+                }
+                public void onReadFinish(){
+                    _close();
+                }
+                public void onWriteError(Exception e){
+                    _close();
+                }
+            });
+        }
+
+        /**
+         * Queue an operation for the follower.
+         * @param message: the line, or a Snapshot
+         */
+        synchronized void enqueue(Object message){
+            if (closed){
+                return;
+            }
+            if (queue.size() >= MAX_QUEUED_MESSAGES){
+                // the follower can not keep up; it gets a new
+                // snapshot when it reconnects
+                socketWrapper.close();
+                return;
+            }
+            queue.addLast(message);
+            queued++;
+            notifyAll();
+        }
+
+        /**
+         * @return the number of operations queued so far
+         */
+        synchronized long getQueued(){
+            return queued;
+        }
+
+        /**
+         * @return the number of operations queued but not acknowledged
+         */
+        synchronized long getLag(){
+            return queued - acked;
+        }
+
+        /**
+         * Wait until the given number of operations were acknowledged,
+         * the link is closed or the deadline has passed.
+         * @param target: number of operations
+         * @param deadline: System.currentTimeMillis() to give up at
+         */
+        synchronized void awaitAck(long target, long deadline) throws InterruptedException{
+            long now = System.currentTimeMillis();
+            while (acked < target && !closed && now < deadline){
+                wait(deadline - now);
+                now = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Send the queued lines in batches until the link is closed.
+         */
+        public void run(){
+            List<Object> batch = new ArrayList<Object>();
+            // grown to the widest board sent so far
+            char[] row = new char[0];
+            while (true){
+                synchronized(this){
+                    while (queue.isEmpty() && !closed){
+                        try {
+                            wait();
+                        } catch (InterruptedException e){
+                            return;
+                        }
+                    }
+                    if (closed){
+                        return;
+                    }
+                    batch.addAll(queue);
+                    queue.clear();
+                }
+                for (Object message: batch){
+                    if (message instanceof Snapshot){
+                        row = _sendSnapshot((Snapshot) message, row);
+                    } else if (message instanceof Restore){
+                        _sendRestore((Restore) message);
+                    } else {
+                        socketWrapper.bufferLine((String) message);
+                    }
+                }
+                socketWrapper.writeLine("sy");
+                batch.clear();
+            }
+        }
+
+        /**
+         * Send the snapshot as a "bs" message followed by the rows,
+         * encoded like the rows of a board sent to a client.
+         * @param row: buffer for the encoded rows
+         * @return the buffer, or a larger one if the rows did not fit
+         */
+        private char[] _sendSnapshot(Snapshot snapshot, char[] row){
+            int width = snapshot.board.getWidth();
+            int height = snapshot.board.getHeight();
+            socketWrapper.bufferLine("bs " + snapshot.id + " " + snapshot.version + " " + width + " " + height);
+            if (row.length < 3 + width*3*2){
+                row = new char[3 + width*3*2];
+            }
+            row[0] = 'b';
+            row[1] = 'r';
+            row[2] = ' ';
+            for (int y=0; y<height; y++){
+                for (int x=0; x<width; x++){
+                    Color c = snapshot.board.getPixel(x, y);
+                    int baseIndex = 3 + x*3*2;
+                    _writeHex(row, baseIndex, c.getRed());
+                    _writeHex(row, baseIndex+2, c.getGreen());
+                    _writeHex(row, baseIndex+4, c.getBlue());
+                }
+                socketWrapper.bufferLine(row, 0, 3 + width*3*2);
+            }
+            return row;
+        }
+
+        /**
+         * Send the restore as "rs" messages of up to MAX_SPANS_PER_LINE
+         * spans of one color, followed by an "re" message.
+         */
+        private void _sendRestore(Restore restore){
+            String prefix = "rs " + restore.id + " " + restore.version;
+            for (Map.Entry<Color, List<Span>> e: restore.spans.entrySet()){
+                Color color = e.getKey();
+                List<Span> spans = e.getValue();
+                for (int start = 0; start < spans.size(); start += MAX_SPANS_PER_LINE){
+                    StringBuilder b = new StringBuilder(prefix);
+                    b.append(" ").append(color.getRed());
+                    b.append(" ").append(color.getGreen());
+                    b.append(" ").append(color.getBlue());
+                    for (Span span: spans.subList(start, Math.min(spans.size(), start + MAX_SPANS_PER_LINE))){
+                        b.append(" ").append(span.getY());
+                        b.append(" ").append(span.getX1());
+                        b.append(" ").append(span.getX2());
+                    }
+                    socketWrapper.bufferLine(b.toString());
+                }
+            }
+            socketWrapper.bufferLine("re " + restore.id + " " + restore.version);
+        }
+
+        /**
+         * Handle a message from the follower.
+         */
+        private void _onReadLine(){
+            try {
+                if (tokenizer.opcode() != (('a' << 8) | 'k')){
+                    throw new RuntimeException("Unrecognized opcode");
+                }
+                long applied = tokenizer.nextLong();
+                assert !tokenizer.hasMore();
+                synchronized(this){
+                    acked = applied;
+                    notifyAll();
+                }
+            } catch (Exception e){
+                // Print the error, because there is a bug
+                // if the execution ends up here
+                e.printStackTrace();
+                socketWrapper.close();
+            }
+        }
+
+        /**
+         * Stop sending and remove the link from the replicator.
+         */
+        private void _close(){
+            synchronized(this){
+                closed = true;
+                queue.clear();
+                notifyAll();
+            }
+            _removeLink(this);
+            socketWrapper.close();
+        }
+    }
+
+    /**
+     * Construct a replicator of the given boards without followers.
+     * @param boards: the boards of the primary server
+     * @param mode: when awaitAcks() returns
+     */
+    public Replicator(WhiteboardMap boards, AckMode mode){
+        this.boards = boards;
+        this.mode = mode;
+    }
+
+    /**
+     * @return when awaitAcks() returns
+     */
+    public AckMode getAckMode(){
+        return mode;
+    }
+
+    /**
+     * Accept followers on the given server socket in a background thread,
+     * until close() is called.
+     * @param s: the socket that followers connect to
+     */
+    public synchronized void listen(final ServerSocket s){
+        assert serverSocket == null;
+        serverSocket = s;
+        acceptor = new Thread(new Runnable(){
+            public void run(){
+                while (true){
+                    try {
+                        addFollower(s.accept());
+                    } catch (IOException e){
+                        // the server socket was closed
+                        return;
+                    }
+                }
+            }
+        }, "Replicator-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Start replicating to the follower at the other end of the given
+     * socket, beginning with a snapshot of every board.
+     * @param s: a connected socket
+     */
+    public void addFollower(Socket s){
+        Link link = new Link(s);
+        links.add(link);
+        // operations on a board are queued after its snapshot, since
+        // both happen under the lock of the board. Earlier operations
+        // on the board are ignored by the follower.
+        for (WhiteboardStruct struct: boards.getBoards()){
+            synchronized(struct){
+                link.enqueue(_copy(struct));
+            }
+        }
+        link.socketWrapper.start();
+        Thread sender = new Thread(link, "Replicator-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * @return the number of connected followers
+     */
+    public int getFollowerCount(){
+        return links.size();
+    }
+
+    /**
+     * @return the largest number of operations that a follower has not
+     *      acknowledged yet
+     */
+    public long getLag(){
+        long lag = 0;
+        for (Link l: links){
+            lag = Math.max(lag, l.getLag());
+        }
+        return lag;
+    }
+
+    /**
+     * Replicate the creation of a new board.
+     * Must be called under the lock of the WhiteboardMap.
+     * @param id: the id of the board
+     * @param width: the number of columns of the board
+     * @param height: the number of rows of the board
+     */
+    public void newBoard(int id, int width, int height){
+        _enqueue("nb " + id + " " + width + " " + height);
+    }
+
+    /**
+     * Replicate a board that was created as a copy of another one, by
+     * sending a snapshot of it.
+     * Must be called under the lock of the WhiteboardMap and of the
+     * board's WhiteboardStruct.
+     * @param struct: the new board
+     */
+    public void copyBoard(WhiteboardStruct struct){
+        for (Link l: links){
+            l.enqueue(_copy(struct));
+        }
+    }
+
+    /**
+     * Replicate a line or polyline that was drawn on a board.
+     * Must be called under the lock of the board's WhiteboardStruct.
+     * @param id: the id of the board
+     * @param version: the version of the board after the line was drawn
+     * @param points: the points of the polyline
+     * @param color: the color of the line
+     * @param width: the width of the line
+     */
+    public void drawPolyline(int id, long version, List<Point> points, Color color, int width){
+        StringBuilder b = new StringBuilder();
+        b.append("dl ").append(id).append(" ").append(version).append(" ");
+        b.append(color.getRed()).append(" ");
+        b.append(color.getGreen()).append(" ");
+        b.append(color.getBlue()).append(" ");
+        b.append(width);
+        for (Point p: points){
+            b.append(" ").append(p.getX());
+            b.append(" ").append(p.getY());
+        }
+        _enqueue(b.toString());
+    }
+
+    /**
+     * Replicate a flood fill of a board. The fill is repeated on the
+     * follower's copy of the board, which has the same pixels.
+     * Must be called under the lock of the board's WhiteboardStruct.
+     * @param id: the id of the board
+     * @param version: the version of the board after the fill
+     * @param seed: the seed of the fill
+     * @param color: the color of the fill
+     */
+    public void fill(int id, long version, Point seed, Color color){
+        _enqueue("fl " + id + " " + version + " "
+                + seed.getX() + " " + seed.getY() + " "
+                + color.getRed() + " " + color.getGreen() + " " + color.getBlue());
+    }
+
+    /**
+     * Replicate a shape that was drawn on a board.
+     * Must be called under the lock of the board's WhiteboardStruct.
+     * @param id: the id of the board
+     * @param version: the version of the board after the shape was drawn
+     * @param shape: the shape
+     */
+    public void drawShape(int id, long version, Shape shape){
+        _enqueue("sh " + id + " " + version + " "
+                + shape.getKind().getCode() + " "
+                + shape.getP1().getX() + " " + shape.getP1().getY() + " "
+                + shape.getP2().getX() + " " + shape.getP2().getY() + " "
+                + shape.getColor().getRed() + " " + shape.getColor().getGreen() + " "
+                + shape.getColor().getBlue() + " " + shape.getWidth());
+    }
+
+    /**
+     * Replicate the pixels that an undo or redo restored on a board.
+     * Must be called under the lock of the board's WhiteboardStruct.
+     * @param id: the id of the board
+     * @param version: the version of the board after the pixels were restored
+     * @param spans: the restored runs of pixels, grouped by color
+     */
+    public void restoreSpans(int id, long version, Map<Color, List<Span>> spans){
+        for (Link l: links){
+            l.enqueue(new Restore(id, version, spans));
+        }
+    }
+
+    /**
+     * In AckMode.SYNC, wait until all followers acknowledged the
+     * operations replicated so far, or SYNC_TIMEOUT has elapsed.
+     * Must not be called while holding the lock of a board.
+     */
+    public void awaitAcks(){
+        if (mode != AckMode.SYNC){
+            return;
+        }
+        long deadline = System.currentTimeMillis() + SYNC_TIMEOUT;
+        try {
+            for (Link l: links){
+                l.awaitAck(l.getQueued(), deadline);
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop accepting followers and close the connections to them.
+     * Waits for the thread started by listen() to exit, since the port is
+     * only released once no thread is blocked on it.
+     */
+    public void close(){
+        Thread t;
+        synchronized(this){
+            if (serverSocket != null){
+                try {
+                    serverSocket.close();
+                } catch (IOException e){
+                    e.printStackTrace();
+                }
+            }
+            t = acceptor;
+        }
+        if (t != null){
+            try {
+                t.join();
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Link l: links){
+            l.socketWrapper.close();
+        }
+    }
+
+    /**
+     * Queue the operation for every follower.
+     */
+    private void _enqueue(String line){
+        for (Link l: links){
+            l.enqueue(line);
+        }
+    }
+
+    /**
+     * Remove a closed link.
+     */
+    private void _removeLink(Link link){
+        links.remove(link);
+    }
+
+    /**
+     * Copy the board, sharing its tiles.
+     * Must hold the lock of the struct.
+     */
+    private static Snapshot _copy(WhiteboardStruct struct){
+        Whiteboard board = new Whiteboard(struct.getWhiteboard());
+        return new Snapshot(struct.getID(), struct.getHistory().getVersion(), board);
+    }
+
+    /**
+     * Write the byte as two hex characters at buffer[index].
+     */
+    private static void _writeHex(char[] buffer, int index, int num){
+        buffer[index] = Character.forDigit(num >> 4, 16);
+        buffer[index+1] = Character.forDigit(num & 0xf, 16);
+    }
+}
@@ -0,0 +1,342 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import common.*;
+
+/**
+ * Forwards messages to the ServerMessageListener of the current
+ * connection of a session. This is the object that is registered with
+ * a whiteboard, so that the connection can be replaced without leaving
+ * and rejoining the board.
+ *
+ * While the session has no connection, board updates are buffered (up to
+ * a limit) and replayed when a new connection is attached. If the limit
+ * is exceeded, the buffer is dropped and the session has to resynchronize
+ * the board from the version returned by getLastVersion().
+ *
+ * Updates of pixels outside of the viewport of the session (see
+ * setViewport()), which covers whole tiles of the board, are dropped, and
+ * spans are clipped to it, before they are forwarded or buffered, so that
+ * a client that only sees part of a board only gets the updates of the
+ * tiles of that part.
+ *
+ * Thread safety:
+ *      Is thread-safe: uses the monitor pattern, so all methods are
+ *      synchronized.
+ */
+public class ResumableListener implements ServerMessageListener {
+    // Maximum number of updates that are buffered while detached
+    public static final int MAX_BUFFERED_UPDATES = 64*1024;
+
+    /**
+     * A board update that was buffered while detached.
+     */
+    private interface Update {
+        public void replay(ServerMessageListener l);
+    }
+
+    private ServerMessageListener target;
+    private final List<Update> buffer = new ArrayList<Update>();
+    private boolean overflowed;
+    private long lastVersion;
+    private Viewport viewport = Viewport.NONE;
+
+    /**
+     * Construct a listener that forwards to the given target.
+     * @param target: listener of the current connection
+     */
+    public ResumableListener(ServerMessageListener target){
+        this.target = target;
+    }
+
+    /**
+     * @return the listener of the current connection, or null if detached
+     */
+    public synchronized ServerMessageListener getTarget(){
+        return target;
+    }
+
+    /**
+     * Stop forwarding messages, and start buffering board updates.
+     */
+    public synchronized void detach(){
+        target = null;
+        buffer.clear();
+        overflowed = false;
+    }
+
+    /**
+     * Forward messages to the given listener from now on. Must be
+     * detached.
+     *
+     * The buffered updates are replayed to the listener, atomically with
+     * respect to the other methods of this object.
+     * @param newTarget: listener of the new connection
+     */
+    public synchronized void attach(ServerMessageListener newTarget){
+        assert target == null;
+        target = newTarget;
+        for (Update u: buffer){
+            u.replay(target);
+        }
+        buffer.clear();
+        overflowed = false;
+    }
+
+    /**
+     * Only forward the updates of the pixels in the tiles of the given
+     * viewport from now on.
+     * @param viewport: the part of the board that the client sees
+     */
+    public synchronized void setViewport(Viewport viewport){
+        this.viewport = viewport;
+    }
+
+    /**
+     * @return the part of the board whose updates are forwarded
+     */
+    public synchronized Viewport getViewport(){
+        return viewport;
+    }
+
+    /**
+     * @return true if updates were dropped since the last detach()
+     */
+    public synchronized boolean hasOverflowed(){
+        return overflowed;
+    }
+
+    /**
+     * @return the last version that was sent to a connection
+     */
+    public synchronized long getLastVersion(){
+        return lastVersion;
+    }
+
+    /**
+     * Buffer the update while detached, unless the buffer overflowed.
+     */
+    private void _buffer(Update u){
+        if (!overflowed){
+            if (buffer.size() < MAX_BUFFERED_UPDATES){
+                buffer.add(u);
+            } else {
+                buffer.clear();
+                overflowed = true;
+            }
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void loginSuccess() {
+        if (target != null){
+            target.loginSuccess();
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void resumeToken(String token) {
+        if (target != null){
+            target.resumeToken(token);
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void resumeSessionSuccess(SocketState state) {
+        if (target != null){
+            target.resumeSessionSuccess(state);
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void error(int code) {
+        if (target != null){
+            target.error(code);
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void connectToBoardSuccess(int id, List<String> users, Whiteboard data) {
+        if (target != null){
+            target.connectToBoardSuccess(id, users, data);
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void redirect(int id, String host, int port) {
+        if (target != null){
+            target.redirect(id, host, port);
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void resyncBoardSuccess(int id, List<String> users) {
+        if (target != null){
+            target.resyncBoardSuccess(id, users);
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void updateVersion(final long version) {
+        if (target != null){
+            lastVersion = version;
+            target.updateVersion(version);
+        } else {
+            _buffer(new Update(){
+                public void replay(ServerMessageListener l){
+                    lastVersion = version;
+                    l.updateVersion(version);
+                }
+            });
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void acknowledgeDraw(final long version) {
+        if (target != null){
+            target.acknowledgeDraw(version);
+        } else {
+            _buffer(new Update(){
+                public void replay(ServerMessageListener l){
+                    l.acknowledgeDraw(version);
+                }
+            });
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void updateTrace(Trace trace) {
+        // traces are sampled, so one that can not be delivered is dropped
+        if (target != null){
+            target.updateTrace(trace);
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void updatePixel(final Point point, final Color color) {
+        if (!viewport.contains(point.getX(), point.getY())){
+            return;
+        }
+        if (target != null){
+            target.updatePixel(point, color);
+        } else {
+            _buffer(new Update(){
+                public void replay(ServerMessageListener l){
+                    l.updatePixel(point, color);
+                }
+            });
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void updateSpans(List<Span> spans, final Color color) {
+        final List<Span> visible = viewport.clip(spans);
+        if (visible.isEmpty()){
+            return;
+        }
+        if (target != null){
+            target.updateSpans(visible, color);
+        } else {
+            _buffer(new Update(){
+                public void replay(ServerMessageListener l){
+                    l.updateSpans(visible, color);
+                }
+            });
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void updateShape(final Shape shape) {
+        if (!viewport.intersects(shape)){
+            return;
+        }
+        if (target != null){
+            target.updateShape(shape);
+        } else {
+            _buffer(new Update(){
+                public void replay(ServerMessageListener l){
+                    l.updateShape(shape);
+                }
+            });
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void updateUsers(List<String> users) {
+        if (target != null){
+            target.updateUsers(users);
+        } else {
+            // the list is mutable, so buffer a copy
+            final List<String> copy = new ArrayList<String>(users);
+            _buffer(new Update(){
+                public void replay(ServerMessageListener l){
+                    l.updateUsers(copy);
+                }
+            });
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void disconnectFromBoardSuccess() {
+        if (target != null){
+            target.disconnectFromBoardSuccess();
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void serverClose() {
+        if (target != null){
+            target.serverClose();
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package server;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
 
+import javax.management.JMException;
+
 import common.*;
 
 /**
@@ -10,33 +14,159 @@ import common.*;
  * connection, it constructs a new ServerSocketHandler, a new SessionController,
  * and connects them together by adding them to each other as listeners.
  *
+ * Heartbeats are enabled on every connection, so that connections to
+ * clients that disappeared without closing them are closed after the
+ * heartbeat timeout, and their sessions go through the usual path of a
+ * lost connection.
+ *
+ * In a cluster, the server only keeps the boards that the ClusterRing
+ * assigns to it, and redirects clients that request other boards to the
+ * server that owns them.
+ *
+ * A server can replicate its boards to follower servers, which connect to
+ * a separate replication socket (see Replicator). A follower server does
+ * not accept clients while it follows its primary; when the connection to
+ * the primary is lost after it has been established, the follower is
+ * promoted and serves the replicated boards to the clients that fail over
+ * to it.
+ *
+ * A relay server serves the boards of an upstream server to spectators
+ * (see Relay). Sessions on a relay can not be resumed, since the boards
+ * they watch may go away with the upstream server.
+ *
+ * The tiles of idle boards are compressed in the background by a
+ * BoardCompactor.
+ *
+ * The metrics of the server are collected in a ServerMetrics, which is
+ * registered with the platform MBeanServer so that it can be inspected
+ * through JMX (for example with jconsole).
+ *
  * Usage:
  *      The methods of this class must be called in the following order:
  *          - ServerController()
+ *          - (optional) setReplication(), setPrimary(), setRelay()
  *          - run()
  * 
  * Thread safety:
  *      Public interface is not thread safe.
  */
 public class ServerController {
+    // Delay (in milliseconds) between attempts to connect to the primary
+    private static final long FOLLOW_RETRY_DELAY = 500;
 
     private final ServerSocket serverSocket;
     private final AuthenticationBackend auth;
     private final WhiteboardMap map;
+    private final SessionRegistry registry;
+    private final ServerMetrics metrics;
+    private final long heartbeatInterval;
+    private final long heartbeatTimeout;
+    private ServerSocket replicationSocket;
+    private Replicator replicator;
+    private String primaryHost;
+    private int primaryPort;
+    private boolean relay;
     private boolean runCalled;
 
     /**
      * Construct a ServerController that listens for new connections on
-     * the given server socket.
+     * the given server socket, with the default heartbeat settings.
      * @param s: the socket that the server will listen on
      */
     public ServerController(ServerSocket s){
+        this(s, null);
+    }
+
+    /**
+     * Construct a ServerController for a node of a cluster that listens
+     * for new connections on the given server socket, with the default
+     * heartbeat settings.
+     * @param s: the socket that the server will listen on
+     * @param ring: the ClusterRing of the cluster, or null if this server
+     *      owns all boards
+     */
+    public ServerController(ServerSocket s, ClusterRing ring){
+        this(s, ring, SocketWrapper.DEFAULT_HEARTBEAT_INTERVAL, SocketWrapper.DEFAULT_HEARTBEAT_TIMEOUT);
+    }
+
+    /**
+     * Construct a ServerController that listens for new connections on
+     * the given server socket.
+     * @param s: the socket that the server will listen on
+     * @param heartbeatInterval: time in milliseconds without writes after
+     *      which a heartbeat is sent to a client
+     * @param heartbeatTimeout: time in milliseconds without reads after
+     *      which the connection to a client is closed
+     */
+    public ServerController(ServerSocket s, long heartbeatInterval, long heartbeatTimeout){
+        this(s, null, heartbeatInterval, heartbeatTimeout);
+    }
+
+    /**
+     * Construct a ServerController for a node of a cluster that listens
+     * for new connections on the given server socket.
+     * @param s: the socket that the server will listen on
+     * @param ring: the ClusterRing of the cluster, or null if this server
+     *      owns all boards
+     * @param heartbeatInterval: time in milliseconds without writes after
+     *      which a heartbeat is sent to a client
+     * @param heartbeatTimeout: time in milliseconds without reads after
+     *      which the connection to a client is closed
+     */
+    public ServerController(ServerSocket s, ClusterRing ring, long heartbeatInterval, long heartbeatTimeout){
         this.serverSocket = s;
+        this.heartbeatInterval = heartbeatInterval;
+        this.heartbeatTimeout = heartbeatTimeout;
         this.auth = new AuthenticationBackend();
-        this.map = new WhiteboardMap();
+        this.map = new WhiteboardMap(ring);
+        this.registry = new SessionRegistry();
+        this.metrics = new ServerMetrics();
+        try {
+            metrics.register(ManagementFactory.getPlatformMBeanServer());
+        } catch (JMException e){
+            // the server works without JMX
+            e.printStackTrace();
+        }
         this.runCalled = false;
     }
 
+    /**
+     * Replicate the boards to the followers that connect to the given
+     * socket. A follower server only starts replicating once it has
+     * been promoted.
+     * @param s: the socket that followers connect to
+     * @param mode: whether draws wait for the followers to acknowledge them
+     */
+    public void setReplication(ServerSocket s, Replicator.AckMode mode){
+        assert !runCalled;
+        this.replicationSocket = s;
+        this.replicator = new Replicator(map, mode);
+    }
+
+    /**
+     * Follow the primary server with the given replication address,
+     * instead of accepting clients, until the connection to it is lost.
+     * @param host: the host of the primary server
+     * @param port: the replication port of the primary server
+     */
+    public void setPrimary(String host, int port){
+        assert !runCalled;
+        this.primaryHost = host;
+        this.primaryPort = port;
+    }
+
+    /**
+     * Relay the boards of the given upstream server to spectators, instead
+     * of keeping boards of its own.
+     * @param host: the host of the upstream server
+     * @param port: the port of the upstream server
+     */
+    public void setRelay(String host, int port){
+        assert !runCalled;
+        this.relay = true;
+        map.setRelay(new Relay(host, port));
+    }
+
     /**
      * Execute the main loop.
      *
@@ -46,6 +176,16 @@ public class ServerController {
         assert runCalled == false;
         runCalled = true;
 
+        new BoardCompactor(map, metrics).start();
+
+        if (primaryHost != null){
+            _follow();
+        }
+        if (replicator != null){
+            map.setReplicator(replicator);
+            replicator.listen(replicationSocket);
+        }
+
         // run the server forever
         while (true){
             final Socket socket;
@@ -65,14 +205,40 @@ public class ServerController {
             // Construct a SocketHandler to interpret the socket protocol
             ServerSocketHandler socketHandler = new ServerSocketHandler(socketWrapper);
             // Construct the SessionHandler to attach to the socket
-            SessionHandler sessionHandler = new SessionHandler(auth, map);
+            SessionHandler sessionHandler = new SessionHandler(auth, map, relay ? null : registry, metrics);
 
             // Connect them together
             socketHandler.setClientMessageListener(sessionHandler);
             sessionHandler.setServerMessageListener(socketHandler);
 
             // Start the socket wrapper thread
+            socketWrapper.setHeartbeat(heartbeatInterval, heartbeatTimeout);
+            socketWrapper.setMetrics(metrics.newConnection(String.valueOf(socket.getRemoteSocketAddress())));
             socketWrapper.start();
         }
     }
+
+    /**
+     * Apply the operations of the primary server until the connection to
+     * it is lost. Retries until the primary can be reached.
+     */
+    private void _follow(){
+        while (true){
+            Socket socket;
+            try {
+                socket = new Socket(primaryHost, primaryPort);
+            } catch (IOException e){
+                try {
+                    Thread.sleep(FOLLOW_RETRY_DELAY);
+                } catch (InterruptedException ie){
+                    return;
+                }
+                continue;
+            }
+            System.out.println("Following " + primaryHost + ":" + primaryPort);
+            new Follower(map, socket, metrics).run();
+            System.out.println("Lost the primary, serving clients");
+            return;
+        }
+    }
 }
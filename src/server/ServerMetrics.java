@@ -0,0 +1,451 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import common.SocketState;
+import common.TileStore;
+
+/**
+ * Collects the metrics of the server: open connections, sessions per
+ * SocketState, boards and deduplicated tiles in memory, the bytes saved by
+ * compressing idle tiles, draws and pixel updates, bytes sent, and the
+ * time spent holding board locks, sending snapshots and flushing output.
+ * For sampled strokes that are traced by the clients, the time spent in
+ * each TraceStage is recorded as a latency breakdown.
+ *
+ * Counters are atomic and durations are recorded in Histograms, so
+ * recording a measurement does not take a lock. Lists of the hot boards
+ * and the slow connections are computed when they are read.
+ *
+ * After register() has been called, the metrics are available through
+ * JMX as OBJECT_NAME, and every board that is added is registered as
+ * BOARD_OBJECT_NAME with its id.
+ *
+ * Thread safety:
+ *      Is thread-safe: counters are atomic, and the collections of boards
+ *      and connections are protected by the monitor pattern.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    public static final String OBJECT_NAME = "whiteboard:type=Server";
+    public static final String BOARD_OBJECT_NAME = "whiteboard:type=Board,id=";
+    // Number of entries in the lists of hot boards and slow connections
+    private static final int TOP = 10;
+
+    /**
+     * The stages of the latency of a traced stroke, in order.
+     */
+    public enum TraceStage {
+        // from receiving the draw message until it is executed
+        PARSE,
+        // waiting for the board lock
+        LOCK_WAIT,
+        // drawing the line on the board
+        RASTERIZE,
+        // queueing the updates for all listeners
+        ENCODE,
+        // flushing the queued updates to a listener
+        OUTBOUND,
+        // the rest of the round trip of the drawing client
+        NETWORK,
+        // from receiving the updates until the client's GUI applied them
+        APPLY,
+        // the whole round trip of the drawing client
+        TOTAL
+    }
+
+    private final AtomicLongArray sessions = new AtomicLongArray(SocketState.values().length);
+    private final RateMeter draws = new RateMeter();
+    private final AtomicLong pixelsFannedOut = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong compressionSaved = new AtomicLong();
+    private final Histogram lockHold = new Histogram();
+    private final Histogram snapshots = new Histogram();
+    private final Histogram flushes = new Histogram();
+    private final Histogram[] traces = new Histogram[TraceStage.values().length];
+
+    private final List<BoardMetrics> boards = new ArrayList<BoardMetrics>();
+    private final HashSet<ConnectionMetrics> connections = new HashSet<ConnectionMetrics>();
+    private MBeanServer mbeanServer;
+
+    /**
+     * Construct metrics without any measurements.
+     */
+    public ServerMetrics(){
+        for (int i=0; i<traces.length; i++){
+            traces[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Register these metrics, and the metrics of all boards that are
+     * added, with the given MBeanServer. May only be called once.
+     * @param server: usually ManagementFactory.getPlatformMBeanServer()
+     * @throws JMException if the metrics could not be registered
+     */
+    public synchronized void register(MBeanServer server) throws JMException{
+        assert mbeanServer == null;
+        server.registerMBean(this, new ObjectName(OBJECT_NAME));
+        mbeanServer = server;
+        for (BoardMetrics b: boards){
+            _registerBoard(b);
+        }
+    }
+
+    /**
+     * Start measuring a new client connection.
+     * @param description: identifies the connection, e.g. its address
+     * @return the metrics of the connection, which must be passed to
+     *      its SocketWrapper
+     */
+    public synchronized ConnectionMetrics newConnection(String description){
+        ConnectionMetrics c = new ConnectionMetrics(this, description);
+        connections.add(c);
+        return c;
+    }
+
+    /**
+     * Stop measuring a client connection that was closed.
+     * @param c: the metrics returned by newConnection()
+     */
+    synchronized void removeConnection(ConnectionMetrics c){
+        connections.remove(c);
+    }
+
+    /**
+     * Include the metrics of a new board.
+     * @param b: the metrics of the board
+     */
+    public synchronized void addBoard(BoardMetrics b){
+        boards.add(b);
+        if (mbeanServer != null){
+            _registerBoard(b);
+        }
+    }
+
+    /**
+     * Count a session that changed its state.
+     * @param from: the old state, or null for a new session
+     * @param to: the new state, or null for a closed session
+     */
+    public void sessionStateChanged(SocketState from, SocketState to){
+        if (from != null){
+            sessions.decrementAndGet(from.ordinal());
+        }
+        if (to != null){
+            sessions.incrementAndGet(to.ordinal());
+        }
+    }
+
+    /**
+     * Count a draw operation on the given board.
+     * @param board: the metrics of the board
+     * @param fannedOut: number of pixel updates that were sent for it
+     */
+    public void recordDraw(BoardMetrics board, long fannedOut){
+        board.recordDraw(fannedOut);
+        draws.mark(1);
+        pixelsFannedOut.addAndGet(fannedOut);
+    }
+
+    /**
+     * Record the time that the given board was locked by an operation.
+     * @param board: the metrics of the board
+     * @param nanos: the time in nanoseconds
+     */
+    public void recordLockHold(BoardMetrics board, long nanos){
+        board.recordLockHold(nanos);
+        lockHold.record(nanos);
+    }
+
+    /**
+     * Record the time to encode and send a board snapshot.
+     * @param nanos: the time in nanoseconds
+     */
+    public void recordSnapshot(long nanos){
+        snapshots.record(nanos);
+    }
+
+    /**
+     * Record a flush of output to a client.
+     * @param chars: the number of characters that were sent
+     * @param nanos: the time in nanoseconds
+     */
+    void recordFlush(int chars, long nanos){
+        bytesWritten.addAndGet(chars);
+        flushes.record(nanos);
+    }
+
+    /**
+     * Record the bytes that the compressed tiles of all boards save.
+     * @param bytes: the number of bytes, as of the last sweep
+     */
+    public void setCompressionSavings(long bytes){
+        compressionSaved.set(bytes);
+    }
+
+    /**
+     * Record the time that a traced stroke spent in the given stage.
+     * @param stage: the stage
+     * @param nanos: the time in nanoseconds
+     */
+    public void recordTrace(TraceStage stage, long nanos){
+        traces[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * @return the distribution of the time that traced strokes spent in
+     *      the given stage, in nanoseconds
+     */
+    public Histogram getTrace(TraceStage stage){
+        return traces[stage.ordinal()];
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public synchronized long getActiveConnections(){
+        return connections.size();
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public String[] getSessionsPerState(){
+        SocketState[] states = SocketState.values();
+        String[] result = new String[states.length];
+        for (int i=0; i<states.length; i++){
+            result[i] = states[i] + "=" + sessions.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of sessions in the given state
+     */
+    public long getSessions(SocketState state){
+        return sessions.get(state.ordinal());
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public long getConnectedSessions(){
+        return getSessions(SocketState.CONNECTED);
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public synchronized long getBoards(){
+        return boards.size();
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public long getStoredTiles(){
+        return TileStore.getTileCount();
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public long getStoredTileBytes(){
+        return TileStore.getBytes();
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public long getTilesDeduplicated(){
+        return TileStore.getDeduplicatedCount();
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public long getCompressionSavedBytes(){
+        return compressionSaved.get();
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public double getDrawsPerSecond(){
+        return draws.getRate();
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public long getPixelsFannedOut(){
+        return pixelsFannedOut.get();
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public long getBytesWritten(){
+        return bytesWritten.get();
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public double getLockHoldMeanMicros(){
+        return lockHold.getMean() / 1000;
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public long getLockHold99thMicros(){
+        return lockHold.getPercentile(0.99) / 1000;
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public long getLockHoldMaxMicros(){
+        return lockHold.getMax() / 1000;
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public double getSnapshotMeanMicros(){
+        return snapshots.getMean() / 1000;
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public long getSnapshot99thMicros(){
+        return snapshots.getPercentile(0.99) / 1000;
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public long getSnapshotMaxMicros(){
+        return snapshots.getMax() / 1000;
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public long getFlush99thMicros(){
+        return flushes.getPercentile(0.99) / 1000;
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public String[] getLatencyBreakdown(){
+        TraceStage[] stages = TraceStage.values();
+        String[] result = new String[stages.length];
+        for (int i=0; i<stages.length; i++){
+            Histogram h = traces[i];
+            result[i] = String.format("%s: %d samples, mean %.0f us, 99%% < %d us, max %d us",
+                    stages[i], h.getCount(), h.getMean() / 1000,
+                    h.getPercentile(0.99) / 1000, h.getMax() / 1000);
+        }
+        return result;
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public String[] getHotBoards(){
+        List<BoardMetrics> sorted;
+        synchronized(this){
+            sorted = new ArrayList<BoardMetrics>(boards);
+        }
+        // the rates change while sorting, so sort by a snapshot of them
+        final Map<BoardMetrics, Double> rates = new HashMap<BoardMetrics, Double>();
+        for (BoardMetrics b: sorted){
+            rates.put(b, b.getDrawsPerSecond());
+        }
+        Collections.sort(sorted, new Comparator<BoardMetrics>(){
+            public int compare(BoardMetrics a, BoardMetrics b){
+                return Double.compare(rates.get(b), rates.get(a));
+            }
+        });
+        return _top(sorted);
+    }
+
+    /**
+     * @see ServerMetricsMBean
+     */
+    @Override
+    public String[] getSlowConnections(){
+        List<ConnectionMetrics> sorted;
+        synchronized(this){
+            sorted = new ArrayList<ConnectionMetrics>(connections);
+        }
+        final Map<ConnectionMetrics, Long> times = new HashMap<ConnectionMetrics, Long>();
+        for (ConnectionMetrics c: sorted){
+            times.put(c, c.getFlush99thNanos());
+        }
+        Collections.sort(sorted, new Comparator<ConnectionMetrics>(){
+            public int compare(ConnectionMetrics a, ConnectionMetrics b){
+                return Long.compare(times.get(b), times.get(a));
+            }
+        });
+        return _top(sorted);
+    }
+
+    /**
+     * @return the summaries of the first TOP elements
+     */
+    private static String[] _top(List<?> sorted){
+        String[] result = new String[Math.min(TOP, sorted.size())];
+        for (int i=0; i<result.length; i++){
+            result[i] = sorted.get(i).toString();
+        }
+        return result;
+    }
+
+    /**
+     * Register the metrics of the board with the MBeanServer.
+     */
+    private synchronized void _registerBoard(BoardMetrics b){
+        try {
+            mbeanServer.registerMBean(b, new ObjectName(BOARD_OBJECT_NAME + b.getID()));
+        } catch (JMException e){
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package server;
+
+/**
+ * Management interface of the metrics of the whole server.
+ *
+ * Durations are reported in microseconds.
+ *
+ * @see ServerMetrics
+ */
+public interface ServerMetricsMBean {
+    /**
+     * @return the number of open client connections
+     */
+    public long getActiveConnections();
+
+    /**
+     * @return the number of sessions in each SocketState, in the order
+     *      of SocketState.values(), formatted as "STATE=count"
+     */
+    public String[] getSessionsPerState();
+
+    /**
+     * @return the number of sessions that are connected to a board
+     */
+    public long getConnectedSessions();
+
+    /**
+     * @return the number of whiteboards in memory
+     */
+    public long getBoards();
+
+    /**
+     * @return the number of distinct tiles in the TileStore, which are
+     *      shared by the boards whose tiles were deduplicated
+     */
+    public long getStoredTiles();
+
+    /**
+     * @return the size in bytes of the pixels of the tiles in the TileStore
+     */
+    public long getStoredTileBytes();
+
+    /**
+     * @return the number of tiles that were replaced by an equal tile of
+     *      the TileStore
+     */
+    public long getTilesDeduplicated();
+
+    /**
+     * @return the number of bytes that the compressed tiles of all boards
+     *      took less than uncompressed at the last sweep of the
+     *      BoardCompactor
+     */
+    public long getCompressionSavedBytes();
+
+    /**
+     * @return the number of draw operations per second on all boards,
+     *      averaged over the last few seconds
+     */
+    public double getDrawsPerSecond();
+
+    /**
+     * @return the number of pixel updates sent to the listeners of all boards
+     */
+    public long getPixelsFannedOut();
+
+    /**
+     * @return the number of bytes sent to all clients
+     */
+    public long getBytesWritten();
+
+    /**
+     * @return the mean time that a board was locked by an operation
+     */
+    public double getLockHoldMeanMicros();
+
+    /**
+     * @return the 99th percentile of the time that a board was locked
+     *      by an operation
+     */
+    public long getLockHold99thMicros();
+
+    /**
+     * @return the longest time that a board was locked by an operation
+     */
+    public long getLockHoldMaxMicros();
+
+    /**
+     * @return the mean time to encode and send a board snapshot
+     */
+    public double getSnapshotMeanMicros();
+
+    /**
+     * @return the 99th percentile of the time to encode and send a
+     *      board snapshot
+     */
+    public long getSnapshot99thMicros();
+
+    /**
+     * @return the longest time to encode and send a board snapshot
+     */
+    public long getSnapshotMaxMicros();
+
+    /**
+     * @return the 99th percentile of the time to flush output to a client
+     */
+    public long getFlush99thMicros();
+
+    /**
+     * @return a summary of the time that traced strokes spent in each
+     *      stage, in the order of ServerMetrics.TraceStage
+     */
+    public String[] getLatencyBreakdown();
+
+    /**
+     * @return a summary of the boards with the highest draw rates
+     */
+    public String[] getHotBoards();
+
+    /**
+     * @return a summary of the open connections with the slowest flushes
+     */
+    public String[] getSlowConnections();
+}
@@ -16,8 +16,20 @@ import static common.SocketState.*;
  * responses that arrive from the client.
  * It keeps track of the system state and asserts that messages
  * are only sent or received in the right  states.
- * If a socket throws an error while writing, calls ServerMessageListener.serverClose()
- * Call listener.clientClose() if error while reading.
+ * If a socket throws an error while writing, closes the socket, since the
+ * transport is dead.
+ * Call listener.clientClose() if the client quits or sends a malformed message,
+ * and listener.connectionLost() if the socket closes unexpectedly, which
+ * includes a failed write.
+ *
+ * The colors of pixel and span updates are sent as indices into a palette
+ * of up to MAX_PALETTE_SIZE colors that is kept for the connection, and
+ * defined by palette messages as colors are first used. Colors are sent as
+ * RGB values once the palette is full.
+ *
+ * A snapshot of a board (connectToBoardSuccess()) only carries its id,
+ * size and users; the pixels follow as span updates of the tiles that the
+ * client sees (see SessionHandler).
  *
  * Usage:
  *      The methods of this class must be called in the following order:
@@ -45,14 +57,49 @@ public class ServerSocketHandler implements ServerMessageListener{
     private SocketState state;
     private boolean serverInterfaceOpen;
     private final SocketWrapper socketWrapper;
+    // colors that have been sent to the client in palette messages, with
+    // their indices, so that updates of these colors can send the index
+    private final Map<Color, Integer> palette = new HashMap<Color, Integer>();
     // ------ end section -------
 
     // ------ begin section -------
     // these variables are only accessed from the SocketWrapper's thread,
     // so they don't have to have thread-safe public interfaces
     private ClientMessageListener listener;
+    private final MessageTokenizer tokenizer = new MessageTokenizer();
     // ------ end section -------
 
+    // Flight recorder event for encoding and sending a board snapshot
+    private static final FlightEvent.Type SNAPSHOT_EVENT = FlightEvent.define(
+            "whiteboard.SnapshotEncode", "Snapshot Encode",
+            new String[]{"board", "chars"},
+            new Class<?>[]{int.class, long.class});
+
+    // Opcodes of the messages sent by the client, packed
+    // as described by MessageTokenizer.pack()
+    private static final int OP_DRAW_LINE = ('d' << 8) | 'r';
+    private static final int OP_LOGIN = 'l';
+    private static final int OP_SPECTATE = ('s' << 8) | 'p';
+    private static final int OP_CONNECT = 'c';
+    private static final int OP_DISCONNECT = 'd';
+    private static final int OP_NEW_BOARD = 'n';
+    private static final int OP_CLONE_BOARD = ('c' << 8) | 'l';
+    private static final int OP_RESUME = ('r' << 16) | ('s' << 8) | 'm';
+    private static final int OP_QUIT = 'q';
+    private static final int OP_TRACE_APPLIED = ('t' << 8) | 'a';
+    private static final int OP_DRAW_POLYLINE = ('p' << 8) | 'l';
+    private static final int OP_FILL = ('f' << 8) | 'l';
+    private static final int OP_DRAW_SHAPE = ('s' << 8) | 'h';
+    private static final int OP_UNDO = ('u' << 8) | 'n';
+    private static final int OP_REDO = ('r' << 8) | 'e';
+    private static final int OP_VIEWPORT = ('v' << 8) | 'p';
+
+    // Maximum number of spans per update-spans message, which keeps the
+    // lines well below SocketWrapper.DEFAULT_MAX_LINE_LENGTH
+    private static final int MAX_SPANS_PER_LINE = 1024;
+    // Maximum number of colors in the palette of the connection
+    private static final int MAX_PALETTE_SIZE = 256;
+
     /**
      * Creates a handler that delegates to the given SocketWrapper.
      *
@@ -66,18 +113,30 @@ public class ServerSocketHandler implements ServerMessageListener{
         this.state = NOT_LOGGED_IN;
 
         // Attach a listener to the socket wrapper events
-        this.socketWrapper.setSocketWrapperListener(new SocketWrapperListener(){
+        this.socketWrapper.setSocketWrapperListener(new SocketWrapperBufferListener(){
+            public void onReadLine(char[] buffer, int offset, int length){
+                tokenizer.reset(buffer, offset, length);
+                _onReadLine();
+            }
             public void onReadLine(String line){
-                _onReadLine(line);
+                tokenizer.reset(line);
+                _onReadLine();
             }
             public void onReadError(Exception e){
                 // do nothing, since onReadFinish will get called
             }
             public void onReadFinish(){
-                _clientClose();
+                if (_isServerInterfaceOpen()){
+                    // the connection was lost without the client quitting
+                    _connectionLost();
+                } else {
+                    _clientClose();
+                }
             }
             public void onWriteError(Exception e){
-                serverClose();
+                // the interface stays open, so that the end of the read
+                // reports a lost connection and the session can be resumed
+                socketWrapper.close();
             }
         });
     }
@@ -107,6 +166,34 @@ public class ServerSocketHandler implements ServerMessageListener{
         }
     }
 
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void resumeToken(String token) {
+        if (serverInterfaceOpen){
+            assert listener != null;
+            assert state != NOT_LOGGED_IN || disableStateAssertions;
+            assert state != LOGIN_PENDING || disableStateAssertions;
+
+            socketWrapper.writeLine("tk " + token);
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void resumeSessionSuccess(SocketState newState) {
+        if (serverInterfaceOpen){
+            assert listener != null;
+            assert state == LOGIN_PENDING || disableStateAssertions;
+
+            state = newState;
+            socketWrapper.writeLine("rsm " + newState.name());
+        }
+    }
+
     /**
      * @see ServerMessageListener
      */
@@ -117,6 +204,7 @@ public class ServerSocketHandler implements ServerMessageListener{
 
             switch(code){
                 case 100:
+                case 300:
                     state = NOT_LOGGED_IN;
                     break;
                 case 200:
@@ -139,9 +227,12 @@ public class ServerSocketHandler implements ServerMessageListener{
             assert state == CONNECT_PENDING || disableStateAssertions;
 
             state = CONNECTED;
+            FlightEvent event = SNAPSHOT_EVENT.begin();
             StringBuilder b = new StringBuilder();
             b.append("cs ");
             b.append(id).append(" ");
+            b.append(data.getWidth()).append(" ");
+            b.append(data.getHeight()).append(" ");
 
             // Users data joined with commas
             for (int i=0; i<users.size(); i++){
@@ -150,18 +241,95 @@ public class ServerSocketHandler implements ServerMessageListener{
                     b.append(",");
                 }
             }
-            b.append(" ");
-
-            // Board data joined with commas
-            for (int y=0; y<Whiteboard.HEIGHT; y++){
-                for (int x=0; x<Whiteboard.WIDTH; x++){
-                    Color c = data.getPixel(new Point(x, y));
-                    b.append(byteToHex(c.getRed()));
-                    b.append(byteToHex(c.getGreen()));
-                    b.append(byteToHex(c.getBlue()));
+            // the pixels of the board follow as span updates of the
+            // tiles that the client sees
+            socketWrapper.writeLine(b.toString());
+
+            if (event.isEnabled()){
+                event.set(0, id);
+                event.set(1, (long) b.length() + 1);
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void redirect(int id, String host, int port) {
+        if (serverInterfaceOpen){
+            assert listener != null;
+            assert state == CONNECT_PENDING || disableStateAssertions;
+
+            state = NOT_CONNECTED;
+            socketWrapper.writeLine("rd " + id + " " + host + " " + port);
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void resyncBoardSuccess(int id, List<String> users) {
+        if (serverInterfaceOpen){
+            assert listener != null;
+            assert state == CONNECT_PENDING || disableStateAssertions;
+
+            state = CONNECTED;
+            StringBuilder b = new StringBuilder();
+            b.append("rs ");
+            b.append(id).append(" ");
+            for (int i=0; i<users.size(); i++){
+                b.append(users.get(i));
+                if (i != users.size()-1){
+                    b.append(",");
                 }
             }
-            socketWrapper.writeLine(b.toString());
+            socketWrapper.bufferLine(b.toString());
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void updateVersion(long version) {
+        if (serverInterfaceOpen){
+            assert listener != null;
+            assert state == CONNECTED || state == DISCONNECT_PENDING || disableStateAssertions;
+
+            // sent at the end of a burst of pixel updates
+            socketWrapper.bufferLine("v " + version);
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void acknowledgeDraw(long version) {
+        if (serverInterfaceOpen){
+            assert listener != null;
+            assert state == CONNECTED || state == DISCONNECT_PENDING || disableStateAssertions;
+
+            // sent right after the update-version message of the draw
+            socketWrapper.bufferLine("ak " + version);
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void updateTrace(Trace trace) {
+        if (serverInterfaceOpen){
+            assert listener != null;
+            assert state == CONNECTED || state == DISCONNECT_PENDING || disableStateAssertions;
+
+            // flushed immediately, so that the time this call takes
+            // includes sending the updates queued before it
+            socketWrapper.writeLine("tr " + trace.getID());
         }
     }
 
@@ -174,14 +342,81 @@ public class ServerSocketHandler implements ServerMessageListener{
             assert listener != null;
             assert state == CONNECTED || state == DISCONNECT_PENDING || disableStateAssertions;
 
+            int index = _paletteIndex(color);
             StringBuilder b = new StringBuilder();
-            b.append("p ");
-            b.append(point.getX()).append(" ");
-            b.append(point.getY()).append(" ");
-            b.append(color.getRed()).append(" ");
-            b.append(color.getGreen()).append(" ");
-            b.append(color.getBlue());
-            socketWrapper.writeLine(b.toString());
+            if (index >= 0){
+                b.append("pi ");
+                b.append(point.getX()).append(" ");
+                b.append(point.getY()).append(" ");
+                b.append(index);
+            } else {
+                b.append("p ");
+                b.append(point.getX()).append(" ");
+                b.append(point.getY()).append(" ");
+                b.append(color.getRed()).append(" ");
+                b.append(color.getGreen()).append(" ");
+                b.append(color.getBlue());
+            }
+            // pixel updates arrive in bursts, so let the socket wrapper
+            // batch them into as few writes as possible
+            socketWrapper.bufferLine(b.toString());
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void updateSpans(List<Span> spans, Color color) {
+        if (serverInterfaceOpen){
+            assert listener != null;
+            assert state == CONNECTED || state == DISCONNECT_PENDING || disableStateAssertions;
+
+            int index = _paletteIndex(color);
+            for (int start=0; start<spans.size(); start+=MAX_SPANS_PER_LINE){
+                StringBuilder b = new StringBuilder();
+                if (index >= 0){
+                    b.append("si ");
+                    b.append(index);
+                } else {
+                    b.append("sn ");
+                    b.append(color.getRed()).append(" ");
+                    b.append(color.getGreen()).append(" ");
+                    b.append(color.getBlue());
+                }
+                int end = Math.min(spans.size(), start + MAX_SPANS_PER_LINE);
+                for (int i=start; i<end; i++){
+                    Span span = spans.get(i);
+                    b.append(" ").append(span.getY());
+                    b.append(" ").append(span.getX1());
+                    b.append(" ").append(span.getX2());
+                }
+                socketWrapper.bufferLine(b.toString());
+            }
+        }
+    }
+
+    /**
+     * @see ServerMessageListener
+     */
+    @Override
+    public synchronized void updateShape(Shape shape) {
+        if (serverInterfaceOpen){
+            assert listener != null;
+            assert state == CONNECTED || state == DISCONNECT_PENDING || disableStateAssertions;
+
+            StringBuilder b = new StringBuilder();
+            b.append("sh ");
+            b.append(shape.getKind().getCode()).append(" ");
+            b.append(shape.getP1().getX()).append(" ");
+            b.append(shape.getP1().getY()).append(" ");
+            b.append(shape.getP2().getX()).append(" ");
+            b.append(shape.getP2().getY()).append(" ");
+            b.append(shape.getColor().getRed()).append(" ");
+            b.append(shape.getColor().getGreen()).append(" ");
+            b.append(shape.getColor().getBlue()).append(" ");
+            b.append(shape.getWidth());
+            socketWrapper.bufferLine(b.toString());
         }
     }
 
@@ -235,55 +470,183 @@ public class ServerSocketHandler implements ServerMessageListener{
 
 
     /**
-     * Given the input string message, parse the message and execute
-     * it upon the ClientMessageListener.
+     * Parse the message that the tokenizer has been reset to, and
+     * execute it upon the ClientMessageListener.
      */
-    private void _onReadLine(String line){
-        String[] tokens = line.split(" ");
+    private void _onReadLine(){
         try{
             // NOTE: the state assertions are not thread-safe
             // but they get disabled in production anyway.
-            switch(tokens[0]){
-                case "dr":
+            int opcode = tokenizer.opcode();
+            switch(opcode){
+                case OP_DRAW_LINE:
                     // draw-line
                     assert state == CONNECTED || disableStateAssertions;
-                    assert tokens.length == 9;
-                    Point p1 = new Point(Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]));
-                    Point p2 = new Point(Integer.parseInt(tokens[3]), Integer.parseInt(tokens[4]));
-                    Color c = new Color(Integer.parseInt(tokens[5]), Integer.parseInt(tokens[6]), Integer.parseInt(tokens[7]));
-                    int w = Integer.parseInt(tokens[8]);
-                    listener.drawLine(p1, p2, c, w);
+                    long received = System.nanoTime();
+                    Point p1 = new Point(tokenizer.nextInt(), tokenizer.nextInt());
+                    Point p2 = new Point(tokenizer.nextInt(), tokenizer.nextInt());
+                    Color c = Color.valueOf(tokenizer.nextInt(), tokenizer.nextInt(), tokenizer.nextInt());
+                    int w = tokenizer.nextInt();
+                    if (tokenizer.hasMore()){
+                        // the client traces this stroke
+                        Trace trace = new Trace(tokenizer.nextLong(), received);
+                        assert !tokenizer.hasMore();
+                        listener.drawLine(p1, p2, c, w, trace);
+                    } else {
+                        listener.drawLine(p1, p2, c, w);
+                    }
+                    break;
+                case OP_DRAW_POLYLINE:
+                    // draw-polyline: the color, width, number of points,
+                    // the points, and optionally the trace id
+                    assert state == CONNECTED || disableStateAssertions;
+                    long polylineReceived = System.nanoTime();
+                    Color polylineColor = Color.valueOf(tokenizer.nextInt(), tokenizer.nextInt(), tokenizer.nextInt());
+                    int polylineWidth = tokenizer.nextInt();
+                    int n = tokenizer.nextInt();
+                    if (n < 1){
+                        throw new RuntimeException("Empty polyline");
+                    }
+                    if (n > tokenizer.remaining()/4){
+                        // each point takes at least 4 characters, " x y"
+                        throw new RuntimeException("Polyline has fewer points than " + n);
+                    }
+                    List<Point> points = new ArrayList<Point>(n);
+                    for (int i=0; i<n; i++){
+                        points.add(new Point(tokenizer.nextInt(), tokenizer.nextInt()));
+                    }
+                    if (tokenizer.hasMore()){
+                        // the client traces this stroke
+                        Trace trace = new Trace(tokenizer.nextLong(), polylineReceived);
+                        assert !tokenizer.hasMore();
+                        listener.drawPolyline(points, polylineColor, polylineWidth, trace);
+                    } else {
+                        listener.drawPolyline(points, polylineColor, polylineWidth);
+                    }
+                    break;
+                case OP_FILL:
+                    // fill
+                    assert state == CONNECTED || disableStateAssertions;
+                    Point seed = new Point(tokenizer.nextInt(), tokenizer.nextInt());
+                    Color fillColor = Color.valueOf(tokenizer.nextInt(), tokenizer.nextInt(), tokenizer.nextInt());
+                    assert !tokenizer.hasMore();
+                    listener.fill(seed, fillColor);
+                    break;
+                case OP_DRAW_SHAPE:
+                    // draw-shape
+                    assert state == CONNECTED || disableStateAssertions;
+                    Shape.Kind kind = Shape.Kind.fromCode(tokenizer.nextString());
+                    Point corner1 = new Point(tokenizer.nextInt(), tokenizer.nextInt());
+                    Point corner2 = new Point(tokenizer.nextInt(), tokenizer.nextInt());
+                    Color shapeColor = Color.valueOf(tokenizer.nextInt(), tokenizer.nextInt(), tokenizer.nextInt());
+                    Shape shape = new Shape(kind, corner1, corner2, shapeColor, tokenizer.nextInt());
+                    assert !tokenizer.hasMore();
+                    listener.drawShape(shape);
                     break;
-                case "l":
+                case OP_UNDO:
+                    // undo
+                    assert state == CONNECTED || disableStateAssertions;
+                    assert !tokenizer.hasMore();
+                    listener.undo();
+                    break;
+                case OP_REDO:
+                    // redo
+                    assert state == CONNECTED || disableStateAssertions;
+                    assert !tokenizer.hasMore();
+                    listener.redo();
+                    break;
+                case OP_LOGIN:
                     // login
                     assert state == NOT_LOGGED_IN || disableStateAssertions;
-                    assert tokens.length == 2;
+                    String username = tokenizer.nextString();
+                    assert !tokenizer.hasMore();
                     _changeState(LOGIN_PENDING);
-                    listener.login(tokens[1]);
+                    listener.login(username);
                     break;
-                case "c":
+                case OP_SPECTATE:
+                    // spectate
+                    assert state == NOT_LOGGED_IN || disableStateAssertions;
+                    assert !tokenizer.hasMore();
+                    _changeState(LOGIN_PENDING);
+                    listener.spectate();
+                    break;
+                case OP_CONNECT:
                     // connect-to-board
                     assert state == NOT_CONNECTED || disableStateAssertions;
-                    assert tokens.length == 2;
-                    _changeState(CONNECT_PENDING);
-                    listener.connectToBoard(Integer.parseInt(tokens[1]));
+                    int id = tokenizer.nextInt();
+                    if (tokenizer.hasMore()){
+                        // the client has a copy of the board
+                        long version = tokenizer.nextLong();
+                        assert !tokenizer.hasMore();
+                        _changeState(CONNECT_PENDING);
+                        listener.reconnectToBoard(id, version);
+                    } else {
+                        _changeState(CONNECT_PENDING);
+                        listener.connectToBoard(id);
+                    }
                     break;
-                case "d":
+                case OP_DISCONNECT:
                     // disconnect-from-board
                     assert state == CONNECTED || disableStateAssertions;
-                    assert tokens.length == 1;
+                    assert !tokenizer.hasMore();
                     _changeState(DISCONNECT_PENDING);
                     listener.disconnectFromBoard();
                     break;
-                case "n":
-                    // new-board
+                case OP_NEW_BOARD:
+                    // new-board, with the size of the board if it is
+                    // not the default size
                     assert state == NOT_CONNECTED || disableStateAssertions;
-                    assert tokens.length == 1;
+                    if (tokenizer.hasMore()){
+                        int boardWidth = tokenizer.nextInt();
+                        int boardHeight = tokenizer.nextInt();
+                        assert !tokenizer.hasMore();
+                        _changeState(CONNECT_PENDING);
+                        listener.newBoard(boardWidth, boardHeight);
+                    } else {
+                        _changeState(CONNECT_PENDING);
+                        listener.newBoard();
+                    }
+                    break;
+                case OP_CLONE_BOARD:
+                    // clone-board
+                    assert state == NOT_CONNECTED || disableStateAssertions;
+                    int cloneID = tokenizer.nextInt();
+                    assert !tokenizer.hasMore();
                     _changeState(CONNECT_PENDING);
-                    listener.newBoard();
+                    listener.cloneBoard(cloneID);
+                    break;
+                case OP_RESUME:
+                    // resume-session
+                    assert state == NOT_LOGGED_IN || disableStateAssertions;
+                    String token = tokenizer.nextString();
+                    assert !tokenizer.hasMore();
+                    _changeState(LOGIN_PENDING);
+                    listener.resumeSession(token);
+                    break;
+                case OP_QUIT:
+                    // quit
+                    assert !tokenizer.hasMore();
+                    _clientClose();
+                    break;
+                case OP_TRACE_APPLIED:
+                    // trace-applied
+                    long traceId = tokenizer.nextLong();
+                    long totalNanos = tokenizer.nextLong();
+                    long applyNanos = tokenizer.nextLong();
+                    assert !tokenizer.hasMore();
+                    listener.traceApplied(traceId, totalNanos, applyNanos);
+                    break;
+                case OP_VIEWPORT:
+                    // set-viewport
+                    int viewX = tokenizer.nextInt();
+                    int viewY = tokenizer.nextInt();
+                    int viewWidth = tokenizer.nextInt();
+                    int viewHeight = tokenizer.nextInt();
+                    assert !tokenizer.hasMore();
+                    listener.setViewport(viewX, viewY, viewWidth, viewHeight);
                     break;
                 default:
-                    throw new RuntimeException("Unrecognized message: " + line);
+                    throw new RuntimeException("Unrecognized opcode: " + opcode);
             }
         } catch (Exception e){
             // Print the error, because there is a bug
@@ -300,6 +663,25 @@ public class ServerSocketHandler implements ServerMessageListener{
         state = newState;
     }
 
+    /**
+     * @return true unless serverClose() has been called
+     */
+    private synchronized boolean _isServerInterfaceOpen(){
+        return serverInterfaceOpen;
+    }
+
+    /**
+     * Send the "connection lost" message to the ClientMessageListener.
+     *
+     * This gets executed whenever the socket closes without the client
+     * quitting or the server closing it.
+     * Should only be executed from the SocketWrapperListener thread.
+     */
+    private void _connectionLost(){
+        assert listener != null;
+        listener.connectionLost();
+    }
+
     /**
      * Send the "close" message to the ClientMessageListener.
      *
@@ -312,16 +694,62 @@ public class ServerSocketHandler implements ServerMessageListener{
         listener.clientClose();
     }
 
+    /**
+     * Return the index of the color in the palette of the connection,
+     * sending a palette message that defines it if it is new.
+     * Must hold the lock of the ServerSocketHandler.
+     *
+     * @return the index of the color, or -1 if the palette is full
+     */
+    private int _paletteIndex(Color color){
+        Integer index = palette.get(color);
+        if (index != null){
+            return index;
+        }
+        if (palette.size() == MAX_PALETTE_SIZE){
+            return -1;
+        }
+        int newIndex = palette.size();
+        palette.put(color, newIndex);
+        char[] line = new char[3 + 4 + 6];
+        int length = _writePaletteHeader(line, newIndex);
+        length = _writeColor(line, length, color);
+        socketWrapper.bufferLine(line, 0, length);
+        return newIndex;
+    }
+
+    /**
+     * Write the start of a palette message, which defines the colors of
+     * the palette from the index on, into the buffer.
+     * @return the length of the message so far
+     */
+    private int _writePaletteHeader(char[] buffer, int index){
+        String header = "pt " + index + " ";
+        header.getChars(0, header.length(), buffer, 0);
+        return header.length();
+    }
+
+    /**
+     * Write a color as 6 hex characters into the buffer.
+     * @return the index after the color
+     */
+    private int _writeColor(char[] buffer, int index, Color c){
+        writeHex(buffer, index, c.getRed());
+        writeHex(buffer, index+2, c.getGreen());
+        writeHex(buffer, index+4, c.getBlue());
+        return index + 6;
+    }
+
 
     /**
-     * Convert an integer from 0-255 into a 2-byte hex string
+     * Write an integer from 0-255 into the buffer as 2 hex characters
+     * starting at the given index.
      */
-    private String byteToHex(int num){
+    private void writeHex(char[] buffer, int index, int num){
         assert num >= 0;
         assert num <= 255;
-        char msb = nibbleToHex((num & 0xf0) >> 4);
-        char lsb = nibbleToHex(num & 0xf);
-        return new String(new char[]{msb, lsb});
+        buffer[index] = nibbleToHex((num & 0xf0) >> 4);
+        buffer[index+1] = nibbleToHex(num & 0xf);
     }
 
     /**
@@ -1,6 +1,10 @@
 package server;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import common.*;
 import static common.SocketState.*;
@@ -21,6 +25,89 @@ import static common.SocketState.*;
  * None of the methods should throw exceptions. Instead, call clientClose() if
  * something bad happens.
  *
+ * New boards are of the default size unless the client gives a size, up
+ * to Whiteboard.MAX_WIDTH by Whiteboard.MAX_HEIGHT; newBoard() gets error
+ * 200 for a size that is out of range.
+ *
+ * Spectators (spectate()) do not reserve a username, are not listed in the
+ * users of a board, and can not draw or create boards. Their draws are
+ * ignored, and newBoard() gets error 200. On a read-only server (a relay,
+ * see WhiteboardMap.isReadOnly()), only spectators may log in; login()
+ * gets error 100.
+ *
+ * cloneBoard() creates a new board that shares the tiles of an existing one
+ * (see WhiteboardMap.cloneBoard()); the draws of neither board show on the
+ * other. Spectators can not clone boards.
+ *
+ * In a cluster, connecting to (or cloning) a board that is owned by another node calls
+ * redirect() with the address of that node, and the state remains
+ * NOT_CONNECTED.
+ *
+ * If a SessionRegistry is given, a logged in session whose connection is
+ * lost (connectionLost()) is parked in the registry instead, keeping its
+ * username and board membership. The session handler of a new connection
+ * takes it over when resumeSession() is called with the session's resume
+ * token, or the registry calls expire() after the grace period, which
+ * performs the clean up described above.
+ *
+ * The ServerMessageListener is wrapped in a ResumableListener, which is
+ * what gets registered with the board, so that board updates are buffered
+ * while the session is parked.
+ *
+ * The state of the session, new boards, draws, the time that board locks
+ * are held and the time to send board snapshots are recorded in the
+ * ServerMetrics.
+ *
+ * Lines are rasterized into runs of pixels, and fills are flood filled on
+ * the server; both are sent to the listeners of the board as spans
+ * (updateSpans()) instead of pixel by pixel. Lines with a brush wider
+ * than Whiteboard.MAX_BRUSH_WIDTH are ignored.
+ * Shapes are sent as a single updateShape() message, which the listeners
+ * rasterize themselves.
+ *
+ * New boards, draws, fills, shapes and undos are streamed to the followers of the
+ * Replicator of the WhiteboardMap, if it has one. Depending on its
+ * AckMode, the operations on a board return only after the followers
+ * acknowledged the operation.
+ *
+ * Draws, fills, shapes, board connections and disconnections are also emitted as flight
+ * recorder events (see FlightEvent) with the board, the user and the
+ * number of pixels.
+ *
+ * The previous colors of the pixels covered by each draw, fill and shape
+ * are recorded in the UndoHistory of the user on the board, so that
+ * undo() and redo() restore exactly these pixels. The restored pixels are
+ * sent as spans, one updateSpans() per color, followed by a single
+ * updateVersion(). The history is forgotten when the user leaves the board.
+ *
+ * A client may declare the part of the board that it sees with
+ * setViewport(), which is rounded out to whole tiles (see Viewport). Its
+ * listener then drops the updates of the other tiles (see
+ * ResumableListener), so the cost of fanning out a draw depends on how
+ * many clients see it rather than on how many are on the board or how
+ * large the board is. The tiles that become visible when the viewport
+ * moves are streamed tile by tile, as spans with one updateSpans() per
+ * color of the tile, followed by updateVersion() with the version that
+ * they are of. Each connection to a board starts with an empty
+ * viewport, so connectToBoardSuccess() only carries the size of the
+ * board, and the client gets the pixels of the tiles that it sees once
+ * it declares its viewport. A client that reconnects with a version gets
+ * no pixels either: the tiles that it sees are sent again when it
+ * declares its viewport.
+ *
+ * When the last session leaves a board, its tiles are deduplicated with
+ * the tiles of all other boards (see Whiteboard.dedupTiles()).
+ *
+ * Every draw is acknowledged to the drawing client with acknowledgeDraw()
+ * after its updates and the new version of the board, so that the client
+ * can reconcile its prediction of the draw with the order of the board.
+ *
+ * For traced draws, the time spent in each stage on the server is
+ * recorded, and updateTrace() is sent to every listener after the
+ * updates. When the client that drew the line reports with traceApplied()
+ * how long the whole round trip took, the remainder is recorded as the
+ * network time.
+ *
  * Usage:
  *      The methods of this class must be called in the following order:
  *          - SessionHandler()
@@ -30,18 +117,61 @@ import static common.SocketState.*;
  * Rep invariant:
  *      - connectedBoardStruct is not null when in the CONNECTED or
  *        DISCONNECT_PENDING state
- *      - username is not null in any state except the NOT_LOGGED_IN state
+ *      - username is not null in any state except the NOT_LOGGED_IN state,
+ *        unless the session is a spectator, whose username is null
  *
  * Thread safety:
  *      Public interface is not thread-safe. May only be accessed by a
  *          single thread.
  */
 public class SessionHandler implements ClientMessageListener{
+    // Reconnecting clients start from a blank board instead of their copy,
+    // and resumed sessions get the tiles of their viewport instead of a
+    // delta, if more than this fraction of the pixels of the board have
+    // changed
+    private static final int MAX_RESYNC_FRACTION = 4;
+    // Number of traces that are remembered until the client reports them
+    private static final int MAX_PENDING_TRACES = 64;
+
+    // Flight recorder events for the board operations
+    private static final FlightEvent.Type DRAW_LINE_EVENT = FlightEvent.define(
+            "whiteboard.DrawLine", "Draw Line",
+            new String[]{"board", "user", "pixels", "pixelsFannedOut"},
+            new Class<?>[]{int.class, String.class, int.class, long.class});
+    private static final FlightEvent.Type FILL_EVENT = FlightEvent.define(
+            "whiteboard.Fill", "Fill",
+            new String[]{"board", "user", "pixels", "spansFannedOut"},
+            new Class<?>[]{int.class, String.class, int.class, long.class});
+    private static final FlightEvent.Type SHAPE_EVENT = FlightEvent.define(
+            "whiteboard.DrawShape", "Draw Shape",
+            new String[]{"board", "user", "pixels", "kind"},
+            new Class<?>[]{int.class, String.class, int.class, String.class});
+    private static final FlightEvent.Type CONNECT_EVENT = FlightEvent.define(
+            "whiteboard.ConnectToBoard", "Connect To Board",
+            new String[]{"board", "user", "pixels", "snapshot"},
+            new Class<?>[]{int.class, String.class, int.class, boolean.class});
+    private static final FlightEvent.Type DISCONNECT_EVENT = FlightEvent.define(
+            "whiteboard.DisconnectFromBoard", "Disconnect From Board",
+            new String[]{"board", "user"},
+            new Class<?>[]{int.class, String.class});
+
     private final AuthenticationBackend auth;
     private final WhiteboardMap boards;
+    private final SessionRegistry registry;
+    private final ServerMetrics metrics;
     private String username;
-    private ServerMessageListener listener;
+    private boolean spectator;
+    private String resumeToken;
+    private ResumableListener listener;
     private WhiteboardStruct connectedBoardStruct;
+    // time spent on the server for the traces of this client's draws
+    // that it has not reported yet, by trace id
+    private final Map<Long, Long> pendingTraces = new LinkedHashMap<Long, Long>(){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest){
+            return size() > MAX_PENDING_TRACES;
+        }
+    };
 
     private SocketState state;
     private boolean clientInterfaceOpen;
@@ -52,13 +182,40 @@ public class SessionHandler implements ClientMessageListener{
      * @param boards WhiteboardMap which stores all of the boards
      */
     public SessionHandler(AuthenticationBackend auth, WhiteboardMap boards){
+        this(auth, boards, null);
+    }
+
+    /**
+     * Construct with the given parameters
+     * @param auth AuthenticationBackend for managing logins
+     * @param boards WhiteboardMap which stores all of the boards
+     * @param registry SessionRegistry which keeps lost sessions for
+     *      resumption, or null if sessions can not be resumed
+     */
+    public SessionHandler(AuthenticationBackend auth, WhiteboardMap boards, SessionRegistry registry){
+        this(auth, boards, registry, new ServerMetrics());
+    }
+
+    /**
+     * Construct with the given parameters
+     * @param auth AuthenticationBackend for managing logins
+     * @param boards WhiteboardMap which stores all of the boards
+     * @param registry SessionRegistry which keeps lost sessions for
+     *      resumption, or null if sessions can not be resumed
+     * @param metrics ServerMetrics which collects the metrics of all sessions
+     */
+    public SessionHandler(AuthenticationBackend auth, WhiteboardMap boards, SessionRegistry registry,
+            ServerMetrics metrics){
         this.auth = auth;
         this.boards = boards;
+        this.registry = registry;
+        this.metrics = metrics;
         this.listener = null;
         this.connectedBoardStruct = null;
         this.state = NOT_LOGGED_IN;
         this.username = null;
         this.clientInterfaceOpen = true;
+        metrics.sessionStateChanged(null, NOT_LOGGED_IN);
     }
 
     /**
@@ -68,7 +225,7 @@ public class SessionHandler implements ClientMessageListener{
      */
     public void setServerMessageListener(ServerMessageListener listener){
         assert this.listener == null;
-        this.listener = listener;
+        this.listener = new ResumableListener(listener);
     }
 
     /**
@@ -82,10 +239,15 @@ public class SessionHandler implements ClientMessageListener{
 
             this.username = username;
 
-            if (auth.login(username)){
+            if (!boards.isReadOnly() && auth.login(username)){
                 // Successful login
-                state = NOT_CONNECTED;
+                _setState(NOT_CONNECTED);
                 listener.loginSuccess();
+
+                if (registry != null){
+                    resumeToken = registry.newToken();
+                    listener.resumeToken(resumeToken);
+                }
             } else {
                 // Failed login
                 // state will remain == NOT_LOGGED_IN
@@ -94,6 +256,50 @@ public class SessionHandler implements ClientMessageListener{
         }
     }
 
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public void spectate() {
+        if (clientInterfaceOpen){
+            assert listener != null;
+            assert state == NOT_LOGGED_IN;
+
+            spectator = true;
+            _setState(NOT_CONNECTED);
+            listener.loginSuccess();
+
+            if (registry != null){
+                resumeToken = registry.newToken();
+                listener.resumeToken(resumeToken);
+            }
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public void resumeSession(String token) {
+        if (clientInterfaceOpen){
+            assert listener != null;
+            assert state == NOT_LOGGED_IN;
+
+            SessionHandler parked = null;
+            if (registry != null){
+                parked = registry.resume(token);
+            }
+
+            if (parked == null){
+                // Session does not exist or has expired
+                // state will remain == NOT_LOGGED_IN
+                listener.error(300);
+            } else {
+                _resume(parked);
+            }
+        }
+    }
+
     /**
      * @see ClientMessageListener
      */
@@ -103,6 +309,9 @@ public class SessionHandler implements ClientMessageListener{
             assert listener != null;
             assert state == NOT_CONNECTED;
 
+            if (_redirect(id)){
+                return;
+            }
             connectedBoardStruct = boards.getBoard(id);
 
             if (connectedBoardStruct == null){
@@ -111,7 +320,32 @@ public class SessionHandler implements ClientMessageListener{
                 listener.error(200);
             } else {
                 // Board does exist
-                _connectToBoard();
+                _connectToBoard(-1);
+            }
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public void reconnectToBoard(int id, long version) {
+        if (clientInterfaceOpen){
+            assert listener != null;
+            assert state == NOT_CONNECTED;
+
+            if (_redirect(id)){
+                return;
+            }
+            connectedBoardStruct = boards.getBoard(id);
+
+            if (connectedBoardStruct == null){
+                // Board does not exist
+                // state will remain == NOT_CONNECTED
+                listener.error(200);
+            } else {
+                // Board does exist
+                _connectToBoard(version);
             }
         }
     }
@@ -121,12 +355,57 @@ public class SessionHandler implements ClientMessageListener{
      */
     @Override
     public void newBoard() {
+        newBoard(Whiteboard.WIDTH, Whiteboard.HEIGHT);
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public void newBoard(int width, int height) {
         if (clientInterfaceOpen){
             assert listener != null;
             assert state == NOT_CONNECTED;
 
-            connectedBoardStruct = boards.newBoard();
-            _connectToBoard();
+            if (spectator || boards.isReadOnly() || !Whiteboard.isValidSize(width, height)){
+                // state will remain == NOT_CONNECTED
+                listener.error(200);
+                return;
+            }
+            connectedBoardStruct = boards.newBoard(width, height);
+            metrics.addBoard(connectedBoardStruct.getMetrics());
+            _connectToBoard(-1);
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public void cloneBoard(int id) {
+        if (clientInterfaceOpen){
+            assert listener != null;
+            assert state == NOT_CONNECTED;
+
+            if (spectator || boards.isReadOnly()){
+                // state will remain == NOT_CONNECTED
+                listener.error(200);
+                return;
+            }
+            if (_redirect(id)){
+                // the owner of the board makes the copy
+                return;
+            }
+            WhiteboardStruct source = boards.getBoard(id);
+            if (source == null){
+                // Board does not exist
+                // state will remain == NOT_CONNECTED
+                listener.error(200);
+                return;
+            }
+            connectedBoardStruct = boards.cloneBoard(source);
+            metrics.addBoard(connectedBoardStruct.getMetrics());
+            _connectToBoard(-1);
         }
     }
 
@@ -148,23 +427,93 @@ public class SessionHandler implements ClientMessageListener{
      */
     @Override
     public void drawLine(Point p1, Point p2, Color color, int width) {
-        if (clientInterfaceOpen){
+        drawLine(p1, p2, color, width, null);
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public void drawLine(Point p1, Point p2, Color color, int width, Trace trace) {
+        drawPolyline(Arrays.asList(p1, p2), color, width, trace);
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public void drawPolyline(List<Point> points, Color color, int width) {
+        drawPolyline(points, color, width, null);
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public void drawPolyline(List<Point> points, Color color, int width, Trace trace) {
+        if (clientInterfaceOpen && !spectator){
             assert listener != null;
             assert state == CONNECTED;
 
+            if (!Whiteboard.isValidBrushWidth(width)){
+                // too wide to rasterize under the lock of the board
+                return;
+            }
+
+            FlightEvent event = DRAW_LINE_EVENT.begin();
+            Replicator replicator = boards.getReplicator();
+            long entered = System.nanoTime();
             synchronized(connectedBoardStruct){
+                long start = System.nanoTime();
+
                 // draw the line on the whiteboard
                 Whiteboard board = connectedBoardStruct.getWhiteboard();
 
-                List<Point> changedPoints = board.drawLine(
-                        p1, p2, color, width);
+                List<Span> spans = board.polylineSpans(points, width);
+                connectedBoardStruct.getUndoHistory(username).record(UndoHistory.Edit.capture(board, spans));
+                for (Span span: spans){
+                    board.fillSpan(span, color);
+                }
+                int pixels = 0;
+                for (Span span: spans){
+                    pixels += span.getLength();
+                }
 
-                // notify clients of new pixel values
-                for (ServerMessageListener l: connectedBoardStruct.getListeners()){
-                    for (Point p: changedPoints){
-                        l.updatePixel(p, board.getPixel(p));
-                    }
+                long version = connectedBoardStruct.getHistory().recordSpans(spans);
+                if (replicator != null){
+                    replicator.drawPolyline(connectedBoardStruct.getID(), version, points, color, width);
                 }
+                long rasterized = System.nanoTime();
+
+                // notify clients of the runs of new pixel values
+                List<ServerMessageListener> listeners = connectedBoardStruct.getListeners();
+                for (ServerMessageListener l: listeners){
+                    l.updateSpans(spans, color);
+                    l.updateVersion(version);
+                }
+                listener.acknowledgeDraw(version);
+
+                if (trace != null){
+                    _sendTrace(trace, entered, start, rasterized);
+                }
+
+                BoardMetrics boardMetrics = connectedBoardStruct.getMetrics();
+                metrics.recordDraw(boardMetrics, (long) pixels * listeners.size());
+                metrics.recordLockHold(boardMetrics, System.nanoTime() - start);
+
+                if (event.isEnabled()){
+                    event.set(0, connectedBoardStruct.getID());
+                    event.set(1, username);
+                    event.set(2, pixels);
+                    event.set(3, (long) pixels * listeners.size());
+                    event.commit();
+                }
+            }
+
+            if (replicator != null){
+                // outside of the lock, so that other sessions can
+                // draw on the board in the meantime
+                replicator.awaitAcks();
             }
         }
     }
@@ -173,59 +522,416 @@ public class SessionHandler implements ClientMessageListener{
      * @see ClientMessageListener
      */
     @Override
-    public void clientClose() {
-        if (clientInterfaceOpen){
+    public void fill(Point seed, Color color) {
+        if (clientInterfaceOpen && !spectator){
             assert listener != null;
+            assert state == CONNECTED;
 
-            if (state == CONNECTED){
-                // If currently connected to a board, disconnect from it
-                _disconnectFromBoard(false);
+            // the size of a board never changes, so it can be read
+            // without the lock
+            if (!connectedBoardStruct.getWhiteboard().checkPointInBounds(seed)){
+                return;
             }
 
-            if (state != NOT_LOGGED_IN){
-                // If logged in, then log out
-                assert username != null;
-                auth.logout(username);
+            FlightEvent event = FILL_EVENT.begin();
+            Replicator replicator = boards.getReplicator();
+            synchronized(connectedBoardStruct){
+                long start = System.nanoTime();
+
+                Whiteboard board = connectedBoardStruct.getWhiteboard();
+                Color previous = board.getPixel(seed);
+                List<Span> spans = board.fill(seed, color);
+                if (!spans.isEmpty()){
+                    connectedBoardStruct.getUndoHistory(username).record(UndoHistory.Edit.capture(spans, previous));
+                }
+                long version = connectedBoardStruct.getHistory().recordSpans(spans);
+                if (replicator != null){
+                    replicator.fill(connectedBoardStruct.getID(), version, seed, color);
+                }
+
+                // notify clients of the filled spans
+                List<ServerMessageListener> listeners = connectedBoardStruct.getListeners();
+                for (ServerMessageListener l: listeners){
+                    l.updateSpans(spans, color);
+                    l.updateVersion(version);
+                }
+                listener.acknowledgeDraw(version);
+
+                int pixels = 0;
+                for (Span span: spans){
+                    pixels += span.getLength();
+                }
+                BoardMetrics boardMetrics = connectedBoardStruct.getMetrics();
+                metrics.recordDraw(boardMetrics, (long) pixels * listeners.size());
+                metrics.recordLockHold(boardMetrics, System.nanoTime() - start);
+
+                if (event.isEnabled()){
+                    event.set(0, connectedBoardStruct.getID());
+                    event.set(1, username);
+                    event.set(2, pixels);
+                    event.set(3, (long) spans.size() * listeners.size());
+                    event.commit();
+                }
             }
 
+            if (replicator != null){
+                replicator.awaitAcks();
+            }
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public void drawShape(Shape shape) {
+        if (clientInterfaceOpen && !spectator){
+            assert listener != null;
+            assert state == CONNECTED;
+
+            FlightEvent event = SHAPE_EVENT.begin();
+            Replicator replicator = boards.getReplicator();
+            synchronized(connectedBoardStruct){
+                long start = System.nanoTime();
+
+                Whiteboard board = connectedBoardStruct.getWhiteboard();
+                List<Span> spans = shape.getSpans(board.getWidth(), board.getHeight());
+                connectedBoardStruct.getUndoHistory(username).record(UndoHistory.Edit.capture(board, spans));
+                for (Span span: spans){
+                    board.fillSpan(span, shape.getColor());
+                }
+                long version = connectedBoardStruct.getHistory().recordSpans(spans);
+                if (replicator != null){
+                    replicator.drawShape(connectedBoardStruct.getID(), version, shape);
+                }
+
+                // notify clients of the shape, which they rasterize
+                List<ServerMessageListener> listeners = connectedBoardStruct.getListeners();
+                for (ServerMessageListener l: listeners){
+                    l.updateShape(shape);
+                    l.updateVersion(version);
+                }
+                listener.acknowledgeDraw(version);
+
+                int pixels = 0;
+                for (Span span: spans){
+                    pixels += span.getLength();
+                }
+                BoardMetrics boardMetrics = connectedBoardStruct.getMetrics();
+                metrics.recordDraw(boardMetrics, (long) pixels * listeners.size());
+                metrics.recordLockHold(boardMetrics, System.nanoTime() - start);
+
+                if (event.isEnabled()){
+                    event.set(0, connectedBoardStruct.getID());
+                    event.set(1, username);
+                    event.set(2, pixels);
+                    event.set(3, shape.getKind().toString());
+                    event.commit();
+                }
+            }
+
+            if (replicator != null){
+                replicator.awaitAcks();
+            }
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public void undo() {
+        if (clientInterfaceOpen && !spectator){
+            assert listener != null;
+            assert state == CONNECTED;
+
+            _restore(true);
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public void redo() {
+        if (clientInterfaceOpen && !spectator){
+            assert listener != null;
+            assert state == CONNECTED;
+
+            _restore(false);
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public void setViewport(int x, int y, int width, int height) {
+        if (clientInterfaceOpen && state == CONNECTED){
+            assert listener != null;
+
+            synchronized(connectedBoardStruct){
+                long start = System.nanoTime();
+
+                Whiteboard board = connectedBoardStruct.getWhiteboard();
+                Viewport viewport = Viewport.of(x, y, width, height);
+                Viewport old = listener.getViewport();
+                listener.setViewport(viewport);
+
+                // the tiles that become visible were not updated while
+                // they were hidden, so send them as they are now, which
+                // is the current version
+                List<Point> tiles = viewport.subtract(old, board.getTilesX(), board.getTilesY());
+                for (Point tile: tiles){
+                    _sendTile(board, tile);
+                }
+                if (!tiles.isEmpty()){
+                    listener.updateVersion(connectedBoardStruct.getHistory().getVersion());
+                }
+
+                metrics.recordLockHold(connectedBoardStruct.getMetrics(), System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public void traceApplied(long traceId, long totalNanos, long applyNanos) {
+        if (clientInterfaceOpen){
+            metrics.recordTrace(ServerMetrics.TraceStage.APPLY, applyNanos);
+
+            Long serverNanos = null;
+            if (totalNanos >= 0){
+                serverNanos = pendingTraces.remove(traceId);
+            }
+            if (serverNanos != null){
+                // what is left of the round trip was spent on the way
+                // to and from the client
+                metrics.recordTrace(ServerMetrics.TraceStage.NETWORK, totalNanos - serverNanos - applyNanos);
+                metrics.recordTrace(ServerMetrics.TraceStage.TOTAL, totalNanos);
+            }
+        }
+    }
+
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public void clientClose() {
+        if (clientInterfaceOpen){
+            assert listener != null;
+
+            _release();
+
             // notify the server listener to close
             listener.serverClose();
 
             // stop responding to all client messages
             clientInterfaceOpen = false;
+            metrics.sessionStateChanged(state, null);
         }
     }
 
+    /**
+     * @see ClientMessageListener
+     */
+    @Override
+    public void connectionLost() {
+        if (clientInterfaceOpen){
+            assert listener != null;
+
+            if (registry == null || state == NOT_LOGGED_IN){
+                // nothing worth keeping
+                clientClose();
+                return;
+            }
+
+            // close the lost connection, and buffer board
+            // updates until the session is resumed
+            ServerMessageListener lost = listener.getTarget();
+            listener.detach();
+            lost.serverClose();
+
+            // stop responding to client messages from this connection
+            clientInterfaceOpen = false;
+
+            registry.park(resumeToken, this);
+        }
+    }
+
+    /**
+     * Clean up a parked session that was not resumed in time: leave the
+     * board and log out.
+     *
+     * Should only be called by the SessionRegistry that the session is
+     * parked in, after removing it.
+     */
+    public void expire(){
+        assert !clientInterfaceOpen;
+        _release();
+        metrics.sessionStateChanged(state, null);
+    }
 
     /**
-     * Contains logic common to "connectToBoard" and "newBoard".
+     * Contains logic common to "clientClose" and "expire": disconnect
+     * from the board if connected, and log out if logged in.
      */
-    private void _connectToBoard(){
+    private void _release(){
+        if (state == CONNECTED){
+            // If currently connected to a board, disconnect from it
+            _disconnectFromBoard(false);
+        }
+
+        if (state != NOT_LOGGED_IN && !spectator){
+            // If logged in, then log out
+            assert username != null;
+            auth.logout(username);
+        }
+    }
+
+    /**
+     * Take over the state of the parked session, and attach this
+     * connection to it.
+     * @param parked: the session that lost its connection
+     */
+    private void _resume(SessionHandler parked){
+        ServerMessageListener connection = listener.getTarget();
+
+        this.username = parked.username;
+        this.spectator = parked.spectator;
+        this.resumeToken = parked.resumeToken;
+        this.connectedBoardStruct = parked.connectedBoardStruct;
+        this.listener = parked.listener;
+        // the parked session ends, and this one continues in its state
+        metrics.sessionStateChanged(parked.state, null);
+        _setState(parked.state);
+
+        if (state != CONNECTED){
+            connection.resumeSessionSuccess(state);
+            listener.attach(connection);
+            return;
+        }
+
+        // hold the board lock so that no updates are sent while the
+        // connection catches up
+        synchronized(connectedBoardStruct){
+            long start = System.nanoTime();
+            _catchUp(connection);
+            metrics.recordLockHold(connectedBoardStruct.getMetrics(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Attach the new connection of a resumed session that is connected
+     * to a board, and bring its copy of the board up to date.
+     * Must hold the lock of connectedBoardStruct.
+     * @param connection: the listener of the new connection
+     */
+    private void _catchUp(ServerMessageListener connection){
+        if (!listener.hasOverflowed()){
+            // replay the updates that were buffered in the meantime
+            connection.resumeSessionSuccess(CONNECTED);
+            listener.attach(connection);
+            return;
+        }
+
+        // too many updates were missed: resynchronize the board
+        BoardHistory history = connectedBoardStruct.getHistory();
+        int[] changes = history.changesSince(listener.getLastVersion());
+        if (changes != null && changes.length <= _maxResyncPixels()){
+            connection.resumeSessionSuccess(CONNECTED);
+            listener.attach(connection);
+            listener.updateUsers(connectedBoardStruct.getUsers());
+            _sendPixels(changes);
+        } else {
+            connection.resumeSessionSuccess(CONNECT_PENDING);
+            listener.attach(connection);
+            _sendSnapshot();
+        }
+        listener.updateVersion(history.getVersion());
+    }
+
+    /**
+     * Redirect the client if the board is owned by another node of
+     * the cluster.
+     * @param id: the id of the requested board
+     * @return true if the client was redirected
+     */
+    private boolean _redirect(int id){
+        ClusterRing.Node owner = boards.getRemoteOwner(id);
+        if (owner == null){
+            return false;
+        }
+        // state will remain == NOT_CONNECTED
+        listener.redirect(id, owner.getHost(), owner.getPort());
+        return true;
+    }
+
+    /**
+     * Contains logic common to "connectToBoard", "reconnectToBoard",
+     * "newBoard" and "cloneBoard".
+     * @param version: the version of the client's copy of the board,
+     *      or -1 if the client has no copy
+     */
+    private void _connectToBoard(long version){
         assert connectedBoardStruct != null;
         assert listener != null;
-        assert username != null;
+        assert username != null || spectator;
 
         // change state
-        state = CONNECTED;
+        _setState(CONNECTED);
 
+        FlightEvent event = CONNECT_EVENT.begin();
         synchronized(connectedBoardStruct){
-            // add the username to the board
-            connectedBoardStruct.getUsers().add(username);
+            long start = System.nanoTime();
+
+            if (!spectator){
+                // add the username to the board
+                connectedBoardStruct.getUsers().add(username);
 
-            // notify other clients that user has connected
-            _notifyUsernamesChanged();
+                // notify other clients that user has connected
+                _notifyUsernamesChanged();
+            }
 
             // add a listener to the whiteboard object
-            // to receive updates
+            // to receive updates, of no tile until the client declares
+            // its viewport
+            listener.setViewport(Viewport.NONE);
             connectedBoardStruct.getListeners().add(listener);
 
             // the response to the client must occur within the synchronized block
             // to ensure that this message arrives at the client before
             // any updatePixel or updateUsers messages
-            listener.connectToBoardSuccess(
-                    connectedBoardStruct.getID(),
-                    connectedBoardStruct.getUsers(),
-                    connectedBoardStruct.getWhiteboard());
+            BoardHistory history = connectedBoardStruct.getHistory();
+            int[] changes = null;
+            if (version >= 0){
+                changes = history.changesSince(version);
+            }
+
+            boolean snapshot = changes == null || changes.length > _maxResyncPixels();
+            if (!snapshot){
+                // the client's copy is recent enough to keep showing
+                // until the tiles that it sees are sent
+                listener.resyncBoardSuccess(
+                        connectedBoardStruct.getID(),
+                        connectedBoardStruct.getUsers());
+            } else {
+                _sendSnapshot();
+            }
+            listener.updateVersion(history.getVersion());
+
+            metrics.recordLockHold(connectedBoardStruct.getMetrics(), System.nanoTime() - start);
+
+            if (event.isEnabled()){
+                event.set(0, connectedBoardStruct.getID());
+                event.set(1, username);
+                Whiteboard board = connectedBoardStruct.getWhiteboard();
+                event.set(2, snapshot ? board.getWidth()*board.getHeight() : changes.length);
+                event.set(3, snapshot);
+                event.commit();
+            }
         }
     }
 
@@ -235,24 +941,215 @@ public class SessionHandler implements ClientMessageListener{
     private void _disconnectFromBoard(boolean sendDisconnectSuccess){
         assert state == CONNECTED;
         assert listener != null;
-        assert username != null;
+        assert username != null || spectator;
 
         // change state
-        state = NOT_CONNECTED;
+        _setState(NOT_CONNECTED);
 
+        FlightEvent event = DISCONNECT_EVENT.begin();
         synchronized(connectedBoardStruct){
+            long start = System.nanoTime();
+
             // remove the whiteboard listener
             connectedBoardStruct.getListeners().remove(listener);
 
-            // remove the username
-            connectedBoardStruct.getUsers().remove(username);
-            // notify clients after removing this session's listener
-            _notifyUsernamesChanged();
+            if (!spectator){
+                // remove the username, and forget what it can undo
+                connectedBoardStruct.getUsers().remove(username);
+                connectedBoardStruct.removeUndoHistory(username);
+                // notify clients after removing this session's listener
+                _notifyUsernamesChanged();
+            }
 
             if (sendDisconnectSuccess){
                 listener.disconnectFromBoardSuccess();
             }
+
+            if (connectedBoardStruct.getListeners().isEmpty()){
+                // nobody is drawing on the board for now, so store its
+                // tiles once with the equal tiles of other boards
+                connectedBoardStruct.getWhiteboard().dedupTiles();
+            }
+
+            metrics.recordLockHold(connectedBoardStruct.getMetrics(), System.nanoTime() - start);
+
+            if (event.isEnabled()){
+                event.set(0, connectedBoardStruct.getID());
+                event.set(1, username);
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Contains logic common to "undo" and "redo": restore the pixels of
+     * the user's last draw (or undo), and send them to the listeners of
+     * the board as one batch of spans per color, with one new version.
+     * @param undo: true to undo, false to redo
+     */
+    private void _restore(boolean undo){
+        Replicator replicator = boards.getReplicator();
+        synchronized(connectedBoardStruct){
+            long start = System.nanoTime();
+
+            Whiteboard board = connectedBoardStruct.getWhiteboard();
+            UndoHistory undoHistory = connectedBoardStruct.getUndoHistory(username);
+            UndoHistory.Edit edit = undo ? undoHistory.undo(board) : undoHistory.redo(board);
+            if (edit == null){
+                // nothing to undo or redo
+                return;
+            }
+
+            Map<Color, List<Span>> spans = edit.getSpans();
+            long version = connectedBoardStruct.getHistory().recordSpans(edit.getAllSpans());
+            if (replicator != null){
+                replicator.restoreSpans(connectedBoardStruct.getID(), version, spans);
+            }
+
+            List<ServerMessageListener> listeners = connectedBoardStruct.getListeners();
+            for (ServerMessageListener l: listeners){
+                for (Map.Entry<Color, List<Span>> e: spans.entrySet()){
+                    l.updateSpans(e.getValue(), e.getKey());
+                }
+                l.updateVersion(version);
+            }
+
+            BoardMetrics boardMetrics = connectedBoardStruct.getMetrics();
+            metrics.recordDraw(boardMetrics, (long) edit.getPixelCount() * listeners.size());
+            metrics.recordLockHold(boardMetrics, System.nanoTime() - start);
+        }
+
+        if (replicator != null){
+            replicator.awaitAcks();
+        }
+    }
+
+    /**
+     * Send the board to the client, followed by the tiles of the viewport
+     * of the session, and record the time that encoding and sending them
+     * took.
+     * Must hold the lock of connectedBoardStruct.
+     */
+    private void _sendSnapshot(){
+        long start = System.nanoTime();
+        Whiteboard board = connectedBoardStruct.getWhiteboard();
+        listener.connectToBoardSuccess(
+                connectedBoardStruct.getID(),
+                connectedBoardStruct.getUsers(),
+                board);
+        for (Point tile: listener.getViewport().subtract(Viewport.NONE, board.getTilesX(), board.getTilesY())){
+            _sendTile(board, tile);
         }
+        metrics.recordSnapshot(System.nanoTime() - start);
+    }
+
+    /**
+     * Change the state of the session, and count it in the metrics.
+     */
+    private void _setState(SocketState newState){
+        metrics.sessionStateChanged(state, newState);
+        state = newState;
+    }
+
+    /**
+     * Send updateTrace() to all listeners of the board after the updates
+     * of a traced draw, and record the time spent in each stage.
+     * Must hold the lock of connectedBoardStruct.
+     * @param trace: the trace, with the time at which it was received
+     * @param entered: when drawLine() was called
+     * @param locked: when the board lock was acquired
+     * @param rasterized: when the line had been drawn on the board
+     */
+    private void _sendTrace(Trace trace, long entered, long locked, long rasterized){
+        long encoded = System.nanoTime();
+        metrics.recordTrace(ServerMetrics.TraceStage.PARSE, entered - trace.getNanos());
+        metrics.recordTrace(ServerMetrics.TraceStage.LOCK_WAIT, locked - entered);
+        metrics.recordTrace(ServerMetrics.TraceStage.RASTERIZE, rasterized - locked);
+        metrics.recordTrace(ServerMetrics.TraceStage.ENCODE, encoded - rasterized);
+
+        long ownOutbound = 0;
+        for (ServerMessageListener l: connectedBoardStruct.getListeners()){
+            // sending the trace flushes the updates queued before it
+            long sent = System.nanoTime();
+            l.updateTrace(new Trace(trace.getID(), sent));
+            long outbound = System.nanoTime() - sent;
+            metrics.recordTrace(ServerMetrics.TraceStage.OUTBOUND, outbound);
+            if (l == listener){
+                ownOutbound = outbound;
+            }
+        }
+        pendingTraces.put(trace.getID(), encoded - trace.getNanos() + ownOutbound);
+    }
+
+    /**
+     * Send the current color of the given pixels to the client, as spans
+     * with one updateSpans() per color.
+     * Must hold the lock of connectedBoardStruct.
+     * @param positions: pixel positions packed as y*width + x, where
+     *      width is the number of columns of the board, in increasing
+     *      order
+     */
+    private void _sendPixels(int[] positions){
+        Whiteboard board = connectedBoardStruct.getWhiteboard();
+        int width = board.getWidth();
+        List<Span> spans = new ArrayList<Span>();
+        int i = 0;
+        while (i < positions.length){
+            // the run of consecutive positions on the same row
+            int first = positions[i];
+            int y = first / width;
+            int last = first;
+            i ++;
+            while (i < positions.length && positions[i] == last + 1 && positions[i] / width == y){
+                last = positions[i];
+                i ++;
+            }
+            spans.add(new Span(y, first % width, last % width));
+        }
+        _sendSpans(board, spans);
+    }
+
+
+    /**
+     * Send the current pixels of a tile of the board to the client, as
+     * spans with one updateSpans() per color.
+     * Must hold the lock of connectedBoardStruct.
+     * @param board: the board of connectedBoardStruct
+     * @param tile: the coordinates (column, row) of the tile
+     */
+    private void _sendTile(Whiteboard board, Point tile){
+        int x1 = tile.getX()*Whiteboard.TILE_SIZE;
+        int x2 = Math.min(x1 + Whiteboard.TILE_SIZE, board.getWidth()) - 1;
+        int y1 = tile.getY()*Whiteboard.TILE_SIZE;
+        int y2 = Math.min(y1 + Whiteboard.TILE_SIZE, board.getHeight()) - 1;
+        List<Span> rows = new ArrayList<Span>(y2 - y1 + 1);
+        for (int y = y1; y <= y2; y ++){
+            rows.add(new Span(y, x1, x2));
+        }
+        _sendSpans(board, rows);
+    }
+
+    /**
+     * Send the current pixels of the spans to the client, with one
+     * updateSpans() per color.
+     * Must hold the lock of connectedBoardStruct.
+     * @param board: the board of connectedBoardStruct
+     * @param spans: the spans of the board to send
+     */
+    private void _sendSpans(Whiteboard board, List<Span> spans){
+        UndoHistory.Edit pixels = UndoHistory.Edit.capture(board, spans);
+        for (Map.Entry<Color, List<Span>> e: pixels.getSpans().entrySet()){
+            listener.updateSpans(e.getValue(), e.getKey());
+        }
+    }
+
+    /**
+     * @return the largest number of changed pixels that a reconnecting
+     *      client is sent instead of a snapshot of connectedBoardStruct
+     */
+    private int _maxResyncPixels(){
+        Whiteboard board = connectedBoardStruct.getWhiteboard();
+        return board.getWidth()*board.getHeight()/MAX_RESYNC_FRACTION;
     }
 
     /**
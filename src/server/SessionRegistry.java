@@ -0,0 +1,101 @@
+package server;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.concurrent.*;
+
+/**
+ * Keeps the sessions whose connection was lost, so that a new connection
+ * can resume them within a grace period.
+ *
+ * A session that is parked under its resume token is expired (logged out
+ * and removed from its board) if it is not resumed within the grace
+ * period. Exactly one of resume() and the expiry wins for every parked
+ * session.
+ *
+ * Thread safety:
+ *      Is thread-safe: uses the monitor pattern, so all methods are
+ *      synchronized. Sessions are expired from a single background thread.
+ */
+public class SessionRegistry {
+    // Default time (in milliseconds) that a lost session is kept
+    public static final long DEFAULT_GRACE_PERIOD = 30*1000;
+
+    private static final ScheduledExecutorService expirer =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r){
+                Thread t = new Thread(r, "SessionRegistry-expirer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private final SecureRandom random = new SecureRandom();
+    private final HashMap<String, SessionHandler> parked = new HashMap<String, SessionHandler>();
+    private final long gracePeriod;
+
+    /**
+     * Construct an empty registry with the default grace period.
+     */
+    public SessionRegistry(){
+        this(DEFAULT_GRACE_PERIOD);
+    }
+
+    /**
+     * Construct an empty registry.
+     * @param gracePeriod: time in milliseconds that a lost session is kept
+     */
+    public SessionRegistry(long gracePeriod){
+        this.gracePeriod = gracePeriod;
+    }
+
+    /**
+     * @return a new, unguessable resume token
+     */
+    public synchronized String newToken(){
+        return new BigInteger(128, random).toString(16);
+    }
+
+    /**
+     * Keep the session under the given token until it is resumed or
+     * the grace period has elapsed, in which case session.expire() is
+     * called.
+     * @param token: the resume token of the session
+     * @param session: the session that lost its connection
+     */
+    public synchronized void park(final String token, final SessionHandler session){
+        assert !parked.containsKey(token);
+        parked.put(token, session);
+
+        expirer.schedule(new Runnable(){
+            public void run(){
+                if (_remove(token, session)){
+                    session.expire();
+                }
+            }
+        }, gracePeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Take the parked session with the given token, so that it will not
+     * expire.
+     * @param token: the resume token presented by the client
+     * @return the parked session, or null if there is none
+     */
+    public synchronized SessionHandler resume(String token){
+        return parked.remove(token);
+    }
+
+    /**
+     * Remove the session from the registry if it is still parked.
+     * @return true if the session was removed
+     */
+    private synchronized boolean _remove(String token, SessionHandler session){
+        if (parked.get(token) == session){
+            parked.remove(token);
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,650 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import common.Color;
+import common.Span;
+import common.Whiteboard;
+
+/**
+ * The undo and redo stacks of one user on one board.
+ *
+ * Every draw of the user records an Edit with the colors that the pixels
+ * it covered had before, as runs of pixels of the same color. Undoing
+ * restores exactly these pixels, and records the colors that they had
+ * before the undo on the redo stack, so that redoing restores them in
+ * turn. A new draw clears the redo stack.
+ *
+ * The edits are kept in memory up to memoryCap bytes; the oldest undo
+ * edits beyond that are spilled to temporary files, and read back when
+ * they are undone. The spilled edits are limited to diskCap bytes, and
+ * the oldest ones are forgotten beyond that. Redo edits are never
+ * spilled: the oldest ones are forgotten if they alone exceed memoryCap.
+ *
+ * Spilling happens on a background thread, so that drawing never waits
+ * for the disk while it holds the lock of the board: record() only hands
+ * the evicted edits to the Spill of the history, which appends them to
+ * the files later, and never holds its lock during a write. The files are segments of up to diskCap/8 bytes,
+ * which are deleted once all of their edits are forgotten, so the spilled
+ * edits are never moved, and the files take at most one segment more
+ * than diskCap. Undoing an edit that is only on disk reads it back under
+ * the lock of the board.
+ *
+ * The caps default to the system properties whiteboard.undoMemory and
+ * whiteboard.undoDisk (in bytes).
+ *
+ * Rep invariant:
+ *      - memoryBytes is the sum of the sizes of the edits of undoStack
+ *        and redoStack
+ *      - memoryBytes <= memoryCap, unless undoStack is empty
+ *      - the edits of spill are all older than the edits of undoStack
+ *
+ * Thread safety:
+ *      Not thread safe. Access must be protected by the lock of the
+ *          WhiteboardStruct that owns the history. The spilled edits are
+ *          written by a background thread shared by all histories.
+ */
+public class UndoHistory {
+    // Default maximum number of bytes of edits kept in memory per user
+    public static final int DEFAULT_MEMORY_CAP =
+            Integer.getInteger("whiteboard.undoMemory", 1024*1024);
+    // Default maximum number of bytes of edits spilled to disk per user
+    public static final long DEFAULT_DISK_CAP =
+            Long.getLong("whiteboard.undoDisk", 64L*1024*1024);
+
+    /**
+     * The colors of runs of pixels, which can be restored on a board.
+     *
+     * Rep invariant:
+     *      - runs holds 3 ints per run: y*Whiteboard.MAX_WIDTH + x1, x2, and
+     *        the color as 0xrrggbb
+     *      - the runs do not overlap
+     *
+     * Thread safety:
+     *      It is immutable and thread safe.
+     */
+    public static class Edit {
+        private final int[] runs;
+
+        private Edit(int[] runs){
+            this.runs = runs;
+        }
+
+        /**
+         * Record the current colors of the pixels of the spans.
+         * @param board: the board to read the pixels of
+         * @param spans: the runs of pixels to record, which do not overlap
+         * @return the edit that restores these colors
+         */
+        public static Edit capture(Whiteboard board, List<Span> spans){
+            int[] runs = new int[3*spans.size()];
+            int count = 0;
+            for (Span span: spans){
+                int y = span.getY();
+                int start = span.getX1();
+                Color color = board.getPixel(start, y);
+                for (int x = start + 1; x <= span.getX2() + 1; x ++){
+                    Color next = x <= span.getX2() ? board.getPixel(x, y) : null;
+                    if (next != null && (next == color || next.equals(color))){
+                        continue;
+                    }
+                    int rgb = _rgb(color);
+                    if (count > 0 && runs[count-3] / Whiteboard.MAX_WIDTH == y
+                            && runs[count-2] == start - 1 && runs[count-1] == rgb){
+                        // continues the last run of an adjacent span
+                        runs[count-2] = x - 1;
+                    } else {
+                        if (count + 3 > runs.length){
+                            runs = Arrays.copyOf(runs, runs.length*2);
+                        }
+                        runs[count++] = y*Whiteboard.MAX_WIDTH + start;
+                        runs[count++] = x - 1;
+                        runs[count++] = rgb;
+                    }
+                    start = x;
+                    color = next;
+                }
+            }
+            return new Edit(Arrays.copyOf(runs, count));
+        }
+
+        /**
+         * Record that the pixels of the spans all had the same color,
+         * such as the area of a flood fill.
+         * @param spans: the runs of pixels, which do not overlap
+         * @param color: the color that they had
+         * @return the edit that restores this color
+         */
+        public static Edit capture(List<Span> spans, Color color){
+            int[] runs = new int[3*spans.size()];
+            int i = 0;
+            for (Span span: spans){
+                runs[i++] = span.getY()*Whiteboard.MAX_WIDTH + span.getX1();
+                runs[i++] = span.getX2();
+                runs[i++] = _rgb(color);
+            }
+            return new Edit(runs);
+        }
+
+        /**
+         * @return the runs of the edit, grouped by the color that they
+         *      restore, in the order of their first run
+         */
+        public Map<Color, List<Span>> getSpans(){
+            Map<Color, List<Span>> groups = new LinkedHashMap<Color, List<Span>>();
+            for (int i = 0; i < runs.length; i += 3){
+                Color color = _color(runs[i+2]);
+                List<Span> spans = groups.get(color);
+                if (spans == null){
+                    spans = new ArrayList<Span>();
+                    groups.put(color, spans);
+                }
+                spans.add(_span(i));
+            }
+            return groups;
+        }
+
+        /**
+         * @return the runs of the edit, in order
+         */
+        public List<Span> getAllSpans(){
+            List<Span> spans = new ArrayList<Span>(runs.length/3);
+            for (int i = 0; i < runs.length; i += 3){
+                spans.add(_span(i));
+            }
+            return spans;
+        }
+
+        /**
+         * @return the number of pixels that the edit restores
+         */
+        public int getPixelCount(){
+            int pixels = 0;
+            for (int i = 0; i < runs.length; i += 3){
+                pixels += runs[i+1] - runs[i] % Whiteboard.MAX_WIDTH + 1;
+            }
+            return pixels;
+        }
+
+        /**
+         * @return the approximate number of bytes of memory that the edit
+         *      takes
+         */
+        public int getSize(){
+            return 16 + 4*runs.length;
+        }
+
+        /**
+         * Restore the colors of the edit on the board.
+         * @param board: the board to restore the pixels of
+         * @return the edit that restores the colors that the pixels had
+         *      before
+         */
+        public Edit apply(Whiteboard board){
+            List<Span> spans = getAllSpans();
+            Edit inverse = capture(board, spans);
+            for (int i = 0; i < spans.size(); i ++){
+                board.fillSpan(spans.get(i), _color(runs[3*i+2]));
+            }
+            return inverse;
+        }
+
+        private Span _span(int i){
+            return new Span(runs[i] / Whiteboard.MAX_WIDTH, runs[i] % Whiteboard.MAX_WIDTH, runs[i+1]);
+        }
+
+        private static int _rgb(Color color){
+            return (color.getRed() << 16) | (color.getGreen() << 8) | color.getBlue();
+        }
+
+        private static Color _color(int rgb){
+            return Color.valueOf((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+        }
+    }
+
+    private final int memoryCap;
+    private final long diskCap;
+    private final ArrayDeque<Edit> undoStack = new ArrayDeque<Edit>();
+    private final ArrayDeque<Edit> redoStack = new ArrayDeque<Edit>();
+    private long memoryBytes;
+    private final Spill spill;
+
+    /**
+     * Construct an empty history with the default caps.
+     */
+    public UndoHistory(){
+        this(DEFAULT_MEMORY_CAP, DEFAULT_DISK_CAP);
+    }
+
+    /**
+     * Construct an empty history.
+     * @param memoryCap: maximum number of bytes of edits kept in memory
+     * @param diskCap: maximum number of bytes of edits spilled to disk,
+     *      or 0 to forget the edits instead of spilling them
+     */
+    public UndoHistory(int memoryCap, long diskCap){
+        assert memoryCap > 0 && diskCap >= 0;
+        this.memoryCap = memoryCap;
+        this.diskCap = diskCap;
+        this.spill = new Spill(diskCap);
+    }
+
+    /**
+     * Record a new draw, and clear the redo stack.
+     * @param edit: the edit that restores the pixels that the draw covered
+     */
+    public void record(Edit edit){
+        for (Edit e: redoStack){
+            memoryBytes -= e.getSize();
+        }
+        redoStack.clear();
+        _pushUndo(edit);
+    }
+
+    /**
+     * Undo the last draw (or redo) that has not been undone.
+     * @param board: the board to restore the pixels of
+     * @return the edit that was applied to the board, or null if there is
+     *      nothing to undo
+     */
+    public Edit undo(Whiteboard board){
+        Edit edit = undoStack.pollLast();
+        if (edit != null){
+            memoryBytes -= edit.getSize();
+        } else {
+            edit = spill.pollLast();
+            if (edit == null){
+                return null;
+            }
+        }
+
+        Edit inverse = edit.apply(board);
+        redoStack.addLast(inverse);
+        memoryBytes += inverse.getSize();
+        while (memoryBytes > memoryCap && redoStack.size() > 1){
+            memoryBytes -= redoStack.removeFirst().getSize();
+        }
+        return edit;
+    }
+
+    /**
+     * Redo the last undo that has not been redone, unless a draw was
+     * recorded since.
+     * @param board: the board to restore the pixels of
+     * @return the edit that was applied to the board, or null if there is
+     *      nothing to redo
+     */
+    public Edit redo(Whiteboard board){
+        Edit edit = redoStack.pollLast();
+        if (edit == null){
+            return null;
+        }
+        memoryBytes -= edit.getSize();
+        _pushUndo(edit.apply(board));
+        return edit;
+    }
+
+    /**
+     * @return the number of edits that can be undone
+     */
+    public int getUndoCount(){
+        return undoStack.size() + spill.size();
+    }
+
+    /**
+     * @return the number of edits that can be redone
+     */
+    public int getRedoCount(){
+        return redoStack.size();
+    }
+
+    /**
+     * @return the number of undo edits that are spilled to disk
+     */
+    public int getSpilledCount(){
+        return spill.size();
+    }
+
+    /**
+     * Wait until the spilled edits have been written to disk, and the
+     * oldest ones beyond the disk cap forgotten.
+     */
+    public void awaitSpill(){
+        spill.await();
+    }
+
+    /**
+     * @return the approximate number of bytes of memory that the edits take
+     */
+    public long getMemoryBytes(){
+        return memoryBytes;
+    }
+
+    /**
+     * Forget all edits, and delete the spill files.
+     */
+    public void close(){
+        undoStack.clear();
+        redoStack.clear();
+        memoryBytes = 0;
+        spill.close();
+    }
+
+    /**
+     * Push the edit on the undo stack, and spill the oldest edits if the
+     * memory cap is exceeded.
+     */
+    private void _pushUndo(Edit edit){
+        undoStack.addLast(edit);
+        memoryBytes += edit.getSize();
+        while (memoryBytes > memoryCap && !undoStack.isEmpty()){
+            Edit oldest = undoStack.removeFirst();
+            memoryBytes -= oldest.getSize();
+            if (diskCap > 0){
+                spill.add(oldest);
+            }
+        }
+    }
+
+    /**
+     * The undo edits of a history that were evicted from memory, which a
+     * background thread writes to segment files of their own.
+     *
+     * Every spilled edit is a record of 4 bytes of length (in ints)
+     * followed by its runs. The edits that are not written yet are newer
+     * than the ones that are, so the newest edit is the last pending one,
+     * or else the one being written, or else the last record of the
+     * newest segment.
+     *
+     * The writer takes the lock only to take the oldest pending edit and
+     * reserve its offset, and then to publish the written record; the
+     * record is encoded and written without the lock, with positional
+     * writes, so that add() and pollLast() never wait for the disk. If
+     * pollLast() or close() takes the edit that is being written, its
+     * record is dropped when the write completes. A new segment is only
+     * added once its first record is written.
+     *
+     * Rep invariant:
+     *      - pending holds the edits that are not written yet, oldest
+     *        first, and segments the files of the written ones, oldest
+     *        first
+     *      - writingEdit is the edit that the writer is writing, or null
+     *        if there is none or it was taken back
+     *      - every segment holds at least one record, which end bounds
+     *      - diskBytes is the total size of the records of the segments
+     *      - writing is true iff a write task is scheduled or running
+     *
+     * Thread safety:
+     *      Is thread-safe: the methods are synchronized, and the writer
+     *      only holds the lock while it takes an edit and publishes its
+     *      record, so the history never waits for a write.
+     */
+    private static class Spill {
+        // Single daemon thread shared by all histories that writes the
+        // spilled edits
+        private static final ExecutorService writer =
+            Executors.newSingleThreadExecutor(new ThreadFactory(){
+                public Thread newThread(Runnable r){
+                    Thread t = new Thread(r, "UndoHistory-spiller");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        /**
+         * A spill file, with the offsets of its records.
+         */
+        private static class Segment {
+            final File path;
+            final RandomAccessFile file;
+            final FileChannel channel;
+            final ArrayDeque<Long> offsets = new ArrayDeque<Long>();
+            // end of the last record; the file may be longer
+            long end;
+
+            Segment() throws IOException {
+                path = File.createTempFile("whiteboard-undo", ".bin");
+                path.deleteOnExit();
+                file = new RandomAccessFile(path, "rw");
+                channel = file.getChannel();
+            }
+
+            void delete(){
+                try {
+                    file.close();
+                } catch (IOException e){
+                    e.printStackTrace();
+                }
+                path.delete();
+            }
+        }
+
+        private final long diskCap;
+        private final long segmentSize;
+        private final ArrayDeque<Edit> pending = new ArrayDeque<Edit>();
+        private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+        private Edit writingEdit;
+        private long diskBytes;
+        private int records;
+        private boolean writing;
+
+        Spill(long diskCap){
+            this.diskCap = diskCap;
+            this.segmentSize = Math.max(1, diskCap / 8);
+        }
+
+        /**
+         * Queue the edit, which is newer than the spilled ones, to be
+         * written in the background.
+         */
+        synchronized void add(Edit edit){
+            pending.addLast(edit);
+            if (!writing){
+                writing = true;
+                writer.execute(new Runnable(){
+                    public void run(){
+                        while (_writeOne()){
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Remove the newest spilled edit.
+         * @return the edit, or null if none is spilled
+         */
+        synchronized Edit pollLast(){
+            Edit edit = pending.pollLast();
+            if (edit != null){
+                return edit;
+            }
+            if (writingEdit != null){
+                // take it back from the writer, which drops its record
+                edit = writingEdit;
+                writingEdit = null;
+                return edit;
+            }
+            Segment segment = segments.peekLast();
+            if (segment == null){
+                return null;
+            }
+            long offset = segment.offsets.pollLast();
+            records--;
+            try {
+                ByteBuffer record = ByteBuffer.allocate((int) (segment.end - offset));
+                while (record.hasRemaining()){
+                    if (segment.channel.read(record, offset + record.position()) < 0){
+                        throw new IOException("Spilled record is cut off");
+                    }
+                }
+                diskBytes -= record.capacity();
+                if (segment.offsets.isEmpty()){
+                    segments.removeLast().delete();
+                } else {
+                    segment.end = offset;
+                }
+
+                record.flip();
+                int[] runs = new int[record.getInt()];
+                record.asIntBuffer().get(runs);
+                return new Edit(runs);
+            } catch (IOException e){
+                // the spilled edits are lost
+                e.printStackTrace();
+                _deleteSegments();
+                return null;
+            }
+        }
+
+        /**
+         * @return the number of spilled edits
+         */
+        synchronized int size(){
+            return pending.size() + (writingEdit != null ? 1 : 0) + records;
+        }
+
+        /**
+         * Wait until the pending edits have been written.
+         */
+        synchronized void await(){
+            while (writing){
+                try {
+                    wait();
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Forget the spilled edits, and delete the files.
+         */
+        synchronized void close(){
+            pending.clear();
+            writingEdit = null;
+            _deleteSegments();
+        }
+
+        /**
+         * Append the oldest pending edit to the newest segment, starting
+         * a new segment if it is full, and forget the oldest records
+         * beyond the disk cap. Runs on the writer thread.
+         * @return false if there was nothing to write
+         */
+        private boolean _writeOne(){
+            Edit edit;
+            Segment segment;
+            long offset;
+            synchronized(this){
+                edit = pending.pollFirst();
+                if (edit == null){
+                    writing = false;
+                    notifyAll();
+                    return false;
+                }
+                writingEdit = edit;
+                segment = segments.peekLast();
+                if (segment != null && segment.end < segmentSize){
+                    offset = segment.end;
+                } else {
+                    segment = null;
+                    offset = 0;
+                }
+            }
+
+            // encode and write the record without the lock
+            boolean created = segment == null;
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 4*edit.runs.length);
+            buffer.putInt(edit.runs.length);
+            buffer.asIntBuffer().put(edit.runs);
+            buffer.rewind();
+            IOException failure = null;
+            try {
+                if (created){
+                    segment = new Segment();
+                }
+                while (buffer.hasRemaining()){
+                    segment.channel.write(buffer, offset + buffer.position());
+                }
+            } catch (IOException e){
+                failure = e;
+            }
+
+            List<Segment> forgotten = new ArrayList<Segment>();
+            synchronized(this){
+                if (failure != null && writingEdit == edit){
+                    // the edit is forgotten; if it was taken back, its
+                    // segment may have been closed under the write
+                    failure.printStackTrace();
+                }
+                if (failure == null && writingEdit == edit){
+                    if (created){
+                        segments.addLast(segment);
+                    }
+                    segment.offsets.addLast(offset);
+                    segment.end = offset + buffer.capacity();
+                    diskBytes += buffer.capacity();
+                    records++;
+                    _forget(forgotten);
+                } else if (created && segment != null){
+                    // the record was dropped, and nothing else is in
+                    // the new segment
+                    forgotten.add(segment);
+                }
+                if (writingEdit == edit){
+                    writingEdit = null;
+                }
+            }
+            for (Segment s: forgotten){
+                s.delete();
+            }
+            return true;
+        }
+
+        /**
+         * Forget the oldest records while the spilled edits exceed the
+         * disk cap, removing the segments that have none left.
+         * @param forgotten: the list to add the removed segments to, to
+         *      be deleted without the lock
+         */
+        private void _forget(List<Segment> forgotten){
+            while (diskBytes > diskCap && records > 0){
+                Segment oldest = segments.peekFirst();
+                long offset = oldest.offsets.removeFirst();
+                long next = oldest.offsets.isEmpty() ? oldest.end : oldest.offsets.peekFirst();
+                diskBytes -= next - offset;
+                records--;
+                if (oldest.offsets.isEmpty()){
+                    forgotten.add(segments.removeFirst());
+                }
+            }
+        }
+
+        /**
+         * Delete all segments.
+         */
+        private void _deleteSegments(){
+            for (Segment segment: segments){
+                segment.delete();
+            }
+            segments.clear();
+            diskBytes = 0;
+            records = 0;
+        }
+    }
+}
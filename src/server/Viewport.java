@@ -0,0 +1,182 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import common.Point;
+import common.Shape;
+import common.Span;
+import common.Whiteboard;
+
+/**
+ * The rectangle of a board that a client sees, in board coordinates,
+ * rounded out to whole tiles (see Whiteboard.TILE_SIZE). The updates of a
+ * board are only sent to a session for the pixels in its viewport (see
+ * ResumableListener.setViewport()), so a client has the current pixels
+ * of every tile that its viewport covers, and a client that pans only
+ * needs the tiles that become visible (see subtract()).
+ *
+ * Viewports do not depend on the size of the board: they may reach past
+ * the edges of the board, which only means that there are no pixels to
+ * send there.
+ *
+ * Rep invariant:
+ *      - the viewport is empty, with tiles (0, 0) to (-1, -1), or
+ *        0 <= tileX1 <= tileX2 < Whiteboard.MAX_WIDTH / Whiteboard.TILE_SIZE and
+ *        0 <= tileY1 <= tileY2 < Whiteboard.MAX_HEIGHT / Whiteboard.TILE_SIZE
+ *      - x1, y1, x2 and y2 are the pixels at the edges of these tiles
+ *
+ * Thread safety:
+ *      It is immutable and thread safe.
+ */
+public class Viewport {
+    // Number of tiles across and up the largest board
+    private static final int MAX_TILES_X = Whiteboard.MAX_WIDTH / Whiteboard.TILE_SIZE;
+    private static final int MAX_TILES_Y = Whiteboard.MAX_HEIGHT / Whiteboard.TILE_SIZE;
+
+    // Every board
+    public static final Viewport ALL = new Viewport(0, 0, MAX_TILES_X - 1, MAX_TILES_Y - 1);
+    // No tile at all, which is the viewport of a session until its
+    // client declares one
+    public static final Viewport NONE = new Viewport(0, 0, -1, -1);
+
+    private final int tileX1;
+    private final int tileY1;
+    private final int tileX2;
+    private final int tileY2;
+    private final int x1;
+    private final int y1;
+    private final int x2;
+    private final int y2;
+
+    /**
+     * Construct the viewport of the tiles between the corners, which
+     * must be within the largest board.
+     */
+    private Viewport(int tileX1, int tileY1, int tileX2, int tileY2){
+        this.tileX1 = tileX1;
+        this.tileY1 = tileY1;
+        this.tileX2 = tileX2;
+        this.tileY2 = tileY2;
+        x1 = tileX1*Whiteboard.TILE_SIZE;
+        y1 = tileY1*Whiteboard.TILE_SIZE;
+        x2 = (tileX2 + 1)*Whiteboard.TILE_SIZE - 1;
+        y2 = (tileY2 + 1)*Whiteboard.TILE_SIZE - 1;
+    }
+
+    /**
+     * Return the tiles that the part of the rectangle within the largest
+     * board touches.
+     * @param x: the left edge of the rectangle
+     * @param y: the bottom edge of the rectangle
+     * @param width: the width of the rectangle, or 0 if nothing is visible
+     * @param height: the height of the rectangle, or 0 if nothing is visible
+     * @return the viewport of the rectangle, which may be empty
+     */
+    public static Viewport of(int x, int y, int width, int height){
+        int x1 = Math.max(x, 0);
+        int y1 = Math.max(y, 0);
+        // in longs, so that huge rectangles do not overflow
+        long x2 = Math.min((long) x + width - 1, Whiteboard.MAX_WIDTH - 1);
+        long y2 = Math.min((long) y + height - 1, Whiteboard.MAX_HEIGHT - 1);
+        if (x1 > x2 || y1 > y2){
+            return NONE;
+        }
+        return new Viewport(x1 / Whiteboard.TILE_SIZE, y1 / Whiteboard.TILE_SIZE,
+                (int) x2 / Whiteboard.TILE_SIZE, (int) y2 / Whiteboard.TILE_SIZE);
+    }
+
+    /**
+     * @return true if the pixel at (x, y) is in the viewport
+     */
+    public boolean contains(int x, int y){
+        return x >= x1 && x <= x2 && y >= y1 && y <= y2;
+    }
+
+    /**
+     * @return true if a pixel of the shape may be in the viewport
+     */
+    public boolean intersects(Shape shape){
+        // the stroke of the outline extends by up to its width
+        int w = shape.getWidth();
+        int minX = Math.min(shape.getP1().getX(), shape.getP2().getX()) - w;
+        int maxX = Math.max(shape.getP1().getX(), shape.getP2().getX()) + w;
+        int minY = Math.min(shape.getP1().getY(), shape.getP2().getY()) - w;
+        int maxY = Math.max(shape.getP1().getY(), shape.getP2().getY()) + w;
+        return minX <= x2 && x1 <= maxX && minY <= y2 && y1 <= maxY;
+    }
+
+    /**
+     * Return the parts of the spans that are in the viewport.
+     * @param spans: the spans to clip
+     * @return the spans if they are all in the viewport, or else a new
+     *      list of their parts that are in the viewport, which may be
+     *      empty
+     */
+    public List<Span> clip(List<Span> spans){
+        boolean inside = true;
+        for (Span span: spans){
+            inside = inside && span.getY() >= y1 && span.getY() <= y2 && span.getX1() >= x1 && span.getX2() <= x2;
+        }
+        if (inside){
+            return spans;
+        }
+        List<Span> clipped = new ArrayList<Span>();
+        for (Span span: spans){
+            int from = Math.max(span.getX1(), x1);
+            int to = Math.min(span.getX2(), x2);
+            if (span.getY() >= y1 && span.getY() <= y2 && from <= to){
+                clipped.add(new Span(span.getY(), from, to));
+            }
+        }
+        return clipped;
+    }
+
+    /**
+     * Return the tiles of a board that are in this viewport but not in
+     * the other one, such as the tiles that become visible when a client
+     * pans from the other viewport to this one.
+     * @param other: the viewport to subtract
+     * @param tilesX: the number of columns of tiles of the board
+     * @param tilesY: the number of rows of tiles of the board
+     * @return the coordinates (column, row) of the tiles, sorted by row
+     *      and then by column
+     */
+    public List<Point> subtract(Viewport other, int tilesX, int tilesY){
+        List<Point> tiles = new ArrayList<Point>();
+        for (int tileY = tileY1; tileY <= Math.min(tileY2, tilesY - 1); tileY ++){
+            for (int tileX = tileX1; tileX <= Math.min(tileX2, tilesX - 1); tileX ++){
+                if (!other._containsTile(tileX, tileY)){
+                    tiles.add(new Point(tileX, tileY));
+                }
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * @return true if the tile is in the viewport
+     */
+    private boolean _containsTile(int tileX, int tileY){
+        return tileX >= tileX1 && tileX <= tileX2 && tileY >= tileY1 && tileY <= tileY2;
+    }
+
+    @Override
+    public boolean equals(Object obj){
+        if (!(obj instanceof Viewport)){
+            return false;
+        }
+        Viewport that = (Viewport) obj;
+        return tileX1 == that.tileX1 && tileY1 == that.tileY1 && tileX2 == that.tileX2 && tileY2 == that.tileY2;
+    }
+
+    @Override
+    public int hashCode(){
+        return ((tileX1*31 + tileY1)*31 + tileX2)*31 + tileY2;
+    }
+
+    @Override
+    public String toString(){
+        return "Viewport(" + x1 + "," + y1 + "," + x2 + "," + y2 + ")";
+    }
+}
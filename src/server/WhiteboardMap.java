@@ -6,33 +6,157 @@ import java.util.*;
 /**
  * Keeps maps from id's to boards with listeners.
  *
+ * In a cluster, the map only contains the boards owned by this process,
+ * and new boards get the next IDs that the ClusterRing assigns to this
+ * process. getRemoteOwner() tells which node owns any other board.
+ *
+ * Operations that create boards are streamed to the followers of the
+ * Replicator, if one is set. Cloned boards are sent to them as snapshots.
+ *
+ * Locking order: the lock of a WhiteboardStruct may be taken while holding
+ * the lock of the map, but not the other way around.
+ *
+ * On a relay server, the boards are the copies that the Relay keeps of
+ * the boards of the upstream server, and no boards can be created.
+ *
  * Thread safety:
  *      Is thread-safe: uses the monitor pattern by making all the methods
  *      synchronized.
  */
 public class WhiteboardMap {
-    private ArrayList<WhiteboardStruct> structs;
+    private final HashMap<Integer, WhiteboardStruct> structs;
+    private final ClusterRing ring;
+    private volatile Replicator replicator;
+    private volatile Relay relay;
+    private int nextID;
 
     /**
      * create empty collection
      */
     public WhiteboardMap(){
-        structs = new ArrayList<WhiteboardStruct>();
+        this(null);
+    }
+
+    /**
+     * create empty collection for a node of a cluster
+     * @param ring: the ClusterRing of the cluster, or null if this
+     *      process owns all boards
+     */
+    public WhiteboardMap(ClusterRing ring){
+        this.structs = new HashMap<Integer, WhiteboardStruct>();
+        this.ring = ring;
+    }
+
+    /**
+     * create a new WhiteboardStruct with a board of the default size, add
+     * it to the map, and return it.
+     * @return the newly added WhiteboardStruct
+     */
+    public WhiteboardStruct newBoard(){
+        return newBoard(Whiteboard.WIDTH, Whiteboard.HEIGHT);
+    }
+
+    /**
+     * create a new WhiteboardStruct with a board of the given size, add it
+     * to the map, and return it.
+     * @param width: the number of columns of the board
+     * @param height: the number of rows of the board
+     * @return the newly added WhiteboardStruct
+     * @throws IllegalArgumentException if the size is not valid (see
+     *      Whiteboard.isValidSize())
+     */
+    public synchronized WhiteboardStruct newBoard(int width, int height){
+        Whiteboard board = new Whiteboard(width, height);
+        // ids are assigned in increasing order, skipping the ids
+        // that are owned by other nodes of the cluster
+        while (ring != null && !ring.isLocal(nextID)){
+            nextID++;
+        }
+        WhiteboardStruct s = _addBoard(nextID++, board);
+        if (replicator != null){
+            replicator.newBoard(s.getID(), width, height);
+        }
+        return s;
     }
 
     /**
-     * create a new WhiteboardStruct, add it to the map, and return it.
+     * create a new WhiteboardStruct with a copy of the board of the given
+     * one, add it to the map, and return it. The copy shares the tiles of
+     * the board until either is drawn on, so copying is cheap. The new
+     * board starts at version 0, and has no users or listeners.
+     * @param source: the struct of the board to copy, which is locked
+     *      while it is copied
      * @return the newly added WhiteboardStruct
      */
-    public synchronized WhiteboardStruct newBoard(){
-        // the id of the struct is its position in the ArrayList
-        int id = structs.size();
-        Whiteboard board = new Whiteboard();
+    public synchronized WhiteboardStruct cloneBoard(WhiteboardStruct source){
+        while (ring != null && !ring.isLocal(nextID)){
+            nextID++;
+        }
+        Whiteboard board;
+        synchronized(source){
+            board = new Whiteboard(source.getWhiteboard());
+        }
+        WhiteboardStruct s = _addBoard(nextID++, board);
+        if (replicator != null){
+            synchronized(s){
+                replicator.copyBoard(s);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * returns the WhiteboardStruct with the given id, creating an empty
+     * one of the given size if it does not exist. Used by followers to
+     * create the boards of the primary server with the same ids.
+     * @param id: the id of the board
+     * @param width: the number of columns of the board, if it is created
+     * @param height: the number of rows of the board, if it is created
+     * @return the whiteboardStruct associated with id
+     */
+    public synchronized WhiteboardStruct getOrCreateBoard(int id, int width, int height){
+        WhiteboardStruct s = structs.get(id);
+        if (s == null){
+            s = _addBoard(id, new Whiteboard(width, height));
+            // boards created later must not reuse the id
+            nextID = Math.max(nextID, id + 1);
+        }
+        return s;
+    }
+
+    /**
+     * @return a list of all boards, in no particular order
+     */
+    public synchronized List<WhiteboardStruct> getBoards(){
+        return new ArrayList<WhiteboardStruct>(structs.values());
+    }
+
+    /**
+     * Stream the operations on the boards to the followers of the given
+     * replicator from now on.
+     * @param replicator: the replicator, or null to stop replicating
+     */
+    public void setReplicator(Replicator replicator){
+        this.replicator = replicator;
+    }
+
+    /**
+     * @return the replicator of the boards, or null if they are not
+     *      replicated
+     */
+    public Replicator getReplicator(){
+        return replicator;
+    }
+
+    /**
+     * create a struct for the board with the given id and add it to the map.
+     */
+    private WhiteboardStruct _addBoard(int id, Whiteboard board){
         List<ServerMessageListener> listeners = new ArrayList<ServerMessageListener>();
         List<String> users = new ArrayList<String>();
 
         WhiteboardStruct s = new WhiteboardStruct(board, users, listeners, id);
-        structs.add(s);
+        structs.put(id, s);
         return s;
     }
 
@@ -42,11 +166,45 @@ public class WhiteboardMap {
      * @param id: the id of the whiteboardStruct we want
      * @return the whiteboardStruct associated with id, or null
      */
-    public synchronized WhiteboardStruct getBoard(int id){
-        if (id >= structs.size() || id < 0){
-            return null;
-        } else {
+    public WhiteboardStruct getBoard(int id){
+        Relay r = relay;
+        if (r != null){
+            // blocks until the board is received from upstream
+            return r.getBoard(id);
+        }
+        synchronized(this){
             return structs.get(id);
         }
     }
+
+    /**
+     * Serve the boards of the given relay instead of the boards of this
+     * map. Must be called before any board is used.
+     * @param relay: the relay of the upstream server
+     */
+    public void setRelay(Relay relay){
+        this.relay = relay;
+    }
+
+    /**
+     * @return true if boards can not be created or drawn on, because
+     *      they are relayed from another server
+     */
+    public boolean isReadOnly(){
+        return relay != null;
+    }
+
+    /**
+     * returns the node of the cluster that owns the board with the given
+     * id, if it is not this process.
+     * @param id: the id of a board
+     * @return the owning node, or null if the board would be owned by
+     *      this process
+     */
+    public ClusterRing.Node getRemoteOwner(int id){
+        if (ring == null || ring.isLocal(id)){
+            return null;
+        }
+        return ring.owner(id);
+    }
 }
@@ -1,13 +1,17 @@
 package server;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import common.ServerMessageListener;
 import common.Whiteboard;
 
 /**
  * An object containing a final Whiteboard object, a list of ServerMessageListeners
- * listening on the whiteboard, and the ID number of the whiteboard.
+ * listening on the whiteboard, the ID number of the whiteboard, and the
+ * version history of the whiteboard, the undo histories of its users, and the
+ * metrics of the whiteboard.
  * 
  *
  * Thread safety:
@@ -20,6 +24,9 @@ public class WhiteboardStruct {
     private final List<ServerMessageListener> listeners;
     private final List<String> users;
     private final int id;
+    private final BoardHistory history;
+    private final BoardMetrics metrics;
+    private final Map<String, UndoHistory> undoHistories = new HashMap<String, UndoHistory>();
     /**
      * Contruct with the given variables
      * @param board: the whiteboard that has all the drawing data
@@ -32,6 +39,8 @@ public class WhiteboardStruct {
         this.users = users;
         this.listeners = listeners;
         this.id = id;
+        this.history = new BoardHistory(board.getWidth(), BoardHistory.DEFAULT_CAPACITY);
+        this.metrics = new BoardMetrics(id);
     }
 
     /**
@@ -61,4 +70,45 @@ public class WhiteboardStruct {
     public int getID(){
         return this.id;
     }
+
+    /**
+     * @return a reference to the *mutable* version history of the board
+     */
+    public BoardHistory getHistory(){
+        return this.history;
+    }
+
+    /**
+     * @return the metrics of the board, which are thread-safe and may be
+     *      accessed without locking this object
+     */
+    public BoardMetrics getMetrics(){
+        return this.metrics;
+    }
+
+    /**
+     * Return the undo history of a user on the board, which is created
+     * the first time that it is requested.
+     * @param username: the user
+     * @return a reference to the *mutable* undo history of the user
+     */
+    public UndoHistory getUndoHistory(String username){
+        UndoHistory history = undoHistories.get(username);
+        if (history == null){
+            history = new UndoHistory();
+            undoHistories.put(username, history);
+        }
+        return history;
+    }
+
+    /**
+     * Forget the undo history of a user who left the board, if it has one.
+     * @param username: the user
+     */
+    public void removeUndoHistory(String username){
+        UndoHistory history = undoHistories.remove(username);
+        if (history != null){
+            history.close();
+        }
+    }
 }
@@ -3,9 +3,12 @@ package tests;
 import org.junit.*;
 
 import org.mockito.verification.VerificationMode;
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
+import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import common.*;
 import server.*;
@@ -21,17 +24,50 @@ import client.*;
  * Testing Strategy:
  * Logging in gets a loginSuccess reply
  * Errors get an error reply
- * Connecting to a board gets a connectedToBoardSuccess message
- * Updating a pixel gets an updatePixel message
+ * Connecting to a board gets a connectedToBoardSuccess message, whether the
+ * board is indexed or not, with a blank board of the same size
+ * Updating a pixel gets an updatePixel message, also for more colors than fit
+ * in the palette of the connection
+ * Updating spans gets an updateSpans message with the same spans, split into
+ * several lines if there are many
  * Updating users gets an updateUsersSuccess message
+ * Resyncing a board gets a resyncBoardSuccess message
+ * Updating the version gets an updateVersion message
+ * Acknowledging a draw gets an acknowledgeDraw message with the same version
+ * Sending a trace gets an updateTrace message with the same id
+ * Sending a resume token gets a resumeToken message
+ * Resuming a session gets a resumeSessionSuccess message
  * DisconnectingFromBoardSuccess gets a disconnectFromBoardSuccess message
  * Closing the server closes both the server and client connections
  * Logging in gets a login message
  * Connecting to a board gets a connect to board message
- * Creating a new board gets a new board message
+ * Reconnecting to a board gets a reconnect to board message
+ * Resuming a session gets a resume session message
+ * Creating a new board gets a new board message, with the same size if one
+ * is given
+ * Copying a board gets a clone board message with the same id
  * Disconnect from a board calls disconnect from board
  * Draw line calls drawLine()
+ * Fill calls fill()
+ * Undo and redo call undo() and redo()
+ * Setting the viewport calls setViewport() with the same rectangle
+ * Draw shape calls drawShape() with an equal shape, and updating a shape gets an
+ * updateShape message
+ * Draw line with a trace calls drawLine() with the same trace id
+ * Draw polyline calls drawPolyline() with the same points, with and without a
+ * trace id, and a polyline with fewer points than its count closes the connection
+ * Reporting an applied trace calls traceApplied()
  * Closing a client closes both ends of the socket
+ * A write that fails during a broadcast closes the connection as lost, so that
+ * the session is kept and can be resumed on a new connection
+ * A redirect makes the client log in and repeat the connection request on the
+ * other server, and leave the first one
+ * A redirect to a server that can not be reached gets an error(200) message
+ * Losing the connection to a server that can not be reached fails over to the
+ * failover address, logging in again and rejoining the board with a delta
+ * Resuming a session on the board that the client was waiting for leaves the board
+ * and repeats the connect request, without reporting the disconnect or the updates
+ * of the board in between
  */
 public class SocketLayerTests {
     // Port for TCP communication
@@ -110,7 +146,8 @@ public class SocketLayerTests {
 
 
     /**
-     * Test ConnectToBoardSuccess message
+     * Test ConnectToBoardSuccess message, which only carries the size of
+     * the board
      */
     @Test
     public void testConnectToBoardSuccess() {
@@ -120,7 +157,106 @@ public class SocketLayerTests {
         board.setPixel(new Point(0,1), new Color(0,255,255));
 
         sh.connectToBoardSuccess(id, users, board);
-        verify(sl, delay).connectToBoardSuccess(123, users, board);
+        verify(sl, delay).connectToBoardSuccess(123, users, new Whiteboard());
+    }
+
+
+    /**
+     * Test ConnectToBoardSuccess message with a board that is not of the
+     * default size
+     */
+    @Test
+    public void testConnectToBoardSuccessSized() {
+        List<String> users = Arrays.asList("fred");
+        Whiteboard board = new Whiteboard(1500, 40);
+        board.setPixel(new Point(1499, 39), new Color(0,255,255));
+
+        sh.connectToBoardSuccess(9, users, board);
+        verify(sl, delay).connectToBoardSuccess(9, users, new Whiteboard(1500, 40));
+    }
+
+
+    /**
+     * Test ConnectToBoardSuccess message with a board that has too many
+     * colors to be indexed, followed by updates with its colors, which
+     * define them in the palette of the connection
+     */
+    @Test
+    public void testConnectToBoardSuccessRGB() {
+        List<String> users = Arrays.asList("fred");
+        Whiteboard board = new Whiteboard();
+        for (int x=0; x<300; x++){
+            board.setPixel(x, 5, new Color(x % 256, x / 256, 9));
+        }
+        assertFalse(board.isIndexed());
+
+        sh.connectToBoardSuccess(7, users, board);
+        sh.updatePixel(new Point(1, 1), new Color(3, 0, 9));
+        verify(sl, delay).connectToBoardSuccess(7, users, new Whiteboard());
+        verify(sl, delay).updatePixel(new Point(1, 1), new Color(3, 0, 9));
+    }
+
+
+    /**
+     * Test resyncBoardSuccess message
+     */
+    @Test
+    public void testResyncBoardSuccess() {
+        List<String> users = Arrays.asList("fred", "bob");
+
+        sh.resyncBoardSuccess(123, users);
+        verify(sl, delay).resyncBoardSuccess(123, users);
+    }
+
+
+    /**
+     * Test updateVersion message
+     */
+    @Test
+    public void testUpdateVersion() {
+        sh.updateVersion(12345678901L);
+        verify(sl, delay).updateVersion(12345678901L);
+    }
+
+    /**
+     * Test acknowledgeDraw message
+     */
+    @Test
+    public void testAcknowledgeDraw() {
+        sh.acknowledgeDraw(12345678901L);
+        verify(sl, delay).acknowledgeDraw(12345678901L);
+    }
+
+
+    /**
+     * Test updateTrace message
+     */
+    @Test
+    public void testUpdateTrace() {
+        sh.updateTrace(new Trace(12345678901L, 0));
+        org.mockito.ArgumentCaptor<Trace> trace = org.mockito.ArgumentCaptor.forClass(Trace.class);
+        verify(sl, delay).updateTrace(trace.capture());
+        assertEquals(12345678901L, trace.getValue().getID());
+    }
+
+
+    /**
+     * Test resumeToken message
+     */
+    @Test
+    public void testResumeToken() {
+        sh.resumeToken("abc123");
+        verify(sl, delay).resumeToken("abc123");
+    }
+
+
+    /**
+     * Test resumeSessionSuccess message
+     */
+    @Test
+    public void testResumeSessionSuccess() {
+        sh.resumeSessionSuccess(SocketState.NOT_CONNECTED);
+        verify(sl, delay).resumeSessionSuccess(SocketState.NOT_CONNECTED);
     }
 
 
@@ -137,6 +273,55 @@ public class SocketLayerTests {
     }
 
 
+    /**
+     * Test updatePixel messages with more colors than fit in the palette
+     */
+    @Test
+    public void testUpdatePixelManyColors() {
+        for (int i=0; i<300; i++){
+            sh.updatePixel(new Point(i, 0), new Color(i % 256, i / 256, 1));
+        }
+        sh.updateSpans(Arrays.asList(new Span(3, 4, 5)), new Color(7, 0, 1));
+        sh.updateSpans(Arrays.asList(new Span(3, 4, 5)), new Color(7, 1, 1));
+        for (int i=0; i<300; i++){
+            verify(sl, delay).updatePixel(new Point(i, 0), new Color(i % 256, i / 256, 1));
+        }
+        verify(sl, delay).updateSpans(Arrays.asList(new Span(3, 4, 5)), new Color(7, 0, 1));
+        verify(sl, delay).updateSpans(Arrays.asList(new Span(3, 4, 5)), new Color(7, 1, 1));
+    }
+
+
+    /**
+     * Test updateSpans message
+     */
+    @Test
+    public void testUpdateSpans() {
+        List<Span> spans = Arrays.asList(new Span(1, 2, 3), new Span(4, 0, 799));
+        Color c = new Color(1,2,3);
+
+        sh.updateSpans(spans, c);
+        verify(sl, delay).updateSpans(spans, c);
+    }
+
+
+    /**
+     * Test updateSpans message with more spans than fit on a line
+     */
+    @Test
+    public void testUpdateManySpans() {
+        List<Span> spans = new ArrayList<Span>();
+        for (int y=0; y<Whiteboard.HEIGHT; y++){
+            spans.add(new Span(y, 0, Whiteboard.WIDTH - 1));
+            spans.add(new Span(y, 0, Whiteboard.WIDTH - 1));
+        }
+        Color c = new Color(1,2,3);
+
+        sh.updateSpans(spans, c);
+        verify(sl, delay).updateSpans(spans.subList(0, 1024), c);
+        verify(sl, delay).updateSpans(spans.subList(1024, spans.size()), c);
+    }
+
+
     /**
      * Test updateUsers message
      */
@@ -183,6 +368,16 @@ public class SocketLayerTests {
     }
 
 
+    /**
+     * Test spectate message
+     */
+    @Test
+    public void testSpectate() {
+        ch.spectate();
+        verify(cl, delay).spectate();
+    }
+
+
     /**
      * Test connectToBoard message
      */
@@ -193,6 +388,26 @@ public class SocketLayerTests {
     }
 
 
+    /**
+     * Test reconnectToBoard message
+     */
+    @Test
+    public void testReconnectToBoard() {
+        ch.reconnectToBoard(123, 456);
+        verify(cl, delay).reconnectToBoard(123, 456);
+    }
+
+
+    /**
+     * Test resumeSession message
+     */
+    @Test
+    public void testResumeSession() {
+        ch.resumeSession("abc123");
+        verify(cl, delay).resumeSession("abc123");
+    }
+
+
     /**
      * Test newBoard message
      */
@@ -203,6 +418,27 @@ public class SocketLayerTests {
     }
 
 
+    /**
+     * Test newBoard message with the size of the board
+     */
+    @Test
+    public void testNewBoardSize() {
+        ch.newBoard(1500, 40);
+        verify(cl, delay).newBoard(1500, 40);
+        verify(cl, never()).newBoard();
+    }
+
+
+    /**
+     * Test cloneBoard message
+     */
+    @Test
+    public void testCloneBoard() {
+        ch.cloneBoard(5);
+        verify(cl, delay).cloneBoard(5);
+    }
+
+
     /**
      * Test disconnectFromBoard message
      */
@@ -213,6 +449,62 @@ public class SocketLayerTests {
     }
 
 
+    /**
+     * Test fill message
+     */
+    @Test
+    public void testFill() {
+        Point p = new Point(12,34);
+        Color c = new Color(1,2,34);
+        ch.fill(p, c);
+        verify(cl, delay).fill(p, c);
+    }
+
+
+    /**
+     * Test undo and redo messages
+     */
+    @Test
+    public void testUndoRedo() {
+        ch.undo();
+        verify(cl, delay).undo();
+        ch.redo();
+        verify(cl, delay).redo();
+    }
+
+
+    /**
+     * Test setViewport message
+     */
+    @Test
+    public void testSetViewport() {
+        ch.setViewport(10, 20, 300, 400);
+        verify(cl, delay).setViewport(10, 20, 300, 400);
+    }
+
+
+    /**
+     * Test drawShape message
+     */
+    @Test
+    public void testDrawShape() {
+        Shape shape = new Shape(Shape.Kind.ELLIPSE, new Point(12,34), new Point(56,78), new Color(1,2,34), 3);
+        ch.drawShape(shape);
+        verify(cl, delay).drawShape(shape);
+    }
+
+
+    /**
+     * Test updateShape message
+     */
+    @Test
+    public void testUpdateShape() {
+        Shape shape = Shape.clearBoard();
+        sh.updateShape(shape);
+        verify(sl, delay).updateShape(shape);
+    }
+
+
     /**
      * Test drawLine message
      */
@@ -226,6 +518,65 @@ public class SocketLayerTests {
         verify(cl, delay).drawLine(p1,p2,c,w);
     }
 
+    /**
+     * Test drawLine message with a trace
+     */
+    @Test
+    public void testDrawLineTraced() {
+        Point p1 = new Point(12,34);
+        Point p2 = new Point(56,78);
+        Color c = new Color(1,2,34);
+        int w = 123;
+        ch.drawLine(p1,p2,c,w,new Trace(77, 0));
+        org.mockito.ArgumentCaptor<Trace> trace = org.mockito.ArgumentCaptor.forClass(Trace.class);
+        verify(cl, delay).drawLine(eq(p1),eq(p2),eq(c),eq(w),trace.capture());
+        assertEquals(77, trace.getValue().getID());
+    }
+
+    /**
+     * Test drawPolyline message
+     */
+    @Test
+    public void testDrawPolyline() {
+        List<Point> points = Arrays.asList(new Point(12,34), new Point(56,78), new Point(9,10));
+        Color c = new Color(1,2,34);
+        ch.drawPolyline(points, c, 5);
+        verify(cl, delay).drawPolyline(points, c, 5);
+    }
+
+    /**
+     * Test drawPolyline message with a single point and a trace
+     */
+    @Test
+    public void testDrawPolylineTraced() {
+        List<Point> points = Arrays.asList(new Point(12,34));
+        Color c = new Color(1,2,34);
+        ch.drawPolyline(points, c, 5, new Trace(77, 0));
+        org.mockito.ArgumentCaptor<Trace> trace = org.mockito.ArgumentCaptor.forClass(Trace.class);
+        verify(cl, delay).drawPolyline(eq(points),eq(c),eq(5),trace.capture());
+        assertEquals(77, trace.getValue().getID());
+    }
+
+    /**
+     * Test that a drawPolyline message with fewer points than it claims
+     * closes the connection instead of allocating the points
+     */
+    @Test
+    public void testDrawPolylineTooManyPoints() {
+        csw.writeLine("pl 0 0 0 1 2000000000");
+        verify(cl, delay).clientClose();
+        verify(cl, never()).drawPolyline(anyListOf(Point.class), any(Color.class), anyInt());
+    }
+
+    /**
+     * Test traceApplied message
+     */
+    @Test
+    public void testTraceApplied() {
+        ch.traceApplied(77, -1, 12345);
+        verify(cl, delay).traceApplied(77, -1, 12345);
+    }
+
     /**
      * Test clientClose message
      *
@@ -238,4 +589,251 @@ public class SocketLayerTests {
         verify(cl, delay).clientClose();
         verify(sl, delay).serverClose();
     }
+
+    /**
+     * Test losing the connection without the client quitting
+     *
+     * The ClientMessageListener is told that the connection was lost,
+     * and the ServerMessageListener that the server closed.
+     */
+    @Test
+    public void testConnectionLost() {
+        csw.close();
+        verify(cl, delay).connectionLost();
+        verify(cl, never()).clientClose();
+        verify(sl, delay).serverClose();
+    }
+
+    /**
+     * Test following a redirect message to another server
+     */
+    @Test
+    public void testRedirect() throws Exception {
+        ServerSocket other = new ServerSocket(PORT + 1);
+        try {
+            ch.login("fred");
+            ch.connectToBoard(5);
+            verify(cl, delay).connectToBoard(5);
+            sh.redirect(5, "localhost", PORT + 1);
+
+            Socket s = other.accept();
+            s.setSoTimeout(2000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            Writer out = new OutputStreamWriter(s.getOutputStream());
+            assertEquals("l fred", in.readLine());
+            out.write("ls\n");
+            out.flush();
+            assertEquals("c 5", in.readLine());
+
+            // the first server is left
+            verify(cl, delay).clientClose();
+            verify(sl, never()).loginSuccess();
+            verify(sl, never()).redirect(anyInt(), anyString(), anyInt());
+            s.close();
+        } finally {
+            other.close();
+        }
+    }
+
+    /**
+     * Test a redirect message to a server that does not accept connections
+     */
+    @Test
+    public void testRedirectFailure() {
+        ch.login("fred");
+        ch.connectToBoard(5);
+        sh.redirect(5, "localhost", PORT + 1);
+        verify(sl, delay).error(200);
+        verify(cl, never()).clientClose();
+    }
+
+    /**
+     * Test failing over to another server after the connection is lost
+     */
+    @Test
+    public void testFailover() throws Exception {
+        ServerSocket other = new ServerSocket(PORT + 1);
+        try {
+            // nothing listens at the reconnect address
+            ch.setReconnectAddress("localhost", PORT + 2);
+            ch.addFailoverAddress("localhost", PORT + 1);
+            ch.login("fred");
+            sh.loginSuccess();
+            sh.resumeToken("abc");
+            ch.connectToBoard(5);
+            sh.resyncBoardSuccess(5, Arrays.asList("fred"));
+            sh.updateVersion(7);
+            verify(sl, delay).updateVersion(7);
+
+            ssw.close();
+            Socket s = other.accept();
+            s.setSoTimeout(5000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            Writer out = new OutputStreamWriter(s.getOutputStream());
+            assertEquals("rsm abc", in.readLine());
+            out.write("e 300\n");
+            out.flush();
+            assertEquals("l fred", in.readLine());
+            out.write("ls\n");
+            out.flush();
+            assertEquals("c 5 7", in.readLine());
+            out.write("rs 5 fred\np 1 2 3 4 5\nv 8\n");
+            out.flush();
+
+            verify(sl, delay).resumeSessionSuccess(SocketState.CONNECTED);
+            verify(sl, delay).updateUsers(Arrays.asList("fred"));
+            verify(sl, delay).updatePixel(new Point(1, 2), Color.valueOf(3, 4, 5));
+            verify(sl, delay).updateVersion(8);
+            verify(sl, never()).serverClose();
+            verify(sl, never()).error(anyInt());
+            s.close();
+        } finally {
+            other.close();
+        }
+    }
+
+    /**
+     * Test resuming a session on the board whose data was lost with the
+     * connection
+     */
+    @Test
+    public void testResumeConnectPending() throws Exception {
+        ServerSocket other = new ServerSocket(PORT + 1);
+        try {
+            ch.setReconnectAddress("localhost", PORT + 1);
+            ch.login("fred");
+            sh.loginSuccess();
+            sh.resumeToken("abc");
+            verify(sl, delay).resumeToken("abc");
+            ch.connectToBoard(5);
+            verify(cl, delay).connectToBoard(5);
+
+            // the connection is lost before the board data arrives
+            ssw.close();
+            Socket s = other.accept();
+            s.setSoTimeout(5000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            Writer out = new OutputStreamWriter(s.getOutputStream());
+            assertEquals("rsm abc", in.readLine());
+            out.write("rsm CONNECTED\np 1 2 3 4 5\n");
+            out.flush();
+            assertEquals("d", in.readLine());
+            assertEquals("c 5", in.readLine());
+            verify(sl, delay).resumeSessionSuccess(SocketState.CONNECT_PENDING);
+
+            out.write("ds\ncs 5 " + Whiteboard.WIDTH + " " + Whiteboard.HEIGHT + " fred\n");
+            out.flush();
+
+            verify(sl, delay).connectToBoardSuccess(eq(5), eq(Arrays.asList("fred")), any(Whiteboard.class));
+            verify(sl, never()).disconnectFromBoardSuccess();
+            verify(sl, never()).updatePixel(any(Point.class), any(Color.class));
+            verify(sl, never()).serverClose();
+            s.close();
+        } finally {
+            other.close();
+        }
+    }
+
+    /**
+     * Test that a write that fails during a broadcast keeps the session,
+     * which is then resumed on a new connection
+     */
+    @Test
+    public void testWriteErrorResume() throws Exception {
+        ServerSocket other = new ServerSocket(PORT + 1);
+        try {
+            AuthenticationBackend auth = mock(AuthenticationBackend.class);
+            when(auth.login("fred")).thenReturn(true);
+            WhiteboardMap map = new WhiteboardMap();
+            final CountDownLatch parked = new CountDownLatch(1);
+            SessionRegistry registry = new SessionRegistry(){
+                @Override
+                public synchronized void park(String token, SessionHandler session){
+                    super.park(token, session);
+                    parked.countDown();
+                }
+            };
+
+            // log in and create a board
+            Socket c1 = new Socket("localhost", PORT + 1);
+            Socket s1 = other.accept();
+            _serve(s1, auth, map, registry);
+            BlockingQueue<String> in1 = _readLines(c1);
+            Writer out1 = new OutputStreamWriter(c1.getOutputStream());
+            out1.write("l fred\nn\n");
+            out1.flush();
+            String token = _poll(in1, "tk ").substring(3);
+            _poll(in1, "cs ");
+
+            // the connection breaks while a draw is broadcast
+            s1.shutdownOutput();
+            WhiteboardStruct struct = map.getBoards().get(0);
+            synchronized(struct){
+                for (ServerMessageListener l: new ArrayList<ServerMessageListener>(struct.getListeners())){
+                    l.updatePixel(new Point(1, 2), new Color(3, 4, 5));
+                }
+            }
+
+            // the session is parked, and resumed on a new connection
+            assertTrue(parked.await(2, TimeUnit.SECONDS));
+            Socket c2 = new Socket("localhost", PORT + 1);
+            _serve(other.accept(), auth, map, registry);
+            BlockingQueue<String> in2 = _readLines(c2);
+            Writer out2 = new OutputStreamWriter(c2.getOutputStream());
+            out2.write("rsm " + token + "\n");
+            out2.flush();
+            assertEquals("rsm CONNECTED", _poll(in2, "rsm "));
+            verify(auth, never()).logout("fred");
+            c1.close();
+            c2.close();
+        } finally {
+            other.close();
+        }
+    }
+
+    /**
+     * Serve the socket with a new SessionHandler, as the server does.
+     */
+    private static void _serve(Socket socket, AuthenticationBackend auth, WhiteboardMap map, SessionRegistry registry){
+        SocketWrapper wrapper = new SocketWrapper(socket);
+        ServerSocketHandler handler = new ServerSocketHandler(wrapper);
+        SessionHandler session = new SessionHandler(auth, map, registry);
+        handler.setClientMessageListener(session);
+        session.setServerMessageListener(handler);
+        wrapper.start();
+    }
+
+    /**
+     * Read the lines of the socket on a background thread.
+     */
+    private static BlockingQueue<String> _readLines(Socket socket) throws IOException {
+        final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+        final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        Thread t = new Thread(new Runnable(){
+            public void run(){
+                try {
+                    for (String line = in.readLine(); line != null; line = in.readLine()){
+                        lines.add(line);
+                    }
+                } catch (IOException e){
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return lines;
+    }
+
+    /**
+     * @return the next line with the prefix, skipping other lines
+     */
+    private static String _poll(BlockingQueue<String> lines, String prefix) throws InterruptedException {
+        while (true){
+            String line = lines.poll(5, TimeUnit.SECONDS);
+            assertNotNull(line);
+            if (line.startsWith(prefix)){
+                return line;
+            }
+        }
+    }
 }
@@ -0,0 +1,118 @@
+package tests.client;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import client.PredictedBoard;
+import common.Color;
+import common.Point;
+import common.Span;
+import common.Whiteboard;
+
+/**
+ * Testing suite for PredictedBoard.java
+ *
+ * Testing strategy:
+ * Predictions are shown on the displayed board, but not the confirmed one.
+ * Updates from the server are applied to both boards, and predictions that
+ * overlap them stay on top.
+ * Acknowledging a draw replaces its prediction with what the server drew,
+ * including when the server drew it differently (eg. a simplified stroke),
+ * and other pending predictions stay shown.
+ * Acknowledgements of several predictions sent in one message are handled
+ * together, and extra acknowledgements are ignored.
+ * Clearing the predictions shows the confirmed board.
+ */
+public class PredictedBoardTest {
+
+    private static final Color RED = new Color(255, 0, 0);
+    private static final Color BLUE = new Color(0, 0, 255);
+    private static final Color WHITE = new Color();
+
+    /**
+     * Predictions are only on the displayed board
+     */
+    @Test
+    public void testPredict(){
+        PredictedBoard board = new PredictedBoard(new Whiteboard());
+        board.drawLine(new Point(10, 10), new Point(100, 10), RED, 1);
+        board.drawSent();
+        assertEquals(RED, board.getDisplayed().getPixel(50, 10));
+        assertEquals(WHITE, board.getConfirmed().getPixel(50, 10));
+        assertEquals(1, board.getPendingCount());
+    }
+
+    /**
+     * Updates of other clients go under the predictions that overlap them
+     */
+    @Test
+    public void testUpdateUnderPrediction(){
+        PredictedBoard board = new PredictedBoard(new Whiteboard());
+        board.drawLine(new Point(10, 10), new Point(100, 10), RED, 1);
+        board.drawSent();
+        board.updateSpans(Arrays.asList(new Span(10, 0, 200), new Span(500, 0, 200)), BLUE);
+        assertEquals(RED, board.getDisplayed().getPixel(50, 10));
+        assertEquals(BLUE, board.getDisplayed().getPixel(150, 10));
+        assertEquals(BLUE, board.getDisplayed().getPixel(50, 500));
+        assertEquals(BLUE, board.getConfirmed().getPixel(50, 10));
+    }
+
+    /**
+     * An acknowledgement replaces the prediction with what the server
+     * drew, where they differ
+     */
+    @Test
+    public void testAcknowledgeCorrects(){
+        PredictedBoard board = new PredictedBoard(new Whiteboard());
+        board.drawLine(new Point(10, 10), new Point(20, 12), RED, 1);
+        board.drawLine(new Point(20, 12), new Point(30, 10), RED, 1);
+        board.drawSent();
+        board.drawLine(new Point(300, 300), new Point(400, 300), BLUE, 1);
+        board.drawSent();
+        assertEquals(3, board.getPendingCount());
+
+        // the server drew the first stroke simplified to a straight line
+        Whiteboard server = new Whiteboard();
+        List<Span> spans = server.drawPolylineSpans(Arrays.asList(new Point(10, 10), new Point(30, 10)), RED, 1);
+        board.updateSpans(spans, RED);
+        board.acknowledgeDraw();
+        assertEquals(1, board.getPendingCount());
+        assertEquals(RED, board.getDisplayed().getPixel(20, 10));
+        assertEquals(WHITE, board.getDisplayed().getPixel(20, 12));
+        assertEquals(BLUE, board.getDisplayed().getPixel(350, 300));
+
+        board.updateSpans(Arrays.asList(new Span(300, 300, 400)), BLUE);
+        board.acknowledgeDraw();
+        assertEquals(0, board.getPendingCount());
+        assertEquals(board.getConfirmed(), board.getDisplayed());
+
+        // extra acknowledgements are ignored
+        board.acknowledgeDraw();
+        assertEquals(board.getConfirmed(), board.getDisplayed());
+    }
+
+    /**
+     * Clearing the predictions shows the confirmed board
+     */
+    @Test
+    public void testClearPredictions(){
+        PredictedBoard board = new PredictedBoard(new Whiteboard());
+        board.fill(new Point(0, 0), RED);
+        board.drawSent();
+        assertEquals(RED, board.getDisplayed().getPixel(400, 300));
+        board.clearPredictions();
+        assertEquals(0, board.getPendingCount());
+        assertEquals(new Whiteboard(), board.getDisplayed());
+
+        // an acknowledgement from the old connection is ignored
+        board.drawLine(new Point(0, 0), new Point(10, 0), BLUE, 1);
+        board.drawSent();
+        board.clearPredictions();
+        board.acknowledgeDraw();
+        assertEquals(new Whiteboard(), board.getDisplayed());
+    }
+}
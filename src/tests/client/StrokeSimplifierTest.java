@@ -0,0 +1,106 @@
+package tests.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import client.StrokeSimplifier;
+import common.Point;
+
+/**
+ * Testing suite for StrokeSimplifier.java
+ *
+ * Testing strategy:
+ * Strokes of fewer than three points, and any stroke with a tolerance of
+ * 0, are unchanged.
+ * The points of a straight line are reduced to its endpoints.
+ * A corner that is further than the tolerance is kept, and a wobble that
+ * is within the tolerance is dropped.
+ * Every dropped point is within the tolerance of the simplified stroke,
+ * and the endpoints are always kept.
+ */
+public class StrokeSimplifierTest {
+
+    /**
+     * Short strokes and a tolerance of 0 keep every point
+     */
+    @Test
+    public void testUnchanged(){
+        List<Point> two = Arrays.asList(new Point(0, 0), new Point(10, 10));
+        assertSame(two, StrokeSimplifier.simplify(two, 1));
+        List<Point> line = _line(0, 0, 100, 0);
+        assertSame(line, StrokeSimplifier.simplify(line, 0));
+    }
+
+    /**
+     * A straight line is reduced to its endpoints
+     */
+    @Test
+    public void testStraightLine(){
+        List<Point> line = _line(5, 5, 105, 55);
+        assertEquals(Arrays.asList(new Point(5, 5), new Point(105, 55)),
+                StrokeSimplifier.simplify(line, 1));
+    }
+
+    /**
+     * Corners are kept and small wobbles are dropped
+     */
+    @Test
+    public void testCornerAndWobble(){
+        List<Point> stroke = new ArrayList<Point>();
+        stroke.add(new Point(0, 0));
+        stroke.add(new Point(10, 1));
+        stroke.add(new Point(20, 0));
+        stroke.add(new Point(20, 20));
+        assertEquals(Arrays.asList(new Point(0, 0), new Point(20, 0), new Point(20, 20)),
+                StrokeSimplifier.simplify(stroke, 1.5));
+        assertEquals(stroke, StrokeSimplifier.simplify(stroke, 0.5));
+    }
+
+    /**
+     * Dropped points are within the tolerance, on a long curved stroke
+     */
+    @Test
+    public void testCurve(){
+        List<Point> stroke = new ArrayList<Point>();
+        for (int i=0; i<=1000; i++){
+            double a = i * Math.PI / 500;
+            stroke.add(new Point(400 + (int) Math.round(200*Math.cos(a)), 300 + (int) Math.round(200*Math.sin(a))));
+        }
+        double tolerance = 2;
+        List<Point> simplified = StrokeSimplifier.simplify(stroke, tolerance);
+        assertTrue(simplified.size() < stroke.size() / 4);
+        assertEquals(stroke.get(0), simplified.get(0));
+        assertEquals(stroke.get(stroke.size() - 1), simplified.get(simplified.size() - 1));
+        for (Point p: stroke){
+            double best = Double.MAX_VALUE;
+            for (int i=0; i+1<simplified.size(); i++){
+                best = Math.min(best, _distance(p, simplified.get(i), simplified.get(i+1)));
+            }
+            assertTrue(p + " is " + best + " away", best <= tolerance);
+        }
+    }
+
+    /**
+     * @return the points of a line, one per unit of x
+     */
+    private static List<Point> _line(int x1, int y1, int x2, int y2){
+        List<Point> points = new ArrayList<Point>();
+        for (int x=x1; x<=x2; x++){
+            points.add(new Point(x, y1 + (y2 - y1) * (x - x1) / (x2 - x1)));
+        }
+        return points;
+    }
+
+    /**
+     * @return the distance of p from the segment between a and b
+     */
+    private static double _distance(Point p, Point a, Point b){
+        java.awt.geom.Line2D.Double segment = new java.awt.geom.Line2D.Double(a.getX(), a.getY(), b.getX(), b.getY());
+        return segment.ptSegDist(p.getX(), p.getY());
+    }
+}
@@ -16,6 +16,7 @@ import common.Color;
  * Create two colors with different RGB values. Test equality.
  * Create a color and test equality with a non-Color object.
  * Create two colors with the same RGB values. Test the equality of hashcodes.
+ * Get colors with valueOf(). Test that they are equal to constructed colors.
  */
 public class ColorTest {
     /**
@@ -68,4 +69,16 @@ public class ColorTest {
         Color p2 = new Color(1,2,3);
         assertEquals(p1.hashCode(), p2.hashCode());
     }
-}
\ No newline at end of file
+
+    /**
+     * Test that valueOf() returns colors equal to the constructed ones,
+     * and reuses the instance for repeated requests.
+     */
+    @Test
+    public void testValueOf(){
+        Color p1 = Color.valueOf(1,2,3);
+        assertEquals(new Color(1,2,3), p1);
+        assertEquals(new Color(3,2,1), Color.valueOf(3,2,1));
+        assertEquals(true, p1 == Color.valueOf(1,2,3));
+    }
+}
@@ -0,0 +1,36 @@
+package tests.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import common.*;
+
+/**
+ * Test suite for FlightEvent.java. FlightEvents are only recorded while a
+ * flight recording is active, and do nothing otherwise.
+ *
+ * Testing strategy:
+ * Without an active recording, a defined type is not enabled, and its
+ * events can be filled in and committed without effect, on any JVM.
+ */
+public class FlightEventTest {
+    /**
+     * Events do nothing without an active recording
+     */
+    @Test
+    public void testDisabled(){
+        FlightEvent.Type type = FlightEvent.define("whiteboard.Test", "Test",
+                new String[]{"board", "user", "count", "flag"},
+                new Class<?>[]{int.class, String.class, long.class, boolean.class});
+        assertEquals(false, type.isEnabled());
+
+        FlightEvent e = type.begin();
+        assertEquals(false, e.isEnabled());
+        e.set(0, 1);
+        e.set(1, "fred");
+        e.set(2, 3L);
+        e.set(3, true);
+        e.commit();
+    }
+}
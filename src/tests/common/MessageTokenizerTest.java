@@ -0,0 +1,134 @@
+package tests.common;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import common.MessageTokenizer;
+
+/**
+ * Test suite for MessageTokenizer.java. MessageTokenizer reads the tokens
+ * of a message directly from a character buffer.
+ *
+ * Testing strategy:
+ * Read opcodes of one, two and three characters, and compare with pack().
+ * Read positive and negative integers, and a malformed integer.
+ * Read the limits of int, and integers that do not fit in an int or a long.
+ * Read strings and comma-separated lists.
+ * Read hex bytes.
+ * Tokenize a message in the middle of a larger buffer.
+ * Count the characters left in a message, within the range of the buffer.
+ */
+public class MessageTokenizerTest {
+    /**
+     * Opcodes are packed the same way as pack()
+     */
+    @Test
+    public void testOpcode(){
+        MessageTokenizer t = new MessageTokenizer();
+        t.reset("dr 1 2");
+        assertEquals(MessageTokenizer.pack("dr"), t.opcode());
+        assertEquals(('d' << 8) | 'r', MessageTokenizer.pack("dr"));
+
+        t.reset("p");
+        assertEquals('p', t.opcode());
+        assertEquals(false, t.hasMore());
+    }
+
+    /**
+     * Integers are parsed in place
+     */
+    @Test
+    public void testIntegers(){
+        MessageTokenizer t = new MessageTokenizer();
+        t.reset("p 12  -34 0 1234567890123");
+        t.opcode();
+        assertEquals(12, t.nextInt());
+        assertEquals(-34, t.nextInt());
+        assertEquals(0, t.nextInt());
+        assertEquals(1234567890123L, t.nextLong());
+        assertEquals(false, t.hasMore());
+    }
+
+    /**
+     * Malformed integers raise an exception
+     */
+    @Test(expected=NumberFormatException.class)
+    public void testMalformedInteger(){
+        MessageTokenizer t = new MessageTokenizer();
+        t.reset("p 1x");
+        t.opcode();
+        t.nextInt();
+    }
+
+    /**
+     * The limits of int are read, and integers beyond them raise an
+     * exception instead of wrapping
+     */
+    @Test
+    public void testIntegerRange(){
+        MessageTokenizer t = new MessageTokenizer();
+        t.reset("p 2147483647 -2147483648 2147483648 -2147483649 99999999999999999999");
+        t.opcode();
+        assertEquals(Integer.MAX_VALUE, t.nextInt());
+        assertEquals(Integer.MIN_VALUE, t.nextInt());
+        for (int i=0; i<3; i++){
+            try {
+                t.nextInt();
+                fail("expected NumberFormatException");
+            } catch (NumberFormatException e){
+            }
+        }
+    }
+
+    /**
+     * Strings and lists
+     */
+    @Test
+    public void testStrings(){
+        MessageTokenizer t = new MessageTokenizer();
+        t.reset("cs fred bob,alice ff00a0");
+        t.opcode();
+        assertEquals("fred", t.nextString());
+        assertEquals(Arrays.asList("bob", "alice"), t.nextList(','));
+        t.skipSpaces();
+        assertEquals(255, t.nextHexByte());
+        assertEquals(0, t.nextHexByte());
+        assertEquals(160, t.nextHexByte());
+        assertEquals(false, t.hasMore());
+    }
+
+    /**
+     * Only the given range of the buffer is tokenized
+     */
+    @Test
+    public void testBufferRange(){
+        char[] buffer = "xxu 5 6yyy".toCharArray();
+        MessageTokenizer t = new MessageTokenizer();
+        t.reset(buffer, 2, 5);
+        assertEquals('u', t.opcode());
+        assertEquals(5, t.nextInt());
+        assertEquals(6, t.nextInt());
+        assertEquals(false, t.hasMore());
+    }
+
+    /**
+     * The characters left include the spaces before the next token, and
+     * stop at the end of the range of the buffer
+     */
+    @Test
+    public void testRemaining(){
+        char[] buffer = "xxpl 12 3yyy".toCharArray();
+        MessageTokenizer t = new MessageTokenizer();
+        t.reset(buffer, 2, 7);
+        assertEquals(7, t.remaining());
+        t.opcode();
+        assertEquals(5, t.remaining());
+        assertEquals(12, t.nextInt());
+        assertEquals(2, t.remaining());
+        assertEquals(3, t.nextInt());
+        assertEquals(0, t.remaining());
+    }
+}
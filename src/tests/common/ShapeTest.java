@@ -0,0 +1,172 @@
+package tests.common;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import common.Color;
+import common.Point;
+import common.Shape;
+import common.Span;
+import common.Whiteboard;
+
+/**
+ * Testing suite for Shape.java, and Whiteboard.drawShape().
+ *
+ * Testing strategy:
+ * The corners are normalized, whatever order they are given in.
+ * A filled rectangle is one span per row.
+ * An outlined rectangle is full rows at the top and bottom, and two spans
+ * per row in between.
+ * A filled ellipse is symmetric, widest in the middle row, and inside its
+ * bounding rectangle.
+ * An outlined ellipse leaves its center untouched.
+ * Shapes are clipped to the board, whatever its size.
+ * Clearing the board makes it white again, also on the largest boards.
+ * Kinds can be looked up by their codes.
+ */
+public class ShapeTest {
+
+    /**
+     * Corners are normalized
+     */
+    @Test
+    public void testCorners(){
+        Color c = new Color(1, 2, 3);
+        Shape s = new Shape(Shape.Kind.RECTANGLE, new Point(10, 2), new Point(3, 20), c, 0);
+        assertEquals(new Point(3, 2), s.getP1());
+        assertEquals(new Point(10, 20), s.getP2());
+        assertEquals(new Shape(Shape.Kind.RECTANGLE, new Point(3, 2), new Point(10, 20), c, 0), s);
+        assertTrue(s.isFilled());
+    }
+
+    /**
+     * A filled rectangle is one span per row
+     */
+    @Test
+    public void testFilledRectangle(){
+        Shape s = new Shape(Shape.Kind.RECTANGLE, new Point(3, 2), new Point(10, 20), new Color(), 0);
+        List<Span> spans = s.getSpans(Whiteboard.WIDTH, Whiteboard.HEIGHT);
+        assertEquals(19, spans.size());
+        for (Span span: spans){
+            assertEquals(3, span.getX1());
+            assertEquals(10, span.getX2());
+        }
+    }
+
+    /**
+     * An outlined rectangle has full rows at the top and bottom, and the
+     * sides in between
+     */
+    @Test
+    public void testOutlinedRectangle(){
+        Color red = new Color(255, 0, 0);
+        Whiteboard w1 = new Whiteboard();
+        w1.drawShape(new Shape(Shape.Kind.RECTANGLE, new Point(10, 10), new Point(30, 40), red, 2));
+        assertEquals(red, w1.getPixel(20, 10));
+        assertEquals(red, w1.getPixel(20, 11));
+        assertEquals(new Color(), w1.getPixel(20, 12));
+        assertEquals(red, w1.getPixel(20, 40));
+        assertEquals(red, w1.getPixel(10, 25));
+        assertEquals(red, w1.getPixel(11, 25));
+        assertEquals(new Color(), w1.getPixel(12, 25));
+        assertEquals(red, w1.getPixel(30, 25));
+        assertEquals(new Color(), w1.getPixel(9, 25));
+        assertEquals(new Color(), w1.getPixel(31, 25));
+    }
+
+    /**
+     * A filled ellipse is symmetric and inside its bounding rectangle
+     */
+    @Test
+    public void testFilledEllipse(){
+        Color blue = new Color(0, 0, 255);
+        Whiteboard w1 = new Whiteboard();
+        List<Span> spans = w1.drawShape(new Shape(Shape.Kind.ELLIPSE, new Point(100, 100), new Point(200, 150), blue, 0));
+        assertEquals(51, spans.size());
+        for (Span span: spans){
+            assertTrue(span.getX1() >= 100);
+            assertTrue(span.getX2() <= 200);
+            assertEquals(300, span.getX1() + span.getX2());
+        }
+        assertEquals(blue, w1.getPixel(100, 125));
+        assertEquals(blue, w1.getPixel(200, 125));
+        assertEquals(blue, w1.getPixel(150, 150));
+        assertEquals(new Color(), w1.getPixel(100, 100));
+        assertEquals(new Color(), w1.getPixel(200, 150));
+    }
+
+    /**
+     * An outlined ellipse leaves its center untouched
+     */
+    @Test
+    public void testOutlinedEllipse(){
+        Color blue = new Color(0, 0, 255);
+        Whiteboard w1 = new Whiteboard();
+        w1.drawShape(new Shape(Shape.Kind.ELLIPSE, new Point(100, 100), new Point(200, 150), blue, 3));
+        assertEquals(blue, w1.getPixel(100, 125));
+        assertEquals(blue, w1.getPixel(150, 150));
+        assertEquals(blue, w1.getPixel(150, 100));
+        assertEquals(new Color(), w1.getPixel(150, 125));
+        assertEquals(new Color(), w1.getPixel(110, 125));
+    }
+
+    /**
+     * Shapes are clipped to the board
+     */
+    @Test
+    public void testClipped(){
+        Shape s = new Shape(Shape.Kind.RECTANGLE, new Point(-10, -10), new Point(2000, 5), new Color(), 0);
+        List<Span> spans = s.getSpans(Whiteboard.WIDTH, Whiteboard.HEIGHT);
+        assertEquals(6, spans.size());
+        for (Span span: spans){
+            assertEquals(0, span.getX1());
+            assertEquals(Whiteboard.WIDTH - 1, span.getX2());
+        }
+        assertTrue(new Shape(Shape.Kind.ELLIPSE, new Point(-100, -100), new Point(-50, -50), new Color(), 0)
+                .getSpans(Whiteboard.WIDTH, Whiteboard.HEIGHT).isEmpty());
+
+        // to the size of the board
+        spans = s.getSpans(1500, 3);
+        assertEquals(3, spans.size());
+        assertEquals(new Span(2, 0, 1499), spans.get(2));
+    }
+
+    /**
+     * Clearing the board makes it white
+     */
+    @Test
+    public void testClearBoard(){
+        Whiteboard w1 = new Whiteboard();
+        w1.drawLine(new Point(10, 10), new Point(500, 400), new Color(0, 0, 0), 40);
+        Shape clear = Shape.clearBoard();
+        assertEquals(new Color(), clear.getColor());
+        w1.drawShape(clear);
+        assertEquals(new Whiteboard(), w1);
+
+        Whiteboard w2 = new Whiteboard(Whiteboard.MAX_WIDTH, 100);
+        w2.drawLine(new Point(4000, 10), new Point(4095, 99), new Color(0, 0, 0), 5);
+        w2.drawShape(clear);
+        assertEquals(new Whiteboard(Whiteboard.MAX_WIDTH, 100), w2);
+    }
+
+    /**
+     * Kinds are looked up by their codes
+     */
+    @Test
+    public void testKindCodes(){
+        for (Shape.Kind k: Shape.Kind.values()){
+            assertEquals(k, Shape.Kind.fromCode(k.getCode()));
+        }
+    }
+
+    /**
+     * Unknown codes are rejected
+     */
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnknownKind(){
+        Shape.Kind.fromCode("x");
+    }
+}
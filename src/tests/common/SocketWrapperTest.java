@@ -18,6 +18,16 @@ import java.io.*;
  * Switch the roles of the sockets and repeat the previous test.
  * Close a socketWrapper
  * Test that the closed socketWrapper cannot write.
+ * Queue lines with bufferLine() and check that they only arrive after flush().
+ * Queue a line and check that it is flushed automatically after the flush delay.
+ * Fill the socket of a peer that stops reading, and check that the queued lines of
+ * another socket are still flushed automatically on time.
+ * Send a line longer than the maximum line length and check that reading fails.
+ * Do the same with a maximum line length below the size of the read buffer.
+ * Keep an idle connection open with heartbeats, which are not passed to the listener.
+ * Check that a socket whose peer sends nothing is closed after the heartbeat timeout.
+ * Fill the socket of a peer that stops reading, and check that heartbeats are still
+ * sent to another peer, which stays open.
  *
  */
 public class SocketWrapperTest {
@@ -63,4 +73,309 @@ public class SocketWrapperTest {
         s1.writeLine("Fail");
         verify(l1, delay).onWriteError(any(IOException.class));
     }
+
+    /**
+     * Test that buffered lines are held until they are flushed, either
+     * explicitly or automatically after the flush delay.
+     */
+    @Test
+    public void testBufferedWrites() throws Exception{
+        final int PORT = 1426; //port for TCP communication
+        final VerificationMode delay = timeout(2000); //mockito verify delay, wait for up to 2 seconds
+
+        // Construct and connect two sockets to each other
+        ServerSocket ss = new ServerSocket(PORT);
+        SocketWrapper s1 = new SocketWrapper(new Socket("localhost", PORT));
+        SocketWrapper s2 = new SocketWrapper(ss.accept());
+        ss.close();
+
+        SocketWrapperListener l1 = mock(SocketWrapperListener.class);
+        SocketWrapperListener l2 = mock(SocketWrapperListener.class);
+
+        s1.setSocketWrapperListener(l1);
+        s2.setSocketWrapperListener(l2);
+
+        s1.start();
+        s2.start();
+
+        // Queued lines are not sent until flushed
+        s1.setFlushPolicy(1024*1024, 60*1000);
+        s1.bufferLine("Line1");
+        s1.bufferLine("Line2");
+        Thread.sleep(200);
+        verify(l2, never()).onReadLine(anyString());
+
+        s1.flush();
+        verify(l2, delay).onReadLine("Line1");
+        verify(l2, delay).onReadLine("Line2");
+
+        // Queued lines are flushed automatically after the delay
+        s1.setFlushPolicy(1024*1024, 10);
+        s1.bufferLine("Line3");
+        verify(l2, delay).onReadLine("Line3");
+
+        // Queued lines are flushed automatically above the threshold
+        s1.setFlushPolicy(4, 60*1000);
+        s1.bufferLine("Line4");
+        verify(l2, delay).onReadLine("Line4");
+
+        s1.close();
+        s2.close();
+    }
+
+    /**
+     * Test that a peer that stops reading does not delay the automatic
+     * flushes of other sockets.
+     */
+    @Test
+    public void testBlockedPeer() throws Exception{
+        final int PORT = 1429; //port for TCP communication
+        final VerificationMode delay = timeout(2000); //mockito verify delay, wait for up to 2 seconds
+
+        // Construct a socket whose peer never reads, and two sockets that
+        // are connected to each other
+        ServerSocket ss = new ServerSocket(PORT);
+        Socket stuck = new Socket("localhost", PORT);
+        final SocketWrapper s1 = new SocketWrapper(ss.accept());
+        SocketWrapper s2 = new SocketWrapper(new Socket("localhost", PORT));
+        SocketWrapper s3 = new SocketWrapper(ss.accept());
+        ss.close();
+
+        SocketWrapperListener l1 = mock(SocketWrapperListener.class);
+        SocketWrapperListener l2 = mock(SocketWrapperListener.class);
+        SocketWrapperListener l3 = mock(SocketWrapperListener.class);
+
+        s1.setSocketWrapperListener(l1);
+        s2.setSocketWrapperListener(l2);
+        s3.setSocketWrapperListener(l3);
+        s1.setFlushPolicy(1024*1024, 0);
+        s2.setFlushPolicy(1024*1024, 10);
+
+        s1.start();
+        s2.start();
+        s3.start();
+
+        // Write to s1 until its peer's buffers are full and the writes block
+        final StringBuilder b = new StringBuilder();
+        for (int i=0; i<1000; i++){
+            b.append("0123456789");
+        }
+        Thread filler = new Thread(new Runnable(){
+            public void run(){
+                for (int i=0; i<10000; i++){
+                    s1.bufferLine(b.toString());
+                }
+            }
+        });
+        filler.setDaemon(true);
+        filler.start();
+        Thread.sleep(500);
+
+        // The queued lines of s2 are still flushed on time
+        s2.bufferLine("Line1");
+        verify(l3, delay).onReadLine("Line1");
+
+        stuck.close();
+        s1.close();
+        s2.close();
+        s3.close();
+    }
+
+    /**
+     * Test that a line longer than the maximum line length is rejected
+     * and closes the reading side of the socket.
+     */
+    @Test
+    public void testMaxLineLength() throws Exception{
+        final int PORT = 1427; //port for TCP communication
+        final VerificationMode delay = timeout(2000); //mockito verify delay, wait for up to 2 seconds
+
+        // Construct and connect two sockets to each other
+        ServerSocket ss = new ServerSocket(PORT);
+        SocketWrapper s1 = new SocketWrapper(new Socket("localhost", PORT));
+        SocketWrapper s2 = new SocketWrapper(ss.accept());
+        ss.close();
+
+        SocketWrapperListener l1 = mock(SocketWrapperListener.class);
+        SocketWrapperListener l2 = mock(SocketWrapperListener.class);
+
+        s1.setSocketWrapperListener(l1);
+        s2.setSocketWrapperListener(l2);
+        s2.setMaxLineLength(20000);
+
+        s1.start();
+        s2.start();
+
+        // A line within the limit is received
+        StringBuilder b = new StringBuilder();
+        for (int i=0; i<1000; i++){
+            b.append("0123456789");
+        }
+        s1.writeLine(b.toString());
+        verify(l2, delay).onReadLine(b.toString());
+
+        // A line over the limit is rejected
+        b.append(b.toString()).append(b.toString());
+        s1.writeLine(b.toString());
+        verify(l2, delay).onReadError(any(IOException.class));
+        verify(l2, delay).onReadFinish();
+        verify(l2, never()).onReadLine(b.toString());
+
+        s1.close();
+        s2.close();
+    }
+
+    /**
+     * Test that a maximum line length below the size of the read buffer
+     * is enforced as well.
+     */
+    @Test
+    public void testShortMaxLineLength() throws Exception{
+        final int PORT = 1433; //port for TCP communication
+        final VerificationMode delay = timeout(2000); //mockito verify delay, wait for up to 2 seconds
+
+        // Construct and connect two sockets to each other
+        ServerSocket ss = new ServerSocket(PORT);
+        SocketWrapper s1 = new SocketWrapper(new Socket("localhost", PORT));
+        SocketWrapper s2 = new SocketWrapper(ss.accept());
+        ss.close();
+
+        SocketWrapperListener l1 = mock(SocketWrapperListener.class);
+        SocketWrapperListener l2 = mock(SocketWrapperListener.class);
+
+        s1.setSocketWrapperListener(l1);
+        s2.setSocketWrapperListener(l2);
+        s2.setMaxLineLength(100);
+
+        s1.start();
+        s2.start();
+
+        // A line within the limit is received
+        StringBuilder b = new StringBuilder();
+        for (int i=0; i<10; i++){
+            b.append("0123456789");
+        }
+        s1.writeLine(b.toString());
+        verify(l2, delay).onReadLine(b.toString());
+
+        // A line over the limit is rejected
+        b.append("0");
+        s1.writeLine(b.toString());
+        verify(l2, delay).onReadError(any(IOException.class));
+        verify(l2, delay).onReadFinish();
+        verify(l2, never()).onReadLine(b.toString());
+
+        s1.close();
+        s2.close();
+    }
+
+    /**
+     * Test that heartbeats keep an idle connection open without reaching
+     * the listener, and that a silent peer is timed out.
+     */
+    @Test
+    public void testHeartbeat() throws Exception{
+        final int PORT = 1428; //port for TCP communication
+        final VerificationMode delay = timeout(2000); //mockito verify delay, wait for up to 2 seconds
+
+        // Construct and connect two sockets to each other, and a third
+        // socket whose peer never writes
+        ServerSocket ss = new ServerSocket(PORT);
+        SocketWrapper s1 = new SocketWrapper(new Socket("localhost", PORT));
+        SocketWrapper s2 = new SocketWrapper(ss.accept());
+        Socket silent = new Socket("localhost", PORT);
+        SocketWrapper s3 = new SocketWrapper(ss.accept());
+        ss.close();
+
+        SocketWrapperListener l1 = mock(SocketWrapperListener.class);
+        SocketWrapperListener l2 = mock(SocketWrapperListener.class);
+        SocketWrapperListener l3 = mock(SocketWrapperListener.class);
+
+        s1.setSocketWrapperListener(l1);
+        s2.setSocketWrapperListener(l2);
+        s3.setSocketWrapperListener(l3);
+        s1.setHeartbeat(100, 60000);
+        s2.setHeartbeat(60000, 500);
+        s3.setHeartbeat(60000, 500);
+
+        s1.start();
+        s2.start();
+        s3.start();
+
+        // s3 is closed because its peer is silent
+        verify(l3, delay).onReadFinish();
+
+        // s2 is kept open by the heartbeats of s1
+        Thread.sleep(1000);
+        verify(l2, never()).onReadFinish();
+        verify(l2, never()).onReadLine(anyString());
+
+        s1.writeLine("Line1");
+        verify(l2, delay).onReadLine("Line1");
+
+        s1.close();
+        s2.close();
+        s3.close();
+        silent.close();
+    }
+
+    /**
+     * Test that a peer that stops reading does not stop the heartbeats
+     * to other peers.
+     */
+    @Test
+    public void testHeartbeatBlockedPeer() throws Exception{
+        final int PORT = 1432; //port for TCP communication
+        final VerificationMode delay = timeout(2000); //mockito verify delay, wait for up to 2 seconds
+
+        // Construct a socket whose peer never reads, and two sockets that
+        // are connected to each other
+        ServerSocket ss = new ServerSocket(PORT);
+        Socket stuck = new Socket("localhost", PORT);
+        final SocketWrapper s1 = new SocketWrapper(ss.accept());
+        SocketWrapper s2 = new SocketWrapper(new Socket("localhost", PORT));
+        SocketWrapper s3 = new SocketWrapper(ss.accept());
+        ss.close();
+
+        SocketWrapperListener l1 = mock(SocketWrapperListener.class);
+        SocketWrapperListener l2 = mock(SocketWrapperListener.class);
+        SocketWrapperListener l3 = mock(SocketWrapperListener.class);
+
+        s1.setSocketWrapperListener(l1);
+        s2.setSocketWrapperListener(l2);
+        s3.setSocketWrapperListener(l3);
+        s1.setHeartbeat(100, 60000);
+        s2.setHeartbeat(100, 60000);
+        s3.setHeartbeat(60000, 500);
+
+        s1.start();
+        s2.start();
+        s3.start();
+
+        // Write to s1 until its peer's buffers are full and the writes block
+        final StringBuilder b = new StringBuilder();
+        for (int i=0; i<1000; i++){
+            b.append("0123456789");
+        }
+        Thread filler = new Thread(new Runnable(){
+            public void run(){
+                for (int i=0; i<10000; i++){
+                    s1.writeLine(b.toString());
+                }
+            }
+        });
+        filler.setDaemon(true);
+        filler.start();
+
+        // s3 is kept open by the heartbeats of s2
+        Thread.sleep(1500);
+        verify(l3, never()).onReadFinish();
+        s2.writeLine("Line1");
+        verify(l3, delay).onReadLine("Line1");
+
+        stuck.close();
+        s1.close();
+        s2.close();
+        s3.close();
+    }
 }
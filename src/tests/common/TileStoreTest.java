@@ -0,0 +1,60 @@
+package tests.common;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import common.TileStore;
+
+/**
+ * Test suite for TileStore.java
+ *
+ * Testing strategy:
+ * Interning an array that is not stored yet returns it, and stores it.
+ * Interning an equal array returns the stored one and counts it as
+ * deduplicated; interning the stored array again does not count.
+ * Arrays with different content, or of different types, are stored apart.
+ */
+public class TileStoreTest {
+
+    /**
+     * Equal arrays are stored once
+     */
+    @Test
+    public void testIntern(){
+        byte[] tile = new byte[1024];
+        tile[3] = 42;
+        tile[1000] = 7;
+        long count = TileStore.getTileCount();
+        long bytes = TileStore.getBytes();
+        assertSame(tile, TileStore.intern(tile));
+        assertEquals(count + 1, TileStore.getTileCount());
+        assertEquals(bytes + 1024, TileStore.getBytes());
+
+        long deduplicated = TileStore.getDeduplicatedCount();
+        assertSame(tile, TileStore.intern(tile.clone()));
+        assertEquals(deduplicated + 1, TileStore.getDeduplicatedCount());
+        assertSame(tile, TileStore.intern(tile));
+        assertEquals(deduplicated + 1, TileStore.getDeduplicatedCount());
+        assertEquals(count + 1, TileStore.getTileCount());
+    }
+
+    /**
+     * Different arrays are stored apart
+     */
+    @Test
+    public void testDifferent(){
+        byte[] tile = new byte[1024];
+        tile[5] = 99;
+        byte[] other = tile.clone();
+        other[6] = 1;
+        assertSame(tile, TileStore.intern(tile));
+        assertSame(other, TileStore.intern(other));
+
+        int[] rgbs = new int[1024];
+        rgbs[5] = 99;
+        assertSame(rgbs, TileStore.intern(rgbs));
+        assertSame(rgbs, TileStore.intern(rgbs.clone()));
+        assertSame(tile, TileStore.intern(tile.clone()));
+    }
+}
@@ -4,11 +4,15 @@ import static org.junit.Assert.*;
 
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 
 import common.Color;
 import common.Point;
+import common.Span;
+import common.TileStore;
 import common.Whiteboard;
 
 /**
@@ -32,6 +36,54 @@ import common.Whiteboard;
  * Test setPixel() only sets the color for one pixel
  * Test makeBuffer() returns a BufferedImage of the right size and type
  * Test copyPixelData() puts the data from the board into the bufferedImage
+ * drawPolyline() draws the same pixels as drawLine() for every segment, reports
+ * every changed pixel once, and draws a single point like drawLine()
+ * drawPolylineSpans() draws the same pixels as drawPolyline(), in sorted spans
+ * that do not overlap or touch, one per row for a thick straight stroke, and
+ * clips the brush to the board
+ * A bunch of fill() tests:
+ *          fill a blank board, which is one span per row
+ *          fill inside a closed outline, which stops at the outline
+ *          fill an area that already has the color, which changes nothing
+ *          fill an area shaped so that seeds are pushed on both sides of a run
+ * Test fillSpan() colors exactly the pixels of the span
+ * Palette tests:
+ *          a new board is indexed with a palette of just white, which grows
+ *          with each new color
+ *          colors that are no longer on the board are dropped when the palette
+ *          is full, so that the board stays indexed
+ *          a board with more colors than fit in the palette stops being indexed,
+ *          and keeps every pixel, and fills and equality still work
+ * Hash tree tests:
+ *          boards with the same pixels have the same hashes, whatever the order
+ *          of the draws and the palettes, and whether they are indexed or not
+ *          drawing and undoing a change restores the hashes
+ *          diffTiles() returns exactly the tiles that differ, including the cut
+ *          off last row of tiles, and nothing for equal boards
+ * Boards of other sizes have their own tile grid, including the cut off last
+ * column and row of tiles, and are not equal to boards of other sizes; sizes
+ * out of range are rejected
+ * Brush widths from 0 to MAX_BRUSH_WIDTH are valid, and negative or wider ones
+ * are not
+ * A copy is equal to the board and independent of it, and copyTile() copies
+ * exactly one tile, including between an indexed board and one that is not
+ * Copy-on-write tests:
+ *          a new board and a copy share all their tiles, and writing a pixel
+ *          copies only its tile, in only the board that is written to
+ *          a fill that changes nothing copies no tile
+ *          deduplicating replaces tiles with equal tiles of other boards
+ *          (including blank ones), shares all tiles, and keeps the pixels
+ * Compression tests:
+ *          compressing keeps the pixels and hashes, skips blank shared tiles,
+ *          and only compresses tiles that were not written to in the given
+ *          number of calls
+ *          reading or writing a compressed tile decompresses only that tile,
+ *          and copies keep the compressed tiles of the board
+ *          a board that overflows its palette decompresses its tiles first,
+ *          and its tiles can be compressed as RGB values
+ *          a tile of noise is not compressed
+ *          a board and its copy share all their tiles again after both are
+ *          compressed and read, and still copy them when they are written to
  * 
  */
 public class WhiteboardTests {
@@ -384,10 +436,13 @@ public class WhiteboardTests {
       */
      @Test
      public void testMakeBuffer(){
-         BufferedImage bi = Whiteboard.makeBuffer();
+         BufferedImage bi = new Whiteboard().makeBuffer();
          assertEquals(600, bi.getHeight());
          assertEquals(800, bi.getWidth());
          assertEquals(1, bi.getType());
+         bi = new Whiteboard(40, 3000).makeBuffer();
+         assertEquals(3000, bi.getHeight());
+         assertEquals(40, bi.getWidth());
          
      }
      
@@ -397,7 +452,7 @@ public class WhiteboardTests {
      @Test
      public void testCopyPixelData(){
          Whiteboard w1 = new Whiteboard();
-         BufferedImage bi = Whiteboard.makeBuffer();
+         BufferedImage bi = w1.makeBuffer();
          Color newColor = new Color(1, 2, 3);
          w1.setPixel(new Point(100, 200), newColor);
          w1.copyPixelData(bi);
@@ -407,4 +462,572 @@ public class WhiteboardTests {
          assertEquals(2, (bi.getTile(0, 0).getSample(100, 399, 1)));
          assertEquals(1, (bi.getTile(0, 0).getSample(100, 399, 0)));
      }
+
+    /**
+     * Filling a blank board changes every pixel, one span per row
+     */
+    @Test
+    public void testFillBlank(){
+        Whiteboard w1 = new Whiteboard();
+        Color red = new Color(255, 0, 0);
+        List<Span> spans = w1.fill(new Point(400, 300), red);
+        assertEquals(Whiteboard.HEIGHT, spans.size());
+        for (Span span: spans){
+            assertEquals(0, span.getX1());
+            assertEquals(Whiteboard.WIDTH - 1, span.getX2());
+        }
+        Whiteboard w2 = new Whiteboard();
+        for (int i = 0; i < Whiteboard.WIDTH; i ++){
+            for (int j = 0; j < Whiteboard.HEIGHT; j ++){
+                w2.setPixel(i, j, red);
+            }
+        }
+        assertEquals(w2, w1);
+    }
+
+    /**
+     * Filling inside a closed outline stops at the outline
+     */
+    @Test
+    public void testFillOutline(){
+        Whiteboard w1 = new Whiteboard();
+        Color black = new Color(0, 0, 0);
+        Color blue = new Color(0, 0, 255);
+        w1.drawLine(new Point(10, 10), new Point(10, 50), black, 1);
+        w1.drawLine(new Point(10, 50), new Point(50, 50), black, 1);
+        w1.drawLine(new Point(50, 50), new Point(50, 10), black, 1);
+        w1.drawLine(new Point(50, 10), new Point(10, 10), black, 1);
+
+        List<Span> spans = w1.fill(new Point(30, 30), blue);
+        int pixels = 0;
+        for (Span span: spans){
+            pixels += span.getLength();
+        }
+        assertEquals(39*39, pixels);
+        assertEquals(blue, w1.getPixel(11, 11));
+        assertEquals(blue, w1.getPixel(49, 49));
+        assertEquals(black, w1.getPixel(10, 30));
+        assertEquals(new Color(), w1.getPixel(9, 30));
+        assertEquals(new Color(), w1.getPixel(51, 51));
+    }
+
+    /**
+     * Filling an area with its own color changes nothing
+     */
+    @Test
+    public void testFillSameColor(){
+        Whiteboard w1 = new Whiteboard();
+        assertTrue(w1.fill(new Point(0, 0), new Color()).isEmpty());
+        assertEquals(new Whiteboard(), w1);
+    }
+
+    /**
+     * Filling a comb shaped area reaches every tooth, above and below
+     */
+    @Test
+    public void testFillComb(){
+        Whiteboard w1 = new Whiteboard();
+        Color black = new Color(0, 0, 0);
+        Color green = new Color(0, 255, 0);
+        // walls at every tenth column, open at row 100, inside a border
+        for (int x = 10; x < 100; x += 10){
+            w1.drawLine(new Point(x, 0), new Point(x, 99), black, 1);
+            w1.drawLine(new Point(x, 101), new Point(x, 200), black, 1);
+        }
+        w1.drawLine(new Point(0, 0), new Point(0, 200), black, 1);
+        w1.drawLine(new Point(100, 0), new Point(100, 200), black, 1);
+        w1.drawLine(new Point(0, 0), new Point(100, 0), black, 1);
+        w1.drawLine(new Point(0, 200), new Point(100, 200), black, 1);
+
+        w1.fill(new Point(5, 100), green);
+        for (int x = 1; x < 100; x ++){
+            if (x % 10 != 0){
+                assertEquals(green, w1.getPixel(x, 1));
+                assertEquals(green, w1.getPixel(x, 199));
+            }
+        }
+        assertEquals(green, w1.getPixel(50, 100));
+        assertEquals(new Color(), w1.getPixel(300, 300));
+    }
+
+    /**
+     * fillSpan() colors exactly the pixels of the span
+     */
+    @Test
+    public void testFillSpan(){
+        Whiteboard w1 = new Whiteboard();
+        Color newColor = new Color(1, 2, 3);
+        w1.fillSpan(new Span(7, 3, 5), newColor);
+        Whiteboard w2 = new Whiteboard();
+        w2.setPixel(3, 7, newColor);
+        w2.setPixel(4, 7, newColor);
+        w2.setPixel(5, 7, newColor);
+        assertEquals(w2, w1);
+    }
+
+    /**
+     * A polyline draws the same pixels as its segments, and reports each
+     * changed pixel once, even at the joints
+     */
+    @Test
+    public void testDrawPolyline(){
+        Color newColor = new Color(10, 20, 30);
+        List<Point> points = new ArrayList<Point>();
+        points.add(new Point(100, 100));
+        points.add(new Point(150, 130));
+        points.add(new Point(150, 200));
+        points.add(new Point(90, 120));
+
+        for (int width = 1; width <= 5; width += 4){
+            Whiteboard w1 = new Whiteboard();
+            List<Point> changed = w1.drawPolyline(points, newColor, width);
+
+            Whiteboard w2 = new Whiteboard();
+            for (int i = 1; i < points.size(); i ++){
+                w2.drawLine(points.get(i-1), points.get(i), newColor, width);
+            }
+            assertEquals(w2, w1);
+            assertEquals(changed.size(), new java.util.HashSet<Point>(changed).size());
+            for (Point p: changed){
+                assertEquals(newColor, w1.getPixel(p));
+            }
+        }
+
+        Whiteboard w3 = new Whiteboard();
+        Whiteboard w4 = new Whiteboard();
+        w3.drawPolyline(points.subList(0, 1), newColor, 3);
+        w4.drawLine(points.get(0), points.get(0), newColor, 3);
+        assertEquals(w4, w3);
+    }
+
+    /**
+     * The palette grows with each new color
+     */
+    @Test
+    public void testPalette(){
+        Whiteboard w1 = new Whiteboard();
+        assertTrue(w1.isIndexed());
+        assertEquals(1, w1.getPaletteSize());
+        assertEquals(new Color(), w1.getPaletteColor(0));
+
+        Color red = new Color(255, 0, 0);
+        w1.drawLine(new Point(10, 10), new Point(20, 20), red, 3);
+        w1.setPixel(5, 5, new Color(255, 0, 0));
+        assertEquals(2, w1.getPaletteSize());
+        assertEquals(red, w1.getPaletteColor(1));
+        assertEquals(1, w1.getPaletteIndex(5, 5));
+        assertEquals(0, w1.getPaletteIndex(6, 5));
+    }
+
+    /**
+     * Colors that are no longer on the board are dropped from a full palette
+     */
+    @Test
+    public void testPaletteCompaction(){
+        Whiteboard w1 = new Whiteboard();
+        Color blue = new Color(0, 0, 255);
+        w1.setPixel(1, 1, blue);
+        for (int i = 0; i < 2*Whiteboard.MAX_PALETTE_SIZE; i ++){
+            w1.setPixel(2, 2, new Color(i % 256, i / 256, 7));
+        }
+        assertTrue(w1.isIndexed());
+        assertEquals(blue, w1.getPixel(1, 1));
+        assertEquals(new Color(255, 1, 7), w1.getPixel(2, 2));
+        assertEquals(new Color(), w1.getPixel(3, 3));
+    }
+
+    /**
+     * A board with too many colors stops being indexed, and keeps its pixels
+     */
+    @Test
+    public void testPaletteOverflow(){
+        Whiteboard w1 = new Whiteboard();
+        Whiteboard w2 = new Whiteboard();
+        for (int i = 0; i < 300; i ++){
+            Color c = new Color(i % 256, i / 256, 7);
+            w1.setPixel(i, 10, c);
+            w2.setPixel(i, 10, c);
+        }
+        assertFalse(w1.isIndexed());
+        assertEquals(w2, w1);
+        assertEquals(w2.hashCode(), w1.hashCode());
+        for (int i = 0; i < 300; i ++){
+            assertEquals(new Color(i % 256, i / 256, 7), w1.getPixel(i, 10));
+        }
+        assertEquals(new Color(), w1.getPixel(300, 10));
+
+        Color red = new Color(255, 0, 0);
+        List<Span> spans = w1.fill(new Point(0, 0), red);
+        assertEquals(Whiteboard.HEIGHT, spans.size());
+        assertEquals(red, w1.getPixel(400, 10));
+        assertEquals(new Color(7, 0, 7), w1.getPixel(7, 10));
+
+        BufferedImage buffer = w1.makeBuffer();
+        w1.copyPixelData(buffer);
+        assertEquals(0x070007, buffer.getRGB(7, Whiteboard.HEIGHT - 11) & 0xffffff);
+    }
+
+    /**
+     * drawPolylineSpans() draws the pixels of drawPolyline() in a few spans
+     */
+    @Test
+    public void testDrawPolylineSpans(){
+        Color newColor = new Color(40, 50, 60);
+        List<Point> points = new ArrayList<Point>();
+        points.add(new Point(100, 100));
+        points.add(new Point(150, 130));
+        points.add(new Point(150, 200));
+        points.add(new Point(90, 120));
+
+        for (int width = 0; width <= 41; width ++){
+            Whiteboard w1 = new Whiteboard();
+            List<Span> spans = w1.drawPolylineSpans(points, newColor, width);
+            Whiteboard w2 = new Whiteboard();
+            w2.drawPolyline(points, newColor, width);
+            assertEquals(w2, w1);
+
+            for (int i = 1; i < spans.size(); i ++){
+                Span previous = spans.get(i-1);
+                Span span = spans.get(i);
+                assertTrue(previous.getY() < span.getY() ||
+                        (previous.getY() == span.getY() && previous.getX2() + 1 < span.getX1()));
+            }
+        }
+
+        // a thick horizontal step is one span per row
+        Whiteboard w3 = new Whiteboard();
+        List<Span> step = w3.drawPolylineSpans(Arrays.asList(new Point(300, 300), new Point(301, 300)), newColor, 40);
+        assertEquals(40, step.size());
+        for (Span span: step){
+            assertEquals(41, span.getLength());
+        }
+
+        // the brush is clipped to the board
+        Whiteboard w4 = new Whiteboard();
+        List<Span> corner = w4.drawPolylineSpans(Arrays.asList(new Point(0, 0)), newColor, 10);
+        assertEquals(5, corner.size());
+        assertEquals(new Span(0, 0, 4), corner.get(0));
+    }
+
+    /**
+     * Boards with the same pixels have the same hashes
+     */
+    @Test
+    public void testHashes(){
+        Color red = new Color(255, 0, 0);
+        Color blue = new Color(0, 0, 255);
+        Whiteboard w1 = new Whiteboard();
+        w1.drawLine(new Point(10, 10), new Point(300, 200), red, 9);
+        w1.fill(new Point(700, 500), blue);
+        Whiteboard w2 = new Whiteboard();
+        w2.fill(new Point(700, 500), blue);
+        w2.drawPolylineSpans(Arrays.asList(new Point(10, 10), new Point(300, 200)), red, 9);
+        assertEquals(w1.getHash(), w2.getHash());
+        assertEquals(w1.hashCode(), w2.hashCode());
+        assertEquals(w1, w2);
+        assertFalse(new Whiteboard().getHash() == w1.getHash());
+
+        // a board that is not indexed has the same hashes
+        Whiteboard w3 = new Whiteboard();
+        for (int i = 0; i < 300; i ++){
+            w3.setPixel(i, 0, new Color(i % 256, i / 256, 5));
+        }
+        assertFalse(w3.isIndexed());
+        w3.drawShape(new common.Shape(common.Shape.Kind.CLEAR, new Point(0, 0), new Point(799, 599), null, 0));
+        w3.fill(new Point(700, 500), blue);
+        w3.drawLine(new Point(10, 10), new Point(300, 200), red, 9);
+        assertEquals(w1.getHash(), w3.getHash());
+        for (int tileY = 0; tileY < Whiteboard.TILES_Y; tileY ++){
+            assertEquals(w1.getRowHash(tileY), w3.getRowHash(tileY));
+        }
+
+        // undoing a change restores the hashes
+        Whiteboard w4 = new Whiteboard();
+        w4.setPixel(5, 5, red);
+        w4.setPixel(5, 5, new Color());
+        assertEquals(new Whiteboard().getHash(), w4.getHash());
+        assertEquals(new Whiteboard().getTileHash(0, 0), w4.getTileHash(0, 0));
+    }
+
+    /**
+     * diffTiles() returns the tiles that differ
+     */
+    @Test
+    public void testDiffTiles(){
+        Whiteboard w1 = new Whiteboard();
+        Whiteboard w2 = new Whiteboard();
+        assertTrue(w1.diffTiles(w2).isEmpty());
+
+        Color red = new Color(255, 0, 0);
+        w2.setPixel(0, 0, red);
+        w2.setPixel(33, 70, red);
+        w2.setPixel(Whiteboard.WIDTH - 1, Whiteboard.HEIGHT - 1, red);
+        assertEquals(Arrays.asList(new Point(0, 0), new Point(1, 2),
+                new Point(Whiteboard.TILES_X - 1, Whiteboard.TILES_Y - 1)), w1.diffTiles(w2));
+        assertEquals(w1.diffTiles(w2), w2.diffTiles(w1));
+
+        // a span across tiles changes each of them
+        Whiteboard w3 = new Whiteboard();
+        w3.fillSpan(new Span(40, 30, 100), red);
+        assertEquals(Arrays.asList(new Point(0, 1), new Point(1, 1), new Point(2, 1), new Point(3, 1)),
+                w1.diffTiles(w3));
+    }
+
+    /**
+     * Copies are independent, and copyTile() copies one tile
+     */
+    @Test
+    public void testCopy(){
+        Color red = new Color(255, 0, 0);
+        Whiteboard w1 = new Whiteboard();
+        w1.drawLine(new Point(0, 0), new Point(100, 100), red, 5);
+        Whiteboard w2 = new Whiteboard(w1);
+        assertEquals(w1, w2);
+        w2.setPixel(200, 200, red);
+        assertEquals(new Color(), w1.getPixel(200, 200));
+
+        Whiteboard w3 = new Whiteboard();
+        w3.copyTile(w1, 1, 1);
+        assertEquals(w1.getTileHash(1, 1), w3.getTileHash(1, 1));
+        assertEquals(red, w3.getPixel(40, 40));
+        assertEquals(new Color(), w3.getPixel(10, 10));
+        List<Point> tiles = new Whiteboard().diffTiles(w1);
+        tiles.remove(new Point(1, 1));
+        assertEquals(tiles, w3.diffTiles(w1));
+
+        // from a board that is not indexed
+        Whiteboard many = new Whiteboard();
+        for (int i=0; i<=Whiteboard.MAX_PALETTE_SIZE; i++){
+            many.setPixel(i % Whiteboard.WIDTH, i / Whiteboard.WIDTH, new Color(i & 0xff, i >> 8, 7));
+        }
+        assertFalse(many.isIndexed());
+        Whiteboard w4 = new Whiteboard();
+        w4.copyTile(many, 0, 0);
+        assertEquals(many.getTileHash(0, 0), w4.getTileHash(0, 0));
+        assertEquals(new Color(5, 0, 7), w4.getPixel(5, 0));
+        assertEquals(new Whiteboard(many), many);
+    }
+
+    /**
+     * Copies share their tiles until they are written to
+     */
+    @Test
+    public void testCopyOnWrite(){
+        Color red = new Color(255, 0, 0);
+        int tiles = Whiteboard.TILES_X * Whiteboard.TILES_Y;
+        Whiteboard w1 = new Whiteboard();
+        assertEquals(tiles, w1.getSharedTileCount());
+        w1.setPixel(40, 40, red);
+        assertEquals(tiles - 1, w1.getSharedTileCount());
+
+        Whiteboard w2 = new Whiteboard(w1);
+        assertEquals(tiles, w1.getSharedTileCount());
+        assertEquals(tiles, w2.getSharedTileCount());
+        w2.setPixel(40, 41, red);
+        assertEquals(tiles - 1, w2.getSharedTileCount());
+        assertEquals(tiles, w1.getSharedTileCount());
+        assertEquals(new Color(), w1.getPixel(40, 41));
+        assertEquals(red, w2.getPixel(40, 40));
+
+        // a write that changes nothing does not copy the tile
+        w1.fill(new Point(40, 40), red);
+        assertEquals(tiles, w1.getSharedTileCount());
+        w1.setPixel(40, 40, new Color(0, 0, 255));
+        assertEquals(red, w2.getPixel(40, 40));
+        assertEquals(new Color(), new Whiteboard().getPixel(40, 40));
+    }
+
+    /**
+     * Equal tiles of different boards are stored once after dedupTiles()
+     */
+    @Test
+    public void testDedupTiles(){
+        Color red = new Color(255, 0, 0);
+        int tiles = Whiteboard.TILES_X * Whiteboard.TILES_Y;
+        Whiteboard w1 = new Whiteboard();
+        w1.drawLine(new Point(100, 100), new Point(120, 110), red, 3);
+        // the same stroke in the same tiles, and a stroke that is erased
+        Whiteboard w2 = new Whiteboard();
+        w2.drawLine(new Point(100, 100), new Point(120, 110), red, 3);
+        w2.drawLine(new Point(500, 500), new Point(510, 500), red, 3);
+        for (int y=490; y<=510; y++){
+            w2.fillSpan(new Span(y, 490, 520), new Color());
+        }
+        assertTrue(w2.getSharedTileCount() < tiles);
+
+        w1.dedupTiles();
+        long deduplicated = TileStore.getDeduplicatedCount();
+        int replaced = w2.dedupTiles();
+        assertTrue(replaced >= 2);
+        assertEquals(deduplicated + replaced, TileStore.getDeduplicatedCount());
+        assertEquals(tiles, w2.getSharedTileCount());
+        assertEquals(w1, w2);
+        assertEquals(0, w2.dedupTiles());
+
+        // writing copies the tile again, and leaves the other board alone
+        w2.setPixel(110, 105, new Color(0, 0, 255));
+        assertEquals(tiles - 1, w2.getSharedTileCount());
+        assertEquals(red, w1.getPixel(110, 105));
+    }
+
+    /**
+     * Compressed tiles keep their pixels, and are decompressed when used
+     */
+    @Test
+    public void testCompressTiles(){
+        Color red = new Color(255, 0, 0);
+        Whiteboard w1 = new Whiteboard();
+        w1.drawLine(new Point(0, 0), new Point(300, 100), red, 5);
+        w1.drawLine(new Point(10, 500), new Point(20, 500), red, 1);
+        Whiteboard expected = new Whiteboard();
+        expected.drawLine(new Point(0, 0), new Point(300, 100), red, 5);
+        expected.drawLine(new Point(10, 500), new Point(20, 500), red, 1);
+
+        // tiles are compressed after the given number of calls without writes
+        assertEquals(0, w1.compressTiles(1));
+        w1.setPixel(15, 500, new Color(0, 0, 255));
+        expected.setPixel(15, 500, new Color(0, 0, 255));
+        int compressed = w1.compressTiles(1);
+        assertTrue(compressed > 0);
+        assertEquals(compressed, w1.getCompressedTileCount());
+        assertTrue(w1.getCompressionSavings() > 0);
+        assertEquals(1, w1.compressTiles(1));
+        assertEquals(compressed + 1, w1.getCompressedTileCount());
+        assertEquals(expected.getHash(), w1.getHash());
+        assertEquals(expected.getTileHash(0, 0), w1.getTileHash(0, 0));
+
+        // reading decompresses one tile
+        assertEquals(red, w1.getPixel(0, 0));
+        assertEquals(compressed, w1.getCompressedTileCount());
+        // writing too, and copies keep the other compressed tiles
+        Whiteboard w2 = new Whiteboard(w1);
+        w2.setPixel(15, 500, red);
+        assertEquals(compressed - 1, w2.getCompressedTileCount());
+        assertEquals(new Color(0, 0, 255), w1.getPixel(15, 500));
+        assertEquals(expected, w1);
+        for (int x=0; x<Whiteboard.WIDTH; x++){
+            for (int y=0; y<Whiteboard.HEIGHT; y++){
+                assertEquals(expected.getPixel(x, y), w1.getPixel(x, y));
+            }
+        }
+        assertEquals(0, w1.getCompressedTileCount());
+        assertEquals(0, w1.getCompressionSavings());
+    }
+
+    /**
+     * Copies of a board share their tiles again after they are compressed
+     * and decompressed
+     */
+    @Test
+    public void testCompressShared(){
+        Whiteboard w1 = new Whiteboard();
+        for (int y=0; y<Whiteboard.HEIGHT; y+=10){
+            w1.drawLine(new Point(0, y), new Point(Whiteboard.WIDTH - 1, y + 5), new Color(y % 256, 0, 0), 2);
+        }
+        Whiteboard w2 = new Whiteboard(w1);
+        int tiles = Whiteboard.TILES_X*Whiteboard.TILES_Y;
+        assertEquals(tiles, w2.getSharedTileCount());
+
+        assertTrue(w1.compressTiles(0) > 0);
+        assertTrue(w2.compressTiles(0) > 0);
+        assertTrue(w1.getSharedTileCount() < tiles);
+        for (int x=0; x<Whiteboard.WIDTH; x+=Whiteboard.TILE_SIZE){
+            for (int y=0; y<Whiteboard.HEIGHT; y+=Whiteboard.TILE_SIZE){
+                assertEquals(w1.getPixel(x, y), w2.getPixel(x, y));
+            }
+        }
+        assertEquals(0, w1.getCompressedTileCount());
+        assertEquals(tiles, w1.getSharedTileCount());
+        assertEquals(tiles, w2.getSharedTileCount());
+
+        // the decompressed tiles are still copied on write
+        w1.setPixel(5, 5, new Color(0, 0, 255));
+        assertEquals(new Color(0, 0, 255), w1.getPixel(5, 5));
+        assertFalse(new Color(0, 0, 255).equals(w2.getPixel(5, 5)));
+        assertEquals(tiles - 1, w1.getSharedTileCount());
+    }
+
+    /**
+     * Tiles of RGB values are decompressed when the palette overflows,
+     * and compressed again as RGB values; noise is not compressed
+     */
+    @Test
+    public void testCompressRGB(){
+        Whiteboard w1 = new Whiteboard();
+        w1.fill(new Point(0, 0), new Color(1, 2, 3));
+        assertEquals(Whiteboard.TILES_X * Whiteboard.TILES_Y, w1.compressTiles(0));
+        // a tile of distinct colors
+        for (int i=0; i<Whiteboard.TILE_SIZE*Whiteboard.TILE_SIZE; i++){
+            w1.setPixel(i % Whiteboard.TILE_SIZE, i / Whiteboard.TILE_SIZE, new Color(i & 0xff, i >> 8, 7));
+        }
+        assertFalse(w1.isIndexed());
+        assertEquals(new Color(1, 2, 3), w1.getPixel(400, 300));
+        assertEquals(new Color(5, 0, 7), w1.getPixel(5, 0));
+
+        // the noisy tile stays as it is
+        assertEquals(Whiteboard.TILES_X * Whiteboard.TILES_Y - 1, w1.compressTiles(0));
+        assertEquals(new Color(1, 2, 3), w1.getPixel(400, 300));
+        assertEquals(new Color(6, 0, 7), w1.getPixel(6, 0));
+        assertTrue(w1.getCompressionSavings() > 0);
+    }
+
+    /**
+     * Boards of other sizes have their own tile grid, and are only equal
+     * to boards of the same size
+     */
+    @Test
+    public void testSizedBoard(){
+        Whiteboard w1 = new Whiteboard(100, 3000);
+        assertEquals(100, w1.getWidth());
+        assertEquals(3000, w1.getHeight());
+        assertEquals(4, w1.getTilesX());
+        assertEquals(94, w1.getTilesY());
+        assertTrue(w1.checkPointInBounds(new Point(99, 2999)));
+        assertFalse(w1.checkPointInBounds(new Point(100, 0)));
+        assertFalse(new Whiteboard(100, 50).equals(new Whiteboard(50, 100)));
+
+        Color red = new Color(255, 0, 0);
+        w1.setPixel(99, 2999, red);
+        assertEquals(red, w1.getPixel(99, 2999));
+        assertEquals(Arrays.asList(new Point(3, 93)), w1.diffTiles(new Whiteboard(100, 3000)));
+        assertEquals(3000, w1.fill(new Point(0, 0), new Color(0, 0, 255)).size());
+        assertEquals(red, w1.getPixel(99, 2999));
+
+        Whiteboard w2 = new Whiteboard(w1);
+        assertEquals(w1, w2);
+        assertEquals(100, w2.getWidth());
+        assertEquals(4*94, w1.compressTiles(0));
+        assertEquals(w1, w2);
+        assertEquals(red, w1.getPixel(99, 2999));
+    }
+
+    /**
+     * Boards of sizes out of range can not be created
+     */
+    @Test
+    public void testInvalidSize(){
+        assertTrue(Whiteboard.isValidSize(Whiteboard.MAX_WIDTH, Whiteboard.MAX_HEIGHT));
+        assertTrue(Whiteboard.isValidSize(1, 1));
+        assertFalse(Whiteboard.isValidSize(0, 10));
+        assertFalse(Whiteboard.isValidSize(10, Whiteboard.MAX_HEIGHT + 1));
+        try {
+            new Whiteboard(Whiteboard.MAX_WIDTH + 1, 10);
+            fail();
+        } catch (IllegalArgumentException e){
+            // expected
+        }
+    }
+
+    /**
+     * Brushes wider than MAX_BRUSH_WIDTH, or of negative width, are not
+     * valid
+     */
+    @Test
+    public void testBrushWidth(){
+        assertTrue(Whiteboard.isValidBrushWidth(0));
+        assertTrue(Whiteboard.isValidBrushWidth(Whiteboard.MAX_BRUSH_WIDTH));
+        assertFalse(Whiteboard.isValidBrushWidth(-1));
+        assertFalse(Whiteboard.isValidBrushWidth(Whiteboard.MAX_BRUSH_WIDTH + 1));
+        assertFalse(Whiteboard.isValidBrushWidth(Integer.MAX_VALUE));
+    }
 }
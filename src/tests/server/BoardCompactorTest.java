@@ -0,0 +1,118 @@
+package tests.server;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import common.*;
+import server.*;
+
+/**
+ * Test suite for BoardCompactor.java
+ *
+ * Testing strategy:
+ * A board without listeners or draws is compressed entirely once it has
+ * been idle for the board threshold, and the bytes saved are recorded in
+ * the ServerMetrics.
+ * A board with a listener, or with new versions, is not idle; only its
+ * tiles that were not drawn on for the tile threshold are compressed, and
+ * none with a tile threshold of 0.
+ * Drawing on a compressed board decompresses it transparently.
+ * start() sweeps in the background until close().
+ */
+public class BoardCompactorTest {
+    private static final Color RED = new Color(255, 0, 0);
+
+    /**
+     * Idle boards are compressed after the board threshold
+     */
+    @Test
+    public void testIdleBoard() throws Exception {
+        WhiteboardMap map = new WhiteboardMap();
+        ServerMetrics metrics = new ServerMetrics();
+        WhiteboardStruct s = map.newBoard();
+        s.getWhiteboard().drawLine(new Point(0, 0), new Point(700, 500), RED, 5);
+        BoardCompactor compactor = new BoardCompactor(map, metrics, 10, 50, 0);
+
+        assertEquals(0, compactor.sweep());
+        Thread.sleep(60);
+        assertTrue(compactor.sweep() > 0);
+        assertTrue(metrics.getCompressionSavedBytes() > 0);
+        assertEquals(metrics.getCompressionSavedBytes(), s.getWhiteboard().getCompressionSavings());
+
+        // drawing decompresses the tiles that it covers
+        int compressed = s.getWhiteboard().getCompressedTileCount();
+        s.getWhiteboard().drawLine(new Point(0, 0), new Point(10, 0), RED, 1);
+        assertEquals(compressed - 1, s.getWhiteboard().getCompressedTileCount());
+        assertEquals(RED, s.getWhiteboard().getPixel(350, 250));
+    }
+
+    /**
+     * Boards in use only get their idle tiles compressed
+     */
+    @Test
+    public void testBoardInUse() throws Exception {
+        WhiteboardMap map = new WhiteboardMap();
+        WhiteboardStruct s = map.newBoard();
+        s.getWhiteboard().drawLine(new Point(0, 0), new Point(700, 500), RED, 5);
+        s.getListeners().add(mock(ServerMessageListener.class));
+
+        // no tile threshold
+        BoardCompactor compactor = new BoardCompactor(map, new ServerMetrics(), 10, 0, 0);
+        for (int i=0; i<3; i++){
+            assertEquals(0, compactor.sweep());
+        }
+
+        // the tiles that are drawn on stay uncompressed
+        map = new WhiteboardMap();
+        s = map.newBoard();
+        s.getWhiteboard().drawLine(new Point(0, 0), new Point(700, 500), RED, 5);
+        s.getListeners().add(mock(ServerMessageListener.class));
+        compactor = new BoardCompactor(map, new ServerMetrics(), 10, 0, 20);
+        assertEquals(0, compactor.sweep());
+        s.getWhiteboard().drawLine(new Point(0, 0), new Point(10, 0), RED, 1);
+        s.getHistory().record(Arrays.asList(new Point(0, 0)));
+        assertEquals(0, compactor.sweep());
+        int compressed = compactor.sweep();
+        assertTrue(compressed > 0);
+        assertEquals(RED, s.getWhiteboard().getPixel(5, 0));
+        assertEquals(compressed, s.getWhiteboard().getCompressedTileCount());
+        assertEquals(1, compactor.sweep());
+
+        // a board without listeners that is drawn on is not idle
+        s.getListeners().clear();
+        compactor = new BoardCompactor(map, new ServerMetrics(), 10, 50, 0);
+        compactor.sweep();
+        Thread.sleep(60);
+        s.getWhiteboard().setPixel(0, 0, new Color());
+        s.getHistory().record(Arrays.asList(new Point(0, 0)));
+        assertEquals(0, compactor.sweep());
+        Thread.sleep(60);
+        assertTrue(compactor.sweep() > 0);
+    }
+
+    /**
+     * start() sweeps in the background
+     */
+    @Test
+    public void testStart() throws Exception {
+        WhiteboardMap map = new WhiteboardMap();
+        ServerMetrics metrics = new ServerMetrics();
+        WhiteboardStruct s = map.newBoard();
+        s.getWhiteboard().drawLine(new Point(0, 0), new Point(700, 500), RED, 5);
+        BoardCompactor compactor = new BoardCompactor(map, metrics, 10, 0, 0);
+        compactor.start();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (metrics.getCompressionSavedBytes() == 0 && System.currentTimeMillis() < deadline){
+                Thread.sleep(10);
+            }
+            assertTrue(metrics.getCompressionSavedBytes() > 0);
+        } finally {
+            compactor.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package tests.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import common.*;
+import server.*;
+
+/**
+ * Test suite for BoardHistory.java. A BoardHistory keeps the version of a
+ * board and remembers which pixels changed in the recent versions.
+ *
+ * Testing strategy:
+ * A new history is at version 0 and has no changes.
+ * Recording operations increments the version.
+ * Changes since a version contain each changed pixel exactly once.
+ * Versions older than the capacity allows, or newer than the current
+ * version, return null.
+ * An operation larger than the capacity clears the history.
+ * Recording spans records every pixel of the spans, packed by the width of
+ * the board.
+ */
+public class BoardHistoryTest {
+    /**
+     * Recording increments the version, and changes are reported
+     * since any retained version
+     */
+    @Test
+    public void testChangesSince(){
+        BoardHistory h = new BoardHistory();
+        assertEquals(0, h.getVersion());
+        assertEquals(0, h.changesSince(0).length);
+
+        assertEquals(1, h.record(Arrays.asList(new Point(1,0), new Point(2,0))));
+        assertEquals(2, h.record(Arrays.asList(new Point(2,0), new Point(0,1))));
+        assertEquals(2, h.getVersion());
+
+        int w = Whiteboard.WIDTH;
+        assertArrayEquals(new int[]{1, 2, w}, h.changesSince(0));
+        assertArrayEquals(new int[]{2, w}, h.changesSince(1));
+        assertArrayEquals(new int[]{}, h.changesSince(2));
+        assertEquals(null, h.changesSince(3));
+        assertEquals(null, h.changesSince(-1));
+    }
+
+    /**
+     * Old versions are forgotten when the capacity is exceeded
+     */
+    @Test
+    public void testCapacity(){
+        BoardHistory h = new BoardHistory(3);
+        h.record(new int[]{1, 2});
+        h.record(new int[]{3});
+        assertArrayEquals(new int[]{1, 2, 3}, h.changesSince(0));
+
+        h.record(new int[]{4});
+        assertEquals(null, h.changesSince(0));
+        assertArrayEquals(new int[]{3, 4}, h.changesSince(1));
+
+        // an operation larger than the capacity forgets everything
+        assertEquals(4, h.record(new int[]{5, 6, 7, 8}));
+        assertEquals(null, h.changesSince(3));
+        assertArrayEquals(new int[]{}, h.changesSince(4));
+    }
+
+    /**
+     * Recording spans records every pixel of the spans
+     */
+    @Test
+    public void testRecordSpans(){
+        BoardHistory h = new BoardHistory();
+        assertEquals(1, h.recordSpans(Arrays.asList(new Span(0, 3, 5), new Span(1, 0, 0))));
+
+        int w = Whiteboard.WIDTH;
+        assertArrayEquals(new int[]{3, 4, 5, w}, h.changesSince(0));
+
+        // pixels are packed by the width of the board
+        h = new BoardHistory(3000, BoardHistory.DEFAULT_CAPACITY);
+        assertEquals(3000, h.getWidth());
+        h.recordSpans(Arrays.asList(new Span(2, 2999, 2999)));
+        assertArrayEquals(new int[]{3*3000 - 1}, h.changesSince(0));
+    }
+}
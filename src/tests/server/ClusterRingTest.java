@@ -0,0 +1,91 @@
+package tests.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import server.ClusterRing;
+import server.ClusterRing.Node;
+
+/**
+ * Test suite for ClusterRing.java. It should assign every board to one
+ * node of the cluster, consistently between the nodes.
+ *
+ * Testing strategy:
+ * Parse well-formed and malformed addresses.
+ * Compare the owners computed by rings of different nodes of the same
+ * cluster.
+ * Check that the boards are spread over all nodes.
+ * Add a node to a cluster, and check that boards only move to that node.
+ */
+public class ClusterRingTest {
+    private static final int BOARDS = 3000;
+
+    private static final Node A = new Node("localhost", 7495);
+    private static final Node B = new Node("localhost", 7496);
+    private static final Node C = new Node("localhost", 7497);
+
+    /**
+     * Addresses are parsed as host:port
+     */
+    @Test
+    public void testParse(){
+        assertEquals(A, Node.parse("localhost:7495"));
+        assertEquals("localhost:7495", A.toString());
+        assertEquals(7495, Node.parse("::1:7495").getPort());
+        for (String bad: new String[]{"localhost", ":7495", "localhost:x"}){
+            try {
+                Node.parse(bad);
+                fail("parsed " + bad);
+            } catch (IllegalArgumentException e){
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Every node computes the same owner, and each node owns a fair
+     * share of the boards
+     */
+    @Test
+    public void testConsistent(){
+        List<Node> nodes = Arrays.asList(A, B, C);
+        ClusterRing ra = new ClusterRing(nodes, A);
+        // the order of the list does not matter
+        ClusterRing rb = new ClusterRing(Arrays.asList(C, A, B), B);
+        int[] owned = new int[nodes.size()];
+        for (int id=0; id<BOARDS; id++){
+            Node owner = ra.owner(id);
+            assertEquals(owner, rb.owner(id));
+            assertEquals(owner.equals(A), ra.isLocal(id));
+            assertEquals(owner.equals(B), rb.isLocal(id));
+            owned[nodes.indexOf(owner)]++;
+        }
+        for (int n: owned){
+            assertTrue(n > BOARDS/nodes.size()/2);
+        }
+    }
+
+    /**
+     * Adding a node only moves boards to the new node
+     */
+    @Test
+    public void testAddNode(){
+        ClusterRing before = new ClusterRing(Arrays.asList(A, B), A);
+        List<Node> nodes = new ArrayList<Node>(Arrays.asList(A, B, C));
+        ClusterRing after = new ClusterRing(nodes, A);
+        int moved = 0;
+        for (int id=0; id<BOARDS; id++){
+            if (!before.owner(id).equals(after.owner(id))){
+                assertEquals(C, after.owner(id));
+                moved++;
+            }
+        }
+        assertTrue(moved > 0);
+        assertTrue(moved < BOARDS/2);
+    }
+}
@@ -0,0 +1,73 @@
+package tests.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import server.*;
+
+/**
+ * Test suite for Histogram.java. A Histogram records the distribution of
+ * values in fixed memory.
+ *
+ * Testing strategy:
+ * An empty histogram reports 0 for everything.
+ * Small values are counted exactly.
+ * Percentiles of large values are upper bounds within 12.5%, and never
+ * larger than the maximum.
+ * Count, mean and maximum are exact.
+ */
+public class HistogramTest {
+    /**
+     * An empty histogram reports 0
+     */
+    @Test
+    public void testEmpty(){
+        Histogram h = new Histogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMean(), 0);
+        assertEquals(0, h.getMax());
+        assertEquals(0, h.getPercentile(0.99));
+    }
+
+    /**
+     * Small values are exact
+     */
+    @Test
+    public void testSmallValues(){
+        Histogram h = new Histogram();
+        for (int i=0; i<8; i++){
+            h.record(i);
+        }
+        assertEquals(8, h.getCount());
+        assertEquals(3.5, h.getMean(), 0.0001);
+        assertEquals(7, h.getMax());
+        assertEquals(0, h.getPercentile(0));
+        assertEquals(3, h.getPercentile(0.5));
+        assertEquals(7, h.getPercentile(1));
+    }
+
+    /**
+     * Percentiles of large values are close upper bounds
+     */
+    @Test
+    public void testLargeValues(){
+        Histogram h = new Histogram();
+        for (long v=1; v<=1000; v++){
+            h.record(v*1000);
+        }
+        assertEquals(1000, h.getCount());
+        assertEquals(1000000, h.getMax());
+
+        long median = h.getPercentile(0.5);
+        assertTrue(median >= 500000);
+        assertTrue(median <= 500000 * 1.125);
+
+        long p99 = h.getPercentile(0.99);
+        assertTrue(p99 >= 990000);
+        assertTrue(p99 <= 1000000);
+
+        h.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, h.getPercentile(1));
+    }
+}
@@ -0,0 +1,159 @@
+package tests.server;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import common.*;
+import server.*;
+
+/**
+ * Test suite for Relay.java, which serves copies of the boards of an
+ * upstream server.
+ *
+ * Testing strategy:
+ * Getting a board from the relay subscribes to it upstream as a
+ * spectator, and returns a copy with the same pixels and version, without
+ * adding a user to the upstream board.
+ * Getting the board again uses the same subscription.
+ * Draws on the upstream board are applied to the copy, recorded in its
+ * history, and fanned out to the listeners of the copy.
+ * Getting a board that does not exist upstream returns null.
+ */
+public class RelayTest {
+    // Port for TCP communication
+    public static final int PORT = 1431;
+    // Time (in milliseconds) to wait for the relay to catch up
+    public static final long TIMEOUT = 5000;
+
+    private WhiteboardMap upstream;
+    private ServerSocket ss;
+    private Thread acceptThread;
+    private Relay relay;
+
+    /**
+     * Start an upstream server with its own boards.
+     */
+    @Before
+    public void setUp() throws Exception {
+        upstream = new WhiteboardMap();
+        ss = new ServerSocket(PORT);
+        acceptThread = new Thread(new Runnable(){
+            public void run(){
+                AuthenticationBackend auth = new AuthenticationBackend();
+                while (true){
+                    Socket socket;
+                    try {
+                        socket = ss.accept();
+                    } catch (Exception e){
+                        return;
+                    }
+                    SocketWrapper socketWrapper = new SocketWrapper(socket);
+                    ServerSocketHandler socketHandler = new ServerSocketHandler(socketWrapper);
+                    SessionHandler sessionHandler = new SessionHandler(auth, upstream);
+                    socketHandler.setClientMessageListener(sessionHandler);
+                    sessionHandler.setServerMessageListener(socketHandler);
+                    socketWrapper.start();
+                }
+            }
+        });
+        acceptThread.start();
+        relay = new Relay("localhost", PORT);
+    }
+
+    /**
+     * Stop the upstream server.
+     */
+    @After
+    public void tearDown() throws Exception {
+        ss.close();
+        acceptThread.join(TIMEOUT);
+    }
+
+    /**
+     * The copy follows the upstream board
+     */
+    @Test
+    public void testRelay() throws Exception {
+        WhiteboardStruct s = upstream.newBoard();
+        SessionHandler session = _session(s.getID());
+        session.drawLine(new Point(10, 10), new Point(50, 20), Color.valueOf(255, 0, 0), 3);
+
+        WhiteboardStruct copy = relay.getBoard(s.getID());
+        assertNotNull(copy);
+        _assertRelayed(s, copy);
+        assertSame(copy, relay.getBoard(s.getID()));
+        assertEquals(1, relay.getSubscriptionCount());
+        synchronized(s){
+            // the relay is not a user of the board
+            assertEquals(1, s.getUsers().size());
+        }
+
+        // a spectator of the relay gets the draws
+        ServerMessageListener spectator = mock(ServerMessageListener.class);
+        synchronized(copy){
+            copy.getListeners().add(spectator);
+        }
+        session.drawLine(new Point(0, 0), new Point(100, 100), Color.valueOf(0, 0, 255), 1);
+        verify(spectator, timeout((int) TIMEOUT)).updateVersion(2);
+        verify(spectator, atLeastOnce()).updateSpans(anyListOf(Span.class), eq(Color.valueOf(0, 0, 255)));
+        _assertRelayed(s, copy);
+
+        // the history of the copy can send a delta
+        synchronized(copy){
+            assertTrue(copy.getHistory().changesSince(1).length > 0);
+        }
+    }
+
+    /**
+     * Boards that do not exist upstream are not relayed
+     */
+    @Test
+    public void testMissingBoard(){
+        assertNull(relay.getBoard(42));
+        assertEquals(0, relay.getSubscriptionCount());
+    }
+
+    /**
+     * @return a session that is connected to the upstream board
+     */
+    private SessionHandler _session(int id){
+        AuthenticationBackend auth = mock(AuthenticationBackend.class);
+        when(auth.login("fred")).thenReturn(true);
+        SessionHandler session = new SessionHandler(auth, upstream);
+        session.setServerMessageListener(mock(ServerMessageListener.class));
+        session.login("fred");
+        session.connectToBoard(id);
+        return session;
+    }
+
+    /**
+     * Wait until the copy has the version of the upstream board, and
+     * assert that it has the same pixels.
+     */
+    private void _assertRelayed(WhiteboardStruct s, WhiteboardStruct copy) throws InterruptedException {
+        long version;
+        synchronized(s){
+            version = s.getHistory().getVersion();
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline){
+            synchronized(copy){
+                if (copy.getHistory().getVersion() == version){
+                    break;
+                }
+            }
+            Thread.sleep(10);
+        }
+        synchronized(s){
+            synchronized(copy){
+                assertEquals(version, copy.getHistory().getVersion());
+                assertEquals(s.getWhiteboard(), copy.getWhiteboard());
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package tests.server;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import common.*;
+import server.*;
+
+/**
+ * Test suite for Replicator.java and Follower.java, which replicate the
+ * boards of a primary server to a follower server over a socket.
+ *
+ * Testing strategy:
+ * A follower that connects to a primary with existing boards gets a
+ * snapshot of the boards with their versions.
+ * New boards and draws on the primary are applied on the follower, with
+ * the same versions, so that a client can reconnect with a delta, and are
+ * added to the metrics of the follower.
+ * In SYNC mode, drawLine() returns after the follower applied the draw.
+ * Undos and redos on the primary are applied on the follower as one
+ * operation, also when their spans take several lines.
+ * Copies of boards on the primary are sent as snapshots, and keep their
+ * pixels when the source is drawn on before the snapshot is sent.
+ * Boards that are not of the default size are created and sent as
+ * snapshots with their size.
+ * Closing the primary makes Follower.run() return.
+ */
+public class ReplicatorTest {
+    // Port for TCP communication
+    public static final int PORT = 1430;
+    // Time (in milliseconds) to wait for the follower to catch up
+    public static final long TIMEOUT = 5000;
+
+    private WhiteboardMap primary;
+    private WhiteboardMap follower;
+    private ServerSocket ss;
+    private Replicator replicator;
+    private Follower f;
+    private ServerMetrics followerMetrics;
+    private Thread followerThread;
+
+    /**
+     * Create the boards of the primary and the follower.
+     */
+    @Before
+    public void setUp() throws Exception {
+        primary = new WhiteboardMap();
+        follower = new WhiteboardMap();
+        ss = new ServerSocket(PORT);
+    }
+
+    /**
+     * Stop replicating.
+     */
+    @After
+    public void tearDown() throws Exception {
+        ss.close();
+        if (replicator != null){
+            replicator.close();
+            followerThread.join(TIMEOUT);
+            assertFalse(followerThread.isAlive());
+        }
+    }
+
+    /**
+     * Existing boards are sent as snapshots, later operations as draws
+     */
+    @Test
+    public void testReplicate() throws Exception {
+        WhiteboardStruct s1 = primary.newBoard();
+        SessionHandler session = _session(s1.getID());
+        session.drawLine(new Point(10, 10), new Point(50, 20), Color.valueOf(255, 0, 0), 3);
+        _start(Replicator.AckMode.ASYNC);
+
+        // the snapshot
+        _awaitApplied(1);
+        _assertReplicated(s1);
+
+        // a new board, and a draw
+        WhiteboardStruct s2 = primary.newBoard();
+        session.drawLine(new Point(0, 0), new Point(100, 100), Color.valueOf(0, 0, 255), 1);
+        _awaitApplied(3);
+        _assertReplicated(s1);
+        _assertReplicated(s2);
+
+        // the follower keeps the history, so a delta can be sent
+        assertTrue(follower.getBoard(s1.getID()).getHistory().changesSince(1).length > 0);
+        assertEquals(0, replicator.getLag());
+
+        // the boards of the follower are in its metrics
+        assertEquals(2, followerMetrics.getBoards());
+    }
+
+    /**
+     * In SYNC mode, drawLine() waits for the follower
+     */
+    @Test
+    public void testSync() throws Exception {
+        WhiteboardStruct s1 = primary.newBoard();
+        _start(Replicator.AckMode.SYNC);
+        _awaitApplied(1);
+
+        SessionHandler session = _session(s1.getID());
+        for (int i=0; i<10; i++){
+            session.drawLine(new Point(i, 0), new Point(i, 100), Color.valueOf(0, i, 0), 1);
+            assertEquals(2 + i, f.getApplied());
+        }
+        _assertReplicated(s1);
+    }
+
+    /**
+     * Undos and redos are replicated, including large ones
+     */
+    @Test
+    public void testUndoRedo() throws Exception {
+        WhiteboardStruct s1 = primary.newBoard();
+        SessionHandler session = _session(s1.getID());
+        // stripes of two colors, so that the restore has many spans
+        for (int x=0; x<Whiteboard.WIDTH; x+=2){
+            session.drawLine(new Point(x, 0), new Point(x, Whiteboard.HEIGHT - 1), Color.valueOf(0, 0, 255), 1);
+        }
+        _start(Replicator.AckMode.SYNC);
+        _awaitApplied(1);
+
+        session.fill(new Point(1, 0), Color.valueOf(255, 0, 0));
+        session.drawShape(Shape.clearBoard());
+        session.undo();
+        assertEquals(4, f.getApplied());
+        _assertReplicated(s1);
+        session.redo();
+        assertEquals(5, f.getApplied());
+        _assertReplicated(s1);
+    }
+
+    /**
+     * Copies of boards are replicated
+     */
+    @Test
+    public void testCloneBoard() throws Exception {
+        WhiteboardStruct s1 = primary.newBoard();
+        SessionHandler session = _session(s1.getID());
+        session.drawLine(new Point(10, 10), new Point(50, 20), Color.valueOf(255, 0, 0), 3);
+        _start(Replicator.AckMode.ASYNC);
+        _awaitApplied(1);
+
+        WhiteboardStruct s2 = primary.cloneBoard(s1);
+        session.drawLine(new Point(0, 0), new Point(100, 100), Color.valueOf(0, 0, 255), 1);
+        _awaitApplied(3);
+        _assertReplicated(s1);
+        _assertReplicated(s2);
+        assertFalse(s1.getWhiteboard().equals(s2.getWhiteboard()));
+    }
+
+    /**
+     * Boards of other sizes are created and sent as snapshots with their
+     * size
+     */
+    @Test
+    public void testSizedBoards() throws Exception {
+        WhiteboardStruct s1 = primary.newBoard(1500, 40);
+        SessionHandler session = _session(s1.getID());
+        session.drawLine(new Point(1000, 10), new Point(1499, 39), Color.valueOf(255, 0, 0), 3);
+        _start(Replicator.AckMode.ASYNC);
+        _awaitApplied(1);
+        _assertReplicated(s1);
+
+        WhiteboardStruct s2 = primary.newBoard(30, 2000);
+        SessionHandler session2 = _session(s2.getID());
+        session2.drawLine(new Point(0, 1990), new Point(29, 1999), Color.valueOf(0, 0, 255), 1);
+        _awaitApplied(3);
+        _assertReplicated(s2);
+        assertEquals(30, follower.getBoard(s2.getID()).getWhiteboard().getWidth());
+    }
+
+    /**
+     * Start replicating to a new follower.
+     */
+    private void _start(Replicator.AckMode mode) throws Exception {
+        replicator = new Replicator(primary, mode);
+        primary.setReplicator(replicator);
+        replicator.listen(ss);
+        followerMetrics = new ServerMetrics();
+        f = new Follower(follower, new Socket("localhost", PORT), followerMetrics);
+        followerThread = new Thread(new Runnable(){
+            public void run(){
+                f.run();
+            }
+        });
+        followerThread.start();
+    }
+
+    /**
+     * @return a session that is connected to the board of the primary
+     */
+    private SessionHandler _session(int id){
+        AuthenticationBackend auth = mock(AuthenticationBackend.class);
+        when(auth.login("fred")).thenReturn(true);
+        SessionHandler session = new SessionHandler(auth, primary);
+        session.setServerMessageListener(mock(ServerMessageListener.class));
+        session.login("fred");
+        session.connectToBoard(id);
+        return session;
+    }
+
+    /**
+     * Wait until the follower received the given number of operations.
+     */
+    private void _awaitApplied(long applied) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (f.getApplied() < applied && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+        assertEquals(applied, f.getApplied());
+    }
+
+    /**
+     * Assert that the follower has the same board and version.
+     */
+    private void _assertReplicated(WhiteboardStruct s){
+        WhiteboardStruct copy = follower.getBoard(s.getID());
+        assertNotNull(copy);
+        synchronized(s){
+            synchronized(copy){
+                assertEquals(s.getHistory().getVersion(), copy.getHistory().getVersion());
+                assertEquals(s.getWhiteboard(), copy.getWhiteboard());
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package tests.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import common.*;
+import server.*;
+
+/**
+ * Test suite for ServerMetrics.java. ServerMetrics collects the metrics of
+ * connections, sessions and boards, and exposes them through JMX.
+ *
+ * Testing strategy:
+ * Sessions are counted per state as they change state.
+ * Connections are counted until they finish, and their flushes are
+ * added to the bytes written.
+ * Draws are counted per board and in total, and the busiest board is
+ * reported first in the hot boards.
+ * A SessionHandler records its state, draws and new boards.
+ * Registered metrics, and boards added later, can be read through JMX.
+ */
+public class ServerMetricsTest {
+    /**
+     * Sessions are counted per state
+     */
+    @Test
+    public void testSessions(){
+        ServerMetrics m = new ServerMetrics();
+        m.sessionStateChanged(null, SocketState.NOT_LOGGED_IN);
+        m.sessionStateChanged(null, SocketState.NOT_LOGGED_IN);
+        m.sessionStateChanged(SocketState.NOT_LOGGED_IN, SocketState.NOT_CONNECTED);
+        assertEquals(1, m.getSessions(SocketState.NOT_LOGGED_IN));
+        assertEquals(1, m.getSessions(SocketState.NOT_CONNECTED));
+
+        m.sessionStateChanged(SocketState.NOT_CONNECTED, null);
+        assertEquals(0, m.getSessions(SocketState.NOT_CONNECTED));
+    }
+
+    /**
+     * Connections are counted until they finish
+     */
+    @Test
+    public void testConnections(){
+        ServerMetrics m = new ServerMetrics();
+        ConnectionMetrics c1 = m.newConnection("one");
+        ConnectionMetrics c2 = m.newConnection("two");
+        assertEquals(2, m.getActiveConnections());
+
+        c1.onFlush(100, 1000);
+        c2.onFlush(50, 5000000);
+        assertEquals(150, m.getBytesWritten());
+        assertEquals(100, c1.getBytesWritten());
+        assertTrue(m.getSlowConnections()[0].startsWith("two"));
+
+        c1.onFinish();
+        assertEquals(1, m.getActiveConnections());
+        assertEquals(1, m.getSlowConnections().length);
+    }
+
+    /**
+     * Draws are counted per board and in total
+     */
+    @Test
+    public void testDraws(){
+        ServerMetrics m = new ServerMetrics();
+        BoardMetrics b1 = new BoardMetrics(1);
+        BoardMetrics b2 = new BoardMetrics(2);
+        m.addBoard(b1);
+        m.addBoard(b2);
+        assertEquals(2, m.getBoards());
+
+        m.recordDraw(b1, 10);
+        m.recordDraw(b2, 10);
+        m.recordDraw(b2, 10);
+        m.recordLockHold(b2, 3000);
+        assertEquals(2, b2.getDraws());
+        assertEquals(20, b2.getPixelsFannedOut());
+        assertEquals(30, m.getPixelsFannedOut());
+        assertEquals(3, b2.getLockHoldMaxMicros());
+        assertEquals(3, m.getLockHoldMaxMicros());
+    }
+
+    /**
+     * A SessionHandler records its state, draws and new boards
+     */
+    @Test
+    public void testSessionHandler(){
+        ServerMetrics m = new ServerMetrics();
+        AuthenticationBackend auth = new AuthenticationBackend();
+        SessionHandler session = new SessionHandler(auth, new WhiteboardMap(), null, m);
+        session.setServerMessageListener(mock(ServerMessageListener.class));
+        assertEquals(1, m.getSessions(SocketState.NOT_LOGGED_IN));
+
+        session.login("fred");
+        assertEquals(0, m.getSessions(SocketState.NOT_LOGGED_IN));
+        assertEquals(1, m.getSessions(SocketState.NOT_CONNECTED));
+
+        session.newBoard();
+        assertEquals(1, m.getBoards());
+        assertEquals(1, m.getConnectedSessions());
+
+        session.drawLine(new Point(0,0), new Point(0,0), new Color(0,0,0), 1);
+        assertEquals(1, m.getPixelsFannedOut());
+
+        session.clientClose();
+        assertEquals(0, m.getConnectedSessions());
+        assertEquals(0, m.getSessions(SocketState.NOT_CONNECTED));
+    }
+
+    /**
+     * Metrics can be read through JMX
+     */
+    @Test
+    public void testRegister() throws Exception{
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ServerMetrics m = new ServerMetrics();
+        BoardMetrics b = new BoardMetrics(7);
+        m.addBoard(b);
+        m.register(server);
+
+        ObjectName name = new ObjectName(ServerMetrics.OBJECT_NAME);
+        ObjectName boardName = new ObjectName(ServerMetrics.BOARD_OBJECT_NAME + 7);
+        try {
+            m.recordDraw(b, 5);
+            assertEquals(5L, server.getAttribute(name, "PixelsFannedOut"));
+            assertEquals(1L, server.getAttribute(boardName, "Draws"));
+        } finally {
+            server.unregisterMBean(name);
+            server.unregisterMBean(boardName);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package tests.server;
 
 import org.junit.*;
 
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import java.util.*;
@@ -20,11 +21,48 @@ import server.*;
  * Unsuccessful login calls error(100)
  * Successfully connecting to board calls connectToBoardSuccess() and updates usernames
  * Unsuccessfully connecting to board calls error(200)
+ * Connecting to a board owned by another server calls redirect() and does not join
+ * Reconnecting with a recent version calls resyncBoardSuccess() without any pixels; the tiles
+ * follow when the viewport is declared
+ * Reconnecting with an unknown version calls connectToBoardSuccess()
  * Successfully creating a new board calls connectToBoardSuccess() and updates usernames
+ * Creating a board of a given size passes the size on; a size out of range calls error(200)
+ * Copying a board connects to the copy with connectToBoardSuccess(); copying a
+ * board that does not exist calls error(200), and a spectator can not copy boards
  * Disconnecting from a board calls disconnectFromBoardSuccess() and updates usernames
- * Drawing a line calls updatePixel() for both boardListenr and sessionListener
+ * Disconnecting the last listener of a board deduplicates its tiles, and only then
+ * Drawing a line calls updateSpans() for both boardListenr and sessionListener
+ * Drawing a polyline draws it on the board in one operation, and calls updateSpans()
+ * with the runs of the line and updateVersion() once
+ * Drawing with a brush wider than Whiteboard.MAX_BRUSH_WIDTH, or of negative width,
+ * does nothing
+ * Filling calls updateSpans() with the filled spans for both boardListener and
+ * sessionListener, and records the pixels of the spans in the history
+ * Drawing a shape calls updateShape() for both boardListener and sessionListener,
+ * and records the pixels of the shape in the history
+ * Drawing a traced line also calls updateTrace() for both, and records the stages
+ * of the trace; the drawing client's traceApplied() records the network time.
+ * Every draw calls acknowledgeDraw() with the new version for the sessionListener only.
+ * A connected session gets no pixels until it sets a viewport, which calls updateSpans()
+ * for each tile of the viewport and then updateVersion(). After setting a viewport, the
+ * sessionListener only gets the parts of the updates in the tiles it touches, the other
+ * listeners get all of them, and moving the viewport calls updateSpans() for each tile
+ * that becomes visible; setting a viewport when not connected does nothing.
+ * Undo restores the pixels of the user's last draw, with one updateSpans() per
+ * color and one updateVersion() for both; redo draws it again, and a new draw
+ * clears what can be redone. Undo with nothing to undo does nothing. Leaving
+ * the board forgets the user's undo history.
  * The client closing calls sessionListener.serverClose(), logouts out the user, and updates
  * usernames.
+ * Losing the connection without a SessionRegistry behaves like the client closing.
+ * Losing the connection with a SessionRegistry keeps the user logged in and on the board,
+ * and a new session can resume it with the token, receiving the updates in the meantime.
+ * Resuming after more updates than can be buffered sends the changed pixels instead, as
+ * updateSpans() of the runs of each color, and then updateVersion().
+ * Resuming with an unknown token calls error(300).
+ * A spectator connects to a board without logging in a user or updating usernames,
+ * its draws are ignored, and it can not create boards.
+ * Logging in to a read-only (relay) server calls error(100).
  * 
  * None of the tests ever throw exceptions.
  */
@@ -67,6 +105,11 @@ public class SessionHandlerTest {
 
         // Setup the mock WhiteboardStruct
         board = mock(Whiteboard.class);
+        when(board.getWidth()).thenReturn(Whiteboard.WIDTH);
+        when(board.getHeight()).thenReturn(Whiteboard.HEIGHT);
+        when(board.getTilesX()).thenReturn(Whiteboard.TILES_X);
+        when(board.getTilesY()).thenReturn(Whiteboard.TILES_Y);
+        when(board.checkPointInBounds(any(Point.class))).thenReturn(true);
         boardListener = mock(ServerMessageListener.class);
         id = 123;
 
@@ -74,6 +117,8 @@ public class SessionHandlerTest {
         boardListeners = new ArrayList<ServerMessageListener>();
         boardListeners.add(boardListener);
         struct = new WhiteboardStruct(board, users, boardListeners, id);
+        when(board.getPixel(anyInt(), anyInt())).thenReturn(new Color());
+        when(board.getPixel(any(Point.class))).thenReturn(new Color());
     }
 
     /**
@@ -127,6 +172,27 @@ public class SessionHandlerTest {
         verify(sessionListener).error(200);
     }
 
+    /**
+     * Test login and connection to a board owned by another server
+     */
+    @Test
+    public void testConnectToBoardRedirect(){
+        // login
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+
+        // connect to a board of another server
+        when(boards.getRemoteOwner(36)).thenReturn(new ClusterRing.Node("localhost", 4444));
+        session.connectToBoard(36);
+        verify(sessionListener).redirect(36, "localhost", 4444);
+        verify(boards, never()).getBoard(36);
+
+        // the session can still connect to a local board
+        when(boards.getBoard(14)).thenReturn(struct);
+        session.connectToBoard(14);
+        verify(sessionListener).connectToBoardSuccess(id, users, board);
+    }
+
     /**
      * Test login and creation of new board
      */
@@ -137,12 +203,67 @@ public class SessionHandlerTest {
         session.login("fred");
 
         // create new board
-        when(boards.newBoard()).thenReturn(struct);
+        when(boards.newBoard(Whiteboard.WIDTH, Whiteboard.HEIGHT)).thenReturn(struct);
         session.newBoard();
         verify(sessionListener).connectToBoardSuccess(id, users, board);
         verify(boardListener).updateUsers(Arrays.asList("fred"));
     }
 
+    /**
+     * Test creating boards of a given size
+     */
+    @Test
+    public void testNewBoardSize(){
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+
+        // a size that is out of range
+        session.newBoard(Whiteboard.MAX_WIDTH + 1, 10);
+        verify(sessionListener).error(200);
+        session.newBoard(0, 10);
+        verify(sessionListener, times(2)).error(200);
+        verify(boards, never()).newBoard(anyInt(), anyInt());
+
+        when(boards.newBoard(2000, 100)).thenReturn(struct);
+        session.newBoard(2000, 100);
+        verify(sessionListener).connectToBoardSuccess(id, users, board);
+    }
+
+    /**
+     * Test login and copying a board
+     */
+    @Test
+    public void testCloneBoard(){
+        // login
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+
+        // copy a board that does not exist
+        session.cloneBoard(36);
+        verify(sessionListener).error(200);
+        verify(boards, never()).cloneBoard(any(WhiteboardStruct.class));
+
+        // copy an existing board
+        WhiteboardStruct source = mock(WhiteboardStruct.class);
+        when(boards.getBoard(14)).thenReturn(source);
+        when(boards.cloneBoard(source)).thenReturn(struct);
+        session.cloneBoard(14);
+        verify(sessionListener).connectToBoardSuccess(id, users, board);
+        verify(boardListener).updateUsers(Arrays.asList("fred"));
+    }
+
+    /**
+     * Test that spectators can not copy boards
+     */
+    @Test
+    public void testSpectateCloneBoard(){
+        session.spectate();
+        when(boards.getBoard(14)).thenReturn(struct);
+        session.cloneBoard(14);
+        verify(sessionListener).error(200);
+        verify(boards, never()).cloneBoard(any(WhiteboardStruct.class));
+    }
+
     /**
      * Test login, connect, and disconnect
      */
@@ -161,6 +282,68 @@ public class SessionHandlerTest {
         session.disconnectFromBoard();
         verify(sessionListener).disconnectFromBoardSuccess();
         verify(boardListener).updateUsers(new ArrayList<String>());
+        // another listener is still on the board
+        verify(board, never()).dedupTiles();
+    }
+
+    /**
+     * Test that the tiles of a board are deduplicated when its last
+     * listener leaves
+     */
+    @Test
+    public void testDisconnectLastListener(){
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+        boardListeners.clear();
+        when(boards.getBoard(14)).thenReturn(struct);
+        session.connectToBoard(14);
+        verify(board, never()).dedupTiles();
+
+        session.disconnectFromBoard();
+        verify(board).dedupTiles();
+    }
+
+    /**
+     * Test that updates are clipped to the tiles of the viewport of the
+     * session, and that the tiles that become visible are sent
+     */
+    @Test
+    public void testViewport(){
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+        session.setViewport(0, 0, 10, 10);
+
+        when(boards.getBoard(14)).thenReturn(struct);
+        session.connectToBoard(14);
+        // nothing is visible until the client declares its viewport
+        verify(sessionListener, never()).updateSpans(anyListOf(Span.class), any(Color.class));
+        session.setViewport(0, 0, 100, 50);
+        // the 4x2 tiles of the viewport, which are blank, and their version
+        verify(sessionListener, times(8)).updateSpans(anyListOf(Span.class), eq(new Color()));
+        verify(sessionListener, times(2)).updateVersion(0);
+
+        Point p1 = new Point(0, 10);
+        Point p2 = new Point(200, 100);
+        Color c = new Color(1,2,3);
+        List<Span> spans = Arrays.asList(new Span(10, 50, 150), new Span(80, 0, 10));
+        when(board.polylineSpans(Arrays.asList(p1, p2), 1)).thenReturn(spans);
+        session.drawLine(p1, p2, c, 1);
+        // the viewport is rounded out to the tiles it touches
+        verify(sessionListener).updateSpans(Arrays.asList(new Span(10, 50, 127)), c);
+        verify(boardListener).updateSpans(spans, c);
+        verify(sessionListener).acknowledgeDraw(1);
+
+        // panning sends the tiles that become visible, one at a time, as
+        // they are now
+        session.setViewport(50, 0, 100, 50);
+        for (int tileY=0; tileY<2; tileY++){
+            List<Span> shown = new ArrayList<Span>();
+            for (int y=32*tileY; y<32*tileY + 32; y++){
+                shown.add(new Span(y, 128, 159));
+            }
+            verify(sessionListener).updateSpans(shown, new Color());
+        }
+        verify(sessionListener, times(11)).updateSpans(anyListOf(Span.class), any(Color.class));
     }
 
     /**
@@ -175,17 +358,216 @@ public class SessionHandlerTest {
         // connect to board
         when(boards.getBoard(14)).thenReturn(struct);
         session.connectToBoard(14);
+        // the client shows the whole board
+        session.setViewport(0, 0, Whiteboard.WIDTH, Whiteboard.HEIGHT);
 
         // draw a line
         Point p = new Point(1,1);
         Color c = new Color(1,2,3);
         int w = 132;
-        when(board.drawLine(p,p,c,w)).thenReturn(Arrays.asList(p));
-        when(board.getPixel(p)).thenReturn(c);
+        List<Span> spans = Arrays.asList(new Span(1, 1, 1));
+        when(board.polylineSpans(Arrays.asList(p,p),w)).thenReturn(spans);
 
         session.drawLine(p, p, c, w);
-        verify(sessionListener).updatePixel(p,c);
-        verify(boardListener).updatePixel(p,c);
+        verify(sessionListener).updateSpans(spans,c);
+        verify(boardListener).updateSpans(spans,c);
+        verify(sessionListener).updateVersion(1);
+        verify(sessionListener).acknowledgeDraw(1);
+        verify(boardListener, never()).acknowledgeDraw(anyLong());
+        verify(boardListener).updateVersion(1);
+    }
+
+    /**
+     * Test login, connect, and draw a polyline
+     */
+    @Test
+    public void testDrawPolyline(){
+        // login
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+
+        // connect to board
+        when(boards.getBoard(14)).thenReturn(struct);
+        session.connectToBoard(14);
+        // the client shows the whole board
+        session.setViewport(0, 0, Whiteboard.WIDTH, Whiteboard.HEIGHT);
+
+        // draw a polyline
+        List<Point> points = Arrays.asList(new Point(1,1), new Point(3,1), new Point(3,3));
+        Color c = new Color(1,2,3);
+        List<Span> spans = Arrays.asList(new Span(1, 1, 3), new Span(2, 3, 3), new Span(3, 3, 3));
+        when(board.polylineSpans(points,1)).thenReturn(spans);
+
+        session.drawPolyline(points, c, 1);
+        for (Span span: spans){
+            verify(board).fillSpan(span, c);
+        }
+        verify(sessionListener).updateSpans(spans,c);
+        verify(boardListener).updateSpans(spans,c);
+        verify(sessionListener).updateVersion(1);
+        verify(sessionListener).acknowledgeDraw(1);
+        verify(boardListener, never()).acknowledgeDraw(anyLong());
+        verify(boardListener).updateVersion(1);
+        verify(boardListener, never()).updateVersion(2);
+    }
+
+    /**
+     * Test login, connect, and fill
+     */
+    @Test
+    public void testFill(){
+        // login
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+
+        // connect to board
+        when(boards.getBoard(14)).thenReturn(struct);
+        session.connectToBoard(14);
+        // the client shows the whole board
+        session.setViewport(0, 0, Whiteboard.WIDTH, Whiteboard.HEIGHT);
+
+        // fill an area
+        Point p = new Point(1,1);
+        Color c = new Color(1,2,3);
+        List<Span> spans = Arrays.asList(new Span(1, 0, 4), new Span(2, 1, 1));
+        when(board.fill(p,c)).thenReturn(spans);
+
+        session.fill(p, c);
+        verify(sessionListener).updateSpans(spans, c);
+        verify(boardListener).updateSpans(spans, c);
+        verify(sessionListener).updateVersion(1);
+        verify(sessionListener).acknowledgeDraw(1);
+        verify(boardListener, never()).acknowledgeDraw(anyLong());
+        verify(boardListener).updateVersion(1);
+        assertEquals(6, struct.getHistory().changesSince(0).length);
+    }
+
+    /**
+     * Test login, connect, and draw a shape
+     */
+    @Test
+    public void testDrawShape(){
+        // login
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+
+        // connect to board
+        when(boards.getBoard(14)).thenReturn(struct);
+        session.connectToBoard(14);
+        // the client shows the whole board
+        session.setViewport(0, 0, Whiteboard.WIDTH, Whiteboard.HEIGHT);
+
+        // draw a rectangle
+        Shape shape = new Shape(Shape.Kind.RECTANGLE, new Point(1,1), new Point(3,2), new Color(1,2,3), 0);
+        session.drawShape(shape);
+        for (Span span: shape.getSpans(Whiteboard.WIDTH, Whiteboard.HEIGHT)){
+            verify(board).fillSpan(span, shape.getColor());
+        }
+        verify(sessionListener).updateShape(shape);
+        verify(boardListener).updateShape(shape);
+        verify(sessionListener).updateVersion(1);
+        verify(sessionListener).acknowledgeDraw(1);
+        verify(boardListener, never()).acknowledgeDraw(anyLong());
+        verify(boardListener).updateVersion(1);
+        assertEquals(6, struct.getHistory().changesSince(0).length);
+    }
+
+    /**
+     * Test login, connect, draw a traced line, and report it applied
+     */
+    @Test
+    public void testDrawLineTraced(){
+        ServerMetrics metrics = new ServerMetrics();
+        session = new SessionHandler(auth, boards, null, metrics);
+        session.setServerMessageListener(sessionListener);
+
+        // login
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+
+        // connect to board
+        when(boards.getBoard(14)).thenReturn(struct);
+        session.connectToBoard(14);
+        // the client shows the whole board
+        session.setViewport(0, 0, Whiteboard.WIDTH, Whiteboard.HEIGHT);
+
+        // draw a traced line
+        Point p = new Point(1,1);
+        Color c = new Color(1,2,3);
+        int w = 132;
+        List<Span> spans = Arrays.asList(new Span(1, 1, 1));
+        when(board.polylineSpans(Arrays.asList(p,p),w)).thenReturn(spans);
+
+        session.drawLine(p, p, c, w, new Trace(42, System.nanoTime()));
+        verify(sessionListener).updateSpans(spans,c);
+        verify(boardListener).updateSpans(spans,c);
+        org.mockito.ArgumentCaptor<Trace> trace = org.mockito.ArgumentCaptor.forClass(Trace.class);
+        verify(sessionListener).updateTrace(trace.capture());
+        assertEquals(42, trace.getValue().getID());
+        verify(boardListener).updateTrace(any(Trace.class));
+        assertEquals(1, metrics.getTrace(ServerMetrics.TraceStage.LOCK_WAIT).getCount());
+        assertEquals(2, metrics.getTrace(ServerMetrics.TraceStage.OUTBOUND).getCount());
+
+        // another client reports only the time to apply it
+        session.traceApplied(42, -1, 1000);
+        assertEquals(0, metrics.getTrace(ServerMetrics.TraceStage.NETWORK).getCount());
+
+        // the drawing client reports the whole round trip
+        session.traceApplied(42, 1000000000L, 1000);
+        assertEquals(2, metrics.getTrace(ServerMetrics.TraceStage.APPLY).getCount());
+        assertEquals(1, metrics.getTrace(ServerMetrics.TraceStage.NETWORK).getCount());
+        assertEquals(1, metrics.getTrace(ServerMetrics.TraceStage.TOTAL).getCount());
+    }
+
+    /**
+     * Test login, connect, draw, disconnect, and reconnect with the
+     * version from before the drawing
+     */
+    @Test
+    public void testReconnectToBoard(){
+        // login
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+
+        // connect to board
+        when(boards.getBoard(14)).thenReturn(struct);
+        session.connectToBoard(14);
+        verify(sessionListener).updateVersion(0);
+        session.disconnectFromBoard();
+
+        // another session draws a line
+        Point p = new Point(1,1);
+        Color c = new Color(1,2,3);
+        when(board.getPixel(p)).thenReturn(c);
+        when(board.getPixel(1, 1)).thenReturn(c);
+        struct.getHistory().record(Arrays.asList(p));
+
+        // reconnect with version 0: the client keeps its copy, and gets
+        // the tiles that it shows once it declares its viewport
+        session.reconnectToBoard(14, 0);
+        verify(sessionListener).resyncBoardSuccess(id, users);
+        verify(sessionListener, never()).updatePixel(p, c);
+        verify(sessionListener).updateVersion(1);
+        verify(sessionListener, times(1)).connectToBoardSuccess(id, users, board);
+        session.setViewport(0, 0, 10, 10);
+        verify(sessionListener).updateSpans(Arrays.asList(new Span(1, 1, 1)), c);
+        verify(sessionListener, times(2)).updateVersion(1);
+    }
+
+    /**
+     * Test login and reconnect with a version that the board does not have
+     */
+    @Test
+    public void testReconnectToBoardUnknownVersion(){
+        // login
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+
+        // reconnect to board with a version from the future
+        when(boards.getBoard(14)).thenReturn(struct);
+        session.reconnectToBoard(14, 5);
+        verify(sessionListener).connectToBoardSuccess(id, users, board);
+        verify(sessionListener).updateVersion(0);
     }
 
     /**
@@ -208,4 +590,258 @@ public class SessionHandlerTest {
         verify(auth).logout("fred");
         verify(boardListener).updateUsers(new ArrayList<String>());
     }
+
+    /**
+     * Test login, connect, and losing the connection without a registry
+     */
+    @Test
+    public void testConnectionLostWithoutRegistry(){
+        // login
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+
+        // connect to board
+        when(boards.getBoard(14)).thenReturn(struct);
+        session.connectToBoard(14);
+
+        // lose the connection
+        reset(boardListener);
+        session.connectionLost();
+        verify(sessionListener).serverClose();
+        verify(auth).logout("fred");
+        verify(boardListener).updateUsers(new ArrayList<String>());
+    }
+
+    /**
+     * Test login, connect, losing the connection, and resuming the
+     * session on a new connection
+     */
+    @Test
+    public void testResumeSession(){
+        SessionRegistry registry = new SessionRegistry();
+        session = new SessionHandler(auth, boards, registry);
+        session.setServerMessageListener(sessionListener);
+
+        // login
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+        org.mockito.ArgumentCaptor<String> token = org.mockito.ArgumentCaptor.forClass(String.class);
+        verify(sessionListener).resumeToken(token.capture());
+
+        // connect to board
+        when(boards.getBoard(14)).thenReturn(struct);
+        session.connectToBoard(14);
+        // the client shows the whole board
+        session.setViewport(0, 0, Whiteboard.WIDTH, Whiteboard.HEIGHT);
+
+        // lose the connection: the user stays logged in and on the board
+        reset(boardListener);
+        session.connectionLost();
+        verify(sessionListener).serverClose();
+        verify(auth, never()).logout("fred");
+        verify(boardListener, never()).updateUsers(anyListOf(String.class));
+        assertEquals(Arrays.asList("fred"), users);
+
+        // another user draws while the connection is down
+        Point p = new Point(1,1);
+        Color c = new Color(1,2,3);
+        for (ServerMessageListener l: new ArrayList<ServerMessageListener>(boardListeners)){
+            l.updatePixel(p, c);
+        }
+
+        // resume on a new connection
+        ServerMessageListener newListener = mock(ServerMessageListener.class);
+        SessionHandler newSession = new SessionHandler(auth, boards, registry);
+        newSession.setServerMessageListener(newListener);
+        newSession.resumeSession(token.getValue());
+        verify(newListener).resumeSessionSuccess(SocketState.CONNECTED);
+        verify(newListener).updatePixel(p, c);
+        verify(sessionListener, never()).updatePixel(p, c);
+
+        // the resumed session keeps working
+        newSession.disconnectFromBoard();
+        verify(newListener).disconnectFromBoardSuccess();
+        assertEquals(new ArrayList<String>(), users);
+    }
+
+    /**
+     * Test resuming a session that missed more updates than can be
+     * buffered, which gets the changed pixels as spans
+     */
+    @Test
+    public void testResumeSessionOverflow(){
+        SessionRegistry registry = new SessionRegistry();
+        session = new SessionHandler(auth, boards, registry);
+        session.setServerMessageListener(sessionListener);
+
+        // login, connect, and lose the connection
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+        org.mockito.ArgumentCaptor<String> token = org.mockito.ArgumentCaptor.forClass(String.class);
+        verify(sessionListener).resumeToken(token.capture());
+        when(boards.getBoard(14)).thenReturn(struct);
+        session.connectToBoard(14);
+        session.setViewport(0, 0, Whiteboard.WIDTH, Whiteboard.HEIGHT);
+        session.connectionLost();
+
+        // other users change a few pixels, with too many updates to buffer
+        Color c = new Color(1,2,3);
+        Color d = new Color(4,5,6);
+        for (int x = 1; x <= 3; x ++){
+            when(board.getPixel(x, 1)).thenReturn(c);
+        }
+        when(board.getPixel(5, 2)).thenReturn(d);
+        struct.getHistory().record(Arrays.asList(new Point(1,1), new Point(2,1), new Point(3,1), new Point(5,2)));
+        for (ServerMessageListener l: boardListeners){
+            if (l instanceof ResumableListener){
+                for (int i = 0; i <= ResumableListener.MAX_BUFFERED_UPDATES; i ++){
+                    l.updatePixel(new Point(1,1), c);
+                }
+            }
+        }
+
+        // resume: the changed pixels come as the runs of each color
+        ServerMessageListener newListener = mock(ServerMessageListener.class);
+        SessionHandler newSession = new SessionHandler(auth, boards, registry);
+        newSession.setServerMessageListener(newListener);
+        newSession.resumeSession(token.getValue());
+        verify(newListener).resumeSessionSuccess(SocketState.CONNECTED);
+        verify(newListener).updateSpans(Arrays.asList(new Span(1, 1, 3)), c);
+        verify(newListener).updateSpans(Arrays.asList(new Span(2, 5, 5)), d);
+        verify(newListener, times(2)).updateSpans(anyListOf(Span.class), any(Color.class));
+        verify(newListener, never()).updatePixel(any(Point.class), any(Color.class));
+        verify(newListener).updateVersion(1);
+    }
+
+    /**
+     * Test resuming with a token that does not exist
+     */
+    @Test
+    public void testResumeSessionFailure(){
+        session = new SessionHandler(auth, boards, new SessionRegistry());
+        session.setServerMessageListener(sessionListener);
+
+        session.resumeSession("1234");
+        verify(sessionListener).error(300);
+    }
+
+    /**
+     * Test spectating a board, which does not need a username
+     */
+    @Test
+    public void testSpectate(){
+        session.spectate();
+        verify(sessionListener).loginSuccess();
+        verify(auth, never()).login(anyString());
+
+        when(boards.getBoard(14)).thenReturn(struct);
+        session.connectToBoard(14);
+        verify(sessionListener).connectToBoardSuccess(id, users, board);
+        assertTrue(users.isEmpty());
+        verify(boardListener, never()).updateUsers(anyListOf(String.class));
+
+        // the draws of a spectator are ignored
+        Point p = new Point(1,1);
+        session.drawLine(p, p, new Color(1,2,3), 1);
+        verify(board, never()).fillSpan(any(Span.class), any(Color.class));
+        verify(boardListener, never()).updateVersion(anyLong());
+
+        // leaving the board does not log out a user
+        session.clientClose();
+        verify(auth, never()).logout(anyString());
+    }
+
+    /**
+     * Test that lines with a brush that is too wide are ignored
+     */
+    @Test
+    public void testDrawLineTooWide(){
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+        when(boards.getBoard(14)).thenReturn(struct);
+        session.connectToBoard(14);
+
+        Point p = new Point(1,1);
+        session.drawLine(p, p, new Color(1,2,3), Whiteboard.MAX_BRUSH_WIDTH + 1);
+        session.drawPolyline(Arrays.asList(p, p), new Color(1,2,3), -1);
+        verify(board, never()).polylineSpans(anyListOf(Point.class), anyInt());
+        verify(boardListener, never()).updateSpans(anyListOf(Span.class), any(Color.class));
+        verify(sessionListener, never()).acknowledgeDraw(anyLong());
+    }
+
+    /**
+     * Test that spectators can not create boards
+     */
+    @Test
+    public void testSpectateNewBoard(){
+        session.spectate();
+        session.newBoard();
+        verify(sessionListener).error(200);
+        verify(boards, never()).newBoard(anyInt(), anyInt());
+    }
+
+    /**
+     * Test that users can not log in to a relay server
+     */
+    @Test
+    public void testLoginReadOnly(){
+        when(boards.isReadOnly()).thenReturn(true);
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+        verify(sessionListener).error(100);
+        verify(auth, never()).login("fred");
+    }
+
+    /**
+     * Test undoing and redoing draws on a real board
+     */
+    @Test
+    public void testUndoRedo(){
+        Whiteboard realBoard = new Whiteboard();
+        struct = new WhiteboardStruct(realBoard, users, boardListeners, id);
+        when(auth.login("fred")).thenReturn(true);
+        session.login("fred");
+        when(boards.getBoard(14)).thenReturn(struct);
+        session.connectToBoard(14);
+
+        // nothing to undo
+        session.undo();
+        verify(boardListener, never()).updateVersion(anyLong());
+
+        Color red = new Color(255, 0, 0);
+        Color blue = new Color(0, 0, 255);
+        Color white = new Color();
+        session.drawLine(new Point(10, 10), new Point(100, 10), red, 1);
+        session.drawLine(new Point(50, 0), new Point(50, 20), blue, 1);
+        Whiteboard drawn = new Whiteboard(realBoard);
+
+        // undo the blue line: one batch, per color
+        session.undo();
+        assertEquals(red, realBoard.getPixel(50, 10));
+        assertEquals(white, realBoard.getPixel(50, 5));
+        verify(boardListener).updateSpans(Arrays.asList(new Span(10, 50, 50)), red);
+        verify(boardListener).updateVersion(3);
+        assertEquals(1, struct.getUndoHistory("fred").getUndoCount());
+
+        // redo it
+        session.redo();
+        assertEquals(drawn, realBoard);
+        verify(boardListener).updateVersion(4);
+
+        // undo both, then a new draw clears what can be redone
+        session.undo();
+        session.undo();
+        assertEquals(new Whiteboard(), realBoard);
+        session.fill(new Point(0, 0), blue);
+        session.redo();
+        verify(boardListener, never()).updateVersion(8);
+        session.undo();
+        assertEquals(new Whiteboard(), realBoard);
+        assertEquals(8, struct.getHistory().getVersion());
+
+        // leaving the board forgets the history
+        session.drawLine(new Point(10, 10), new Point(100, 10), red, 1);
+        session.disconnectFromBoard();
+        assertEquals(0, struct.getUndoHistory("fred").getUndoCount());
+    }
 }
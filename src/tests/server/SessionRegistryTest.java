@@ -0,0 +1,61 @@
+package tests.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import server.*;
+
+/**
+ * Test suite for SessionRegistry.java. A SessionRegistry keeps lost sessions
+ * for a grace period, so that they can be resumed.
+ *
+ * Testing strategy:
+ * Tokens are unique.
+ * A parked session can be resumed exactly once, and does not expire.
+ * An unknown token resumes nothing.
+ * A parked session that is not resumed expires after the grace period.
+ */
+public class SessionRegistryTest {
+    /**
+     * Tokens are unique
+     */
+    @Test
+    public void testNewToken(){
+        SessionRegistry r = new SessionRegistry();
+        assertEquals(false, r.newToken().equals(r.newToken()));
+    }
+
+    /**
+     * A parked session is resumed once, and does not expire
+     */
+    @Test
+    public void testResume() throws Exception{
+        SessionRegistry r = new SessionRegistry(100);
+        SessionHandler s = mock(SessionHandler.class);
+        String token = r.newToken();
+
+        r.park(token, s);
+        assertEquals(null, r.resume("unknown"));
+        assertEquals(s, r.resume(token));
+        assertEquals(null, r.resume(token));
+
+        Thread.sleep(300);
+        verify(s, never()).expire();
+    }
+
+    /**
+     * A parked session expires after the grace period
+     */
+    @Test
+    public void testExpire(){
+        SessionRegistry r = new SessionRegistry(100);
+        SessionHandler s = mock(SessionHandler.class);
+        String token = r.newToken();
+
+        r.park(token, s);
+        verify(s, timeout(2000)).expire();
+        assertEquals(null, r.resume(token));
+    }
+}
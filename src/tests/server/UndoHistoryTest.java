@@ -0,0 +1,238 @@
+package tests.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import common.Color;
+import common.Point;
+import common.Span;
+import common.Whiteboard;
+import server.UndoHistory;
+
+/**
+ * Testing suite for UndoHistory.java
+ *
+ * Testing strategy:
+ * Capturing spans records runs of the same color, split where the color
+ * changes and merged across adjacent spans, and applying the edit restores
+ * them and returns the inverse.
+ * Undo restores the board to before each draw, in reverse order, and redo
+ * restores the board to after it; a new draw clears the redo stack.
+ * Undo and redo with empty stacks return null and change nothing.
+ * Edits beyond the memory cap are spilled to disk and undone in the same
+ * order, whether they have been written yet or not; edits beyond the disk
+ * cap are forgotten, and with a disk cap of 0 nothing is spilled.
+ * Spilled edits that fill several spill files, the oldest of which are
+ * forgotten, are undone in the same order, also when new edits are spilled
+ * in between.
+ * Edits undone while the writer is writing them, including the one it is
+ * writing, come back in the same order.
+ * Closing the history forgets everything.
+ */
+public class UndoHistoryTest {
+
+    private static final Color RED = new Color(255, 0, 0);
+    private static final Color BLUE = new Color(0, 0, 255);
+    private static final Color WHITE = new Color();
+
+    /**
+     * Captured runs are split by color, and applying restores them
+     */
+    @Test
+    public void testCapture(){
+        Whiteboard board = new Whiteboard();
+        board.fillSpan(new Span(5, 10, 19), RED);
+        board.fillSpan(new Span(5, 15, 16), BLUE);
+        List<Span> spans = Arrays.asList(new Span(5, 0, 29), new Span(6, 12, 13));
+        UndoHistory.Edit edit = UndoHistory.Edit.capture(board, spans);
+        assertEquals(Arrays.asList(new Span(5, 0, 9), new Span(5, 10, 14), new Span(5, 15, 16),
+                new Span(5, 17, 19), new Span(5, 20, 29), new Span(6, 12, 13)), edit.getAllSpans());
+        assertEquals(32, edit.getPixelCount());
+
+        Map<Color, List<Span>> groups = edit.getSpans();
+        assertEquals(Arrays.asList(WHITE, RED, BLUE), Arrays.asList(groups.keySet().toArray()));
+        assertEquals(Arrays.asList(new Span(5, 15, 16)), groups.get(BLUE));
+
+        Whiteboard before = new Whiteboard(board);
+        for (Span span: spans){
+            board.fillSpan(span, BLUE);
+        }
+        UndoHistory.Edit inverse = edit.apply(board);
+        assertEquals(before, board);
+        assertEquals(spans, inverse.getAllSpans());
+    }
+
+    /**
+     * Undo and redo restore the board before and after each draw
+     */
+    @Test
+    public void testUndoRedo(){
+        Whiteboard board = new Whiteboard();
+        UndoHistory history = new UndoHistory();
+        assertNull(history.undo(board));
+        assertNull(history.redo(board));
+
+        Whiteboard[] states = new Whiteboard[4];
+        states[0] = new Whiteboard(board);
+        for (int i=1; i<4; i++){
+            _draw(board, history, new Point(10*i, 0), new Point(10*i + 50, 300), i % 2 == 0 ? RED : BLUE);
+            states[i] = new Whiteboard(board);
+        }
+        for (int i=3; i>0; i--){
+            assertNotNull(history.undo(board));
+            assertEquals(states[i-1], board);
+        }
+        assertNull(history.undo(board));
+        assertEquals(3, history.getRedoCount());
+
+        history.redo(board);
+        history.redo(board);
+        assertEquals(states[2], board);
+
+        // a new draw clears the redo stack
+        _draw(board, history, new Point(0, 0), new Point(0, 0), RED);
+        assertEquals(0, history.getRedoCount());
+        assertNull(history.redo(board));
+        history.undo(board);
+        assertEquals(states[2], board);
+    }
+
+    /**
+     * Edits beyond the memory cap are spilled, and the oldest beyond the
+     * disk cap are forgotten
+     */
+    @Test
+    public void testSpill(){
+        Whiteboard board = new Whiteboard();
+        UndoHistory history = new UndoHistory(2000, 1000*1000);
+        Whiteboard[] states = new Whiteboard[21];
+        states[0] = new Whiteboard(board);
+        for (int i=1; i<=20; i++){
+            _draw(board, history, new Point(0, 20*i), new Point(Whiteboard.WIDTH - 1, 20*i + 10), i % 2 == 0 ? RED : BLUE);
+            states[i] = new Whiteboard(board);
+        }
+        assertTrue(history.getSpilledCount() > 0);
+        assertTrue(history.getMemoryBytes() <= 2000);
+        assertEquals(20, history.getUndoCount());
+        for (int i=20; i>0; i--){
+            assertNotNull(history.undo(board));
+            assertEquals(states[i-1], board);
+        }
+        assertEquals(0, history.getSpilledCount());
+        history.close();
+
+        // a small disk cap forgets the oldest edits
+        board = new Whiteboard();
+        history = new UndoHistory(2000, 1000);
+        for (int i=1; i<=20; i++){
+            _draw(board, history, new Point(0, 20*i), new Point(Whiteboard.WIDTH - 1, 20*i + 10), RED);
+        }
+        history.awaitSpill();
+        int count = history.getUndoCount();
+        assertTrue(count < 20 && count > 0);
+        while (history.undo(board) != null){
+        }
+        assertEquals(RED, board.getPixel(0, 20));
+        assertEquals(WHITE, board.getPixel(0, 400));
+        history.close();
+
+        // a disk cap of 0 spills nothing
+        history = new UndoHistory(2000, 0);
+        for (int i=1; i<=20; i++){
+            _draw(board, history, new Point(0, 20*i), new Point(Whiteboard.WIDTH - 1, 20*i + 10), BLUE);
+        }
+        assertEquals(0, history.getSpilledCount());
+        assertTrue(history.getUndoCount() < 20);
+        history.close();
+        assertEquals(0, history.getUndoCount());
+        assertEquals(0, history.getMemoryBytes());
+    }
+
+    /**
+     * Spilled edits that fill several spill files are undone in order
+     */
+    @Test
+    public void testSpillSegments(){
+        Whiteboard board = new Whiteboard();
+        UndoHistory history = new UndoHistory(2000, 1500);
+        List<Whiteboard> states = new ArrayList<Whiteboard>();
+        states.add(new Whiteboard(board));
+        for (int i=1; i<=60; i++){
+            _draw(board, history, new Point(0, 10*i - 9), new Point(Whiteboard.WIDTH - 1, 10*i - 5), i % 2 == 0 ? RED : BLUE);
+            states.add(new Whiteboard(board));
+        }
+        history.awaitSpill();
+        int count = history.getUndoCount();
+        assertTrue(count < 60 && count > 20);
+
+        // undo some, spill more, and undo everything that is left
+        for (int i=0; i<5; i++){
+            assertNotNull(history.undo(board));
+        }
+        assertEquals(states.get(55), board);
+        for (int i=0; i<5; i++){
+            _draw(board, history, new Point(0, 10*i), new Point(Whiteboard.WIDTH - 1, 10*i), RED);
+        }
+        for (int i=0; i<5; i++){
+            assertNotNull(history.undo(board));
+        }
+        assertEquals(states.get(55), board);
+        int state = 55;
+        while (history.undo(board) != null){
+            assertEquals(states.get(--state), board);
+        }
+        assertTrue(state > 0 && state < 45);
+        assertEquals(0, history.getSpilledCount());
+        history.close();
+    }
+
+    /**
+     * Edits undone while they are being written come back in order
+     */
+    @Test
+    public void testSpillUndoWhileWriting(){
+        Whiteboard board = new Whiteboard();
+        UndoHistory history = new UndoHistory(2000, 1000*1000);
+        List<Whiteboard> states = new ArrayList<Whiteboard>();
+        states.add(new Whiteboard(board));
+        for (int round=0; round<30; round++){
+            // draw three and undo two without waiting for the writer
+            for (int i=0; i<3; i++){
+                int y = (7*states.size()) % (Whiteboard.HEIGHT - 10);
+                _draw(board, history, new Point(0, y), new Point(Whiteboard.WIDTH - 1, y + 5), i % 2 == 0 ? RED : BLUE);
+                states.add(new Whiteboard(board));
+            }
+            for (int i=0; i<2; i++){
+                assertNotNull(history.undo(board));
+                states.remove(states.size() - 1);
+                assertEquals(states.get(states.size() - 1), board);
+            }
+        }
+        assertTrue(history.getSpilledCount() > 0);
+        while (history.undo(board) != null){
+            states.remove(states.size() - 1);
+            assertEquals(states.get(states.size() - 1), board);
+        }
+        assertEquals(1, states.size());
+        history.awaitSpill();
+        assertEquals(0, history.getSpilledCount());
+        history.close();
+    }
+
+    /**
+     * Draw a line, recording it in the history.
+     */
+    private static void _draw(Whiteboard board, UndoHistory history, Point p1, Point p2, Color color){
+        List<Span> spans = board.polylineSpans(Arrays.asList(p1, p2), 5);
+        history.record(UndoHistory.Edit.capture(board, spans));
+        for (Span span: spans){
+            board.fillSpan(span, color);
+        }
+    }
+}
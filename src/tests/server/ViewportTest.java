@@ -0,0 +1,133 @@
+package tests.server;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import common.*;
+import server.Viewport;
+
+/**
+ * Test suite for Viewport.java
+ *
+ * Testing strategy:
+ * Rectangles are rounded out to the tiles they touch and clipped to the
+ * largest board, and rectangles outside of it, or with no width or height,
+ * are empty, like Viewport.NONE.
+ * contains() includes the edges of the tiles of the viewport.
+ * Clipping spans that are all inside returns the same list; otherwise the
+ * parts outside are cut off, and spans outside are dropped.
+ * Shapes intersect the viewport when their outline may reach into it.
+ * Subtracting a viewport returns the tiles of the board that are only in
+ * this one: nothing for the same viewport, every tile for an empty or
+ * disjoint one, the uncovered columns and rows of tiles for overlapping
+ * ones, and no tiles past the edges of the board.
+ */
+public class ViewportTest {
+    private static final int T = Whiteboard.TILE_SIZE;
+
+    /**
+     * Rectangles are rounded out to tiles and clipped to the largest board
+     */
+    @Test
+    public void testOf(){
+        assertEquals(Viewport.ALL, Viewport.of(-10, -10, 100000, 100000));
+        assertEquals(Viewport.ALL, Viewport.of(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        assertEquals(Viewport.of(0, 0, 5, 5), Viewport.of(-5, -5, 10, 10));
+        assertEquals(Viewport.of(0, 0, T, T), Viewport.of(3, 4, 10, 10));
+        Viewport empty = Viewport.of(0, 0, 0, 0);
+        assertEquals(Viewport.NONE, empty);
+        assertEquals(empty, Viewport.of(-20, 0, 10, 10));
+        assertEquals(empty, Viewport.of(Whiteboard.MAX_WIDTH, 0, 10, 10));
+        assertFalse(empty.contains(0, 0));
+
+        // the tiles from (0, 0) to (1, 1)
+        Viewport v = Viewport.of(10, 20, 30, 40);
+        assertTrue(v.contains(0, 0));
+        assertTrue(v.contains(2*T - 1, 2*T - 1));
+        assertFalse(v.contains(2*T, 59));
+        assertFalse(v.contains(39, 2*T));
+        assertTrue(Viewport.ALL.contains(Whiteboard.MAX_WIDTH - 1, Whiteboard.MAX_HEIGHT - 1));
+    }
+
+    /**
+     * Spans are clipped to the tiles of the viewport
+     */
+    @Test
+    public void testClip(){
+        Viewport v = Viewport.of(T, T, T, T);
+        List<Span> inside = Arrays.asList(new Span(T, T, 2*T - 1), new Span(2*T - 1, T + 5, T + 5));
+        assertSame(inside, v.clip(inside));
+        assertEquals(Arrays.asList(new Span(T + 10, T, 2*T - 1), new Span(T + 11, T + 30, 2*T - 1)),
+                v.clip(Arrays.asList(new Span(T - 1, 0, 100), new Span(T + 10, 0, 100),
+                        new Span(T + 11, T + 30, 100), new Span(T + 12, 0, T - 1))));
+        assertTrue(v.clip(Arrays.asList(new Span(2*T, T, 2*T - 1))).isEmpty());
+        assertTrue(Viewport.of(0, 0, 0, 0).clip(inside).isEmpty());
+    }
+
+    /**
+     * Shapes intersect the viewport if their outline may reach into it
+     */
+    @Test
+    public void testIntersects(){
+        // the tiles from (3, 3) to (6, 6), pixels 96 to 223
+        Viewport v = Viewport.of(100, 100, 100, 100);
+        Color c = new Color();
+        assertTrue(v.intersects(Shape.clearBoard()));
+        assertTrue(v.intersects(new Shape(Shape.Kind.RECTANGLE, new Point(150, 150), new Point(160, 160), c, 1)));
+        assertTrue(v.intersects(new Shape(Shape.Kind.RECTANGLE, new Point(0, 0), new Point(92, 92), c, 5)));
+        assertFalse(v.intersects(new Shape(Shape.Kind.RECTANGLE, new Point(0, 0), new Point(90, 300), c, 5)));
+        assertFalse(v.intersects(new Shape(Shape.Kind.ELLIPSE, new Point(300, 0), new Point(400, 90), c, 1)));
+    }
+
+    /**
+     * Subtracting returns the tiles of the board that are only in this
+     * viewport
+     */
+    @Test
+    public void testSubtract(){
+        int tilesX = Whiteboard.TILES_X;
+        int tilesY = Whiteboard.TILES_Y;
+        // the tiles from (1, 1) to (3, 4)
+        Viewport v = Viewport.of(T, T, 3*T, 4*T);
+        assertTrue(v.subtract(v, tilesX, tilesY).isEmpty());
+        assertTrue(v.subtract(Viewport.ALL, tilesX, tilesY).isEmpty());
+        assertTrue(Viewport.of(0, 0, 0, 0).subtract(v, tilesX, tilesY).isEmpty());
+
+        List<Point> all = new ArrayList<Point>();
+        for (int y=1; y<5; y++){
+            for (int x=1; x<4; x++){
+                all.add(new Point(x, y));
+            }
+        }
+        assertEquals(all, v.subtract(Viewport.of(0, 0, 0, 0), tilesX, tilesY));
+        assertEquals(all, v.subtract(Viewport.of(10*T, T, 3*T, 4*T), tilesX, tilesY));
+
+        // panned right and up by one tile
+        List<Point> shown = new ArrayList<Point>();
+        for (int y=1; y<5; y++){
+            for (int x=1; x<4; x++){
+                if (y == 4 || x == 3){
+                    shown.add(new Point(x, y));
+                }
+            }
+        }
+        assertEquals(shown, v.subtract(Viewport.of(0, 0, 3*T, 4*T), tilesX, tilesY));
+
+        // panning by less than a tile shows no new tiles
+        assertTrue(v.subtract(Viewport.of(T + 5, T + 5, 3*T - 10, 4*T - 10), tilesX, tilesY).isEmpty());
+
+        // zoomed out around the other viewport
+        List<Point> frame = v.subtract(Viewport.of(2*T, 2*T, T, T), tilesX, tilesY);
+        assertEquals(11, frame.size());
+        assertFalse(frame.contains(new Point(2, 2)));
+
+        // the tiles past the edges of the board are not sent
+        assertEquals(Arrays.asList(new Point(1, 0), new Point(1, 1)),
+                Viewport.ALL.subtract(Viewport.of(0, 0, T, 2*T), 2, 2));
+    }
+}
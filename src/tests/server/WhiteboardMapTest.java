@@ -2,8 +2,12 @@ package tests.server;
 
 import org.junit.Test;
 
+import java.util.Arrays;
+
 import static org.junit.Assert.*;
 
+import common.Color;
+import common.Point;
 import server.*;
 
 /**
@@ -15,6 +19,9 @@ import server.*;
  * Add boards to a whiteboardMap
  * Get legal boards from a whiteboardmap.
  * Try to get boards from a whiteboardmap with the wrong id.
+ * In a cluster, new boards get local ids and other ids have remote owners.
+ * A clone gets a new id and the pixels of its source, at version 0, and
+ * the two boards are independent afterwards.
  *
  */
 public class WhiteboardMapTest {
@@ -42,4 +49,53 @@ public class WhiteboardMapTest {
         w.newBoard();
         assertEquals(false, w.getBoard(0) == null); //demonstrates the change of state in w
     }
+
+    /**
+     * In a cluster, only ids owned by this node are allocated, and
+     * getRemoteOwner() returns the owner of the others
+     */
+    @Test
+    public void testCluster(){
+        ClusterRing.Node a = new ClusterRing.Node("localhost", 1);
+        ClusterRing.Node b = new ClusterRing.Node("localhost", 2);
+        ClusterRing ring = new ClusterRing(Arrays.asList(a, b), a);
+        WhiteboardMap w = new WhiteboardMap(ring);
+        assertNull(new WhiteboardMap().getRemoteOwner(0));
+
+        int last = -1;
+        for (int i=0; i<20; i++){
+            int id = w.newBoard().getID();
+            assertTrue(id > last);
+            assertTrue(ring.isLocal(id));
+            assertNull(w.getRemoteOwner(id));
+            for (int skipped=last+1; skipped<id; skipped++){
+                assertEquals(b, w.getRemoteOwner(skipped));
+                assertNull(w.getBoard(skipped));
+            }
+            last = id;
+        }
+    }
+
+    /**
+     * A clone is a new board with the pixels of its source
+     */
+    @Test
+    public void testCloneBoard(){
+        WhiteboardMap w = new WhiteboardMap();
+        WhiteboardStruct source = w.newBoard();
+        Color red = new Color(255, 0, 0);
+        source.getWhiteboard().drawLine(new Point(0, 0), new Point(100, 100), red, 3);
+        source.getHistory().record(Arrays.asList(new Point(0, 0)));
+
+        WhiteboardStruct clone = w.cloneBoard(source);
+        assertTrue(clone.getID() != source.getID());
+        assertEquals(clone, w.getBoard(clone.getID()));
+        assertEquals(source.getWhiteboard(), clone.getWhiteboard());
+        assertEquals(0, clone.getHistory().getVersion());
+
+        clone.getWhiteboard().setPixel(200, 200, red);
+        source.getWhiteboard().setPixel(50, 50, new Color());
+        assertEquals(new Color(), source.getWhiteboard().getPixel(200, 200));
+        assertEquals(red, clone.getWhiteboard().getPixel(50, 50));
+    }
 }
@@ -31,6 +31,7 @@ public class WhiteboardStructTest {
     @Test
     public void whiteboardStructBasic(){
         Whiteboard wb = mock(Whiteboard.class);
+        when(wb.getWidth()).thenReturn(Whiteboard.WIDTH);
         List<String> users = mock(List.class);
         List<ServerMessageListener> listeners = mock(List.class);
         int id = 5;